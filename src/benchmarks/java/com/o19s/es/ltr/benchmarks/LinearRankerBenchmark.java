@@ -0,0 +1,95 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.benchmarks;
+
+import com.o19s.es.ltr.ranker.DenseFeatureVector;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.linear.LinearRanker;
+import com.o19s.es.ltr.ranker.normalizer.FeatureNormalizingRanker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of scoring a single document with a linear model, with and without feature normalization.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LinearRankerBenchmark {
+    @Param({"10", "50", "200"})
+    public int nbFeatures;
+
+    private float[][] vectors;
+    private int next;
+
+    private LinearRanker linear;
+    private LtrRanker normalizedLinear;
+    private LtrRanker fusedNormalizedLinear;
+    private DenseFeatureVector linearVector;
+    private DenseFeatureVector normalizedLinearVector;
+    private DenseFeatureVector fusedNormalizedLinearVector;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(SyntheticModels.SEED);
+        vectors = SyntheticModels.vectors(random, nbFeatures);
+        float[] weights = new float[nbFeatures];
+        for (int i = 0; i < nbFeatures; i++) {
+            weights[i] = random.nextFloat();
+        }
+        linear = new LinearRanker(weights, random.nextFloat());
+        normalizedLinear = new FeatureNormalizingRanker(linear, SyntheticModels.normalizers(nbFeatures));
+        fusedNormalizedLinear = FeatureNormalizingRanker.fuse(linear, SyntheticModels.normalizers(nbFeatures));
+        linearVector = (DenseFeatureVector) linear.newFeatureVector(null);
+        normalizedLinearVector = (DenseFeatureVector) normalizedLinear.newFeatureVector(null);
+        fusedNormalizedLinearVector = (DenseFeatureVector) fusedNormalizedLinear.newFeatureVector(null);
+    }
+
+    private DenseFeatureVector fill(DenseFeatureVector vector) {
+        return SyntheticModels.fill(vector, vectors[next++ & (SyntheticModels.NB_VECTORS - 1)]);
+    }
+
+    @Benchmark
+    public float linear() {
+        return linear.score(fill(linearVector));
+    }
+
+    @Benchmark
+    public float normalizedLinear() {
+        return normalizedLinear.score(fill(normalizedLinearVector));
+    }
+
+    @Benchmark
+    public float fusedNormalizedLinear() {
+        return fusedNormalizedLinear.score(fill(fusedNormalizedLinearVector));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.benchmarks;
+
+import ciir.umass.edu.learning.RankerFactory;
+import com.o19s.es.ltr.feature.FeatureSet;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.parser.XGBoostJsonParser;
+import com.o19s.es.ltr.ranker.ranklib.RanklibModelParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of parsing model definitions, on synthetic ensembles and on the models in sample_models.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+    @State(Scope.Benchmark)
+    public static class SyntheticModel {
+        @Param({"100", "1000"})
+        public int nbTrees;
+
+        @Param({"6"})
+        public int depth;
+
+        @Param({"50"})
+        public int nbFeatures;
+
+        FeatureSet set;
+        String xgboost;
+        String ranklib;
+
+        @Setup
+        public void setup() {
+            NaiveAdditiveDecisionTree trees = SyntheticModels.trees(new Random(SyntheticModels.SEED), nbTrees, depth, nbFeatures);
+            set = SyntheticModels.featureSet(nbFeatures);
+            xgboost = SyntheticModels.toXGBoostJson(trees);
+            ranklib = SyntheticModels.toRanklib(trees);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SampleModel {
+        @Param({"lambdaMART.txt", "mart.txt", "randomForest.txt", "coord_ascent.txt", "linRegression.txt"})
+        public String model;
+
+        FeatureSet set;
+        String definition;
+
+        @Setup
+        public void setup() throws IOException {
+            definition = SyntheticModels.sampleModel(model);
+            set = SyntheticModels.featureSet(SyntheticModels.ranklibFeatureCount(definition));
+        }
+    }
+
+    private final XGBoostJsonParser xgboostParser = new XGBoostJsonParser();
+    private final RanklibModelParser ranklibParser = new RanklibModelParser(new RankerFactory());
+
+    @Benchmark
+    public LtrRanker xgboost(SyntheticModel state) {
+        return xgboostParser.parse(state.set, state.xgboost);
+    }
+
+    @Benchmark
+    public LtrRanker ranklib(SyntheticModel state) {
+        return ranklibParser.parse(state.set, state.ranklib);
+    }
+
+    @Benchmark
+    public LtrRanker ranklibSampleModel(SampleModel state) {
+        return ranklibParser.parse(state.set, state.definition);
+    }
+}
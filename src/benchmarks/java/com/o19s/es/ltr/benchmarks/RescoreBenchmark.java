@@ -0,0 +1,225 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.benchmarks;
+
+import com.o19s.es.ltr.LtrQueryContext;
+import com.o19s.es.ltr.feature.PrebuiltFeature;
+import com.o19s.es.ltr.feature.PrebuiltFeatureSet;
+import com.o19s.es.ltr.feature.PrebuiltLtrModel;
+import com.o19s.es.ltr.query.RankerQuery;
+import com.o19s.es.ltr.ranker.LogLtrRanker;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryRescorer;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.common.lucene.search.function.FunctionScoreQuery;
+import org.elasticsearch.common.lucene.search.function.WeightFactorFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rescore a window of documents of an in-memory Lucene index with a {@link RankerQuery},
+ * the same way the elasticsearch query rescorer drives {@link RankerQuery.RankerWeight#scorer}.
+ * Optionally logs the feature scores of the window afterwards like the ltr logging fetch phase does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RescoreBenchmark {
+    private static final String FIELD = "text";
+    private static final int VOCABULARY_SIZE = 1000;
+
+    @Param({"100000"})
+    public int nbDocs;
+
+    @Param({"10", "100", "1000"})
+    public int nbFeatures;
+
+    @Param({"1000"})
+    public int windowSize;
+
+    @Param({"false", "true"})
+    public boolean featureScoreCache;
+
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private PrebuiltLtrModel model;
+    private TopDocs window;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random random = new Random(SyntheticModels.SEED);
+        directory = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < nbDocs; i++) {
+                text.setLength(0);
+                int length = 5 + random.nextInt(50);
+                for (int w = 0; w < length; w++) {
+                    text.append(word(random)).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new TextField(FIELD, text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+
+        List<PrebuiltFeature> features = new ArrayList<>(nbFeatures);
+        for (int i = 0; i < nbFeatures; i++) {
+            features.add(new PrebuiltFeature(SyntheticModels.featureName(i), featureQuery(random, i)));
+        }
+        LtrRanker ranker = FlatAdditiveDecisionTree.fromNodes(SyntheticModels.trees(random, 100, 6, nbFeatures));
+        model = new PrebuiltLtrModel(ranker.name(), ranker, new PrebuiltFeatureSet("benchmark_set", features));
+
+        // the first pass results: a random window of documents
+        ScoreDoc[] hits = new ScoreDoc[Math.min(windowSize, nbDocs)];
+        int[] docs = random.ints(0, nbDocs).distinct().limit(hits.length).toArray();
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = new ScoreDoc(docs[i], random.nextFloat());
+        }
+        Arrays.sort(hits, Comparator.comparingDouble((ScoreDoc d) -> d.score).reversed());
+        window = new TopDocs(new TotalHits(hits.length, TotalHits.Relation.EQUAL_TO), hits);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    /**
+     * Words are drawn with a skewed distribution so that some features match many documents
+     */
+    private static String word(Random random) {
+        double r = random.nextDouble();
+        return "w" + (int) (r * r * VOCABULARY_SIZE);
+    }
+
+    /**
+     * Cycle through term, phrase and function score features
+     */
+    private static Query featureQuery(Random random, int ord) {
+        switch (ord % 3) {
+        case 0:
+            return new TermQuery(new Term(FIELD, word(random)));
+        case 1:
+            return new PhraseQuery(FIELD, word(random), word(random));
+        default:
+            return new FunctionScoreQuery(new TermQuery(new Term(FIELD, word(random))), new WeightFactorFunction(1.5F));
+        }
+    }
+
+    private RankerQuery buildQuery() {
+        return RankerQuery.build(model, new LtrQueryContext(null, Collections.emptySet()), Collections.emptyMap(),
+                featureScoreCache);
+    }
+
+    @Benchmark
+    public TopDocs rescore() throws IOException {
+        return QueryRescorer.rescore(searcher, window, buildQuery(), 1D, window.scoreDocs.length);
+    }
+
+    @Benchmark
+    public float rescoreAndLog() throws IOException {
+        RankerQuery query = buildQuery();
+        TopDocs rescored = QueryRescorer.rescore(searcher, window, query, 1D, window.scoreDocs.length);
+        return log(query, rescored);
+    }
+
+    /**
+     * Log the feature scores of all the hits, hits are visited in doc id order like the fetch phase does
+     */
+    private float log(RankerQuery query, TopDocs hits) throws IOException {
+        float[] sum = new float[1];
+        LogLtrRanker.LogConsumer consumer = new LogLtrRanker.LogConsumer() {
+            @Override
+            public void accept(int featureOrdinal, float score) {
+                sum[0] += score;
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+        Weight weight = searcher.createWeight(searcher.rewrite(query.toLoggerQuery(consumer)), ScoreMode.COMPLETE, 1F);
+        ScoreDoc[] docs = hits.scoreDocs.clone();
+        Arrays.sort(docs, Comparator.comparingInt((ScoreDoc d) -> d.doc));
+        List<LeafReaderContext> leaves = reader.leaves();
+        LeafReaderContext leaf = null;
+        Scorer scorer = null;
+        for (ScoreDoc hit : docs) {
+            LeafReaderContext hitLeaf = leaves.get(ReaderUtil.subIndex(hit.doc, leaves));
+            if (hitLeaf != leaf) {
+                leaf = hitLeaf;
+                scorer = weight.scorer(leaf);
+            }
+            int doc = hit.doc - leaf.docBase;
+            if (scorer != null && scorer.iterator().advance(doc) == doc) {
+                scorer.score();
+            }
+        }
+        return sum[0];
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.benchmarks;
+
+import com.o19s.es.ltr.feature.store.StoredFeature;
+import com.o19s.es.ltr.feature.store.StoredFeatureSet;
+import com.o19s.es.ltr.ranker.DenseFeatureVector;
+import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.normalizer.MinMaxFeatureNormalizer;
+import com.o19s.es.ltr.ranker.normalizer.Normalizer;
+import com.o19s.es.ltr.ranker.normalizer.Normalizers;
+import com.o19s.es.ltr.ranker.normalizer.StandardFeatureNormalizer;
+import org.elasticsearch.core.PathUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Synthetic models and feature vectors shared by the benchmarks.
+ * Models are generated with a fixed seed so that runs are comparable.
+ */
+final class SyntheticModels {
+    static final long SEED = 42L;
+    /**
+     * Number of feature vectors cycled through by the scoring benchmarks, must be a power of 2
+     */
+    static final int NB_VECTORS = 1024;
+    /**
+     * System property pointing to the sample_models directory, set by the jmh gradle task
+     */
+    static final String SAMPLE_MODELS_PROPERTY = "ltr.sample_models";
+
+    private static final Pattern RANKLIB_FEATURE = Pattern.compile("<feature>\\s*(\\d+)\\s*</feature>|(\\d+):");
+
+    private SyntheticModels() {}
+
+    static StoredFeatureSet featureSet(int nbFeatures) {
+        List<StoredFeature> features = new ArrayList<>(nbFeatures);
+        for (int i = 0; i < nbFeatures; i++) {
+            features.add(new StoredFeature(featureName(i), Collections.singletonList("query"), "mustache",
+                    "{\"match\": {\"field" + i + "\": \"{{query}}\"}}"));
+        }
+        return new StoredFeatureSet("benchmark_set", features);
+    }
+
+    static String featureName(int ord) {
+        return "feature" + ord;
+    }
+
+    /**
+     * @return random feature scores in [0, 1)
+     */
+    static float[][] vectors(Random random, int nbFeatures) {
+        float[][] vectors = new float[NB_VECTORS][nbFeatures];
+        for (float[] vector : vectors) {
+            for (int i = 0; i < nbFeatures; i++) {
+                vector[i] = random.nextFloat();
+            }
+        }
+        return vectors;
+    }
+
+    /**
+     * Copy feature scores in a vector, the vector must have been created by a dense ranker
+     */
+    static DenseFeatureVector fill(DenseFeatureVector vector, float[] values) {
+        System.arraycopy(values, 0, vector.scores, 0, values.length);
+        return vector;
+    }
+
+    /**
+     * Normalize every other feature, alternating min/max and standard normalizers
+     */
+    static Map<Integer, Normalizer> normalizers(int nbFeatures) {
+        Map<Integer, Normalizer> ftrNorms = new HashMap<>();
+        for (int i = 0; i < nbFeatures; i += 2) {
+            ftrNorms.put(i, i % 4 == 0 ? new MinMaxFeatureNormalizer(0F, 2F) : new StandardFeatureNormalizer(0.5F, 0.25F));
+        }
+        return ftrNorms;
+    }
+
+    /**
+     * Build an ensemble of complete binary trees with random splits
+     */
+    static NaiveAdditiveDecisionTree trees(Random random, int nbTrees, int depth, int nbFeatures) {
+        NaiveAdditiveDecisionTree.Node[] trees = new NaiveAdditiveDecisionTree.Node[nbTrees];
+        float[] weights = new float[nbTrees];
+        for (int i = 0; i < nbTrees; i++) {
+            trees[i] = node(random, depth, nbFeatures);
+            weights[i] = random.nextFloat();
+        }
+        return new NaiveAdditiveDecisionTree(trees, weights, nbFeatures, Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+    }
+
+    private static NaiveAdditiveDecisionTree.Node node(Random random, int depth, int nbFeatures) {
+        if (depth == 0) {
+            return new NaiveAdditiveDecisionTree.Leaf(random.nextFloat() * 2 - 1);
+        }
+        return new NaiveAdditiveDecisionTree.Split(node(random, depth - 1, nbFeatures), node(random, depth - 1, nbFeatures),
+                random.nextInt(nbFeatures), random.nextFloat());
+    }
+
+    /**
+     * Write the trees in the json format dumped by XGBoost
+     */
+    static String toXGBoostJson(NaiveAdditiveDecisionTree ranker) {
+        StringBuilder sb = new StringBuilder("[");
+        NaiveAdditiveDecisionTree.Node[] trees = ranker.trees();
+        for (int i = 0; i < trees.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            writeXGBoostNode(sb, trees[i], new int[1], 0);
+        }
+        return sb.append(']').toString();
+    }
+
+    private static void writeXGBoostNode(StringBuilder sb, NaiveAdditiveDecisionTree.Node node, int[] nextId, int depth) {
+        int id = nextId[0]++;
+        if (node.isLeaf()) {
+            sb.append("{\"nodeid\":").append(id).append(",\"leaf\":").append(((NaiveAdditiveDecisionTree.Leaf) node).output())
+                    .append('}');
+            return;
+        }
+        NaiveAdditiveDecisionTree.Split split = (NaiveAdditiveDecisionTree.Split) node;
+        StringBuilder children = new StringBuilder();
+        int left = nextId[0];
+        writeXGBoostNode(children, split.left(), nextId, depth + 1);
+        children.append(',');
+        int right = nextId[0];
+        writeXGBoostNode(children, split.right(), nextId, depth + 1);
+        sb.append("{\"nodeid\":").append(id)
+                .append(",\"depth\":").append(depth)
+                .append(",\"split\":\"").append(featureName(split.feature())).append('"')
+                .append(",\"split_condition\":").append(split.threshold())
+                .append(",\"yes\":").append(left)
+                .append(",\"no\":").append(right)
+                .append(",\"missing\":").append(left)
+                .append(",\"children\":[").append(children).append("]}");
+    }
+
+    /**
+     * Write the trees in the ranklib LambdaMART format, all the trees have a weight of 1
+     */
+    static String toRanklib(NaiveAdditiveDecisionTree ranker) {
+        NaiveAdditiveDecisionTree.Node[] trees = ranker.trees();
+        StringBuilder sb = new StringBuilder("## LambdaMART\n## No. of trees = ").append(trees.length).append("\n<ensemble>\n");
+        for (int i = 0; i < trees.length; i++) {
+            sb.append("<tree id=\"").append(i + 1).append("\" weight=\"1.0\">\n");
+            writeRanklibNode(sb, trees[i], "");
+            sb.append("</tree>\n");
+        }
+        return sb.append("</ensemble>\n").toString();
+    }
+
+    private static void writeRanklibNode(StringBuilder sb, NaiveAdditiveDecisionTree.Node node, String pos) {
+        sb.append("<split").append(pos).append(">\n");
+        if (node.isLeaf()) {
+            sb.append("<output> ").append(((NaiveAdditiveDecisionTree.Leaf) node).output()).append(" </output>\n");
+        } else {
+            NaiveAdditiveDecisionTree.Split split = (NaiveAdditiveDecisionTree.Split) node;
+            sb.append("<feature> ").append(split.feature() + 1).append(" </feature>\n");
+            sb.append("<threshold> ").append(split.threshold()).append(" </threshold>\n");
+            writeRanklibNode(sb, split.left(), " pos=\"left\"");
+            writeRanklibNode(sb, split.right(), " pos=\"right\"");
+        }
+        sb.append("</split>\n");
+    }
+
+    /**
+     * Read a model from the sample_models directory
+     */
+    static String sampleModel(String name) throws IOException {
+        String dir = System.getProperty(SAMPLE_MODELS_PROPERTY, "sample_models");
+        Path path = PathUtils.get(dir).resolve(name);
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the highest 1-based feature id used by a ranklib model
+     */
+    static int ranklibFeatureCount(String model) {
+        int max = 0;
+        Matcher matcher = RANKLIB_FEATURE.matcher(model);
+        while (matcher.find()) {
+            String id = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+            max = Math.max(max, Integer.parseInt(id));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.benchmarks;
+
+import com.o19s.es.ltr.ranker.DenseFeatureVector;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.dectree.OffHeapAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.normalizer.FeatureNormalizingRanker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of scoring a single document with the different tree ensemble implementations.
+ * Each invocation copies the next feature vector of a pool of random vectors
+ * before scoring, so that trees are not always traversed along the same path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TreeRankerBenchmark {
+    @Param({"100", "1000"})
+    public int nbTrees;
+
+    @Param({"4", "8"})
+    public int depth;
+
+    @Param({"50"})
+    public int nbFeatures;
+
+    private float[][] vectors;
+    private int next;
+
+    private NaiveAdditiveDecisionTree naiveTrees;
+    private FlatAdditiveDecisionTree flatTrees;
+    private OffHeapAdditiveDecisionTree offHeapTrees;
+    private LtrRanker normalizedTrees;
+    private LtrRanker fusedNormalizedTrees;
+
+    private DenseFeatureVector naiveVector;
+    private DenseFeatureVector flatVector;
+    private DenseFeatureVector offHeapVector;
+    private DenseFeatureVector normalizedTreesVector;
+    private DenseFeatureVector fusedNormalizedTreesVector;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(SyntheticModels.SEED);
+        vectors = SyntheticModels.vectors(random, nbFeatures);
+        naiveTrees = SyntheticModels.trees(random, nbTrees, depth, nbFeatures);
+        flatTrees = FlatAdditiveDecisionTree.fromNodes(naiveTrees);
+        offHeapTrees = OffHeapAdditiveDecisionTree.copyOf(flatTrees);
+        normalizedTrees = new FeatureNormalizingRanker(flatTrees, SyntheticModels.normalizers(nbFeatures));
+        fusedNormalizedTrees = FeatureNormalizingRanker.fuse(flatTrees, SyntheticModels.normalizers(nbFeatures));
+
+        naiveVector = (DenseFeatureVector) naiveTrees.newFeatureVector(null);
+        flatVector = (DenseFeatureVector) flatTrees.newFeatureVector(null);
+        offHeapVector = (DenseFeatureVector) offHeapTrees.newFeatureVector(null);
+        normalizedTreesVector = (DenseFeatureVector) normalizedTrees.newFeatureVector(null);
+        fusedNormalizedTreesVector = (DenseFeatureVector) fusedNormalizedTrees.newFeatureVector(null);
+    }
+
+    private DenseFeatureVector fill(DenseFeatureVector vector) {
+        return SyntheticModels.fill(vector, vectors[next++ & (SyntheticModels.NB_VECTORS - 1)]);
+    }
+
+    @Benchmark
+    public float naiveTrees() {
+        return naiveTrees.score(fill(naiveVector));
+    }
+
+    @Benchmark
+    public float flatTrees() {
+        return flatTrees.score(fill(flatVector));
+    }
+
+    @Benchmark
+    public float offHeapTrees() {
+        return offHeapTrees.score(fill(offHeapVector));
+    }
+
+    @Benchmark
+    public float normalizedTrees() {
+        return normalizedTrees.score(fill(normalizedTreesVector));
+    }
+
+    @Benchmark
+    public float fusedNormalizedTrees() {
+        return fusedNormalizedTrees.score(fill(fusedNormalizedTreesVector));
+    }
+}
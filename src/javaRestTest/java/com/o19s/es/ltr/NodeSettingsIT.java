@@ -23,6 +23,9 @@ import com.o19s.es.ltr.feature.store.index.CachedFeatureStore;
 import com.o19s.es.ltr.feature.store.index.Caches;
 import com.o19s.es.ltr.ranker.LtrRanker;
 import org.apache.lucene.util.Accountable;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
@@ -50,6 +53,14 @@ public class NodeSettingsIT extends BaseIntegrationTest {
                 .build();
     }
 
+    public void testWireRevisionAttribute() {
+        DiscoveryNode localNode = getInstanceFromNode(ClusterService.class).localNode();
+        assertEquals(LtrQueryParserPlugin.WIRE_REVISION, LtrQueryParserPlugin.wireRevision(localNode));
+        // nodes running a plugin that predates the attribute
+        DiscoveryNode olderNode = new DiscoveryNode("older", buildNewFakeTransportAddress(), Version.CURRENT);
+        assertEquals(0, LtrQueryParserPlugin.wireRevision(olderNode));
+    }
+
     public void testCacheSettings() throws IOException, InterruptedException {
         Caches caches = getInstanceFromNode(Caches.class);
         CachedFeatureStore cached = new CachedFeatureStore(memStore, caches);
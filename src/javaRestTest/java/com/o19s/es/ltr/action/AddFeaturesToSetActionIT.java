@@ -18,10 +18,14 @@ package com.o19s.es.ltr.action;
 
 import com.o19s.es.ltr.action.AddFeaturesToSetAction.AddFeaturesToSetRequestBuilder;
 import com.o19s.es.ltr.action.AddFeaturesToSetAction.AddFeaturesToSetResponse;
+import com.o19s.es.ltr.action.BulkFeatureStoreAction.BulkFeatureStoreRequestBuilder;
+import com.o19s.es.ltr.action.FeatureStoreAction.FeatureStoreRequest;
 import com.o19s.es.ltr.feature.store.StoredFeature;
 import com.o19s.es.ltr.feature.store.StoredFeatureSet;
 import com.o19s.es.ltr.feature.store.index.IndexFeatureStore;
 import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -70,6 +74,52 @@ public class AddFeaturesToSetActionIT extends BaseIntegrationTest {
         assertTrue(set.hasFeature("another"));
     }
 
+    public void testAddToSetWithQueryOverManyScrollPages() throws Exception {
+        // more features than a single scroll page
+        int nFeature = 1000 + random().nextInt(500);
+        BulkFeatureStoreRequestBuilder bulk = new BulkFeatureStoreRequestBuilder(client(), IndexFeatureStore.DEFAULT_STORE);
+        for (int i = 0; i < nFeature; i++) {
+            bulk.add(new FeatureStoreRequest(IndexFeatureStore.DEFAULT_STORE, randomFeature("paged_feature" + i),
+                    FeatureStoreRequest.Action.CREATE));
+        }
+        assertFalse(bulk.get().getResponse().hasFailures());
+
+        AddFeaturesToSetRequestBuilder builder = new AddFeaturesToSetRequestBuilder(client());
+        builder.request().setFeatureSet("paged_feature_set");
+        builder.request().setFeatureNameQuery("paged_feature*");
+        builder.request().setStore(IndexFeatureStore.DEFAULT_STORE);
+        AddFeaturesToSetResponse resp = builder.execute().get();
+
+        assertEquals(DocWriteResponse.Result.CREATED, resp.getResponse().getResult());
+        StoredFeatureSet set = getElement(StoredFeatureSet.class, StoredFeatureSet.TYPE, "paged_feature_set");
+        assertEquals(nFeature, set.size());
+        for (int i = 0; i < nFeature; i++) {
+            assertTrue(set.hasFeature("paged_feature" + i));
+        }
+    }
+
+    public void testUpdateSetWithStaleSequenceNumber() throws Exception {
+        StoredFeatureSet set = new StoredFeatureSet("my_set", Collections.singletonList(randomFeature("feature")));
+        addElement(set);
+        GetResponse get = client().prepareGet(IndexFeatureStore.DEFAULT_STORE, set.id()).get();
+
+        // the set read is still the latest one
+        FeatureStoreRequest request = new FeatureStoreRequest(IndexFeatureStore.DEFAULT_STORE,
+                set.append(Collections.singletonList(randomFeature("another"))), get.getSeqNo(), get.getPrimaryTerm());
+        assertEquals(DocWriteResponse.Result.UPDATED,
+                client().execute(FeatureStoreAction.INSTANCE, request).get().getResponse().getResult());
+
+        // the set was modified since it was read, what AddFeaturesToSet sees on concurrent updates
+        FeatureStoreRequest stale = new FeatureStoreRequest(IndexFeatureStore.DEFAULT_STORE,
+                set.append(Collections.singletonList(randomFeature("yet_another"))), get.getSeqNo(), get.getPrimaryTerm());
+        Throwable conflict = unwrap(expectThrows(ExecutionException.class,
+                () -> client().execute(FeatureStoreAction.INSTANCE, stale).get()), VersionConflictEngineException.class);
+        assertNotNull(conflict);
+        StoredFeatureSet stored = getElement(StoredFeatureSet.class, StoredFeatureSet.TYPE, set.name());
+        assertTrue(stored.hasFeature("another"));
+        assertFalse(stored.hasFeature("yet_another"));
+    }
+
     public void testAddToSetWithList() throws Exception {
         int nFeature = random().nextInt(99) + 1;
         List<StoredFeature> features = new ArrayList<>(nFeature);
@@ -0,0 +1,154 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.action;
+
+import com.o19s.es.ltr.action.BulkFeatureStoreAction.BulkFeatureStoreRequestBuilder;
+import com.o19s.es.ltr.action.BulkFeatureStoreAction.BulkFeatureStoreResponse;
+import com.o19s.es.ltr.action.FeatureStoreAction.FeatureStoreRequest;
+import com.o19s.es.ltr.feature.FeatureValidation;
+import com.o19s.es.ltr.feature.store.StorableElement;
+import com.o19s.es.ltr.feature.store.StoredFeature;
+import com.o19s.es.ltr.feature.store.StoredFeatureSet;
+import com.o19s.es.ltr.feature.store.StoredLtrModel;
+import com.o19s.es.ltr.feature.store.index.IndexFeatureStore;
+import com.o19s.es.ltr.ranker.parser.LinearRankerParser;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.index.query.QueryBuilders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.o19s.es.ltr.LtrTestUtils.randomFeature;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.CoreMatchers.containsString;
+
+public class BulkFeatureStoreActionIT extends BaseIntegrationTest {
+    public void testBulkStore() throws Exception {
+        int nFeature = random().nextInt(20) + 1;
+        List<StoredFeature> features = new ArrayList<>(nFeature);
+        BulkFeatureStoreRequestBuilder builder = new BulkFeatureStoreRequestBuilder(client(), IndexFeatureStore.DEFAULT_STORE);
+        for (int i = 0; i < nFeature; i++) {
+            StoredFeature feature = randomFeature("feature" + i);
+            features.add(feature);
+            builder.add(create(feature));
+        }
+        StoredFeatureSet set = new StoredFeatureSet("my_set", features);
+        builder.add(create(set));
+        StringBuilder weights = new StringBuilder("{");
+        for (StoredFeature feature : features) {
+            weights.append(weights.length() > 1 ? "," : "").append('"').append(feature.name()).append("\": 1.0");
+        }
+        StoredLtrModel model = new StoredLtrModel("my_model", set,
+                new StoredLtrModel.LtrModelDefinition(LinearRankerParser.TYPE, weights.append('}').toString(), true));
+        builder.add(create(model));
+
+        BulkFeatureStoreResponse response = builder.get();
+        assertFalse(response.getResponse().buildFailureMessage(), response.getResponse().hasFailures());
+        assertEquals(nFeature + 2, response.getResponse().getItems().length);
+        for (BulkItemResponse item : response.getResponse()) {
+            assertEquals(IndexFeatureStore.DEFAULT_STORE, item.getIndex());
+        }
+        for (StoredFeature feature : features) {
+            assertEquals(feature, getElement(StoredFeature.class, StoredFeature.TYPE, feature.name()));
+        }
+        assertEquals(set, getElement(StoredFeatureSet.class, StoredFeatureSet.TYPE, set.name()));
+        assertNotNull(getElement(StoredLtrModel.class, StoredLtrModel.TYPE, model.name()));
+
+        // elements already stored are reported in the items, the others are stored
+        StoredFeature another = randomFeature("another");
+        response = new BulkFeatureStoreRequestBuilder(client(), IndexFeatureStore.DEFAULT_STORE)
+                .add(create(features.get(0)))
+                .add(create(another))
+                .get();
+        assertTrue(response.getResponse().getItems()[0].isFailed());
+        assertFalse(response.getResponse().getItems()[1].isFailed());
+        assertEquals(another, getElement(StoredFeature.class, StoredFeature.TYPE, another.name()));
+    }
+
+    public void testBulkStoreManyElements() throws Exception {
+        // more elements than the queue of the compile pool can hold
+        int nFeature = 500 + random().nextInt(500);
+        int nModel = 150 + random().nextInt(50);
+        BulkFeatureStoreRequestBuilder builder = new BulkFeatureStoreRequestBuilder(client(), IndexFeatureStore.DEFAULT_STORE);
+        for (int i = 0; i < nFeature; i++) {
+            builder.add(create(randomFeature("feature" + i)));
+        }
+        StoredFeatureSet set = new StoredFeatureSet("my_set", singletonList(randomFeature("feature0")));
+        builder.add(create(set));
+        for (int i = 0; i < nModel; i++) {
+            builder.add(create(new StoredLtrModel("my_model" + i, set,
+                    new StoredLtrModel.LtrModelDefinition(LinearRankerParser.TYPE, "{\"feature0\": " + i + "}", true))));
+        }
+
+        BulkFeatureStoreResponse response = builder.get();
+        assertFalse(response.getResponse().buildFailureMessage(), response.getResponse().hasFailures());
+        assertEquals(nFeature + nModel + 1, response.getResponse().getItems().length);
+        assertNotNull(getElement(StoredFeature.class, StoredFeature.TYPE, "feature" + (nFeature - 1)));
+        assertNotNull(getElement(StoredLtrModel.class, StoredLtrModel.TYPE, "my_model" + (nModel - 1)));
+    }
+
+    public void testBulkStoreInvalidModel() throws Exception {
+        StoredFeature feature = randomFeature("feature");
+        StoredLtrModel model = new StoredLtrModel("broken_model", new StoredFeatureSet("my_set", singletonList(feature)),
+                new StoredLtrModel.LtrModelDefinition(LinearRankerParser.TYPE, "{\"unknown\": 1.0}", true));
+        BulkFeatureStoreRequestBuilder builder = new BulkFeatureStoreRequestBuilder(client(), IndexFeatureStore.DEFAULT_STORE)
+                .add(create(feature))
+                .add(create(model));
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class, builder::get);
+        assertThat(e.getMessage(), containsString("Invalid [model] [broken_model]"));
+        // nothing is stored
+        assertNull(getElement(StoredFeature.class, StoredFeature.TYPE, feature.name()));
+    }
+
+    public void testBulkStoreValidation() throws Exception {
+        client().admin().indices().prepareCreate("test_index").get();
+        String matchQuery = QueryBuilders.matchQuery("test", "{{query_string}}").toString();
+        StoredFeature feature = new StoredFeature("test", singletonList("query_string"), "mustache", matchQuery);
+        String brokenQuery = "{\"query\": {\"match\":{\"test\": \"{{query_string}}\"}}}";
+        StoredFeature brokenFeature = new StoredFeature("broken", singletonList("query_string"), "mustache", brokenQuery);
+        Map<String, Object> params = new HashMap<>();
+        params.put("query_string", "a query");
+        FeatureValidation validation = new FeatureValidation("test_index", params);
+
+        BulkFeatureStoreRequestBuilder builder = new BulkFeatureStoreRequestBuilder(client(), IndexFeatureStore.DEFAULT_STORE)
+                .add(create(feature, validation))
+                .add(create(brokenFeature, validation))
+                .add(create(new StoredFeatureSet("my_set", Arrays.asList(feature, brokenFeature))));
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class, builder::get);
+        assertThat(e.getMessage(), containsString("Cannot store element [feature] [broken], validation failed."));
+        assertNull(getElement(StoredFeature.class, StoredFeature.TYPE, feature.name()));
+
+        builder = new BulkFeatureStoreRequestBuilder(client(), IndexFeatureStore.DEFAULT_STORE)
+                .add(create(feature, validation));
+        assertFalse(builder.get().getResponse().hasFailures());
+        assertEquals(feature, getElement(StoredFeature.class, StoredFeature.TYPE, feature.name()));
+    }
+
+    private static FeatureStoreRequest create(StorableElement element) {
+        return create(element, null);
+    }
+
+    private static FeatureStoreRequest create(StorableElement element, FeatureValidation validation) {
+        FeatureStoreRequest request = new FeatureStoreRequest(IndexFeatureStore.DEFAULT_STORE, element,
+                FeatureStoreRequest.Action.CREATE);
+        request.setValidation(validation);
+        return request;
+    }
+}
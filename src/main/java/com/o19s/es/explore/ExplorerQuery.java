@@ -214,7 +214,11 @@ public class ExplorerQuery extends Query {
             // rewriting at this point is wrong, additionally we certainly build the TermContext twice for every terms
             // problem is that we rely on extractTerms which happen too late in the process
             Query q = qb.build().rewrite(searcher.getIndexReader());
-            return new ExplorerQuery.ExplorerWeight(this, searcher.createWeight(q, scoreMode, boost), type);
+            // frequencies are bounded by the impacts of the terms, the disjunction only combines the bounds of its clauses
+            // in TOP_SCORES mode. No minimum competitive score is ever set on it so every matching term is still visited.
+            ScoreMode subScoreMode = scoreMode == ScoreMode.TOP_SCORES && type.endsWith("_raw_tf")
+                    ? ScoreMode.TOP_SCORES : ScoreMode.COMPLETE;
+            return new ExplorerQuery.ExplorerWeight(this, searcher.createWeight(q, subScoreMode, boost), type);
         }
         throw new IllegalArgumentException("Unknown ExplorerQuery type [" + type + "]");
     }
@@ -91,13 +91,22 @@ public class ExplorerScorer extends Scorer {
         return subScorer.iterator();
     }
 
+    @Override
+    public int advanceShallow(int target) throws IOException {
+        return subScorer.advanceShallow(target);
+    }
+
     /**
      * Return the maximum score that documents between the last {@code target}
      * that this iterator was {@link #advanceShallow(int) shallow-advanced} to
      * included and {@code upTo} included.
+     * Frequencies are not negative, all their statistics are bounded by their sum which is the score of the subScorer.
      */
     @Override
     public float getMaxScore(int upTo) throws IOException {
+        if (type.endsWith("_raw_tf")) {
+            return subScorer.getMaxScore(upTo);
+        }
         return Float.POSITIVE_INFINITY;
     }
 }
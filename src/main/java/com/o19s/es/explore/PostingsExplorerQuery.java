@@ -17,6 +17,9 @@
 package com.o19s.es.explore;
 
 import com.o19s.es.ltr.utils.CheckedBiFunction;
+import org.apache.lucene.index.Impact;
+import org.apache.lucene.index.Impacts;
+import org.apache.lucene.index.ImpactsEnum;
 import org.apache.lucene.index.IndexReaderContext;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PostingsEnum;
@@ -90,7 +93,7 @@ public class PostingsExplorerQuery extends Query {
      */
     enum Type implements CheckedBiFunction<Weight, TermsEnum, Scorer, IOException> {
         // Extract TF from the postings
-        TF((weight, terms) -> new TFScorer(weight, terms.postings(null, PostingsEnum.FREQS))),
+        TF((weight, terms) -> new TFScorer(weight, terms.impacts(PostingsEnum.FREQS), terms.totalTermFreq())),
         TP((weight, terms) -> new TPScorer(weight, terms.postings(null, PostingsEnum.POSITIONS)));
 
         private final CheckedBiFunction<Weight, TermsEnum, Scorer, IOException> func;
@@ -177,8 +180,14 @@ public class PostingsExplorerQuery extends Query {
     }
 
     static class TFScorer extends PostingsExplorerScorer {
-        TFScorer(Weight weight, PostingsEnum postingsEnum) {
-            super(weight, postingsEnum);
+        private final ImpactsEnum impactsEnum;
+        // no document can have a higher frequency than the total frequency of the term in the segment
+        private final long totalTermFreq;
+
+        TFScorer(Weight weight, ImpactsEnum impactsEnum, long totalTermFreq) {
+            super(weight, impactsEnum);
+            this.impactsEnum = impactsEnum;
+            this.totalTermFreq = totalTermFreq;
         }
 
         @Override
@@ -186,14 +195,32 @@ public class PostingsExplorerQuery extends Query {
             return this.postingsEnum.freq();
         }
 
+        @Override
+        public int advanceShallow(int target) throws IOException {
+            impactsEnum.advanceShallow(target);
+            return impactsEnum.getImpacts().getDocIdUpTo(0);
+        }
+
         /**
          * Return the maximum score that documents between the last {@code target}
          * that this iterator was {@link #advanceShallow(int) shallow-advanced} to
          * included and {@code upTo} included.
+         * The highest frequency is read from the impacts of the first level that covers upTo.
          */
         @Override
         public float getMaxScore(int upTo) throws IOException {
-            return Float.POSITIVE_INFINITY;
+            float max = totalTermFreq < 0 ? Float.POSITIVE_INFINITY : totalTermFreq;
+            Impacts impacts = impactsEnum.getImpacts();
+            for (int level = 0; level < impacts.numLevels(); level++) {
+                if (impacts.getDocIdUpTo(level) >= upTo) {
+                    int maxFreq = 0;
+                    for (Impact impact : impacts.getImpacts(level)) {
+                        maxFreq = Math.max(maxFreq, impact.freq);
+                    }
+                    return Math.min(max, maxFreq);
+                }
+            }
+            return max;
         }
     }
 
@@ -238,6 +265,7 @@ public class PostingsExplorerQuery extends Query {
          * Return the maximum score that documents between the last {@code target}
          * that this iterator was {@link #advanceShallow(int) shallow-advanced} to
          * included and {@code upTo} included.
+         * Positions are not summarized by the impacts, they are not bounded.
          */
         @Override
         public float getMaxScore(int upTo) throws IOException {
@@ -19,6 +19,7 @@ package com.o19s.es.ltr;
 import ciir.umass.edu.learning.RankerFactory;
 import com.o19s.es.explore.ExplorerQueryBuilder;
 import com.o19s.es.ltr.action.AddFeaturesToSetAction;
+import com.o19s.es.ltr.action.BulkFeatureStoreAction;
 import com.o19s.es.ltr.action.CachesStatsAction;
 import com.o19s.es.ltr.action.ClearCachesAction;
 import com.o19s.es.ltr.action.CreateModelFromSetAction;
@@ -26,6 +27,7 @@ import com.o19s.es.ltr.action.FeatureStoreAction;
 import com.o19s.es.ltr.action.LTRStatsAction;
 import com.o19s.es.ltr.action.ListStoresAction;
 import com.o19s.es.ltr.action.TransportAddFeatureToSetAction;
+import com.o19s.es.ltr.action.TransportBulkFeatureStoreAction;
 import com.o19s.es.ltr.action.TransportCacheStatsAction;
 import com.o19s.es.ltr.action.TransportClearCachesAction;
 import com.o19s.es.ltr.action.TransportCreateModelFromSetAction;
@@ -44,22 +46,27 @@ import com.o19s.es.ltr.logging.LoggingSearchExtBuilder;
 import com.o19s.es.ltr.query.LtrQueryBuilder;
 import com.o19s.es.ltr.query.StoredLtrQueryBuilder;
 import com.o19s.es.ltr.query.ValidatingLtrQueryBuilder;
+import com.o19s.es.ltr.ranker.parser.LightGBMParser;
 import com.o19s.es.ltr.ranker.parser.LinearRankerParser;
 import com.o19s.es.ltr.ranker.parser.LtrRankerParserFactory;
 import com.o19s.es.ltr.ranker.parser.XGBoostJsonParser;
 import com.o19s.es.ltr.ranker.ranklib.RankLibScriptEngine;
 import com.o19s.es.ltr.ranker.ranklib.RanklibModelParser;
+import com.o19s.es.ltr.rest.RestBulkFeatureStore;
 import com.o19s.es.ltr.rest.RestCreateModelFromSet;
 import com.o19s.es.ltr.rest.RestFeatureManager;
 import com.o19s.es.ltr.rest.RestSearchStoreElements;
 import com.o19s.es.ltr.rest.RestStoreManager;
 import com.o19s.es.ltr.rest.RestAddFeatureToSet;
 import com.o19s.es.ltr.rest.RestFeatureStoreCaches;
+import com.o19s.es.ltr.rest.RestLTRMetrics;
 import com.o19s.es.ltr.rest.RestLTRStats;
 import com.o19s.es.ltr.stats.LTRStat;
 import com.o19s.es.ltr.stats.LTRStats;
+import com.o19s.es.ltr.stats.ModelStats;
 import com.o19s.es.ltr.stats.StatName;
 import com.o19s.es.ltr.stats.suppliers.CacheStatsOnNodeSupplier;
+import com.o19s.es.ltr.stats.suppliers.ModelStatsOnNodeSupplier;
 import com.o19s.es.ltr.stats.suppliers.PluginHealthStatusSupplier;
 import com.o19s.es.ltr.stats.suppliers.StoreStatsSupplier;
 import com.o19s.es.ltr.utils.FeatureStoreLoader;
@@ -69,10 +76,12 @@ import com.o19s.es.termstat.TermStatQueryBuilder;
 import org.apache.lucene.analysis.core.KeywordTokenizer;
 import org.apache.lucene.analysis.miscellaneous.LengthFilter;
 import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
+import org.apache.lucene.util.SetOnce;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionResponse;
 import org.elasticsearch.client.internal.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.cluster.node.DiscoveryNodes;
 import org.elasticsearch.cluster.routing.allocation.AllocationService;
 import org.elasticsearch.cluster.service.ClusterService;
@@ -92,6 +101,7 @@ import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.index.Index;
 import org.elasticsearch.index.analysis.PreConfiguredTokenFilter;
 import org.elasticsearch.index.analysis.PreConfiguredTokenizer;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.AnalysisPlugin;
 import org.elasticsearch.plugins.Plugin;
@@ -104,6 +114,9 @@ import org.elasticsearch.script.ScriptContext;
 import org.elasticsearch.script.ScriptEngine;
 import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.tracing.Tracer;
 import org.elasticsearch.watcher.ResourceWatcherService;
@@ -116,6 +129,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.function.Supplier;
 
 import static java.util.Arrays.asList;
@@ -124,20 +138,50 @@ import static java.util.Collections.unmodifiableList;
 import static java.util.Collections.unmodifiableMap;
 
 public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, ScriptPlugin, ActionPlugin, AnalysisPlugin {
+    /**
+     * Node attribute advertising the revision of the transport messages understood by the plugin. Elasticsearch's
+     * transport version cannot tell apart two versions of the plugin running on the same elasticsearch version.
+     * Nodes running a plugin that predates the attribute are at revision 0.
+     */
+    public static final String WIRE_REVISION_ATTRIBUTE = "ltr.wire_revision";
+    /**
+     * 1: the WarmModel operation of the clear caches action
+     */
+    public static final int WIRE_REVISION = 1;
     private final LtrRankerParserFactory parserFactory;
     private final Caches caches;
+    private final ModelStats modelStats;
+    private final SetOnce<LTRStats> ltrStats = new SetOnce<>();
+    private final SetOnce<Executor> compileExecutor = new SetOnce<>();
+    private final boolean canContainData;
 
     public LtrQueryParserPlugin(Settings settings) {
         caches = new Caches(settings);
+        modelStats = new ModelStats();
+        canContainData = DiscoveryNode.canContainData(settings);
         // Use memoize to Lazy load the RankerFactory as it's a heavy object to construct
         Supplier<RankerFactory> ranklib = Suppliers.memoize(RankerFactory::new);
         parserFactory = new LtrRankerParserFactory.Builder()
-                .register(RanklibModelParser.TYPE, () -> new RanklibModelParser(ranklib.get()))
+                .register(RanklibModelParser.TYPE, () -> new RanklibModelParser(ranklib.get(), compileExecutor::get))
                 .register(LinearRankerParser.TYPE, LinearRankerParser::new)
                 .register(XGBoostJsonParser.TYPE, XGBoostJsonParser::new)
+                .register(LightGBMParser.TYPE, LightGBMParser::new)
                 .build();
     }
 
+    @Override
+    public Settings additionalSettings() {
+        return Settings.builder().put("node.attr." + WIRE_REVISION_ATTRIBUTE, WIRE_REVISION).build();
+    }
+
+    /**
+     * @return the revision of the transport messages understood by the plugin running on the node
+     */
+    public static int wireRevision(DiscoveryNode node) {
+        String revision = node.getAttributes().get(WIRE_REVISION_ATTRIBUTE);
+        return revision != null ? Integer.parseInt(revision) : 0;
+    }
+
     @Override
     public List<QuerySpec<?>> getQueries() {
 
@@ -145,8 +189,9 @@ public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, Script
                 new QuerySpec<>(ExplorerQueryBuilder.NAME, ExplorerQueryBuilder::new, ExplorerQueryBuilder::fromXContent),
                 new QuerySpec<>(LtrQueryBuilder.NAME, LtrQueryBuilder::new, LtrQueryBuilder::fromXContent),
                 new QuerySpec<>(StoredLtrQueryBuilder.NAME,
-                        (input) -> new StoredLtrQueryBuilder(getFeatureStoreLoader(), input),
-                        (ctx) -> StoredLtrQueryBuilder.fromXContent(getFeatureStoreLoader(), ctx)),
+                        (input) -> new StoredLtrQueryBuilder(getFeatureStoreLoader(), modelStats, input),
+                        (ctx) -> StoredLtrQueryBuilder.fromXContent(getFeatureStoreLoader(), modelStats, ctx)
+                                .loadOnRewrite(canContainData)),
                 new QuerySpec<>(TermStatQueryBuilder.NAME, TermStatQueryBuilder::new, TermStatQueryBuilder::fromXContent),
                 new QuerySpec<>(ValidatingLtrQueryBuilder.NAME,
                         (input) -> new ValidatingLtrQueryBuilder(input, parserFactory),
@@ -155,7 +200,7 @@ public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, Script
 
     @Override
     public List<FetchSubPhase> getFetchSubPhases(FetchPhaseConstructionContext context) {
-        return singletonList(new LoggingFetchSubPhase());
+        return singletonList(new LoggingFetchSubPhase(modelStats));
     }
 
     @Override
@@ -181,11 +226,13 @@ public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, Script
             list.add(new RestSearchStoreElements(type));
         }
         list.add(new RestStoreManager());
+        list.add(new RestBulkFeatureStore());
 
         list.add(new RestFeatureStoreCaches());
         list.add(new RestCreateModelFromSet());
         list.add(new RestAddFeatureToSet());
         list.add(new RestLTRStats());
+        list.add(new RestLTRMetrics(ltrStats::get));
         return unmodifiableList(list);
     }
 
@@ -193,6 +240,7 @@ public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, Script
     public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
         return unmodifiableList(asList(
                 new ActionHandler<>(FeatureStoreAction.INSTANCE, TransportFeatureStoreAction.class),
+                new ActionHandler<>(BulkFeatureStoreAction.INSTANCE, TransportBulkFeatureStoreAction.class),
                 new ActionHandler<>(CachesStatsAction.INSTANCE, TransportCacheStatsAction.class),
                 new ActionHandler<>(ClearCachesAction.INSTANCE, TransportClearCachesAction.class),
                 new ActionHandler<>(AddFeaturesToSetAction.INSTANCE, TransportAddFeatureToSetAction.class),
@@ -206,7 +254,9 @@ public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, Script
         return unmodifiableList(asList(
                 new Entry(StorableElement.class, StoredFeature.TYPE, StoredFeature::new),
                 new Entry(StorableElement.class, StoredFeatureSet.TYPE, StoredFeatureSet::new),
-                new Entry(StorableElement.class, StoredLtrModel.TYPE, StoredLtrModel::new)
+                new Entry(StorableElement.class, StoredLtrModel.TYPE, StoredLtrModel::new),
+                new Entry(QueryBuilder.class, StoredLtrQueryBuilder.WITH_OPTIONS_WRITEABLE_NAME,
+                        (input) -> StoredLtrQueryBuilder.readWithOptions(getFeatureStoreLoader(), modelStats, input))
         ));
     }
 
@@ -236,8 +286,31 @@ public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, Script
         return unmodifiableList(asList(
                 IndexFeatureStore.STORE_VERSION_PROP,
                 Caches.LTR_CACHE_MEM_SETTING,
+                Caches.LTR_CACHE_MAX_OFF_HEAP_MEM_SETTING,
+                Caches.LTR_CACHE_OFF_HEAP_THRESHOLD_SETTING,
                 Caches.LTR_CACHE_EXPIRE_AFTER_READ,
-                Caches.LTR_CACHE_EXPIRE_AFTER_WRITE));
+                Caches.LTR_CACHE_EXPIRE_AFTER_WRITE,
+                Caches.LTR_CACHE_WARM_PEERS_SETTING,
+                Caches.LTR_FEATURE_CACHE_MEM_SETTING,
+                Caches.LTR_FEATURE_CACHE_EXPIRE_AFTER_WRITE,
+                Caches.LTR_FEATURE_CACHE_EXPIRE_AFTER_READ,
+                Caches.LTR_FEATURE_SET_CACHE_MEM_SETTING,
+                Caches.LTR_FEATURE_SET_CACHE_EXPIRE_AFTER_WRITE,
+                Caches.LTR_FEATURE_SET_CACHE_EXPIRE_AFTER_READ,
+                Caches.LTR_MODEL_CACHE_MEM_SETTING,
+                Caches.LTR_MODEL_CACHE_EXPIRE_AFTER_WRITE,
+                Caches.LTR_MODEL_CACHE_EXPIRE_AFTER_READ,
+                Caches.LTR_MODEL_CACHE_PINNED_SETTING,
+                Caches.LTR_MODEL_CACHE_FREQUENCY_ADMISSION_SETTING,
+                StoreStatsSupplier.STORE_STATS_REFRESH_INTERVAL));
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        // bounded so that a burst of large models cannot monopolize the node
+        int size = Math.max(1, EsExecutors.allocatedProcessors(settings) / 4);
+        return Collections.singletonList(new FixedExecutorBuilder(settings, TransportFeatureStoreAction.MODEL_COMPILE_THREAD_POOL,
+                size, 100, "thread_pool." + TransportFeatureStoreAction.MODEL_COMPILE_THREAD_POOL, false));
     }
 
     @Override
@@ -258,21 +331,28 @@ public class LtrQueryParserPlugin extends Plugin implements SearchPlugin, Script
             for (Index i : event.indicesDeleted()) {
                 if (IndexFeatureStore.isIndexStore(i.getName())) {
                     caches.evict(i.getName());
+                    modelStats.evict(i.getName());
                 }
             }
         });
 
         Scripting.initScriptService(scriptService);
+        compileExecutor.set(threadPool.executor(TransportFeatureStoreAction.MODEL_COMPILE_THREAD_POOL));
 
-        return asList(caches, parserFactory, getStats(client, clusterService, indexNameExpressionResolver));
+        StoreStatsSupplier storeStats = new StoreStatsSupplier(client, clusterService, indexNameExpressionResolver);
+        ltrStats.set(getStats(storeStats, clusterService, indexNameExpressionResolver));
+        return asList(caches, parserFactory, modelStats, storeStats, ltrStats.get());
     }
 
-    private LTRStats getStats(Client client, ClusterService clusterService, IndexNameExpressionResolver indexNameExpressionResolver) {
+    private LTRStats getStats(StoreStatsSupplier storeStats, ClusterService clusterService,
+                              IndexNameExpressionResolver indexNameExpressionResolver) {
         Map<String, LTRStat> stats = new HashMap<>();
         stats.put(StatName.CACHE.getName(),
                 new LTRStat(false, new CacheStatsOnNodeSupplier(caches)));
+        stats.put(StatName.MODELS.getName(),
+                new LTRStat(false, new ModelStatsOnNodeSupplier(modelStats)));
         stats.put(StatName.STORES.getName(),
-                new LTRStat(true, new StoreStatsSupplier(client, clusterService, indexNameExpressionResolver)));
+                new LTRStat(true, storeStats));
         stats.put(StatName.PLUGIN_STATUS.getName(),
                 new LTRStat(true, new PluginHealthStatusSupplier(clusterService, indexNameExpressionResolver)));
         return new LTRStats(unmodifiableMap(stats));
@@ -0,0 +1,168 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.action;
+
+import com.o19s.es.ltr.action.BulkFeatureStoreAction.BulkFeatureStoreResponse;
+import com.o19s.es.ltr.action.FeatureStoreAction.FeatureStoreRequest;
+import com.o19s.es.ltr.feature.store.index.IndexFeatureStore;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.ActionType;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.internal.ElasticsearchClient;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable.Reader;
+import org.elasticsearch.common.xcontent.StatusToXContentObject;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Store many features, feature sets and models at once.
+ * Elements are checked and validated before anything is written, then indexed with a single bulk request
+ * refreshing the store once.
+ */
+public class BulkFeatureStoreAction extends ActionType<BulkFeatureStoreResponse> {
+    public static final String NAME = "cluster:admin/ltr/featurestore/bulk";
+    public static final BulkFeatureStoreAction INSTANCE = new BulkFeatureStoreAction();
+
+    protected BulkFeatureStoreAction() {
+        super(NAME, BulkFeatureStoreResponse::new);
+    }
+
+    @Override
+    public Reader<BulkFeatureStoreResponse> getResponseReader() {
+        return BulkFeatureStoreResponse::new;
+    }
+
+    public static class BulkFeatureStoreRequestBuilder
+            extends ActionRequestBuilder<BulkFeatureStoreRequest, BulkFeatureStoreResponse> {
+        public BulkFeatureStoreRequestBuilder(ElasticsearchClient client, String store) {
+            super(client, INSTANCE, new BulkFeatureStoreRequest(store));
+        }
+
+        public BulkFeatureStoreRequestBuilder add(FeatureStoreRequest request) {
+            this.request.add(request);
+            return this;
+        }
+    }
+
+    public static class BulkFeatureStoreRequest extends ActionRequest {
+        private final String store;
+        private final List<FeatureStoreRequest> requests;
+
+        public BulkFeatureStoreRequest(String store) {
+            this.store = Objects.requireNonNull(store);
+            this.requests = new ArrayList<>();
+        }
+
+        public BulkFeatureStoreRequest(StreamInput in) throws IOException {
+            super(in);
+            store = in.readString();
+            requests = in.readList(FeatureStoreRequest::new);
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException arve = null;
+            if (!store.equals(IndexFeatureStore.DEFAULT_STORE) && !store.startsWith(IndexFeatureStore.STORE_PREFIX)) {
+                arve = addValidationError("Store name [" + store + "] is invalid.", arve);
+            }
+            if (requests.isEmpty()) {
+                arve = addValidationError("no elements to store", arve);
+            }
+            for (int i = 0; i < requests.size(); i++) {
+                FeatureStoreRequest request = requests.get(i);
+                if (!store.equals(request.getStore())) {
+                    arve = addValidationError("element [" + i + "] targets the store [" + request.getStore() +
+                            "] but the bulk request targets [" + store + "]", arve);
+                }
+                ActionRequestValidationException itemErrors = request.validate();
+                if (itemErrors != null) {
+                    for (String error : itemErrors.validationErrors()) {
+                        arve = addValidationError("element [" + i + "]: " + error, arve);
+                    }
+                }
+            }
+            return arve;
+        }
+
+        public String getStore() {
+            return store;
+        }
+
+        public List<FeatureStoreRequest> getRequests() {
+            return requests;
+        }
+
+        public BulkFeatureStoreRequest add(FeatureStoreRequest request) {
+            requests.add(Objects.requireNonNull(request));
+            return this;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(store);
+            out.writeList(requests);
+        }
+    }
+
+    public static class BulkFeatureStoreResponse extends ActionResponse implements StatusToXContentObject {
+        private final BulkResponse response;
+
+        public BulkFeatureStoreResponse(StreamInput in) throws IOException {
+            super(in);
+            response = new BulkResponse(in);
+        }
+
+        public BulkFeatureStoreResponse(BulkResponse response) {
+            this.response = response;
+        }
+
+        public BulkResponse getResponse() {
+            return response;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            response.writeTo(out);
+        }
+
+        /**
+         * Failures of individual elements are reported in the items, like the _bulk API
+         */
+        @Override
+        public RestStatus status() {
+            return RestStatus.OK;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            return response.toXContent(builder, params);
+        }
+    }
+}
@@ -170,10 +170,10 @@ public class CachesStatsAction extends ActionType<CachesStatsNodesResponse> {
         }
 
         public StatDetails(Caches.PerStoreStats stats) {
-            total = new Stat(stats.totalRam(), stats.totalCount());
+            total = new Stat(stats.totalRam(), stats.modelOffHeapRam(), stats.totalCount());
             features = new Stat(stats.featureRam(), stats.featureCount());
             featuresets = new Stat(stats.featureSetRam(), stats.featureSetCount());
-            models = new Stat(stats.modelRam(), stats.modelCount());
+            models = new Stat(stats.modelRam(), stats.modelOffHeapRam(), stats.modelCount());
         }
 
         StatDetails(StreamInput in) throws IOException {
@@ -249,20 +249,28 @@ public class CachesStatsAction extends ActionType<CachesStatsNodesResponse> {
 
         public static class Stat implements Writeable, ToXContent {
             private long ram;
+            private long offHeapRam;
             private int count;
 
             public Stat(StreamInput in) throws IOException {
                 ram = in.readVLong();
+                offHeapRam = in.readVLong();
                 count = in.readVInt();
             }
 
             public Stat(long ram, int count) {
+                this(ram, 0, count);
+            }
+
+            public Stat(long ram, long offHeapRam, int count) {
                 this.ram = ram;
+                this.offHeapRam = offHeapRam;
                 this.count = count;
             }
 
             public void sum(Stat other) {
                 ram += other.ram;
+                offHeapRam += other.offHeapRam;
                 count += other.count;
             }
 
@@ -270,6 +278,13 @@ public class CachesStatsAction extends ActionType<CachesStatsNodesResponse> {
                 return ram;
             }
 
+            /**
+             * @return memory used outside the java heap, not included in {@link #getRam()}
+             */
+            public long getOffHeapRam() {
+                return offHeapRam;
+            }
+
             public int getCount() {
                 return count;
             }
@@ -277,6 +292,7 @@ public class CachesStatsAction extends ActionType<CachesStatsNodesResponse> {
             @Override
             public void writeTo(StreamOutput out) throws IOException {
                 out.writeVLong(ram);
+                out.writeVLong(offHeapRam);
                 out.writeVInt(count);
             }
 
@@ -284,6 +300,7 @@ public class CachesStatsAction extends ActionType<CachesStatsNodesResponse> {
             public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
                 return builder.startObject()
                         .field("ram", ram)
+                        .field("off_heap_ram", offHeapRam)
                         .field("count", count)
                         .endObject();
             }
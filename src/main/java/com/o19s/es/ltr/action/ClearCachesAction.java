@@ -107,6 +107,13 @@ public class ClearCachesAction extends ActionType<ClearCachesNodesResponse> {
             clearElement(storeName, name, ClearCachesNodesRequest.Operation.ClearModel);
         }
 
+        /**
+         * Load the model in the caches of the nodes that do not have it yet.
+         */
+        public void warmModel(String storeName, String name) {
+            clearElement(storeName, name, ClearCachesNodesRequest.Operation.WarmModel);
+        }
+
         private void clearElement(String storeName, String name, ClearCachesNodesRequest.Operation op) {
             operation = op;
             store = Objects.requireNonNull(storeName);
@@ -125,7 +132,8 @@ public class ClearCachesAction extends ActionType<ClearCachesNodesResponse> {
             ClearStore,
             ClearFeature,
             ClearFeatureSet,
-            ClearModel
+            ClearModel,
+            WarmModel
         }
 
         public String getStore() {
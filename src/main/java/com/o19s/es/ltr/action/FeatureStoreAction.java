@@ -38,6 +38,8 @@ import java.io.IOException;
 import java.util.Objects;
 
 import static org.elasticsearch.action.ValidateActions.addValidationError;
+import static org.elasticsearch.index.seqno.SequenceNumbers.UNASSIGNED_PRIMARY_TERM;
+import static org.elasticsearch.index.seqno.SequenceNumbers.UNASSIGNED_SEQ_NO;
 
 public class FeatureStoreAction extends ActionType<FeatureStoreResponse> {
     public static final String NAME = "cluster:admin/ltr/featurestore/data";
@@ -60,10 +62,18 @@ public class FeatureStoreAction extends ActionType<FeatureStoreResponse> {
     }
 
     public static class FeatureStoreRequest extends ActionRequest {
+        /**
+         * Set on the action ordinal of conditional updates, whose sequence number and primary term follow the
+         * validation. Other requests keep the format of older versions of the plugin, which cannot read conditional
+         * updates and fail on the unknown ordinal.
+         */
+        private static final int CONDITIONAL_FLAG = 1 << 4;
+
         private String store;
         private Action action;
         private StorableElement storableElement;
-        private Long updatedVersion;
+        private long ifSeqNo = UNASSIGNED_SEQ_NO;
+        private long ifPrimaryTerm = UNASSIGNED_PRIMARY_TERM;
         private String routing;
 
         private FeatureValidation validation;
@@ -74,9 +84,14 @@ public class FeatureStoreAction extends ActionType<FeatureStoreResponse> {
             super(in);
             store = in.readString();
             routing = in.readOptionalString();
-            action = Action.values()[in.readVInt()];
+            int actionOrdinal = in.readVInt();
+            action = Action.values()[actionOrdinal & ~CONDITIONAL_FLAG];
             storableElement = in.readNamedWriteable(StorableElement.class);
             validation = in.readOptionalWriteable(FeatureValidation::new);
+            if ((actionOrdinal & CONDITIONAL_FLAG) != 0) {
+                ifSeqNo = in.readZLong();
+                ifPrimaryTerm = in.readVLong();
+            }
         }
 
         public FeatureStoreRequest(String store, StorableElement storableElement, Action action) {
@@ -85,11 +100,15 @@ public class FeatureStoreAction extends ActionType<FeatureStoreResponse> {
             this.action = Objects.requireNonNull(action);
         }
 
-        public FeatureStoreRequest(String store, StorableElement storableElement, long updatedVersion) {
+        /**
+         * Update an element only if it has not been modified since it was read with the given sequence number and primary term.
+         */
+        public FeatureStoreRequest(String store, StorableElement storableElement, long ifSeqNo, long ifPrimaryTerm) {
             this.store = Objects.requireNonNull(store);
             this.storableElement = Objects.requireNonNull(storableElement);
             this.action = Action.UPDATE;
-            this.updatedVersion = updatedVersion;
+            this.ifSeqNo = ifSeqNo;
+            this.ifPrimaryTerm = ifPrimaryTerm;
         }
 
         @Override
@@ -107,8 +126,8 @@ public class FeatureStoreAction extends ActionType<FeatureStoreResponse> {
             if (action == Action.UPDATE && !storableElement.updatable()) {
                 arve = addValidationError("Elements of type [" + storableElement.type() + "] are not updatable.", arve);
             }
-            if (updatedVersion != null && action != Action.UPDATE) {
-                arve = addValidationError("Only UPDATE supports a version.", arve);
+            if (ifSeqNo != UNASSIGNED_SEQ_NO && action != Action.UPDATE) {
+                arve = addValidationError("Only UPDATE supports a sequence number.", arve);
             }
             return arve;
         }
@@ -145,8 +164,12 @@ public class FeatureStoreAction extends ActionType<FeatureStoreResponse> {
             this.routing = routing;
         }
 
-        public Long getUpdatedVersion() {
-            return updatedVersion;
+        public long getIfSeqNo() {
+            return ifSeqNo;
+        }
+
+        public long getIfPrimaryTerm() {
+            return ifPrimaryTerm;
         }
 
         public FeatureValidation getValidation() {
@@ -162,9 +185,14 @@ public class FeatureStoreAction extends ActionType<FeatureStoreResponse> {
             super.writeTo(out);
             out.writeString(store);
             out.writeOptionalString(routing);
-            out.writeVInt(action.ordinal());
+            boolean conditional = ifSeqNo != UNASSIGNED_SEQ_NO;
+            out.writeVInt(conditional ? action.ordinal() | CONDITIONAL_FLAG : action.ordinal());
             out.writeNamedWriteable(storableElement);
             out.writeOptionalWriteable(validation);
+            if (conditional) {
+                out.writeZLong(ifSeqNo);
+                out.writeVLong(ifPrimaryTerm);
+            }
         }
 
         public enum Action {
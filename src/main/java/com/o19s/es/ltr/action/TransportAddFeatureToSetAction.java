@@ -28,21 +28,27 @@ import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.get.TransportGetAction;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchAction;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchTask;
-import org.elasticsearch.action.search.TransportSearchAction;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.action.search.SearchScrollRequest;
 import org.elasticsearch.action.support.ActionFilters;
 import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.client.internal.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.util.concurrent.CountDown;
+import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.FieldSortBuilder;
 import org.elasticsearch.tasks.Task;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
@@ -50,15 +56,22 @@ import org.elasticsearch.transport.TransportService;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.elasticsearch.action.ActionListener.wrap;
+import static org.elasticsearch.index.seqno.SequenceNumbers.UNASSIGNED_PRIMARY_TERM;
+import static org.elasticsearch.index.seqno.SequenceNumbers.UNASSIGNED_SEQ_NO;
 
 public class TransportAddFeatureToSetAction extends HandledTransportAction<AddFeaturesToSetRequest, AddFeaturesToSetResponse> {
+    /**
+     * Number of features fetched per scroll page
+     */
+    private static final int FETCH_BATCH_SIZE = 500;
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
     private final ClusterService clusterService;
-    private final TransportSearchAction searchAction;
+    private final Client client;
     private final TransportGetAction getAction;
     private final TransportFeatureStoreAction featureStoreAction;
 
@@ -66,11 +79,11 @@ public class TransportAddFeatureToSetAction extends HandledTransportAction<AddFe
     public TransportAddFeatureToSetAction(Settings settings, ThreadPool threadPool,
                                              TransportService transportService, ActionFilters actionFilters,
                                              IndexNameExpressionResolver indexNameExpressionResolver,
-                                             ClusterService clusterService, TransportSearchAction searchAction,
+                                             ClusterService clusterService, Client client,
                                              TransportGetAction getAction, TransportFeatureStoreAction featureStoreAction) {
         super(AddFeaturesToSetAction.NAME, transportService, actionFilters, AddFeaturesToSetRequest::new);
         this.clusterService = clusterService;
-        this.searchAction = searchAction;
+        this.client = client;
         this.getAction = getAction;
         this.featureStoreAction = featureStoreAction;
     }
@@ -80,16 +93,17 @@ public class TransportAddFeatureToSetAction extends HandledTransportAction<AddFe
         if (!clusterService.state().routingTable().hasIndex(request.getStore())) {
             throw new IllegalArgumentException("Store [" + request.getStore() + "] does not exist, please create it first.");
         }
-        new AsyncAction(task, request, listener, clusterService, searchAction, getAction, featureStoreAction).start();
+        new AsyncAction(task, request, listener, clusterService, client, getAction, featureStoreAction).start();
     }
 
     /**
      * Async action that does the following:
      * - send an async GetRequest to fetch the existing StoreFeatureSet if it exists
-     * - send an async Searchrequest to fetch the features requested
+     * - scroll over the features requested, fetching only their definitions
      * - synchronize on CountDown, the last action to return will trigger the next step
      * - merge the StoredFeature and the new list of features
-     * - send an async FeatureStoreAction to save the modified (or new) StoredFeatureSet
+     * - send an async FeatureStoreAction to save the modified (or new) StoredFeatureSet,
+     *   conditioned on the sequence number of the set that was read
      */
     private static class AsyncAction {
         private final Task task;
@@ -104,16 +118,19 @@ public class TransportAddFeatureToSetAction extends HandledTransportAction<AddFe
         private final AtomicReference<Exception> getException = new AtomicReference<>();
         private final AtomicReference<StoredFeatureSet> setRef = new AtomicReference<>();
         private final AtomicReference<List<StoredFeature>> featuresRef = new AtomicReference<>();
+        // scroll pages are handled one after the other
+        private final List<StoredFeature> fetchedFeatures = new ArrayList<>();
         private final CountDown countdown;
-        private final AtomicLong version = new AtomicLong(-1L);
+        private final AtomicLong seqNo = new AtomicLong(UNASSIGNED_SEQ_NO);
+        private final AtomicLong primaryTerm = new AtomicLong(UNASSIGNED_PRIMARY_TERM);
         private final ClusterService clusterService;
-        private final TransportSearchAction searchAction;
+        private final Client client;
         private final TransportGetAction getAction;
         private final TransportFeatureStoreAction featureStoreAction;
         private final FeatureValidation validation;
 
         AsyncAction(Task task, AddFeaturesToSetRequest request, ActionListener<AddFeaturesToSetResponse> listener,
-                           ClusterService clusterService, TransportSearchAction searchAction, TransportGetAction getAction,
+                           ClusterService clusterService, Client client, TransportGetAction getAction,
                            TransportFeatureStoreAction featureStoreAction) {
             this.task = task;
             this.listener = listener;
@@ -133,7 +150,7 @@ public class TransportAddFeatureToSetAction extends HandledTransportAction<AddFe
             this.store = request.getStore();
             this.routing = request.getRouting();
             this.clusterService = clusterService;
-            this.searchAction = searchAction;
+            this.client = client;
             this.getAction = getAction;
             this.featureStoreAction = featureStoreAction;
             this.validation = request.getValidation();
@@ -175,11 +192,14 @@ public class TransportAddFeatureToSetAction extends HandledTransportAction<AddFe
             bq.must(QueryBuilders.matchQuery("type", StoredFeature.TYPE));
 //            srequest.types(IndexFeatureStore.ES_TYPE);
             srequest.source().query(bq);
-            srequest.source().fetchSource(true);
-            srequest.source().size(StoredFeatureSet.MAX_FEATURES);
+            // only the feature definition is parsed
+            srequest.source().fetchSource(new String[]{StoredFeature.TYPE}, null);
+            srequest.source().size(FETCH_BATCH_SIZE);
+            srequest.source().sort(FieldSortBuilder.DOC_FIELD_NAME);
+            srequest.source().trackTotalHitsUpTo(StoredFeatureSet.MAX_FEATURES + 1);
+            srequest.scroll(SCROLL_KEEP_ALIVE);
 
-            SearchTask st = srequest.createTask(task.getId(), task.getType(), task.getAction(), task.getParentTaskId(), Map.of());
-            searchAction.execute(st, srequest, wrap(this::onSearchResponse, this::onSearchFailure));
+            client.execute(SearchAction.INSTANCE, srequest, wrap(this::onSearchResponse, this::onSearchFailure));
         }
 
         private void onGetFailure(Exception e) {
@@ -196,10 +216,10 @@ public class TransportAddFeatureToSetAction extends HandledTransportAction<AddFe
             try {
                 StoredFeatureSet featureSet;
                 if (getResponse.isExists()) {
-                    version.set(getResponse.getVersion());
+                    seqNo.set(getResponse.getSeqNo());
+                    primaryTerm.set(getResponse.getPrimaryTerm());
                     featureSet = IndexFeatureStore.parse(StoredFeatureSet.class, StoredFeatureSet.TYPE, getResponse.getSourceAsBytesRef());
                 } else {
-                    version.set(-1L);
                     featureSet = new StoredFeatureSet(featureSetName, Collections.emptyList());
                 }
                 setRef.set(featureSet);
@@ -211,23 +231,42 @@ public class TransportAddFeatureToSetAction extends HandledTransportAction<AddFe
         }
 
         private void onSearchResponse(SearchResponse sr) {
+            long total = sr.getHits().getTotalHits().value;
             try {
-                if (sr.getHits().getTotalHits().value > StoredFeatureSet.MAX_FEATURES) {
+                if (total > StoredFeatureSet.MAX_FEATURES) {
                     throw new IllegalArgumentException("The feature query [" + featureNamesQuery + "] returns too many features");
                 }
-                if (sr.getHits().getTotalHits().value == 0) {
+                if (total == 0) {
                     throw new IllegalArgumentException("The feature query [" + featureNamesQuery + "] returned no features");
                 }
-                final List<StoredFeature> features = new ArrayList<>(sr.getHits().getHits().length);
                 for (SearchHit hit : sr.getHits().getHits()) {
-                    features.add(IndexFeatureStore.parse(StoredFeature.class, StoredFeature.TYPE, hit.getSourceRef()));
+                    fetchedFeatures.add(IndexFeatureStore.parse(StoredFeature.class, StoredFeature.TYPE, hit.getSourceRef()));
                 }
-                featuresRef.set(features);
             } catch (Exception e) {
-                searchException.set(e);
-            } finally {
+                clearScroll(sr.getScrollId());
+                onSearchFailure(e);
+                return;
+            }
+            if (fetchedFeatures.size() >= total || sr.getHits().getHits().length == 0) {
+                clearScroll(sr.getScrollId());
+                featuresRef.set(fetchedFeatures);
                 maybeFinish();
+                return;
+            }
+            SearchScrollRequest next = new SearchScrollRequest(sr.getScrollId());
+            next.scroll(SCROLL_KEEP_ALIVE);
+            next.setParentTask(clusterService.localNode().getId(), task.getId());
+            client.execute(SearchScrollAction.INSTANCE, next, wrap(this::onSearchResponse, this::onSearchFailure));
+        }
+
+        private void clearScroll(String scrollId) {
+            if (scrollId == null) {
+                return;
             }
+            // Run and forget, the scroll expires anyway
+            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            client.execute(ClearScrollAction.INSTANCE, clearScrollRequest, wrap((r) -> {}, (e) -> {}));
         }
 
         private void maybeFinish() {
@@ -274,10 +313,10 @@ public class TransportAddFeatureToSetAction extends HandledTransportAction<AddFe
         }
 
         private void updateSet(StoredFeatureSet set) {
-            long version = this.version.get();
             final FeatureStoreRequest frequest;
-            if (version > 0) {
-                 frequest = new FeatureStoreRequest(store, set, version);
+            if (seqNo.get() != UNASSIGNED_SEQ_NO) {
+                // fails with a version conflict if the set was modified concurrently
+                frequest = new FeatureStoreRequest(store, set, seqNo.get(), primaryTerm.get());
             } else {
                 frequest = new FeatureStoreRequest(store, set, FeatureStoreRequest.Action.CREATE);
             }
@@ -0,0 +1,254 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.action;
+
+import com.o19s.es.ltr.action.BulkFeatureStoreAction.BulkFeatureStoreRequest;
+import com.o19s.es.ltr.action.BulkFeatureStoreAction.BulkFeatureStoreResponse;
+import com.o19s.es.ltr.action.ClearCachesAction.ClearCachesNodesRequest;
+import com.o19s.es.ltr.action.FeatureStoreAction.FeatureStoreRequest;
+import com.o19s.es.ltr.feature.store.CompiledLtrModel;
+import com.o19s.es.ltr.feature.store.StorableElement;
+import com.o19s.es.ltr.feature.store.StoredLtrModel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRunnable;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.MultiSearchAction;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.GroupedActionListener;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.util.concurrent.ThrottledTaskRunner;
+import org.elasticsearch.core.Releasable;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.elasticsearch.action.ActionListener.wrap;
+
+public class TransportBulkFeatureStoreAction extends HandledTransportAction<BulkFeatureStoreRequest, BulkFeatureStoreResponse> {
+    private final ClusterService clusterService;
+    private final ThreadPool threadPool;
+    private final Client client;
+    private final TransportFeatureStoreAction featureStoreAction;
+    private final TransportClearCachesAction clearCachesAction;
+    private final Logger logger = LogManager.getLogger(getClass());
+
+    @Inject
+    public TransportBulkFeatureStoreAction(TransportService transportService,
+                                           ActionFilters actionFilters,
+                                           ClusterService clusterService, Client client,
+                                           TransportFeatureStoreAction featureStoreAction,
+                                           TransportClearCachesAction clearCachesAction) {
+        super(BulkFeatureStoreAction.NAME, false, transportService, actionFilters, BulkFeatureStoreRequest::new);
+        this.clusterService = clusterService;
+        this.threadPool = transportService.getThreadPool();
+        this.client = client;
+        this.featureStoreAction = featureStoreAction;
+        this.clearCachesAction = clearCachesAction;
+    }
+
+    @Override
+    protected void doExecute(Task task, BulkFeatureStoreRequest request, ActionListener<BulkFeatureStoreResponse> listener) {
+        if (!clusterService.state().routingTable().hasIndex(request.getStore())) {
+            // To prevent index auto creation
+            throw new IllegalArgumentException("Store [" + request.getStore() + "] does not exist, please create it first.");
+        }
+        List<FeatureStoreRequest> requests = request.getRequests();
+        AtomicReferenceArray<CompiledLtrModel> compiled = new AtomicReferenceArray<>(requests.size());
+        precheck(requests, compiled, wrap(
+                (r) -> validate(requests, task, wrap(
+                        (r2) -> store(request, compiled, task, listener),
+                        listener::onFailure)),
+                listener::onFailure));
+    }
+
+    /**
+     * Run the pre-checks of all the elements, features and featuresets are cheap and checked inline while
+     * models are compiled on the compile pool, at most as many at once as it has threads so that a large bulk
+     * does not fill its queue. Models are compiled only once and their compiled form is kept to build the snapshots.
+     */
+    private void precheck(List<FeatureStoreRequest> requests, AtomicReferenceArray<CompiledLtrModel> compiled,
+                          ActionListener<Void> listener) {
+        List<Integer> models = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            FeatureStoreRequest request = requests.get(i);
+            if (request.getStorableElement() instanceof StoredLtrModel) {
+                models.add(i);
+                continue;
+            }
+            try {
+                featureStoreAction.precheck(request);
+            } catch (Exception e) {
+                listener.onFailure(new IllegalArgumentException("Invalid " + describe(request.getStorableElement()), e));
+                return;
+            }
+        }
+        if (models.isEmpty()) {
+            listener.onResponse(null);
+            return;
+        }
+        GroupedActionListener<Void> grouped = new GroupedActionListener<>(models.size(),
+                listener.map((r) -> null));
+        ThrottledTaskRunner runner = new ThrottledTaskRunner(BulkFeatureStoreAction.NAME,
+                threadPool.info(TransportFeatureStoreAction.MODEL_COMPILE_THREAD_POOL).getMax(),
+                threadPool.executor(TransportFeatureStoreAction.MODEL_COMPILE_THREAD_POOL));
+        for (int slot : models) {
+            FeatureStoreRequest request = requests.get(slot);
+            runner.enqueueTask(new ActionListener<>() {
+                @Override
+                public void onResponse(Releasable releasable) {
+                    try (releasable) {
+                        ActionRunnable.run(grouped, () -> {
+                            try {
+                                compiled.set(slot, featureStoreAction.precheck(request));
+                            } catch (Exception e) {
+                                throw new IllegalArgumentException("Invalid " + describe(request.getStorableElement()), e);
+                            }
+                        }).run();
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    grouped.onFailure(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Validate the elements that requested it with a single multi search
+     */
+    private void validate(List<FeatureStoreRequest> requests, Task task, ActionListener<Void> listener) {
+        List<StorableElement> validated = new ArrayList<>();
+        MultiSearchRequest multiSearch = new MultiSearchRequest();
+        for (FeatureStoreRequest request : requests) {
+            if (request.getValidation() != null) {
+                validated.add(request.getStorableElement());
+                multiSearch.add(featureStoreAction.buildValidationRequest(request.getValidation(),
+                        request.getStorableElement(), task));
+            }
+        }
+        if (validated.isEmpty()) {
+            listener.onResponse(null);
+            return;
+        }
+        multiSearch.setParentTask(clusterService.localNode().getId(), task.getId());
+        client.execute(MultiSearchAction.INSTANCE, multiSearch, wrap((r) -> {
+            MultiSearchResponse.Item[] items = r.getResponses();
+            for (int i = 0; i < items.length; i++) {
+                try {
+                    if (items[i].isFailure()) {
+                        throw items[i].getFailure();
+                    }
+                    TransportFeatureStoreAction.checkValidationResponse(items[i].getResponse());
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("Cannot store element " + describe(validated.get(i)) + ", validation failed.", e);
+                }
+            }
+            listener.onResponse(null);
+        }, listener::onFailure));
+    }
+
+    /**
+     * Index all the elements with a single bulk request and a single refresh, invalidates the cache of the store
+     * if some elements were updated and then caches the models that were stored.
+     */
+    private void store(BulkFeatureStoreRequest request, AtomicReferenceArray<CompiledLtrModel> compiled, Task task,
+                       ActionListener<BulkFeatureStoreResponse> listener) {
+        BulkRequest bulkRequest = new BulkRequest();
+        boolean hasUpdates = false;
+        try {
+            for (int i = 0; i < request.getRequests().size(); i++) {
+                FeatureStoreRequest item = request.getRequests().get(i);
+                bulkRequest.add(featureStoreAction.buildIndexRequest(task, item, compiled.get(i)));
+                hasUpdates |= item.getAction() == FeatureStoreRequest.Action.UPDATE;
+            }
+        } catch (IOException ioe) {
+            listener.onFailure(ioe);
+            return;
+        }
+        bulkRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        bulkRequest.setParentTask(clusterService.localNode().getId(), task.getId());
+        final boolean clearCache = hasUpdates;
+        client.execute(BulkAction.INSTANCE, bulkRequest, wrap(
+                (r) -> {
+                    for (BulkItemResponse item : r) {
+                        if (!item.isFailed()) {
+                            featureStoreAction.onStored(request.getStore(),
+                                    request.getRequests().get(item.getItemId()).getStorableElement(), item.getResponse());
+                        }
+                    }
+                    Runnable warmCaches = () -> warmCaches(request, compiled, r, task);
+                    if (clearCache && anySucceeded(r)) {
+                        // Run and forget, a single request for the whole store rather than one per updated element
+                        // models are cached once the store is cleared so that they are not evicted right away
+                        ClearCachesNodesRequest clearCachesNodesRequest = new ClearCachesNodesRequest();
+                        clearCachesNodesRequest.clearStore(request.getStore());
+                        clearCachesAction.execute(task, clearCachesNodesRequest, wrap(
+                                (r2) -> warmCaches.run(),
+                                (e) -> {
+                                    logger.error("Failed to clear cache", e);
+                                    warmCaches.run();
+                                }));
+                    } else {
+                        warmCaches.run();
+                    }
+                    listener.onResponse(new BulkFeatureStoreResponse(r));
+                },
+                listener::onFailure));
+    }
+
+    private void warmCaches(BulkFeatureStoreRequest request, AtomicReferenceArray<CompiledLtrModel> compiled,
+                            BulkResponse response, Task task) {
+        BulkItemResponse[] items = response.getItems();
+        for (int i = 0; i < items.length; i++) {
+            if (compiled.get(i) != null && !items[i].isFailed()) {
+                featureStoreAction.warmCaches(task, request.getStore(),
+                        request.getRequests().get(i).getStorableElement().name(), compiled.get(i));
+            }
+        }
+    }
+
+    private static boolean anySucceeded(Iterable<BulkItemResponse> items) {
+        for (BulkItemResponse item : items) {
+            if (!item.isFailed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String describe(StorableElement element) {
+        return "[" + element.type() + "] [" + element.name() + "]";
+    }
+}
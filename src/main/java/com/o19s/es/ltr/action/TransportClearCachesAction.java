@@ -16,13 +16,22 @@
 
 package com.o19s.es.ltr.action;
 
+import com.o19s.es.ltr.LtrQueryParserPlugin;
 import com.o19s.es.ltr.action.ClearCachesAction.ClearCachesNodeResponse;
 import com.o19s.es.ltr.action.ClearCachesAction.ClearCachesNodesRequest;
 import com.o19s.es.ltr.action.ClearCachesAction.ClearCachesNodesResponse;
+import com.o19s.es.ltr.feature.store.index.CachedFeatureStore;
 import com.o19s.es.ltr.feature.store.index.Caches;
+import com.o19s.es.ltr.feature.store.index.IndexFeatureStore;
+import com.o19s.es.ltr.ranker.parser.LtrRankerParserFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.FailedNodeException;
 import org.elasticsearch.action.support.ActionFilters;
 import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.client.internal.Client;
+import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.cluster.service.ClusterService;
@@ -36,20 +45,26 @@ import org.elasticsearch.transport.TransportRequest;
 import org.elasticsearch.transport.TransportService;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 public class TransportClearCachesAction extends TransportNodesAction<ClearCachesNodesRequest, ClearCachesNodesResponse,
         TransportClearCachesAction.ClearCachesNodeRequest, ClearCachesNodeResponse> {
     private final Caches caches;
+    private final Client client;
+    private final LtrRankerParserFactory factory;
+    private final Logger logger = LogManager.getLogger(getClass());
 
     @Inject
     public TransportClearCachesAction(Settings settings, ThreadPool threadPool,
                                          ClusterService clusterService, TransportService transportService,
                                          ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver,
-                                         Caches caches) {
+                                         Caches caches, Client client, LtrRankerParserFactory factory) {
         super(ClearCachesAction.NAME, threadPool, clusterService, transportService, actionFilters,
                 ClearCachesNodesRequest::new, ClearCachesNodeRequest::new, ThreadPool.Names.MANAGEMENT, ClearCachesNodeResponse.class);
         this.caches = caches;
+        this.client = client;
+        this.factory = factory;
     }
 
     @Override
@@ -58,6 +73,17 @@ public class TransportClearCachesAction extends TransportNodesAction<ClearCaches
         return new ClearCachesNodesResponse(clusterService.getClusterName(), responses, failures);
     }
 
+    @Override
+    protected void resolveRequest(ClearCachesNodesRequest request, ClusterState clusterState) {
+        super.resolveRequest(request, clusterState);
+        if (request.getOperation() == ClearCachesNodesRequest.Operation.WarmModel) {
+            // nodes running an older plugin cannot read this operation, they load the model on their first query instead
+            request.setConcreteNodes(Arrays.stream(request.concreteNodes())
+                    .filter((n) -> LtrQueryParserPlugin.wireRevision(n) >= 1)
+                    .toArray(DiscoveryNode[]::new));
+        }
+    }
+
     @Override
     protected ClearCachesNodeRequest newNodeRequest(ClearCachesNodesRequest request) {
         return new ClearCachesNodeRequest(request);
@@ -84,6 +110,12 @@ public class TransportClearCachesAction extends TransportNodesAction<ClearCaches
         case ClearModel:
             caches.evictModel(r.getStore(), r.getName());
             break;
+        case WarmModel:
+            // no-op if the model is already cached (e.g. on the node that stored it), run and forget
+            // since the model is compiled on the compile pool once fetched
+            new CachedFeatureStore(new IndexFeatureStore(r.getStore(), () -> client, factory), caches).loadModel(r.getName(),
+                    ActionListener.wrap((m) -> {}, (e) -> logger.warn("Failed to warm the cache with model [" + r.getName() + "]", e)));
+            break;
         default:
             throw new RuntimeException("Unsupported operation [" + r.getOperation() + "]");
         }
@@ -20,28 +20,42 @@ import com.o19s.es.ltr.action.ClearCachesAction.ClearCachesNodesRequest;
 import com.o19s.es.ltr.action.FeatureStoreAction.FeatureStoreRequest;
 import com.o19s.es.ltr.action.FeatureStoreAction.FeatureStoreResponse;
 import com.o19s.es.ltr.feature.FeatureValidation;
+import com.o19s.es.ltr.feature.store.CompiledLtrModel;
+import com.o19s.es.ltr.feature.store.CompiledModelSnapshot;
 import com.o19s.es.ltr.feature.store.StorableElement;
 import com.o19s.es.ltr.feature.store.StoredFeature;
 import com.o19s.es.ltr.feature.store.StoredFeatureSet;
 import com.o19s.es.ltr.feature.store.StoredLtrModel;
+import com.o19s.es.ltr.feature.store.index.Caches;
 import com.o19s.es.ltr.feature.store.index.IndexFeatureStore;
 import com.o19s.es.ltr.query.ValidatingLtrQueryBuilder;
 import com.o19s.es.ltr.ranker.parser.LtrRankerParserFactory;
+import com.o19s.es.ltr.stats.ModelStats;
+import com.o19s.es.ltr.stats.suppliers.StoreStatsSupplier;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRunnable;
+import org.elasticsearch.action.DocWriteResponse;
 import org.elasticsearch.action.index.IndexAction;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.ShardSearchFailure;
 import org.elasticsearch.action.support.ActionFilters;
 import org.elasticsearch.action.support.HandledTransportAction;
 import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.client.internal.Client;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.core.Nullable;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
 import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
 
 import java.io.IOException;
@@ -50,8 +64,23 @@ import java.util.Optional;
 import static org.elasticsearch.action.ActionListener.wrap;
 
 public class TransportFeatureStoreAction extends HandledTransportAction<FeatureStoreRequest, FeatureStoreResponse> {
+    /**
+     * Thread pool running the pre-checks, compiling a large model can take seconds and must not block
+     * the transport threads nor starve the generic pool.
+     */
+    public static final String MODEL_COMPILE_THREAD_POOL = "ltr_model_compile";
+    /**
+     * Memory needed to compile a model relative to the size of its definition (parser tree, intermediate nodes...)
+     */
+    private static final int COMPILE_MEMORY_OVERHEAD = 4;
+
     private final LtrRankerParserFactory factory;
     private final ClusterService clusterService;
+    private final ThreadPool threadPool;
+    private final CircuitBreakerService circuitBreakerService;
+    private final Caches caches;
+    private final StoreStatsSupplier storeStats;
+    private final ModelStats modelStats;
     private final TransportClearCachesAction clearCachesAction;
     private final Client client;
     private final Logger logger = LogManager.getLogger(getClass());
@@ -61,10 +90,19 @@ public class TransportFeatureStoreAction extends HandledTransportAction<FeatureS
                                        ActionFilters actionFilters,
                                        ClusterService clusterService, Client client,
                                        LtrRankerParserFactory factory,
+                                       CircuitBreakerService circuitBreakerService,
+                                       Caches caches,
+                                       StoreStatsSupplier storeStats,
+                                       ModelStats modelStats,
                                        TransportClearCachesAction clearCachesAction) {
         super(FeatureStoreAction.NAME, false, transportService, actionFilters, FeatureStoreRequest::new);
         this.factory = factory;
         this.clusterService = clusterService;
+        this.threadPool = transportService.getThreadPool();
+        this.circuitBreakerService = circuitBreakerService;
+        this.caches = caches;
+        this.storeStats = storeStats;
+        this.modelStats = modelStats;
         this.clearCachesAction = clearCachesAction;
         this.client = client;
     }
@@ -75,15 +113,17 @@ public class TransportFeatureStoreAction extends HandledTransportAction<FeatureS
             // To prevent index auto creation
             throw new IllegalArgumentException("Store [" + request.getStore() + "] does not exist, please create it first.");
         }
-        // some synchronous pre-checks that require the parser factory
-        precheck(request);
-        if (request.getValidation() != null) {
-            // validate and then store
-            validate(request.getValidation(), request.getStorableElement(), task, listener,
-                    () -> store(request, task, listener));
-        } else {
-            store(request, task, listener);
-        }
+        // some pre-checks that require the parser factory, forked because models are compiled
+        threadPool.executor(MODEL_COMPILE_THREAD_POOL).execute(ActionRunnable.wrap(listener, (l) -> {
+            CompiledLtrModel compiled = precheck(request);
+            if (request.getValidation() != null) {
+                // validate and then store
+                validate(request.getValidation(), request.getStorableElement(), task, l,
+                        () -> store(request, compiled, task, l));
+            } else {
+                store(request, compiled, task, l);
+            }
+        }));
     }
 
     private Optional<ClearCachesNodesRequest> buildClearCache(FeatureStoreRequest request) throws IOException {
@@ -101,31 +141,60 @@ public class TransportFeatureStoreAction extends HandledTransportAction<FeatureS
         return Optional.empty();
     }
 
-    private IndexRequest buildIndexRequest(Task parentTask, FeatureStoreRequest request) throws IOException {
+    /**
+     * Build the request indexing the element, the refresh policy is left to the caller.
+     */
+    IndexRequest buildIndexRequest(Task parentTask, FeatureStoreRequest request,
+                                   @Nullable CompiledLtrModel compiled) throws IOException {
         StorableElement elt = request.getStorableElement();
 
         IndexRequest indexRequest = client.prepareIndex(request.getStore())
                 .setId(elt.id())
                 .setCreate(request.getAction() == FeatureStoreRequest.Action.CREATE)
                 .setRouting(request.getRouting())
-                .setSource(IndexFeatureStore.toSource(elt))
-                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .setIfSeqNo(request.getIfSeqNo())
+                .setIfPrimaryTerm(request.getIfPrimaryTerm())
+                .setSource(IndexFeatureStore.toSource(elt, buildSnapshot(request.getStore(), compiled)))
                 .request();
         indexRequest.setParentTask(clusterService.localNode().getId(), parentTask.getId());
         return indexRequest;
     }
 
+    /**
+     * Snapshot the compiled model so that nodes can load it without parsing its definition.
+     * Old stores whose mapping cannot hold the snapshot and unsupported rankers are skipped.
+     */
+    private BytesReference buildSnapshot(String store, @Nullable CompiledLtrModel compiled) throws IOException {
+        if (compiled == null
+                || !CompiledModelSnapshot.supports(compiled.ranker())
+                || !IndexFeatureStore.supportsCompiledModels(clusterService.state().metadata().index(store))) {
+            return null;
+        }
+        return CompiledModelSnapshot.write(compiled.ranker(), compiled.contentHash());
+    }
+
     /**
      * Will throw an exception if it fails.
+     *
+     * @return the compiled model if the element is a model, null otherwise
      */
-    private void precheck(FeatureStoreRequest request) {
+    CompiledLtrModel precheck(FeatureStoreRequest request) {
         if (request.getStorableElement() instanceof StoredLtrModel) {
             StoredLtrModel model = (StoredLtrModel) request.getStorableElement();
+            // account the transient memory of the compilation, the compiled model itself is accounted by the caches
+            long estimate = (long) COMPILE_MEMORY_OVERHEAD * model.rankingModelBytes().length();
+            CircuitBreaker breaker = circuitBreakerService.getBreaker(CircuitBreaker.REQUEST);
+            breaker.addEstimateBytesAndMaybeBreak(estimate, "ltr model [" + model.name() + "]");
+            long start = System.nanoTime();
             try {
-                model.compile(factory);
+                CompiledLtrModel compiled = model.compile(factory);
+                modelStats.get(request.getStore(), model.name()).onCompile(System.nanoTime() - start);
+                return compiled;
             } catch (Exception e) {
                 throw new IllegalArgumentException("Error while parsing model [" + model.name() + "]" +
                         " with type [" + model.rankingModelType() + "]", e);
+            } finally {
+                breaker.addWithoutBreaking(-estimate);
             }
         } else if (request.getStorableElement() instanceof StoredFeatureSet) {
             StoredFeatureSet set = (StoredFeatureSet) request.getStorableElement();
@@ -134,6 +203,7 @@ public class TransportFeatureStoreAction extends HandledTransportAction<FeatureS
             StoredFeature feature = (StoredFeature) request.getStorableElement();
             feature.optimize();
         }
+        return null;
     }
 
     /**
@@ -150,6 +220,17 @@ public class TransportFeatureStoreAction extends HandledTransportAction<FeatureS
                           Task task,
                           ActionListener<FeatureStoreResponse> listener,
                           Runnable onSuccess) {
+        client.execute(SearchAction.INSTANCE, buildValidationRequest(validation, element, task), wrap((r) -> {
+                checkValidationResponse(r);
+                onSuccess.run();
+            },
+            (e) -> listener.onFailure(new IllegalArgumentException("Cannot store element, validation failed.", e))));
+    }
+
+    /**
+     * Build the test search request used to validate an element
+     */
+    SearchRequest buildValidationRequest(FeatureValidation validation, StorableElement element, Task task) {
         ValidatingLtrQueryBuilder ltrBuilder = new ValidatingLtrQueryBuilder(element,
                 validation, factory);
         SearchRequestBuilder builder = new SearchRequestBuilder(client, SearchAction.INSTANCE);
@@ -160,25 +241,30 @@ public class TransportFeatureStoreAction extends HandledTransportAction<FeatureS
         // Bail out early and don't score the whole index.
         builder.setTerminateAfter(1000);
         builder.request().setParentTask(clusterService.localNode().getId(), task.getId());
-        builder.execute(wrap((r) -> {
-                if (r.getFailedShards() > 0) {
-                    ShardSearchFailure failure = r.getShardFailures()[0];
-                    throw new IllegalArgumentException("Validating the element caused " + r.getFailedShards() +
-                            " shard failures, see root cause: " + failure.reason(), failure.getCause());
-                }
-                onSuccess.run();
-            },
-            (e) -> listener.onFailure(new IllegalArgumentException("Cannot store element, validation failed.", e))));
+        return builder.request();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the validation search failed on some shards
+     */
+    static void checkValidationResponse(SearchResponse r) {
+        if (r.getFailedShards() > 0) {
+            ShardSearchFailure failure = r.getShardFailures()[0];
+            throw new IllegalArgumentException("Validating the element caused " + r.getFailedShards() +
+                    " shard failures, see root cause: " + failure.reason(), failure.getCause());
+        }
     }
 
     /**
      * Prepare a Runnable to send an index request to store the element, invalidates the cache on success
      */
-    private void store(FeatureStoreRequest request, Task task, ActionListener<FeatureStoreResponse> listener) {
+    private void store(FeatureStoreRequest request, @Nullable CompiledLtrModel compiled, Task task,
+                       ActionListener<FeatureStoreResponse> listener) {
 
         try {
             Optional<ClearCachesNodesRequest> clearCachesNodesRequest = buildClearCache(request);
-            IndexRequest indexRequest = buildIndexRequest(task, request);
+            IndexRequest indexRequest = buildIndexRequest(task, request, compiled);
+            indexRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
             client.execute(IndexAction.INSTANCE, indexRequest, wrap(
                     (r) -> {
                         // Run and forget, log only if something bad happens
@@ -187,6 +273,10 @@ public class TransportFeatureStoreAction extends HandledTransportAction<FeatureS
                                 (r2) -> {
                                 },
                                 (e) -> logger.error("Failed to clear cache", e))));
+                        onStored(request.getStore(), request.getStorableElement(), r);
+                        if (compiled != null) {
+                            warmCaches(task, request.getStore(), request.getStorableElement().name(), compiled);
+                        }
                         listener.onResponse(new FeatureStoreResponse(r));
                     },
                     listener::onFailure));
@@ -194,4 +284,34 @@ public class TransportFeatureStoreAction extends HandledTransportAction<FeatureS
             listener.onFailure(ioe);
         }
     }
+
+    /**
+     * Count an element in the stats of its store if it was created
+     */
+    void onStored(String store, StorableElement element, DocWriteResponse response) {
+        if (response.getResult() == DocWriteResponse.Result.CREATED) {
+            storeStats.onCreated(store, element.type());
+        }
+    }
+
+    /**
+     * Cache a freshly stored model on this node and, if {@link Caches#LTR_CACHE_WARM_PEERS_SETTING} is set,
+     * ask the other nodes to load it so that the first query anywhere does not pay for its compilation.
+     */
+    void warmCaches(Task task, String store, String name, CompiledLtrModel compiled) {
+        try {
+            caches.cacheModel(store, name, compiled);
+        } catch (IOException e) {
+            logger.warn("Failed to cache model [" + name + "]", e);
+        }
+        if (Caches.LTR_CACHE_WARM_PEERS_SETTING.get(clusterService.getSettings())) {
+            // Run and forget like cache invalidation
+            ClearCachesNodesRequest warmRequest = new ClearCachesNodesRequest();
+            warmRequest.warmModel(store, name);
+            clearCachesAction.execute(task, warmRequest, wrap(
+                    (r) -> {
+                    },
+                    (e) -> logger.warn("Failed to warm the caches with model [" + name + "]", e)));
+        }
+    }
 }
@@ -19,23 +19,33 @@ package com.o19s.es.ltr.feature.store;
 import com.o19s.es.ltr.feature.FeatureSet;
 import com.o19s.es.ltr.feature.LtrModel;
 import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.OffHeapAccountable;
 import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.RamUsageEstimator;
 
 import static org.apache.lucene.util.RamUsageEstimator.NUM_BYTES_ARRAY_HEADER;
 import static org.apache.lucene.util.RamUsageEstimator.NUM_BYTES_OBJECT_HEADER;
 
-public class CompiledLtrModel implements LtrModel, Accountable {
+public class CompiledLtrModel implements LtrModel, Accountable, OffHeapAccountable {
     private static final long BASE_RAM_USED = RamUsageEstimator.shallowSizeOfInstance(StoredLtrModel.class);
 
     private final String name;
     private final FeatureSet set;
     private final LtrRanker ranker;
+    private final String contentHash;
 
     public CompiledLtrModel(String name, FeatureSet set, LtrRanker ranker) {
+        this(name, set, ranker, null);
+    }
+
+    /**
+     * @param contentHash hash of the stored definition, see {@link StoredLtrModel#contentHash()}, null if unknown
+     */
+    public CompiledLtrModel(String name, FeatureSet set, LtrRanker ranker, String contentHash) {
         this.name = name;
         this.set = set.optimize();
         this.ranker = ranker;
+        this.contentHash = contentHash;
     }
 
     /**
@@ -62,6 +72,14 @@ public class CompiledLtrModel implements LtrModel, Accountable {
         return set;
     }
 
+    /**
+     * Hash of the stored definition the model was compiled from, models with the same hash can share their
+     * feature set and ranker. Null for models not compiled from a stored definition.
+     */
+    public String contentHash() {
+        return contentHash;
+    }
+
     /**
      * Return the memory usage of this object in bytes. Negative values are illegal.
      */
@@ -72,4 +90,12 @@ public class CompiledLtrModel implements LtrModel, Accountable {
                 + (ranker instanceof Accountable ?
                 ((Accountable)ranker).ramBytesUsed() : set.size() * NUM_BYTES_OBJECT_HEADER);
     }
+
+    /**
+     * Return the memory allocated by the ranker outside the java heap, not included in {@link #ramBytesUsed()}.
+     */
+    @Override
+    public long offHeapBytesUsed() {
+        return ranker instanceof OffHeapAccountable ? ((OffHeapAccountable) ranker).offHeapBytesUsed() : 0;
+    }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.feature.store;
+
+import com.o19s.es.ltr.feature.FeatureSet;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.linear.LinearRanker;
+import com.o19s.es.ltr.ranker.normalizer.FeatureNormalizingRanker;
+import com.o19s.es.ltr.ranker.normalizer.MinMaxFeatureNormalizer;
+import com.o19s.es.ltr.ranker.normalizer.Normalizer;
+import com.o19s.es.ltr.ranker.normalizer.Normalizers;
+import com.o19s.es.ltr.ranker.normalizer.StandardFeatureNormalizer;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary snapshot of the ranker of a {@link CompiledLtrModel}.
+ * Stored alongside the {@link StoredLtrModel} so that nodes can rebuild the ranker
+ * from primitive arrays instead of parsing the model definition again.
+ * Rankers that cannot be snapshotted (e.g. ranklib linear models) are compiled from their definition.
+ * The header records the {@link StoredLtrModel#contentHash() content hash} of the model the snapshot was
+ * built from, a snapshot that does not match the stored definition is ignored.
+ */
+public final class CompiledModelSnapshot {
+    /**
+     * Bump when the binary layout changes, snapshots written with another version are ignored
+     */
+    public static final int FORMAT_VERSION = 4;
+
+    private static final byte LINEAR = 0;
+    private static final byte TREES = 1;
+    private static final byte FEATURE_NORMALIZING = 2;
+
+    private static final byte MIN_MAX_NORMALIZER = 0;
+    private static final byte STANDARD_NORMALIZER = 1;
+
+    private CompiledModelSnapshot() {}
+
+    /**
+     * @param ranker the compiled ranker
+     * @return true if this ranker can be written as a snapshot
+     */
+    public static boolean supports(LtrRanker ranker) {
+        if (ranker instanceof FeatureNormalizingRanker) {
+            FeatureNormalizingRanker normRanker = (FeatureNormalizingRanker) ranker;
+            for (Normalizer normalizer : normRanker.getFtrNorms().values()) {
+                if (!(normalizer instanceof MinMaxFeatureNormalizer) && !(normalizer instanceof StandardFeatureNormalizer)) {
+                    return false;
+                }
+            }
+            return supports(normRanker.getWrapped());
+        } else if (ranker instanceof NaiveAdditiveDecisionTree) {
+            return Normalizers.nameOf(((NaiveAdditiveDecisionTree) ranker).normalizer()) != null;
+        } else if (ranker instanceof FlatAdditiveDecisionTree) {
+            return Normalizers.nameOf(((FlatAdditiveDecisionTree) ranker).normalizer()) != null;
+        }
+        return ranker instanceof LinearRanker;
+    }
+
+    /**
+     * Write a snapshot of the ranker
+     *
+     * @param ranker the ranker to write, must be {@link #supports(LtrRanker) supported}
+     * @param contentHash the content hash of the model definition the ranker was compiled from
+     * @return the binary snapshot
+     */
+    public static BytesReference write(LtrRanker ranker, String contentHash) throws IOException {
+        if (!supports(ranker)) {
+            throw new IllegalArgumentException("Ranker [" + ranker.name() + "] does not support binary snapshots");
+        }
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            out.writeVInt(FORMAT_VERSION);
+            out.writeString(contentHash);
+            writeRanker(out, ranker);
+            return out.bytes();
+        }
+    }
+
+    /**
+     * Read a snapshot previously written with {@link #write(LtrRanker, String)}
+     *
+     * @param snapshot the binary snapshot
+     * @param set the feature set of the model
+     * @param contentHash the content hash of the stored model definition
+     * @return the ranker or null if the snapshot was written with another format version or from another definition
+     */
+    public static LtrRanker read(BytesReference snapshot, FeatureSet set, String contentHash) throws IOException {
+        try (StreamInput in = snapshot.streamInput()) {
+            if (in.readVInt() != FORMAT_VERSION || !contentHash.equals(in.readString())) {
+                return null;
+            }
+            return readRanker(in, set);
+        }
+    }
+
+    private static void writeRanker(StreamOutput out, LtrRanker ranker) throws IOException {
+        if (ranker instanceof FeatureNormalizingRanker) {
+            FeatureNormalizingRanker normRanker = (FeatureNormalizingRanker) ranker;
+            out.writeByte(FEATURE_NORMALIZING);
+            out.writeVInt(normRanker.getFtrNorms().size());
+            for (Map.Entry<Integer, Normalizer> entry : normRanker.getFtrNorms().entrySet()) {
+                out.writeVInt(entry.getKey());
+                if (entry.getValue() instanceof MinMaxFeatureNormalizer) {
+                    MinMaxFeatureNormalizer normalizer = (MinMaxFeatureNormalizer) entry.getValue();
+                    out.writeByte(MIN_MAX_NORMALIZER);
+                    out.writeFloat(normalizer.getMinimum());
+                    out.writeFloat(normalizer.getMaximum());
+                } else {
+                    StandardFeatureNormalizer normalizer = (StandardFeatureNormalizer) entry.getValue();
+                    out.writeByte(STANDARD_NORMALIZER);
+                    out.writeFloat(normalizer.getMean());
+                    out.writeFloat(normalizer.getStdDeviation());
+                }
+            }
+            writeRanker(out, normRanker.getWrapped());
+        } else if (ranker instanceof LinearRanker) {
+            out.writeByte(LINEAR);
+            writeFloats(out, ((LinearRanker) ranker).weights());
+            out.writeFloat(((LinearRanker) ranker).intercept());
+        } else {
+            FlatAdditiveDecisionTree trees = ranker instanceof NaiveAdditiveDecisionTree
+                    ? FlatAdditiveDecisionTree.fromNodes((NaiveAdditiveDecisionTree) ranker)
+                    : (FlatAdditiveDecisionTree) ranker;
+            out.writeByte(TREES);
+            out.writeString(Normalizers.nameOf(trees.normalizer()));
+            writeInts(out, trees.roots());
+            writeFloats(out, trees.weights());
+            writeInts(out, trees.features());
+            writeFloats(out, trees.values());
+            writeInts(out, trees.rightChildren());
+            out.writeBoolean(trees.splitTypes() != null);
+            if (trees.splitTypes() != null) {
+                out.writeByteArray(trees.splitTypes());
+                out.writeBoolean(trees.categoryBounds() != null);
+                if (trees.categoryBounds() != null) {
+                    writeInts(out, trees.categoryBounds());
+                    writeInts(out, trees.categories());
+                }
+            }
+        }
+    }
+
+    private static LtrRanker readRanker(StreamInput in, FeatureSet set) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case FEATURE_NORMALIZING:
+            int nbNorms = in.readVInt();
+            Map<Integer, Normalizer> ftrNorms = new HashMap<>();
+            for (int i = 0; i < nbNorms; i++) {
+                int ord = in.readVInt();
+                if (ord >= set.size()) {
+                    throw new IOException("Feature ordinal [" + ord + "] is out of bounds");
+                }
+                byte normType = in.readByte();
+                float a = in.readFloat();
+                float b = in.readFloat();
+                if (normType == MIN_MAX_NORMALIZER) {
+                    ftrNorms.put(ord, new MinMaxFeatureNormalizer(a, b));
+                } else if (normType == STANDARD_NORMALIZER) {
+                    ftrNorms.put(ord, new StandardFeatureNormalizer(a, b));
+                } else {
+                    throw new IOException("Unknown feature normalizer type [" + normType + "]");
+                }
+            }
+            return new FeatureNormalizingRanker(readRanker(in, set), ftrNorms);
+        case LINEAR:
+            float[] weights = readFloats(in);
+            if (weights.length != set.size()) {
+                throw new IOException("Linear model has [" + weights.length + "] weights but the feature set has ["
+                        + set.size() + "] features");
+            }
+            return new LinearRanker(weights, in.readFloat());
+        case TREES:
+            Normalizer normalizer = Normalizers.get(in.readString());
+            int[] roots = readInts(in);
+            float[] treeWeights = readFloats(in);
+            int[] features = readInts(in);
+            float[] values = readFloats(in);
+            int[] rightChildren = readInts(in);
+            byte[] splitTypes = null;
+            int[] categoryBounds = null;
+            int[] categories = null;
+            if (in.readBoolean()) {
+                splitTypes = in.readByteArray();
+                if (in.readBoolean()) {
+                    categoryBounds = readInts(in);
+                    categories = readInts(in);
+                }
+            }
+            return new FlatAdditiveDecisionTree(roots, treeWeights, features, values, rightChildren,
+                    splitTypes, categoryBounds, categories, set.size(), normalizer);
+        default:
+            throw new IOException("Unknown ranker type [" + type + "]");
+        }
+    }
+
+    private static void writeFloats(StreamOutput out, float[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(values);
+        out.writeVInt(values.length);
+        out.writeBytes(buffer.array());
+    }
+
+    private static void writeInts(StreamOutput out, int[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asIntBuffer().put(values);
+        out.writeVInt(values.length);
+        out.writeBytes(buffer.array());
+    }
+
+    private static float[] readFloats(StreamInput in) throws IOException {
+        float[] values = new float[in.readVInt()];
+        readBuffer(in, values.length * Float.BYTES).asFloatBuffer().get(values);
+        return values;
+    }
+
+    private static int[] readInts(StreamInput in) throws IOException {
+        int[] values = new int[in.readVInt()];
+        readBuffer(in, values.length * Integer.BYTES).asIntBuffer().get(values);
+        return values;
+    }
+
+    private static ByteBuffer readBuffer(StreamInput in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readBytes(bytes, 0, length);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.o19s.es.ltr.feature.store;
+
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.core.CheckedConsumer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash of the serialized definition of an element, identical definitions stored in different stores
+ * (or under different names) have the same hash.
+ */
+final class ContentHash {
+    private ContentHash() {}
+
+    static String sha256(CheckedConsumer<StreamOutput, IOException> definition) {
+        // not the thread local MessageDigests.sha256(), definitions may embed the hash of their parts
+        try (DigestStreamOutput out = new DigestStreamOutput(newSha256())) {
+            definition.accept(out);
+            return MessageDigests.toHexString(out.digest.digest());
+        } catch (IOException e) {
+            // writing to memory
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is a required MessageDigest algorithm", e);
+        }
+    }
+
+    /**
+     * Feeds the serialized definition to the digest as it is written, large model definitions are not copied.
+     */
+    private static class DigestStreamOutput extends StreamOutput {
+        private final MessageDigest digest;
+
+        DigestStreamOutput(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void writeByte(byte b) {
+            digest.update(b);
+        }
+
+        @Override
+        public void writeBytes(byte[] b, int offset, int length) {
+            digest.update(b, offset, length);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
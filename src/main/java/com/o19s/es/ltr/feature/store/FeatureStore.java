@@ -18,6 +18,7 @@ package com.o19s.es.ltr.feature.store;
 
 import com.o19s.es.ltr.feature.Feature;
 import com.o19s.es.ltr.feature.FeatureSet;
+import org.elasticsearch.action.ActionListener;
 
 import java.io.IOException;
 
@@ -53,4 +54,38 @@ public interface FeatureStore {
      * @throws IOException if the model can not be loaded and compiled
      */
     CompiledLtrModel loadModel(String name) throws IOException;
+
+    /**
+     * Load a feature without blocking the calling thread.
+     * The default implementation calls {@link #load(String)} on the calling thread,
+     * stores performing I/O should override it.
+     *
+     * @param name the name of the feature to load
+     * @param listener notified with the loaded feature or the failure
+     */
+    default void load(String name, ActionListener<Feature> listener) {
+        ActionListener.completeWith(listener, () -> load(name));
+    }
+
+    /**
+     * Load a feature-set without blocking the calling thread.
+     *
+     * @param name the feature-set name to load
+     * @param listener notified with the loaded feature-set or the failure
+     * @see #load(String, ActionListener)
+     */
+    default void loadSet(String name, ActionListener<FeatureSet> listener) {
+        ActionListener.completeWith(listener, () -> loadSet(name));
+    }
+
+    /**
+     * Load and compile a model without blocking the calling thread.
+     *
+     * @param name the model name to be compiled
+     * @param listener notified with the compiled model or the failure
+     * @see #load(String, ActionListener)
+     */
+    default void loadModel(String name, ActionListener<CompiledLtrModel> listener) {
+        ActionListener.completeWith(listener, () -> loadModel(name));
+    }
 }
@@ -38,11 +38,27 @@ public class OptimizedFeatureSet implements FeatureSet, Accountable {
     private final String name;
     private final List<Feature> features;
     private final Map<String, Integer> featureMap;
+    private final String contentHash;
 
     public OptimizedFeatureSet(String name, List<Feature> features, Map<String, Integer> featureMap) {
+        this(name, features, featureMap, null);
+    }
+
+    /**
+     * @param contentHash hash of the stored set, see {@link StoredFeatureSet#contentHash()}, null if unknown
+     */
+    public OptimizedFeatureSet(String name, List<Feature> features, Map<String, Integer> featureMap, String contentHash) {
         this.name = name;
         this.features = features;
         this.featureMap = featureMap;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Hash of the stored set this set was optimized from, null if unknown
+     */
+    public String contentHash() {
+        return contentHash;
     }
 
     @Override
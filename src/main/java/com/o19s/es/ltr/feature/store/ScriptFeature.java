@@ -363,10 +363,10 @@ public class ScriptFeature implements Feature {
                  * Return the maximum score that documents between the last {@code target}
                  * that this iterator was {@link #advanceShallow(int) shallow-advanced} to
                  * included and {@code upTo} included.
+                 * The script is arbitrary, its scores cannot be bounded.
                  */
                 @Override
                 public float getMaxScore(int upTo) throws IOException {
-                    //TODO??
                     return Float.POSITIVE_INFINITY;
                 }
             };
@@ -51,6 +51,8 @@ public class StoredFeatureSet implements FeatureSet, Accountable, StorableElemen
     private final String name;
     private final Map<String, Integer> featureMap;
     private final List<StoredFeature> features;
+    // computed lazily, see contentHash()
+    private String contentHash;
 
     private static final ObjectParser<ParsingState, Void> PARSER;
 
@@ -100,6 +102,16 @@ public class StoredFeatureSet implements FeatureSet, Accountable, StorableElemen
         }
     }
 
+    /**
+     * Build a set from features whose names have already been indexed in featureMap
+     */
+    private StoredFeatureSet(String name, List<StoredFeature> features, Map<String, Integer> featureMap) {
+        assert features.size() == featureMap.size();
+        this.name = name;
+        this.features = features;
+        this.featureMap = featureMap;
+    }
+
     @Override
     public FeatureSet optimize() {
         List<Feature> optimizedFeatures = new ArrayList<>(this.features.size());
@@ -110,7 +122,7 @@ public class StoredFeatureSet implements FeatureSet, Accountable, StorableElemen
             optimizedFeatures.add(optimizedFeature);
         }
         if (optimized) {
-            return new OptimizedFeatureSet(this.name, optimizedFeatures, Collections.unmodifiableMap(featureMap));
+            return new OptimizedFeatureSet(this.name, optimizedFeatures, Collections.unmodifiableMap(featureMap), contentHash());
         }
         return this;
     }
@@ -132,6 +144,17 @@ public class StoredFeatureSet implements FeatureSet, Accountable, StorableElemen
         out.writeList(features);
     }
 
+    /**
+     * @return a hash of the name and features of this set, identical sets stored in different stores share it
+     */
+    public String contentHash() {
+        String hash = contentHash;
+        if (hash == null) {
+            contentHash = hash = ContentHash.sha256(this::writeTo);
+        }
+        return hash;
+    }
+
     @Override
     public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
         builder.startObject();
@@ -172,8 +195,15 @@ public class StoredFeatureSet implements FeatureSet, Accountable, StorableElemen
         }
         List<StoredFeature> newFeatures = new ArrayList<>(nFeature);
         newFeatures.addAll(this.features);
-        newFeatures.addAll(features);
-        return new StoredFeatureSet(name, newFeatures);
+        Map<String, Integer> newFeatureMap = new HashMap<>(featureMap);
+        for (StoredFeature f : features) {
+            if (newFeatureMap.put(f.name(), newFeatures.size()) != null) {
+                throw new IllegalArgumentException("Feature [" + f.name() + "] defined twice in this set: " +
+                        "feature names must be unique in a set.");
+            }
+            newFeatures.add(f);
+        }
+        return new StoredFeatureSet(name, newFeatures, newFeatureMap);
     }
 
     /**
@@ -185,25 +215,24 @@ public class StoredFeatureSet implements FeatureSet, Accountable, StorableElemen
      * @throws IllegalArgumentException if the resulting size of the set exceed MAX_FEATURES
      */
     public StoredFeatureSet merge(List<StoredFeature> mergedFeatures) {
-        int merged = (int) mergedFeatures.stream()
-                .map(StoredFeature::name)
-                .filter(this::hasFeature)
-                .count();
-
-        if (size() + (mergedFeatures.size() - merged) > MAX_FEATURES) {
-            throw new IllegalArgumentException("The resulting feature set would be too large");
-        }
-        List<StoredFeature> newFeatures = new ArrayList<>(this.features.size() + mergedFeatures.size() - merged);
+        List<StoredFeature> newFeatures = new ArrayList<>(Math.min(MAX_FEATURES, size() + mergedFeatures.size()));
         newFeatures.addAll(this.features);
+        Map<String, Integer> newFeatureMap = new HashMap<>(featureMap);
         for (StoredFeature f : mergedFeatures) {
-            if (hasFeature(f.name())) {
-                newFeatures.set(featureOrdinal(f.name()), f);
+            Integer ordinal = newFeatureMap.get(f.name());
+            if (ordinal != null && ordinal < size()) {
+                newFeatures.set(ordinal, f);
+            } else if (ordinal != null) {
+                throw new IllegalArgumentException("Feature [" + f.name() + "] defined twice in this set: " +
+                        "feature names must be unique in a set.");
+            } else if (newFeatures.size() == MAX_FEATURES) {
+                throw new IllegalArgumentException("The resulting feature set would be too large");
             } else {
+                newFeatureMap.put(f.name(), newFeatures.size());
                 newFeatures.add(f);
             }
         }
-        assert newFeatures.size() <= MAX_FEATURES;
-        return new StoredFeatureSet(name, newFeatures);
+        return new StoredFeatureSet(name, newFeatures, newFeatureMap);
     }
 
     @Override
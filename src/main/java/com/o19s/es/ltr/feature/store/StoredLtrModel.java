@@ -25,12 +25,15 @@ import com.o19s.es.ltr.ranker.parser.LtrRankerParserFactory;
 import org.elasticsearch.TransportVersion;
 import org.elasticsearch.xcontent.ParseField;
 import org.elasticsearch.common.ParsingException;
-import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.io.stream.Writeable;
 import org.elasticsearch.xcontent.ObjectParser;
 import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
 import org.elasticsearch.xcontent.XContentParser;
 import org.elasticsearch.xcontent.XContentParserConfiguration;
 import org.elasticsearch.xcontent.json.JsonXContent;
@@ -51,9 +54,11 @@ public class StoredLtrModel implements StorableElement {
     private final String name;
     private final StoredFeatureSet featureSet;
     private final String rankingModelType;
-    private final String rankingModel;
+    private final BytesReference rankingModel;
     private final boolean modelAsString;
     private final StoredFeatureNormalizers parsedFtrNorms;
+    // computed lazily, see contentHash()
+    private String contentHash;
 
     static {
         PARSER = new ObjectParser<>(TYPE, ParsingState::new);
@@ -71,6 +76,15 @@ public class StoredLtrModel implements StorableElement {
 
     public StoredLtrModel(String name, StoredFeatureSet featureSet, String rankingModelType, String rankingModel,
                           boolean modelAsString, StoredFeatureNormalizers featureNormalizerSet) {
+        this(name, featureSet, rankingModelType, new BytesArray(Objects.requireNonNull(rankingModel)), modelAsString,
+                featureNormalizerSet);
+    }
+
+    /**
+     * @param rankingModel the UTF-8 bytes of the model definition, json when modelAsString is false
+     */
+    public StoredLtrModel(String name, StoredFeatureSet featureSet, String rankingModelType, BytesReference rankingModel,
+                          boolean modelAsString, StoredFeatureNormalizers featureNormalizerSet) {
         this.name = Objects.requireNonNull(name);
         this.featureSet = Objects.requireNonNull(featureSet);
         this.rankingModelType = Objects.requireNonNull(rankingModelType);
@@ -83,7 +97,7 @@ public class StoredLtrModel implements StorableElement {
         name = input.readString();
         featureSet = new StoredFeatureSet(input);
         rankingModelType = input.readString();
-        rankingModel = input.readString();
+        rankingModel = new BytesArray(input.readString());
         modelAsString = input.readBoolean();
         if (input.getTransportVersion().onOrAfter(TransportVersion.V_7_7_0)) {
             this.parsedFtrNorms = new StoredFeatureNormalizers(input);
@@ -97,7 +111,7 @@ public class StoredLtrModel implements StorableElement {
         out.writeString(name);
         featureSet.writeTo(out);
         out.writeString(rankingModelType);
-        out.writeString(rankingModel);
+        out.writeString(rankingModel.utf8ToString());
         out.writeBoolean(modelAsString);
         if (out.getTransportVersion().onOrAfter(TransportVersion.V_7_7_0)) {
             parsedFtrNorms.writeTo(out);
@@ -130,9 +144,42 @@ public class StoredLtrModel implements StorableElement {
         LtrRanker ranker = modelParser.parse(optimized, rankingModel);
         Map<Integer, Normalizer> ordToNorms = parsedFtrNorms.compileOrdToNorms(optimized);
         if (ordToNorms.size() > 0) {
-            ranker = new FeatureNormalizingRanker(ranker, ordToNorms);
+            ranker = FeatureNormalizingRanker.fuse(ranker, ordToNorms);
+        }
+        return new CompiledLtrModel(name, optimized, ranker, contentHash());
+    }
+
+    /**
+     * Rebuild the compiled model from a binary snapshot instead of parsing its definition.
+     *
+     * @param snapshot a snapshot written by {@link CompiledModelSnapshot#write(LtrRanker, String)}
+     * @return the compiled model or null if the snapshot format is not supported or was not built from this definition
+     */
+    public CompiledLtrModel compile(BytesReference snapshot) throws IOException {
+        FeatureSet optimized = featureSet.optimize();
+        LtrRanker ranker = CompiledModelSnapshot.read(snapshot, optimized, contentHash());
+        if (ranker == null) {
+            return null;
         }
-        return new CompiledLtrModel(name, optimized, ranker);
+        return new CompiledLtrModel(name, optimized, ranker, contentHash());
+    }
+
+    /**
+     * @return a hash of the definition of this model, its name excluded: identical models stored in different stores
+     * or under different names compile to identical rankers
+     */
+    public String contentHash() {
+        String hash = contentHash;
+        if (hash == null) {
+            contentHash = hash = ContentHash.sha256((out) -> {
+                out.writeString(featureSet.contentHash());
+                out.writeString(rankingModelType);
+                out.writeBytesReference(rankingModel);
+                out.writeBoolean(modelAsString);
+                parsedFtrNorms.writeTo(out);
+            });
+        }
+        return hash;
     }
 
     @Override
@@ -165,9 +212,16 @@ public class StoredLtrModel implements StorableElement {
     }
 
     /**
-     * @return the stored ranking model
+     * @return the stored ranking model, decoded from {@link #rankingModelBytes()}
      */
     public String rankingModel() {
+        return rankingModel.utf8ToString();
+    }
+
+    /**
+     * @return the UTF-8 bytes of the stored ranking model
+     */
+    public BytesReference rankingModelBytes() {
         return rankingModel;
     }
 
@@ -186,12 +240,10 @@ public class StoredLtrModel implements StorableElement {
         builder.field(LtrModelDefinition.MODEL_TYPE.getPreferredName(), rankingModelType);
         builder.field(LtrModelDefinition.MODEL_DEFINITION.getPreferredName());
         if (modelAsString) {
-            builder.value(rankingModel);
+            builder.value(rankingModel.utf8ToString());
         } else {
-            try (XContentParser parser = JsonXContent.jsonXContent.createParser(
-                XContentParserConfiguration.EMPTY,
-                rankingModel)
-            ) {
+            try (XContentParser parser = JsonXContent.jsonXContent.createParser(XContentParserConfiguration.EMPTY,
+                    rankingModel.streamInput())) {
                 builder.copyCurrentStructure(parser);
             }
         }
@@ -241,7 +293,7 @@ public class StoredLtrModel implements StorableElement {
 
     public static class LtrModelDefinition implements Writeable {
         private String type;
-        private String definition;
+        private BytesReference definition;
         private StoredFeatureNormalizers featureNormalizers;
         private boolean modelAsString;
 
@@ -271,14 +323,14 @@ public class StoredLtrModel implements StorableElement {
 
         public LtrModelDefinition(String type, String definition, boolean modelAsString) {
             this.type = type;
-            this.definition = definition;
+            this.definition = new BytesArray(definition);
             this.modelAsString = modelAsString;
             this.featureNormalizers = new StoredFeatureNormalizers();
         }
 
         public LtrModelDefinition(StreamInput in) throws IOException {
             type = in.readString();
-            definition = in.readString();
+            definition = new BytesArray(in.readString());
             modelAsString = in.readBoolean();
             if (in.getTransportVersion().onOrAfter(TransportVersion.V_7_7_0)) {
                 this.featureNormalizers = new StoredFeatureNormalizers(in);
@@ -290,7 +342,7 @@ public class StoredLtrModel implements StorableElement {
         @Override
         public void writeTo(StreamOutput out) throws IOException {
             out.writeString(type);
-            out.writeString(definition);
+            out.writeString(definition.utf8ToString());
             out.writeBoolean(modelAsString);
             if (out.getTransportVersion().onOrAfter(TransportVersion.V_7_7_0)) {
                 this.featureNormalizers.writeTo(out);
@@ -311,6 +363,13 @@ public class StoredLtrModel implements StorableElement {
         }
 
         public String getDefinition() {
+            return definition.utf8ToString();
+        }
+
+        /**
+         * @return the UTF-8 bytes of the definition, json when {@link #isModelAsString()} is false
+         */
+        public BytesReference getDefinitionBytes() {
             return definition;
         }
 
@@ -331,16 +390,20 @@ public class StoredLtrModel implements StorableElement {
             return def;
         }
 
+        /**
+         * Object definitions are copied as json bytes from the open parser, they are never materialized as a String
+         * and the model parser reads them in place when the model is compiled.
+         */
         private void parseModel(XContentParser parser) throws IOException {
                 if (parser.currentToken() == XContentParser.Token.VALUE_STRING) {
                     modelAsString = true;
-                    definition = parser.text();
+                    definition = new BytesArray(parser.text());
                 } else {
-                    try (XContentBuilder builder = JsonXContent.contentBuilder()) {
-                        builder.copyCurrentStructure(parser);
-                        modelAsString = false;
-                        definition = Strings.toString(builder);
-                    }
+                    // paged output, the bytes are not copied again into a single array
+                    XContentBuilder builder = XContentFactory.jsonBuilder(new BytesStreamOutput());
+                    builder.copyCurrentStructure(parser);
+                    modelAsString = false;
+                    definition = BytesReference.bytes(builder);
                 }
         }
     }
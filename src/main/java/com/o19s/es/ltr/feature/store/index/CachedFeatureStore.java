@@ -20,6 +20,7 @@ import com.o19s.es.ltr.feature.Feature;
 import com.o19s.es.ltr.feature.FeatureSet;
 import com.o19s.es.ltr.feature.store.CompiledLtrModel;
 import com.o19s.es.ltr.feature.store.FeatureStore;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.common.cache.Cache;
 
 import java.io.IOException;
@@ -56,6 +57,21 @@ public class CachedFeatureStore implements FeatureStore {
         return caches.loadModel(key(id), inner::loadModel);
     }
 
+    @Override
+    public void load(String id, ActionListener<Feature> listener) {
+        caches.loadFeature(key(id), inner::load, listener);
+    }
+
+    @Override
+    public void loadSet(String id, ActionListener<FeatureSet> listener) {
+        caches.loadFeatureSet(key(id), inner::loadSet, listener);
+    }
+
+    @Override
+    public void loadModel(String id, ActionListener<CompiledLtrModel> listener) {
+        caches.loadModel(key(id), inner::loadModel, listener);
+    }
+
     Feature getCachedFeature(String id) {
         return innerGet(id, caches.featureCache());
     }
@@ -65,7 +81,7 @@ public class CachedFeatureStore implements FeatureStore {
     }
 
     CompiledLtrModel getCachedModel(String id) {
-        return innerGet(id, caches.modelCache());
+        return caches.getCachedModel(key(id));
     }
 
     public long totalWeight() {
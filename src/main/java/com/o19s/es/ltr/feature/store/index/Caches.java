@@ -19,32 +19,50 @@ package com.o19s.es.ltr.feature.store.index;
 import com.o19s.es.ltr.feature.Feature;
 import com.o19s.es.ltr.feature.FeatureSet;
 import com.o19s.es.ltr.feature.store.CompiledLtrModel;
+import com.o19s.es.ltr.feature.store.OptimizedFeatureSet;
+import com.o19s.es.ltr.feature.store.StoredFeatureSet;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.dectree.OffHeapAdditiveDecisionTree;
+import com.o19s.es.ltr.stats.Histogram;
 import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.CheckedBiFunction;
 import org.elasticsearch.core.CheckedFunction;
 import org.elasticsearch.common.cache.Cache;
 import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ListenableFuture;
 import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.monitor.jvm.JvmInfo;
 
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * Store various caches used by the plugin
  */
 public class Caches {
+    private static final String FEATURE_TIER = "feature";
+    private static final String FEATURE_SET_TIER = "featureset";
+    private static final String MODEL_TIER = "model";
+
     public static final Setting<ByteSizeValue> LTR_CACHE_MEM_SETTING;
     public static final Setting<TimeValue> LTR_CACHE_EXPIRE_AFTER_WRITE = Setting.timeSetting("ltr.caches.expire_after_write",
             TimeValue.timeValueHours(1),
@@ -54,34 +72,134 @@ public class Caches {
             TimeValue.timeValueHours(1),
             TimeValue.timeValueNanos(0),
             Setting.Property.NodeScope);
+    /**
+     * Off-heap memory available to tree models, tree models are kept on heap when set to 0 (the default)
+     */
+    public static final Setting<ByteSizeValue> LTR_CACHE_MAX_OFF_HEAP_MEM_SETTING = Setting.byteSizeSetting(
+            "ltr.caches.max_off_heap_mem",
+            ByteSizeValue.ZERO,
+            Setting.Property.NodeScope);
+    /**
+     * Tree models using more heap than this threshold are moved off-heap when loaded
+     */
+    public static final Setting<ByteSizeValue> LTR_CACHE_OFF_HEAP_THRESHOLD_SETTING = Setting.byteSizeSetting(
+            "ltr.caches.off_heap_threshold",
+            ByteSizeValue.ofMb(1),
+            Setting.Property.NodeScope);
+    /**
+     * Load the models on all the nodes when they are stored so that the first query is not slowed down by the compilation
+     */
+    public static final Setting<Boolean> LTR_CACHE_WARM_PEERS_SETTING = Setting.boolSetting(
+            "ltr.caches.warm_peers",
+            false,
+            Setting.Property.NodeScope);
+
+    /*
+     * Per cache settings, default to the settings shared by all the caches
+     */
+    public static final Setting<ByteSizeValue> LTR_FEATURE_CACHE_MEM_SETTING;
+    public static final Setting<ByteSizeValue> LTR_FEATURE_SET_CACHE_MEM_SETTING;
+    public static final Setting<ByteSizeValue> LTR_MODEL_CACHE_MEM_SETTING;
+    public static final Setting<TimeValue> LTR_FEATURE_CACHE_EXPIRE_AFTER_WRITE = tierSetting(FEATURE_TIER,
+            LTR_CACHE_EXPIRE_AFTER_WRITE);
+    public static final Setting<TimeValue> LTR_FEATURE_CACHE_EXPIRE_AFTER_READ = tierSetting(FEATURE_TIER,
+            LTR_CACHE_EXPIRE_AFTER_READ);
+    public static final Setting<TimeValue> LTR_FEATURE_SET_CACHE_EXPIRE_AFTER_WRITE = tierSetting(FEATURE_SET_TIER,
+            LTR_CACHE_EXPIRE_AFTER_WRITE);
+    public static final Setting<TimeValue> LTR_FEATURE_SET_CACHE_EXPIRE_AFTER_READ = tierSetting(FEATURE_SET_TIER,
+            LTR_CACHE_EXPIRE_AFTER_READ);
+    public static final Setting<TimeValue> LTR_MODEL_CACHE_EXPIRE_AFTER_WRITE = tierSetting(MODEL_TIER,
+            LTR_CACHE_EXPIRE_AFTER_WRITE);
+    public static final Setting<TimeValue> LTR_MODEL_CACHE_EXPIRE_AFTER_READ = tierSetting(MODEL_TIER,
+            LTR_CACHE_EXPIRE_AFTER_READ);
+    /**
+     * Names of the models kept in memory once loaded, they are neither evicted nor expired and do not count in the
+     * memory of the model cache. They are only dropped when updated, deleted or when the caches are cleared.
+     */
+    public static final Setting<List<String>> LTR_MODEL_CACHE_PINNED_SETTING = Setting.stringListSetting(
+            "ltr.caches.model.pinned",
+            Setting.Property.NodeScope);
+    /**
+     * When the model cache is full a model loaded from the store is only cached if it was used more often recently
+     * than the least recently used model, so that models used once do not evict the models used by every query.
+     */
+    public static final Setting<Boolean> LTR_MODEL_CACHE_FREQUENCY_ADMISSION_SETTING = Setting.boolSetting(
+            "ltr.caches.model.frequency_admission",
+            false,
+            Setting.Property.NodeScope);
+    private static final int FREQUENCY_SKETCH_WIDTH = 1024;
+    private static final int ADMISSION_SAMPLE_SIZE = 5;
 
     private final Cache<CacheKey, Feature> featureCache;
     private final Cache<CacheKey, FeatureSet> featureSetCache;
     private final Cache<CacheKey, CompiledLtrModel> modelCache;
+    private final Map<CacheKey, ListenableFuture<Feature>> featureLoads = new ConcurrentHashMap<>();
+    private final Map<CacheKey, ListenableFuture<FeatureSet>> featureSetLoads = new ConcurrentHashMap<>();
+    private final Map<CacheKey, ListenableFuture<CompiledLtrModel>> modelLoads = new ConcurrentHashMap<>();
+    private final Histogram modelLoadHistogram = new Histogram();
+    private final Map<CacheKey, CompiledLtrModel> pinnedModels = new ConcurrentHashMap<>();
+    private final Set<String> pinnedModelNames;
+    private final FrequencySketch modelFrequencies;
+    private final SampledKeySet<CacheKey> admissionCandidates;
+    private final LongAdder rejectedModels = new LongAdder();
+    private final SharedInstances<CompiledLtrModel> sharedModels = new SharedInstances<>();
+    private final SharedInstances<FeatureSet> sharedFeatureSets = new SharedInstances<>();
 
     static {
         LTR_CACHE_MEM_SETTING = Setting.memorySizeSetting("ltr.caches.max_mem",
                 (s) -> ByteSizeValue.ofBytes(Math.min(RamUsageEstimator.ONE_MB*10,
                         JvmInfo.jvmInfo().getMem().getHeapMax().getBytes()/10)).toString(),
                 Setting.Property.NodeScope);
+        LTR_FEATURE_CACHE_MEM_SETTING = tierMemSetting(FEATURE_TIER);
+        LTR_FEATURE_SET_CACHE_MEM_SETTING = tierMemSetting(FEATURE_SET_TIER);
+        LTR_MODEL_CACHE_MEM_SETTING = tierMemSetting(MODEL_TIER);
     }
     private final Map<String, PerStoreStats> perStoreStats = new ConcurrentHashMap<>();
+    private final Map<String, PerStoreKeys> perStoreKeys = new ConcurrentHashMap<>();
     private final long maxWeight;
+    private final long maxOffHeapWeight;
+    private final long offHeapThreshold;
+    private final AtomicLong offHeapWeight = new AtomicLong();
 
     public Caches(TimeValue expAfterWrite, TimeValue expAfterAccess, ByteSizeValue maxWeight) {
-        this.featureCache = configCache(CacheBuilder.<CacheKey, Feature>builder(), expAfterWrite, expAfterAccess, maxWeight)
+        this(expAfterWrite, expAfterAccess, maxWeight, ByteSizeValue.ZERO, ByteSizeValue.ZERO);
+    }
+
+    /**
+     * @param maxWeight maximum heap memory used by each cache
+     * @param maxOffHeapWeight maximum off-heap memory used by the models, 0 to keep all the models on heap
+     * @param offHeapThreshold heap size above which a tree model is moved off-heap
+     */
+    public Caches(TimeValue expAfterWrite, TimeValue expAfterAccess, ByteSizeValue maxWeight,
+                  ByteSizeValue maxOffHeapWeight, ByteSizeValue offHeapThreshold) {
+        this(new TierConfig(expAfterWrite, expAfterAccess, maxWeight),
+                new TierConfig(expAfterWrite, expAfterAccess, maxWeight),
+                new TierConfig(expAfterWrite, expAfterAccess, maxWeight),
+                maxOffHeapWeight, offHeapThreshold, Collections.emptyList(), false);
+    }
+
+    private Caches(TierConfig features, TierConfig featureSets, TierConfig models,
+                   ByteSizeValue maxOffHeapWeight, ByteSizeValue offHeapThreshold,
+                   List<String> pinnedModelNames, boolean frequencyAdmission) {
+        this.featureCache = features.configure(CacheBuilder.<CacheKey, Feature>builder())
                 .weigher(Caches::weigther)
                 .removalListener((l) -> this.onRemove(l.getKey(), l.getValue()))
                 .build();
-        this.featureSetCache = configCache(CacheBuilder.<CacheKey, FeatureSet>builder(), expAfterWrite, expAfterAccess, maxWeight)
+        this.featureSetCache = featureSets.configure(CacheBuilder.<CacheKey, FeatureSet>builder())
                 .weigher(Caches::weigther)
                 .removalListener((l) -> this.onRemove(l.getKey(), l.getValue()))
                 .build();
-        this.modelCache = configCache(CacheBuilder.<CacheKey, CompiledLtrModel>builder(), expAfterWrite, expAfterAccess, maxWeight)
+        this.modelCache = models.configure(CacheBuilder.<CacheKey, CompiledLtrModel>builder())
+                // off-heap trees are accounted separately so that they don't compete with heap entries
                 .weigher((s, w) -> w.ramBytesUsed())
                 .removalListener((l) -> this.onRemove(l.getKey(), l.getValue()))
                 .build();
-        this.maxWeight = maxWeight.getBytes();
+        this.maxWeight = models.maxWeight.getBytes();
+        this.maxOffHeapWeight = maxOffHeapWeight.getBytes();
+        this.offHeapThreshold = offHeapThreshold.getBytes();
+        this.pinnedModelNames = Set.copyOf(pinnedModelNames);
+        this.modelFrequencies = frequencyAdmission ? new FrequencySketch(FREQUENCY_SKETCH_WIDTH) : null;
+        this.admissionCandidates = frequencyAdmission ? new SampledKeySet<>() : null;
     }
 
     public static long weigther(CacheKey key, Object data) {
@@ -91,67 +209,358 @@ public class Caches {
         return 1;
     }
 
-    private <K, V> CacheBuilder<K, V> configCache(CacheBuilder<K, V> builder, TimeValue expireAfterWrite,
-                                                  TimeValue expireAfterAccess, ByteSizeValue maxWeight) {
-        if (expireAfterWrite.nanos() > 0) {
-            builder.setExpireAfterWrite(expireAfterWrite);
-        }
-        if (expireAfterAccess.nanos() > 0) {
-            builder.setExpireAfterAccess(expireAfterAccess);
-        }
-        builder.setMaximumWeight(maxWeight.getBytes());
-        return builder;
+    public Caches(Settings settings) {
+        this(new TierConfig(LTR_FEATURE_CACHE_EXPIRE_AFTER_WRITE.get(settings),
+                        LTR_FEATURE_CACHE_EXPIRE_AFTER_READ.get(settings),
+                        LTR_FEATURE_CACHE_MEM_SETTING.get(settings)),
+                new TierConfig(LTR_FEATURE_SET_CACHE_EXPIRE_AFTER_WRITE.get(settings),
+                        LTR_FEATURE_SET_CACHE_EXPIRE_AFTER_READ.get(settings),
+                        LTR_FEATURE_SET_CACHE_MEM_SETTING.get(settings)),
+                new TierConfig(LTR_MODEL_CACHE_EXPIRE_AFTER_WRITE.get(settings),
+                        LTR_MODEL_CACHE_EXPIRE_AFTER_READ.get(settings),
+                        LTR_MODEL_CACHE_MEM_SETTING.get(settings)),
+                LTR_CACHE_MAX_OFF_HEAP_MEM_SETTING.get(settings),
+                LTR_CACHE_OFF_HEAP_THRESHOLD_SETTING.get(settings),
+                LTR_MODEL_CACHE_PINNED_SETTING.get(settings),
+                LTR_MODEL_CACHE_FREQUENCY_ADMISSION_SETTING.get(settings));
     }
 
-    public Caches(Settings settings) {
-        this(LTR_CACHE_EXPIRE_AFTER_WRITE.get(settings),
-                LTR_CACHE_EXPIRE_AFTER_READ.get(settings),
-                LTR_CACHE_MEM_SETTING.get(settings));
+    private static Setting<ByteSizeValue> tierMemSetting(String tier) {
+        return Setting.byteSizeSetting("ltr.caches." + tier + ".max_mem", LTR_CACHE_MEM_SETTING, Setting.Property.NodeScope);
+    }
+
+    private static Setting<TimeValue> tierSetting(String tier, Setting<TimeValue> fallback) {
+        return Setting.timeSetting(fallback.getKey().replace("ltr.caches.", "ltr.caches." + tier + "."), fallback,
+                Setting.Property.NodeScope);
     }
 
     private void onAdd(CacheKey k, Object acc) {
-        perStoreStats.compute(k.getStoreName(), (k2, v) -> v != null ? v.add(acc) : new PerStoreStats(acc));
+        storeStats(k.getStoreName()).add(acc);
+        perStoreKeys.compute(k.getStoreName(), (k2, v) -> (v != null ? v : new PerStoreKeys()).add(k, acc));
+        if (acc instanceof CompiledLtrModel) {
+            if (admissionCandidates != null && !pinnedModelNames.contains(k.getId())) {
+                admissionCandidates.add(k);
+            }
+        }
     }
 
     private void onRemove(CacheKey k, Object acc) {
-        perStoreStats.compute(k.getStoreName(), (k2, v) -> {
-            assert v != null;
-            // return null should remove the entry
-            return v.remove(acc) > 0 ? v : null;
-        });
+        storeStats(k.getStoreName()).remove(acc);
+        perStoreKeys.computeIfPresent(k.getStoreName(), (k2, v) -> v.remove(k, acc) ? v : null);
+        if (acc instanceof CompiledLtrModel) {
+            if (admissionCandidates != null && !pinnedModelNames.contains(k.getId())) {
+                admissionCandidates.remove(k);
+            }
+            CompiledLtrModel released = ((CompiledLtrModel) acc).contentHash() != null
+                    ? sharedModels.release(((CompiledLtrModel) acc).contentHash())
+                    : (CompiledLtrModel) acc;
+            if (released != null) {
+                offHeapWeight.addAndGet(-released.offHeapBytesUsed());
+            }
+        } else if (featureSetHash(acc) != null) {
+            sharedFeatureSets.release(featureSetHash(acc));
+        }
+    }
+
+    /**
+     * Replace the element by the instance shared by the elements with the same content if any, for models only the
+     * feature set and the ranker are shared. Called when the element is added to a cache, released by onRemove.
+     * Heap memory is still accounted per entry, the shared parts are counted for every entry referencing them.
+     * Large models are moved off-heap here, once admitted, so that every off-heap copy belongs to a cache entry.
+     * Off-heap memory is accounted once per shared instance.
+     */
+    @SuppressWarnings("unchecked")
+    private <E> E share(E elt) {
+        if (elt instanceof CompiledLtrModel && ((CompiledLtrModel) elt).contentHash() != null) {
+            CompiledLtrModel model = (CompiledLtrModel) elt;
+            CompiledLtrModel shared = sharedModels.acquire(model.contentHash(), model, this::maybeMoveOffHeap);
+            if (shared == model || (shared.ranker() == model.ranker() && shared.featureSet() == model.featureSet())) {
+                return elt;
+            }
+            return (E) new CompiledLtrModel(model.name(), shared.featureSet(), shared.ranker(), model.contentHash());
+        } else if (elt instanceof CompiledLtrModel) {
+            return (E) maybeMoveOffHeap((CompiledLtrModel) elt);
+        } else if (featureSetHash(elt) != null) {
+            return (E) sharedFeatureSets.acquire(featureSetHash(elt), (FeatureSet) elt);
+        }
+        return elt;
+    }
+
+    private static String featureSetHash(Object elt) {
+        if (elt instanceof StoredFeatureSet) {
+            return ((StoredFeatureSet) elt).contentHash();
+        } else if (elt instanceof OptimizedFeatureSet) {
+            return ((OptimizedFeatureSet) elt).contentHash();
+        }
+        return null;
+    }
+
+    /**
+     * The stats of a store are never removed, only a handful of stores exist and removing the entry
+     * would require locking it against concurrent updates. Stores without cached elements are filtered out instead.
+     */
+    private PerStoreStats storeStats(String store) {
+        PerStoreStats stats = perStoreStats.get(store);
+        return stats != null ? stats : perStoreStats.computeIfAbsent(store, (k) -> new PerStoreStats());
     }
 
     Feature loadFeature(CacheKey key, CheckedFunction<String, Feature, IOException> loader) throws IOException {
-        return cacheLoad(key, featureCache, loader);
+        return cacheLoad(key, featureCache::get, (k, e) -> cacheIfAbsent(k, featureCache, e), featureLoads, loader);
     }
 
     FeatureSet loadFeatureSet(CacheKey key, CheckedFunction<String, FeatureSet, IOException> loader) throws IOException {
-        return cacheLoad(key, featureSetCache, loader);
+        return cacheLoad(key, featureSetCache::get, (k, e) -> cacheIfAbsent(k, featureSetCache, e), featureSetLoads, loader);
     }
 
     CompiledLtrModel loadModel(CacheKey key, CheckedFunction<String, CompiledLtrModel, IOException> loader) throws IOException {
-        return cacheLoad(key, modelCache, loader);
+        recordModelAccess(key);
+        return cacheLoad(key, this::getCachedModel, this::cacheModelIfAbsent, modelLoads, (id) -> {
+            long start = System.nanoTime();
+            try {
+                return loader.apply(id);
+            } finally {
+                modelLoadHistogram.record(System.nanoTime() - start);
+            }
+        });
+    }
+
+    void loadFeature(CacheKey key, BiConsumer<String, ActionListener<Feature>> loader, ActionListener<Feature> listener) {
+        asyncCacheLoad(key, featureCache::get, (k, e) -> cacheIfAbsent(k, featureCache, e), featureLoads, loader, listener);
+    }
+
+    void loadFeatureSet(CacheKey key, BiConsumer<String, ActionListener<FeatureSet>> loader, ActionListener<FeatureSet> listener) {
+        asyncCacheLoad(key, featureSetCache::get, (k, e) -> cacheIfAbsent(k, featureSetCache, e), featureSetLoads,
+                loader, listener);
+    }
+
+    void loadModel(CacheKey key, BiConsumer<String, ActionListener<CompiledLtrModel>> loader,
+                   ActionListener<CompiledLtrModel> listener) {
+        recordModelAccess(key);
+        asyncCacheLoad(key, this::getCachedModel, this::cacheModelIfAbsent, modelLoads, (id, l) -> {
+            long start = System.nanoTime();
+            loader.accept(id, ActionListener.runBefore(l, () -> modelLoadHistogram.record(System.nanoTime() - start)));
+        }, listener);
+    }
+
+    /**
+     * Cache a model compiled by this node, replacing the version cached under the same name if any.
+     */
+    public CompiledLtrModel cacheModel(String store, String name, CompiledLtrModel model) throws IOException {
+        CacheKey key = new CacheKey(store, name);
+        invalidateModel(key);
+        // not loaded through the in-flight loads: a load started before the invalidation would return the old version
+        return cacheModelIfAbsent(key, model);
+    }
+
+    /**
+     * @return the model if pinned or cached, null otherwise
+     */
+    CompiledLtrModel getCachedModel(CacheKey key) {
+        CompiledLtrModel pinned = pinnedModels.get(key);
+        return pinned != null ? pinned : modelCache.get(key);
+    }
+
+    private void recordModelAccess(CacheKey key) {
+        if (modelFrequencies != null) {
+            modelFrequencies.increment(key);
+        }
+    }
+
+    /**
+     * Pin the model if configured so, otherwise cache it if admitted.
+     * A model that is not admitted is returned without being cached.
+     */
+    private CompiledLtrModel cacheModelIfAbsent(CacheKey key, CompiledLtrModel model) throws IOException {
+        if (model != null && pinnedModelNames.contains(key.getId())) {
+            return pinnedModels.computeIfAbsent(key, (k) -> {
+                CompiledLtrModel shared = share(model);
+                onAdd(k, shared);
+                return shared;
+            });
+        }
+        if (model != null && !admit(key, model)) {
+            rejectedModels.increment();
+            return model;
+        }
+        return cacheIfAbsent(key, modelCache, model);
+    }
+
+    /**
+     * TinyLFU admission: when the model does not fit in the cache it is only admitted if it was used more often
+     * than the least frequently used of a few cached models sampled at random. Sampling approximates the victim
+     * without walking the LRU list of the cache, whose order may change under our feet anyway.
+     */
+    private boolean admit(CacheKey key, CompiledLtrModel model) {
+        if (modelFrequencies == null || modelCache.weight() + model.ramBytesUsed() <= maxWeight) {
+            return true;
+        }
+        CacheKey victim = null;
+        for (CacheKey candidate : admissionCandidates.sample(ThreadLocalRandom.current(), ADMISSION_SAMPLE_SIZE)) {
+            if (victim == null || modelFrequencies.frequency(candidate) < modelFrequencies.frequency(victim)) {
+                victim = candidate;
+            }
+        }
+        return victim == null || modelFrequencies.frequency(key) > modelFrequencies.frequency(victim);
+    }
+
+    private void invalidateModel(CacheKey key) {
+        pinnedModels.computeIfPresent(key, (k, v) -> {
+            onRemove(k, v);
+            return null;
+        });
+        modelCache.invalidate(key);
+    }
+
+    /**
+     * Move the trees of large models off-heap if the off-heap budget allows it.
+     * The memory is reserved before the copy so that concurrent inserts never exceed the budget.
+     */
+    private CompiledLtrModel maybeMoveOffHeap(CompiledLtrModel model) {
+        if (maxOffHeapWeight <= 0 || model.ramBytesUsed() < offHeapThreshold) {
+            return model;
+        }
+        long bytes = OffHeapAdditiveDecisionTree.offHeapBytesNeeded(model.ranker());
+        if (bytes <= 0 || !reserveOffHeap(bytes)) {
+            return model;
+        }
+        LtrRanker ranker;
+        try {
+            ranker = OffHeapAdditiveDecisionTree.moveOffHeap(model.ranker());
+        } catch (RuntimeException | OutOfMemoryError e) {
+            offHeapWeight.addAndGet(-bytes);
+            throw e;
+        }
+        CompiledLtrModel offHeapModel = new CompiledLtrModel(model.name(), model.featureSet(), ranker, model.contentHash());
+        assert offHeapModel.offHeapBytesUsed() == bytes;
+        return offHeapModel;
+    }
+
+    private boolean reserveOffHeap(long bytes) {
+        long current;
+        do {
+            current = offHeapWeight.get();
+            if (current + bytes > maxOffHeapWeight) {
+                return false;
+            }
+        } while (!offHeapWeight.compareAndSet(current, current + bytes));
+        return true;
     }
 
-    private <E> E cacheLoad(CacheKey key, Cache<CacheKey, E> cache,
-                                                CheckedFunction<String, E, IOException> loader) throws IOException {
+    /**
+     * Load an element on the calling thread, concurrent loads of the same key (sync or async) share a single call
+     * to the loader while different keys are loaded in parallel.
+     */
+    private <E> E cacheLoad(CacheKey key, Function<CacheKey, E> lookup, CheckedBiFunction<CacheKey, E, E, IOException> insert,
+                            Map<CacheKey, ListenableFuture<E>> inFlight,
+                            CheckedFunction<String, E, IOException> loader) throws IOException {
+        E cached = lookup.apply(key);
+        if (cached != null) {
+            return cached;
+        }
+        ListenableFuture<E> future = new ListenableFuture<>();
+        ListenableFuture<E> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                return existing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading [" + key.getId() + "]", e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+        E result;
+        try {
+            // a load may have completed between the lookup and the registration of this one
+            cached = lookup.apply(key);
+            result = cached != null ? cached : insert.apply(key, loader.apply(key.getId()));
+        } catch (Exception e) {
+            inFlight.remove(key, future);
+            future.onFailure(e);
+            throw new IOException(e.getMessage(), e);
+        }
+        inFlight.remove(key, future);
+        future.onResponse(result);
+        return result;
+    }
+
+    /**
+     * Cache an element already loaded, an element cached concurrently under the same key wins.
+     */
+    private <E> E cacheIfAbsent(CacheKey key, Cache<CacheKey, E> cache, E elt) throws IOException {
         try {
             return cache.computeIfAbsent(key, (k) -> {
-                E elt = loader.apply(k.getId());
-                if (elt != null) {
-                    onAdd(k, elt);
+                if (elt == null) {
+                    return null;
                 }
-                return elt;
+                E shared = share(elt);
+                onAdd(k, shared);
+                return shared;
             });
         } catch (ExecutionException e) {
             throw new IOException(e.getMessage(), e.getCause());
         }
     }
 
+    /**
+     * Load an element without blocking, concurrent loads of the same key share a single call to the loader.
+     * The element is cached before the in-flight entry is removed so that late callers find it in the cache.
+     */
+    private <E> void asyncCacheLoad(CacheKey key, Function<CacheKey, E> lookup, CheckedBiFunction<CacheKey, E, E, IOException> insert,
+                                    Map<CacheKey, ListenableFuture<E>> inFlight,
+                                    BiConsumer<String, ActionListener<E>> loader, ActionListener<E> listener) {
+        E cached = lookup.apply(key);
+        if (cached != null) {
+            listener.onResponse(cached);
+            return;
+        }
+        ListenableFuture<E> future = new ListenableFuture<>();
+        ListenableFuture<E> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            existing.addListener(listener);
+            return;
+        }
+        future.addListener(listener);
+        cached = lookup.apply(key);
+        if (cached != null) {
+            // a load completed between the lookup and the registration of this one
+            inFlight.remove(key, future);
+            future.onResponse(cached);
+            return;
+        }
+        try {
+            loader.accept(key.getId(), ActionListener.wrap(
+                (elt) -> {
+                    E result;
+                    try {
+                        result = insert.apply(key, elt);
+                    } finally {
+                        inFlight.remove(key, future);
+                    }
+                    future.onResponse(result);
+                },
+                (e) -> {
+                    inFlight.remove(key, future);
+                    future.onFailure(e);
+                }));
+        } catch (Exception e) {
+            inFlight.remove(key, future);
+            future.onFailure(e);
+        }
+    }
+
+    /**
+     * Evict all the elements of a store.
+     * Only the keys recorded for this store are visited, entries of other stores are left untouched.
+     */
     public void evict(String index) {
-        evict(index, featureCache);
-        evict(index, featureSetCache);
-        evict(index, modelCache);
+        PerStoreKeys keys = perStoreKeys.get(index);
+        if (keys == null) {
+            return;
+        }
+        evict(keys.features, featureCache::invalidate);
+        evict(keys.featureSets, featureSetCache::invalidate);
+        evict(keys.models, this::invalidateModel);
     }
 
     public void evictFeature(String index, String name) {
@@ -163,15 +572,13 @@ public class Caches {
     }
 
     public void evictModel(String index, String name) {
-        modelCache.invalidate(new CacheKey(index, name));
+        invalidateModel(new CacheKey(index, name));
     }
 
-    private void evict(String index, Cache<CacheKey, ?> cache) {
-        Iterator<CacheKey> ite = cache.keys().iterator();
-        while(ite.hasNext()) {
-            if(ite.next().storeName.equals(index)) {
-                ite.remove();
-            }
+    private void evict(Set<CacheKey> keys, Consumer<CacheKey> invalidate) {
+        // invalidate calls back onRemove which updates the key set, iterate over a copy
+        for (CacheKey key : keys.toArray(new CacheKey[0])) {
+            invalidate.accept(key);
         }
     }
 
@@ -187,12 +594,51 @@ public class Caches {
         return modelCache;
     }
 
+    /**
+     * @return the time spent loading the models missing from the cache (fetching and compiling them)
+     */
+    public Histogram modelLoadHistogram() {
+        return modelLoadHistogram;
+    }
+
+    /**
+     * @return the number of pinned models loaded
+     */
+    public int pinnedModelCount() {
+        return pinnedModels.size();
+    }
+
+    /**
+     * @return the heap used by the pinned models, not included in the weight of the model cache
+     */
+    public long pinnedModelWeight() {
+        long weight = 0;
+        for (CompiledLtrModel model : pinnedModels.values()) {
+            weight += model.ramBytesUsed();
+        }
+        return weight;
+    }
+
+    /**
+     * @return the number of models loaded but not cached by the frequency admission
+     */
+    public long rejectedModelCount() {
+        return rejectedModels.sum();
+    }
+
+    /**
+     * @return the number of distinct compiled models shared by the cached models
+     */
+    int sharedModelCount() {
+        return sharedModels.size();
+    }
+
     public Set<String> getCachedStoreNames() {
-        return perStoreStats.keySet();
+        return perStoreStatsStream().map(Map.Entry::getKey).collect(Collectors.toSet());
     }
 
     public Stream<Map.Entry<String, PerStoreStats>> perStoreStatsStream() {
-        return perStoreStats.entrySet().stream();
+        return perStoreStats.entrySet().stream().filter((e) -> e.getValue().totalCount() > 0);
     }
 
     public PerStoreStats getPerStoreStats(String store) {
@@ -203,10 +649,50 @@ public class Caches {
         return PerStoreStats.EMPTY;
     }
 
+    /**
+     * @return the maximum heap used by the model cache
+     */
     public long getMaxWeight() {
         return maxWeight;
     }
 
+    /**
+     * @return the off-heap memory used by the cached models
+     */
+    public long getOffHeapWeight() {
+        return offHeapWeight.get();
+    }
+
+    public long getMaxOffHeapWeight() {
+        return maxOffHeapWeight;
+    }
+
+    /**
+     * Size and expiration of a cache
+     */
+    private static class TierConfig {
+        private final TimeValue expireAfterWrite;
+        private final TimeValue expireAfterAccess;
+        private final ByteSizeValue maxWeight;
+
+        TierConfig(TimeValue expireAfterWrite, TimeValue expireAfterAccess, ByteSizeValue maxWeight) {
+            this.expireAfterWrite = expireAfterWrite;
+            this.expireAfterAccess = expireAfterAccess;
+            this.maxWeight = maxWeight;
+        }
+
+        <K, V> CacheBuilder<K, V> configure(CacheBuilder<K, V> builder) {
+            if (expireAfterWrite.nanos() > 0) {
+                builder.setExpireAfterWrite(expireAfterWrite);
+            }
+            if (expireAfterAccess.nanos() > 0) {
+                builder.setExpireAfterAccess(expireAfterAccess);
+            }
+            builder.setMaximumWeight(maxWeight.getBytes());
+            return builder;
+        }
+    }
+
     public static class CacheKey {
         private final String storeName;
         private final String id;
@@ -243,38 +729,73 @@ public class Caches {
         }
     }
 
+    /**
+     * Secondary index of the keys cached for a given store.
+     * Updated under the lock of {@link ConcurrentHashMap#compute(Object, java.util.function.BiFunction)}
+     * so that the entry is never dropped while a key is being added.
+     */
+    private static class PerStoreKeys {
+        private final Set<CacheKey> features = ConcurrentHashMap.newKeySet();
+        private final Set<CacheKey> featureSets = ConcurrentHashMap.newKeySet();
+        private final Set<CacheKey> models = ConcurrentHashMap.newKeySet();
+
+        PerStoreKeys add(CacheKey key, Object elt) {
+            keys(elt).add(key);
+            return this;
+        }
+
+        /**
+         * @return false if no keys remain for this store
+         */
+        boolean remove(CacheKey key, Object elt) {
+            keys(elt).remove(key);
+            return !(features.isEmpty() && featureSets.isEmpty() && models.isEmpty());
+        }
+
+        private Set<CacheKey> keys(Object elt) {
+            if (elt instanceof Feature) {
+                return features;
+            } else if (elt instanceof FeatureSet) {
+                return featureSets;
+            } else if (elt instanceof CompiledLtrModel) {
+                return models;
+            }
+            throw new IllegalArgumentException("Unsupported class " + elt.getClass());
+        }
+    }
+
+    /**
+     * Memory and element counts of a store, updated without locking.
+     * The counters are striped so that concurrent loads do not contend on them, reads are not atomic snapshots.
+     */
     public static class PerStoreStats {
         public static final PerStoreStats EMPTY = new PerStoreStats();
-        private final AtomicLong ramAll = new AtomicLong();
-        private final AtomicInteger countAll = new AtomicInteger();
+        private final LongAdder ramAll = new LongAdder();
+        private final LongAdder countAll = new LongAdder();
 
-        private final AtomicLong featureRam = new AtomicLong();
-        private final AtomicInteger featureCount = new AtomicInteger();
-        private final AtomicLong featureSetRam = new AtomicLong();
-        private final AtomicInteger featureSetCount = new AtomicInteger();
-        private final AtomicLong modelRam = new AtomicLong();
-        private final AtomicInteger modelCount = new AtomicInteger();
+        private final LongAdder featureRam = new LongAdder();
+        private final LongAdder featureCount = new LongAdder();
+        private final LongAdder featureSetRam = new LongAdder();
+        private final LongAdder featureSetCount = new LongAdder();
+        private final LongAdder modelRam = new LongAdder();
+        private final LongAdder modelOffHeapRam = new LongAdder();
+        private final LongAdder modelCount = new LongAdder();
 
         PerStoreStats() {}
 
-        PerStoreStats(Object acc) {
-            add(Objects.requireNonNull(acc));
-        }
-
         public PerStoreStats add(Object elt) {
-            int nb = update(true, elt);
-            assert nb > 0;
+            update(true, elt);
             return this;
         }
 
-        private long remove(Object elt) {
-            return update(false, elt);
+        private void remove(Object elt) {
+            update(false, elt);
         }
 
-        private int update(boolean add, Object elt) {
+        private void update(boolean add, Object elt) {
             Objects.requireNonNull(elt);
-            final AtomicInteger count;
-            final AtomicLong ram;
+            final LongAdder count;
+            final LongAdder ram;
             final int factor = add ? 1 : -1;
             if (elt instanceof Feature) {
                 count = featureCount;
@@ -285,6 +806,7 @@ public class Caches {
             } else if (elt instanceof CompiledLtrModel) {
                 count = modelCount;
                 ram = modelRam;
+                modelOffHeapRam.add(factor * ((CompiledLtrModel) elt).offHeapBytesUsed());
             } else {
                 throw new IllegalArgumentException("Unsupported class " + elt.getClass());
             }
@@ -293,46 +815,49 @@ public class Caches {
                 ramUsed = ((Accountable)elt).ramBytesUsed();
             }
 
-            ram.addAndGet(factor * ramUsed);
-            assert ram.get() >= 0;
-            count.addAndGet(factor);
-            assert count.get() >= 0;
-
-            ramAll.addAndGet(factor * ramUsed);
-            assert ramAll.get() >= 0;
-            return countAll.addAndGet(factor);
+            ram.add(factor * ramUsed);
+            count.add(factor);
+            ramAll.add(factor * ramUsed);
+            countAll.add(factor);
         }
 
         public long totalRam() {
-            return ramAll.get();
+            return ramAll.sum();
         }
 
         public int totalCount() {
-            return countAll.get();
+            return countAll.intValue();
         }
 
         public long featureRam() {
-            return featureRam.get();
+            return featureRam.sum();
         }
 
         public int featureCount() {
-            return featureCount.get();
+            return featureCount.intValue();
         }
 
         public long featureSetRam() {
-            return featureSetRam.get();
+            return featureSetRam.sum();
         }
 
         public int featureSetCount() {
-            return featureSetCount.get();
+            return featureSetCount.intValue();
         }
 
         public long modelRam() {
-            return modelRam.get();
+            return modelRam.sum();
+        }
+
+        /**
+         * @return the off-heap memory used by the models, not included in {@link #modelRam()}
+         */
+        public long modelOffHeapRam() {
+            return modelOffHeapRam.sum();
         }
 
         public int modelCount() {
-            return modelCount.get();
+            return modelCount.intValue();
         }
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.o19s.es.ltr.feature.store.index;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Approximate access frequency of the cache keys, a count-min sketch of small saturating counters as used by TinyLFU.
+ * All the counters are halved once the number of increments reaches ten times the width of the sketch so that the past
+ * popularity of a key fades away. Updates are lock-free, a few increments may be lost while the counters are halved.
+ */
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb3c2e5a9, 0x6d2b79f5, 0x85ebca6b};
+
+    private final AtomicIntegerArray counters;
+    private final int width;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    /**
+     * @param width number of counters per row, rounded up to a power of two
+     */
+    FrequencySketch(int width) {
+        this.width = Integer.highestOneBit((Math.max(16, width) - 1) << 1);
+        this.counters = new AtomicIntegerArray(DEPTH * this.width);
+        this.sampleSize = 10 * this.width;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = index(hash, i);
+            int count;
+            do {
+                count = counters.get(index);
+            } while (count < MAX_COUNT && !counters.compareAndSet(index, count, count + 1));
+            added |= count < MAX_COUNT;
+        }
+        if (added && additions.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @return the estimated number of recent accesses to the key, at most 15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, counters.get(index(hash, i)));
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            int count;
+            do {
+                count = counters.get(i);
+            } while (!counters.compareAndSet(i, count, count >>> 1));
+        }
+        additions.addAndGet(-sampleSize / 2);
+    }
+
+    private int index(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 17;
+        return row * width + (h & (width - 1));
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+}
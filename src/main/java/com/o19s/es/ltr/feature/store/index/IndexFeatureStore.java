@@ -16,9 +16,11 @@
 
 package com.o19s.es.ltr.feature.store.index;
 
+import com.o19s.es.ltr.action.TransportFeatureStoreAction;
 import com.o19s.es.ltr.feature.Feature;
 import com.o19s.es.ltr.feature.FeatureSet;
 import com.o19s.es.ltr.feature.store.CompiledLtrModel;
+import com.o19s.es.ltr.feature.store.CompiledModelSnapshot;
 import com.o19s.es.ltr.feature.store.FeatureStore;
 import com.o19s.es.ltr.feature.store.StorableElement;
 import com.o19s.es.ltr.feature.store.StoredFeature;
@@ -27,7 +29,8 @@ import com.o19s.es.ltr.feature.store.StoredLtrModel;
 import com.o19s.es.ltr.ranker.parser.LtrRankerParserFactory;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.message.ParameterizedMessage;
-import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRunnable;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.client.internal.Client;
@@ -35,8 +38,11 @@ import org.elasticsearch.client.internal.Requests;
 import org.elasticsearch.cluster.metadata.IndexMetadata;
 import org.elasticsearch.cluster.metadata.MetadataCreateIndexService;
 import org.elasticsearch.core.CheckedFunction;
+import org.elasticsearch.core.Nullable;
 import org.elasticsearch.xcontent.ParseField;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
 import org.apache.logging.log4j.LogManager;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
@@ -53,13 +59,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.Executor;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
 import static com.o19s.es.ltr.feature.store.StorableElement.generateId;
 
 public class IndexFeatureStore implements FeatureStore {
-    public static final int VERSION = 2;
+    public static final int VERSION = 3;
+    /**
+     * First store version whose mapping accepts the {@link #COMPILED_MODEL_FIELD}
+     */
+    public static final int COMPILED_MODEL_VERSION = 3;
+    public static final String COMPILED_MODEL_FIELD = "compiled_model";
     public static final Setting<Integer> STORE_VERSION_PROP = Setting.intSetting("index.ltrstore_version",
             VERSION, -1, Integer.MAX_VALUE, Setting.Property.IndexScope);
     public static final String DEFAULT_STORE = ".ltrstore";
@@ -88,6 +100,9 @@ public class IndexFeatureStore implements FeatureStore {
         SOURCE_PARSER.declareField(ParserState::setElement,
                 (CheckedFunction<XContentParser, StoredLtrModel, IOException>) StoredLtrModel::parse,
                 new ParseField(StoredLtrModel.TYPE), ObjectParser.ValueType.OBJECT);
+        SOURCE_PARSER.declareField(ParserState::setCompiledModel,
+                (p) -> new BytesArray(p.binaryValue()),
+                new ParseField(COMPILED_MODEL_FIELD), ObjectParser.ValueType.VALUE);
     }
 
     private final String index;
@@ -107,20 +122,36 @@ public class IndexFeatureStore implements FeatureStore {
 
     @Override
     public Feature load(String name) throws IOException {
-        Feature feature = getAndParse(name, StoredFeature.class, StoredFeature.TYPE);
-        if (feature == null) {
-            throw new IllegalArgumentException("Unknown feature [" + name + "]");
-        }
-        return feature.optimize();
+        return toFeature(name, getFeature(name));
+    }
+
+    @Override
+    public void load(String name, ActionListener<Feature> listener) {
+        asyncGet(generateId(StoredFeature.TYPE, name), listener.map((r) -> toFeature(name, r)));
     }
 
     @Override
     public FeatureSet loadSet(String name) throws IOException {
-        FeatureSet featureSet = getAndParse(name, StoredFeatureSet.class, StoredFeatureSet.TYPE);
-        if (featureSet == null) {
+        return toFeatureSet(name, getFeatureSet(name));
+    }
+
+    @Override
+    public void loadSet(String name, ActionListener<FeatureSet> listener) {
+        asyncGet(generateId(StoredFeatureSet.TYPE, name), listener.map((r) -> toFeatureSet(name, r)));
+    }
+
+    private static Feature toFeature(String name, GetResponse response) throws IOException {
+        if (!response.isExists()) {
+            throw new IllegalArgumentException("Unknown feature [" + name + "]");
+        }
+        return parse(StoredFeature.class, StoredFeature.TYPE, response.getSourceAsBytesRef()).optimize();
+    }
+
+    private static FeatureSet toFeatureSet(String name, GetResponse response) throws IOException {
+        if (!response.isExists()) {
             throw new IllegalArgumentException("Unknown featureset [" + name + "]");
         }
-        return featureSet.optimize();
+        return parse(StoredFeatureSet.class, StoredFeatureSet.TYPE, response.getSourceAsBytesRef()).optimize();
     }
 
     /**
@@ -171,22 +202,56 @@ public class IndexFeatureStore implements FeatureStore {
 
     @Override
     public CompiledLtrModel loadModel(String name) throws IOException {
-        StoredLtrModel model = getAndParse(name, StoredLtrModel.class, StoredLtrModel.TYPE);
-        if (model == null) {
+        return toModel(name, getModel(name));
+    }
+
+    @Override
+    public void loadModel(String name, ActionListener<CompiledLtrModel> listener) {
+        // The GET may complete on a transport thread, compilation is moved to the dedicated pool
+        Executor executor = clientSupplier.get().threadPool().executor(TransportFeatureStoreAction.MODEL_COMPILE_THREAD_POOL);
+        asyncGet(generateId(StoredLtrModel.TYPE, name), listener.delegateFailure((l, r) ->
+                executor.execute(ActionRunnable.supply(l, () -> toModel(name, r)))));
+    }
+
+    private CompiledLtrModel toModel(String name, GetResponse response) throws IOException {
+        if (!response.isExists()) {
             throw new IllegalArgumentException("Unknown model [" + name + "]");
         }
+        ParserState state = parseState(response.getSourceAsBytesRef());
+        StoredLtrModel model = cast(StoredLtrModel.class, StoredLtrModel.TYPE, state.element);
+        if (state.compiledModel != null) {
+            try {
+                CompiledLtrModel compiled = model.compile(state.compiledModel);
+                if (compiled != null) {
+                    return compiled;
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.warn(new ParameterizedMessage("Cannot load the compiled snapshot of model [{}], compiling its definition",
+                        name), e);
+            }
+        }
         return model.compile(parserFactory);
     }
 
     public <E extends StorableElement> E getAndParse(String name, Class<E> eltClass, String type) throws IOException {
         GetResponse response = internalGet(generateId(type, name)).get();
         if (response.isExists()) {
-            return parse(eltClass, type, response.getSourceAsBytes());
+            return parse(eltClass, type, response.getSourceAsBytesRef());
         } else {
             return null;
         }
     }
 
+    /**
+     * Check if the store index is recent enough to hold compiled model snapshots
+     *
+     * @param storeIndex the metadata of the store index
+     * @return true if the mapping of the store has the {@link #COMPILED_MODEL_FIELD}
+     */
+    public static boolean supportsCompiledModels(IndexMetadata storeIndex) {
+        return storeIndex != null && STORE_VERSION_PROP.get(storeIndex.getSettings()) >= COMPILED_MODEL_VERSION;
+    }
+
     public GetResponse getFeature(String name) {
         return internalGet(generateId(StoredFeature.TYPE, name)).get();
     }
@@ -203,6 +268,13 @@ public class IndexFeatureStore implements FeatureStore {
         return () -> clientSupplier.get().prepareGet(index, id).get();
     }
 
+    /**
+     * Fetch a document of the store without blocking, the listener is notified on the thread completing the GET.
+     */
+    private void asyncGet(String id, ActionListener<GetResponse> listener) {
+        clientSupplier.get().prepareGet(index, id).execute(listener);
+    }
+
     /**
      * Generate the source doc ready to be indexed in the store
      *
@@ -211,11 +283,26 @@ public class IndexFeatureStore implements FeatureStore {
      * @throws IOException in case of failures
      */
     public static XContentBuilder toSource(StorableElement elt) throws IOException {
+        return toSource(elt, null);
+    }
+
+    /**
+     * Generate the source doc ready to be indexed in the store
+     *
+     * @param elt the storable element to build the source document for
+     * @param compiledModel optional binary snapshot of the compiled model, see {@link CompiledModelSnapshot}
+     * @return the source-doc to be indexed by the store
+     * @throws IOException in case of failures
+     */
+    public static XContentBuilder toSource(StorableElement elt, @Nullable BytesReference compiledModel) throws IOException {
         XContentBuilder source = XContentFactory.contentBuilder(Requests.INDEX_CONTENT_TYPE);
         source.startObject();
         source.field("name", elt.name());
         source.field("type", elt.type());
         source.field(elt.type(), elt);
+        if (compiledModel != null) {
+            source.field(COMPILED_MODEL_FIELD, compiledModel);
+        }
         source.endObject();
         return source;
     }
@@ -226,24 +313,38 @@ public class IndexFeatureStore implements FeatureStore {
 
     public static <E extends StorableElement> E parse(Class<E> eltClass, String type, byte[] bytes,
                                                       int offset, int length) throws IOException {
-        try (XContentParser parser = XContentFactory.xContent(bytes)
-                .createParser(XContentParserConfiguration.EMPTY, bytes)) {
+        try (XContentParser parser = XContentFactory.xContent(bytes, offset, length)
+                .createParser(XContentParserConfiguration.EMPTY, bytes, offset, length)) {
             return parse(eltClass, type, parser);
         }
     }
 
     public static <E extends StorableElement> E parse(Class<E> eltClass, String type, BytesReference bytesReference) throws IOException {
-        BytesRef ref = bytesReference.toBytesRef();
-        try (XContentParser parser = XContentFactory.xContent(ref.bytes, ref.offset, ref.length)
-                .createParser(XContentParserConfiguration.EMPTY,
-                        ref.bytes, ref.offset, ref.length)
-        ) {
+        try (XContentParser parser = createParser(bytesReference)) {
             return parse(eltClass, type, parser);
         }
     }
 
     public static <E extends StorableElement> E parse(Class<E> eltClass, String type, XContentParser parser) throws IOException {
-        StorableElement elt = SOURCE_PARSER.parse(parser, null).element;
+        return cast(eltClass, type, SOURCE_PARSER.parse(parser, null).element);
+    }
+
+    private static ParserState parseState(BytesReference bytesReference) throws IOException {
+        try (XContentParser parser = createParser(bytesReference)) {
+            return SOURCE_PARSER.parse(parser, null);
+        }
+    }
+
+    /**
+     * Parse the source in place: unlike {@link BytesReference#toBytesRef()} a source made of several pages, e.g. a
+     * large model read from the network, is streamed rather than copied into a single array. The content type of
+     * the source is detected since documents may have been indexed in the store with any of them.
+     */
+    private static XContentParser createParser(BytesReference bytesReference) throws IOException {
+        return XContentHelper.createParser(XContentParserConfiguration.EMPTY, bytesReference);
+    }
+
+    private static <E extends StorableElement> E cast(Class<E> eltClass, String type, StorableElement elt) {
         if (elt == null) {
             throw new IllegalArgumentException("No StorableElement found.");
         }
@@ -258,6 +359,11 @@ public class IndexFeatureStore implements FeatureStore {
 
     private static class ParserState {
         StorableElement element;
+        BytesReference compiledModel;
+
+        void setCompiledModel(BytesReference compiledModel) {
+            this.compiledModel = compiledModel;
+        }
 
         void setElement(StorableElement element) {
             if (this.element != null) {
@@ -0,0 +1,66 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.o19s.es.ltr.feature.store.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Set of keys supporting uniform random sampling, used to pick eviction candidates without iterating the cache.
+ * Keys are stored in a list, a removed key is replaced by the last one so that all the operations run in constant time.
+ */
+class SampledKeySet<K> {
+    private final Map<K, Integer> positions = new HashMap<>();
+    private final List<K> keys = new ArrayList<>();
+
+    synchronized void add(K key) {
+        if (positions.putIfAbsent(key, keys.size()) == null) {
+            keys.add(key);
+        }
+    }
+
+    synchronized void remove(K key) {
+        Integer position = positions.remove(key);
+        if (position == null) {
+            return;
+        }
+        K last = keys.remove(keys.size() - 1);
+        if (position < keys.size()) {
+            keys.set(position, last);
+            positions.put(last, position);
+        }
+    }
+
+    /**
+     * @return up to size keys picked at random, the same key may be returned more than once
+     */
+    synchronized List<K> sample(Random random, int size) {
+        List<K> sample = new ArrayList<>(Math.min(size, keys.size()));
+        for (int i = 0; i < size && !keys.isEmpty(); i++) {
+            sample.add(keys.get(random.nextInt(keys.size())));
+        }
+        return sample;
+    }
+
+    synchronized int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.o19s.es.ltr.feature.store.index;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Reference counted instances shared by the cache entries with identical content, keyed by the hash of the content.
+ * The first instance acquired for a hash is kept until all the entries referencing it are released.
+ */
+class SharedInstances<T> {
+    private final Map<String, Ref<T>> instances = new ConcurrentHashMap<>();
+
+    /**
+     * @return the instance shared for this hash, the given instance if none
+     */
+    T acquire(String hash, T instance) {
+        return acquire(hash, instance, UnaryOperator.identity());
+    }
+
+    /**
+     * @param prepare applied to the given instance only if it becomes the shared instance
+     * @return the instance shared for this hash, the prepared instance if none
+     */
+    T acquire(String hash, T instance, UnaryOperator<T> prepare) {
+        return instances.compute(hash, (k, ref) -> ref != null ? ref.retain() : new Ref<>(prepare.apply(instance))).instance;
+    }
+
+    /**
+     * @return the shared instance if this was its last reference, null otherwise
+     */
+    T release(String hash) {
+        AtomicReference<T> released = new AtomicReference<>();
+        instances.computeIfPresent(hash, (k, ref) -> {
+            if (ref.release()) {
+                released.set(ref.instance);
+                return null;
+            }
+            return ref;
+        });
+        return released.get();
+    }
+
+    /**
+     * @return the number of distinct instances referenced
+     */
+    int size() {
+        return instances.size();
+    }
+
+    private static class Ref<T> {
+        private final T instance;
+        // only updated under the lock of the map entry
+        private int refCount = 1;
+
+        Ref(T instance) {
+            this.instance = instance;
+        }
+
+        Ref<T> retain() {
+            refCount++;
+            return this;
+        }
+
+        /**
+         * @return true if no references remain
+         */
+        boolean release() {
+            assert refCount > 0;
+            return --refCount == 0;
+        }
+    }
+}
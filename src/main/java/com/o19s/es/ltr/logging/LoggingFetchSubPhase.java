@@ -19,6 +19,7 @@ package com.o19s.es.ltr.logging;
 import com.o19s.es.ltr.feature.FeatureSet;
 import com.o19s.es.ltr.query.RankerQuery;
 import com.o19s.es.ltr.ranker.LogLtrRanker;
+import com.o19s.es.ltr.stats.ModelStats;
 import com.o19s.es.ltr.utils.Suppliers;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.BooleanClause;
@@ -48,6 +49,19 @@ import java.util.Map;
 import java.util.Optional;
 
 public class LoggingFetchSubPhase implements FetchSubPhase {
+    private final ModelStats modelStats;
+
+    public LoggingFetchSubPhase() {
+        this(null);
+    }
+
+    /**
+     * @param modelStats records the volume of logged feature values, may be null
+     */
+    public LoggingFetchSubPhase(ModelStats modelStats) {
+        this.modelStats = modelStats;
+    }
+
     @Override
     public FetchSubPhaseProcessor getProcessor(FetchContext context) throws IOException {
         LoggingSearchExtBuilder ext = (LoggingSearchExtBuilder) context.getSearchExt(LoggingSearchExtBuilder.NAME);
@@ -77,7 +91,7 @@ public class LoggingFetchSubPhase implements FetchSubPhase {
         };
 
 
-        return new LoggingFetchSubPhaseProcessor(Suppliers.memoizeCheckedSupplier(weigthtAndLogSpecsSupplier));
+        return new LoggingFetchSubPhaseProcessor(Suppliers.memoizeCheckedSupplier(weigthtAndLogSpecsSupplier), modelStats);
     }
 
     private Tuple<RankerQuery, HitLogConsumer> extractQuery(LoggingSearchExtBuilder.LogSpec
@@ -130,11 +144,18 @@ public class LoggingFetchSubPhase implements FetchSubPhase {
     }
     static class LoggingFetchSubPhaseProcessor implements FetchSubPhaseProcessor {
         private final CheckedSupplier<Tuple<Weight, List<HitLogConsumer>>, IOException> loggersSupplier;
+        private final ModelStats modelStats;
         private Scorer scorer;
         private LeafReaderContext currentContext;
 
         LoggingFetchSubPhaseProcessor(CheckedSupplier<Tuple<Weight, List<HitLogConsumer>>, IOException> loggersSupplier) {
+            this(loggersSupplier, null);
+        }
+
+        LoggingFetchSubPhaseProcessor(CheckedSupplier<Tuple<Weight, List<HitLogConsumer>>, IOException> loggersSupplier,
+                                      ModelStats modelStats) {
             this.loggersSupplier = loggersSupplier;
+            this.modelStats = modelStats;
         }
 
 
@@ -159,6 +180,13 @@ public class LoggingFetchSubPhase implements FetchSubPhase {
                 loggers.forEach((l) -> l.nextDoc(hitContext.hit()));
                 // Scoring will trigger log collection
                 scorer.score();
+                if (modelStats != null) {
+                    int features = 0;
+                    for (HitLogConsumer logger : loggers) {
+                        features += logger.set.size();
+                    }
+                    modelStats.onLogging(features);
+                }
             }
         }
 
@@ -0,0 +1,103 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.query;
+
+import com.o19s.es.ltr.stats.ModelStats;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+
+/**
+ * Wraps the scorer of a feature to record the time spent advancing and scoring it.
+ * Only used when the sltr query profiles its features.
+ */
+class FeatureProfilingScorer extends Scorer {
+    private final Scorer in;
+    private final DocIdSetIterator iterator;
+    private final ModelStats.FeatureStats stats;
+
+    FeatureProfilingScorer(Weight weight, Scorer in, ModelStats.FeatureStats stats) {
+        super(weight);
+        this.in = in;
+        this.stats = stats;
+        this.iterator = new ProfilingIterator(in.iterator());
+    }
+
+    @Override
+    public int docID() {
+        return in.docID();
+    }
+
+    @Override
+    public float score() throws IOException {
+        long start = System.nanoTime();
+        float score = in.score();
+        stats.onScore(System.nanoTime() - start);
+        return score;
+    }
+
+    @Override
+    public DocIdSetIterator iterator() {
+        return iterator;
+    }
+
+    @Override
+    public int advanceShallow(int target) throws IOException {
+        return in.advanceShallow(target);
+    }
+
+    @Override
+    public float getMaxScore(int upTo) throws IOException {
+        return in.getMaxScore(upTo);
+    }
+
+    private class ProfilingIterator extends DocIdSetIterator {
+        private final DocIdSetIterator in;
+
+        ProfilingIterator(DocIdSetIterator in) {
+            this.in = in;
+        }
+
+        @Override
+        public int docID() {
+            return in.docID();
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            long start = System.nanoTime();
+            int doc = in.nextDoc();
+            stats.onAdvance(System.nanoTime() - start);
+            return doc;
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            long start = System.nanoTime();
+            int doc = in.advance(target);
+            stats.onAdvance(System.nanoTime() - start);
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            return in.cost();
+        }
+    }
+}
@@ -24,6 +24,7 @@ import com.o19s.es.ltr.feature.PrebuiltLtrModel;
 import com.o19s.es.ltr.ranker.LogLtrRanker;
 import com.o19s.es.ltr.ranker.LtrRanker;
 import com.o19s.es.ltr.ranker.NullRanker;
+import com.o19s.es.ltr.stats.ModelStats;
 import com.o19s.es.ltr.utils.Suppliers;
 import com.o19s.es.ltr.utils.Suppliers.MutableSupplier;
 import org.apache.lucene.index.IndexReader;
@@ -65,13 +66,25 @@ public class RankerQuery extends Query {
     private final FeatureSet features;
     private final LtrRanker ranker;
     private final Map<Integer, float[]> featureScoreCache;
+    private final ModelStats.PerModelStats stats;
+    private final ModelStats.FeatureStats[] featureStats;
+    private final int earlyExitTopK;
 
     private RankerQuery(List<Query> queries, FeatureSet features, LtrRanker ranker,
                         Map<Integer, float[]> featureScoreCache) {
+        this(queries, features, ranker, featureScoreCache, null, null, 0);
+    }
+
+    private RankerQuery(List<Query> queries, FeatureSet features, LtrRanker ranker,
+                        Map<Integer, float[]> featureScoreCache, ModelStats.PerModelStats stats,
+                        ModelStats.FeatureStats[] featureStats, int earlyExitTopK) {
         this.queries = Objects.requireNonNull(queries);
         this.features = Objects.requireNonNull(features);
         this.ranker = Objects.requireNonNull(ranker);
         this.featureScoreCache = featureScoreCache;
+        this.stats = stats;
+        this.featureStats = featureStats;
+        this.earlyExitTopK = earlyExitTopK;
     }
 
     /**
@@ -83,7 +96,7 @@ public class RankerQuery extends Query {
      */
     public static RankerQuery build(PrebuiltLtrModel model) {
         return build(model.ranker(), model.featureSet(),
-                new LtrQueryContext(null, Collections.emptySet()), Collections.emptyMap(), false);
+                new LtrQueryContext(null, Collections.emptySet()), Collections.emptyMap(), false, null, false, 0);
     }
 
     /**
@@ -96,17 +109,64 @@ public class RankerQuery extends Query {
      */
     public static RankerQuery build(LtrModel model, LtrQueryContext context, Map<String, Object> params,
                                     Boolean featureScoreCacheFlag) {
-        return build(model.ranker(), model.featureSet(), context, params, featureScoreCacheFlag);
+        return build(model, context, params, featureScoreCacheFlag, null, false);
+    }
+
+    /**
+     * Build a RankerQuery which records its scoring metrics.
+     *
+     * @param model   The model
+     * @param context the context used to parse features into lucene queries
+     * @param params  the query params
+     * @param stats   the metrics of the model, null to disable instrumentation
+     * @param profileFeatures record the cost of each feature scorer in the model metrics
+     * @return the lucene query
+     */
+    public static RankerQuery build(LtrModel model, LtrQueryContext context, Map<String, Object> params,
+                                    Boolean featureScoreCacheFlag, ModelStats.PerModelStats stats, boolean profileFeatures) {
+        return build(model, context, params, featureScoreCacheFlag, stats, profileFeatures, 0);
+    }
+
+    /**
+     * Build a RankerQuery which records its scoring metrics and may stop scoring non competitive documents early.
+     *
+     * @param model   The model
+     * @param context the context used to parse features into lucene queries
+     * @param params  the query params
+     * @param stats   the metrics of the model, null to disable instrumentation
+     * @param profileFeatures record the cost of each feature scorer in the model metrics
+     * @param earlyExitTopK number of best scores that must be exact, the rankers that support it stop scoring
+     *                      the documents that cannot enter the top k, 0 to always compute the exact score
+     * @return the lucene query
+     */
+    public static RankerQuery build(LtrModel model, LtrQueryContext context, Map<String, Object> params,
+                                    Boolean featureScoreCacheFlag, ModelStats.PerModelStats stats, boolean profileFeatures,
+                                    int earlyExitTopK) {
+        return build(model.ranker(), model.featureSet(), context, params, featureScoreCacheFlag, stats, profileFeatures,
+                earlyExitTopK);
     }
 
     private static RankerQuery build(LtrRanker ranker, FeatureSet features,
-                                     LtrQueryContext context, Map<String, Object> params, Boolean featureScoreCacheFlag) {
+                                     LtrQueryContext context, Map<String, Object> params, Boolean featureScoreCacheFlag,
+                                     ModelStats.PerModelStats stats, boolean profileFeatures, int earlyExitTopK) {
+        long start = stats != null ? System.nanoTime() : 0;
         List<Query> queries = features.toQueries(context, params);
+        if (stats != null) {
+            stats.onQueryBuild(System.nanoTime() - start);
+        }
         Map<Integer, float[]> featureScoreCache = null;
         if (null != featureScoreCacheFlag && featureScoreCacheFlag) {
             featureScoreCache = new HashMap<>();
         }
-        return new RankerQuery(queries, features, ranker, featureScoreCache);
+        ModelStats.FeatureStats[] featureStats = null;
+        if (profileFeatures && stats != null) {
+            List<String> names = new ArrayList<>(features.size());
+            for (int i = 0; i < features.size(); i++) {
+                names.add(features.feature(i).name());
+            }
+            featureStats = stats.featureStats(names);
+        }
+        return new RankerQuery(queries, features, ranker, featureScoreCache, stats, featureStats, earlyExitTopK);
     }
 
     public static RankerQuery buildLogQuery(LogLtrRanker.LogConsumer consumer, FeatureSet features,
@@ -130,7 +190,9 @@ public class RankerQuery extends Query {
             rewritten |= rewrittenQuery != query;
             rewrittenQueries.add(rewrittenQuery);
         }
-        return rewritten ? new RankerQuery(rewrittenQueries, features, ranker, featureScoreCache) : this;
+        return rewritten
+                ? new RankerQuery(rewrittenQueries, features, ranker, featureScoreCache, stats, featureStats, earlyExitTopK)
+                : this;
     }
 
     @SuppressWarnings("EqualsWhichDoesntCheckParameterClass")
@@ -146,7 +208,8 @@ public class RankerQuery extends Query {
         RankerQuery that = (RankerQuery) obj;
         return Objects.deepEquals(queries, that.queries) &&
                 Objects.deepEquals(features, that.features) &&
-                Objects.equals(ranker, that.ranker);
+                Objects.equals(ranker, that.ranker) &&
+                earlyExitTopK == that.earlyExitTopK;
     }
 
     Stream<Query> stream() {
@@ -155,7 +218,7 @@ public class RankerQuery extends Query {
 
     @Override
     public int hashCode() {
-        return 31 * classHash() + Objects.hash(features, queries, ranker);
+        return 31 * classHash() + Objects.hash(features, queries, ranker, earlyExitTopK);
     }
 
     @Override
@@ -199,6 +262,7 @@ public class RankerQuery extends Query {
             };
         }
 
+        long start = stats != null ? System.nanoTime() : 0;
         List<Weight> weights = new ArrayList<>(queries.size());
         // XXX: this is not thread safe and may run into extremely weird issues
         // if the searcher uses the parallel collector
@@ -206,13 +270,19 @@ public class RankerQuery extends Query {
         MutableSupplier<LtrRanker.FeatureVector> vectorSupplier = new Suppliers.FeatureVectorSupplier();
         FVLtrRankerWrapper ltrRankerWrapper = new FVLtrRankerWrapper(ranker, vectorSupplier);
         LtrRewriteContext context = new LtrRewriteContext(ranker, vectorSupplier);
+        // features must score every document they match, TOP_SCORES only gives access to their block max scores
+        ScoreMode featureScoreMode = scoreMode == ScoreMode.TOP_SCORES ? ScoreMode.TOP_SCORES : ScoreMode.COMPLETE;
         for (Query q : queries) {
             if (q instanceof LtrRewritableQuery) {
                 q = ((LtrRewritableQuery) q).ltrRewrite(context);
             }
-            weights.add(searcher.createWeight(q, ScoreMode.COMPLETE, boost));
+            weights.add(searcher.createWeight(q, featureScoreMode, boost));
+        }
+        if (stats != null) {
+            stats.onWeightCreation(System.nanoTime() - start);
         }
-        return new RankerWeight(this, weights, ltrRankerWrapper, features, featureScoreCache);
+        return new RankerWeight(this, weights, ltrRankerWrapper, features, featureScoreCache, stats, featureStats,
+                earlyExitTopK > 0 ? new TopScores(earlyExitTopK) : null, scoreMode == ScoreMode.TOP_SCORES);
     }
 
     public static class RankerWeight extends Weight {
@@ -220,15 +290,26 @@ public class RankerQuery extends Query {
         private final FVLtrRankerWrapper ranker;
         private final FeatureSet features;
         private final Map<Integer, float[]> featureScoreCache;
+        private final ModelStats.PerModelStats stats;
+        private final ModelStats.FeatureStats[] featureStats;
+        // best scores of the documents scored so far, null when early exit is disabled
+        private final TopScores topScores;
+        // whether blocks of documents that cannot compete may be skipped
+        private final boolean skipBlocks;
 
         RankerWeight(RankerQuery query, List<Weight> weights, FVLtrRankerWrapper ranker, FeatureSet features,
-                     Map<Integer, float[]> featureScoreCache) {
+                     Map<Integer, float[]> featureScoreCache, ModelStats.PerModelStats stats,
+                     ModelStats.FeatureStats[] featureStats, TopScores topScores, boolean skipBlocks) {
             super(query);
             assert weights instanceof RandomAccess;
             this.weights = weights;
             this.ranker = Objects.requireNonNull(ranker);
             this.features = Objects.requireNonNull(features);
             this.featureScoreCache = featureScoreCache;
+            this.stats = stats;
+            this.featureStats = featureStats;
+            this.topScores = topScores;
+            this.skipBlocks = skipBlocks;
         }
 
         @Override
@@ -260,6 +341,7 @@ public class RankerQuery extends Query {
                 featureString += ":";
                 if (!explain.isMatch()) {
                     subs.add(Explanation.noMatch(featureString + " [no match, default value 0.0 used]"));
+                    d.setFeatureMissing(ordinal);
                 } else {
                     subs.add(Explanation.match(explain.getValue(), featureString, explain));
                     d.setFeatureScore(ordinal, explain.getValue().floatValue());
@@ -273,11 +355,14 @@ public class RankerQuery extends Query {
         public RankerScorer scorer(LeafReaderContext context) throws IOException {
             List<Scorer> scorers = new ArrayList<>(weights.size());
             DisiPriorityQueue disiPriorityQueue = new DisiPriorityQueue(weights.size());
-            for (Weight weight : weights) {
-                Scorer scorer = weight.scorer(context);
+            for (int i = 0; i < weights.size(); i++) {
+                Scorer scorer = weights.get(i).scorer(context);
                 if (scorer == null) {
                     scorer = new NoopScorer(this, DocIdSetIterator.empty());
                 }
+                if (featureStats != null) {
+                    scorer = new FeatureProfilingScorer(this, scorer, featureStats[i]);
+                }
                 scorers.add(scorer);
                 disiPriorityQueue.add(new DisiWrapper(scorer));
             }
@@ -298,6 +383,16 @@ public class RankerQuery extends Query {
             private LtrRanker.FeatureVector fv;
             private final int docBase;
             private final Map<Integer, float[]> featureScoreCache;
+            // features that did not match are only marked for the rankers that need them
+            private final boolean trackMissing;
+            // minimum competitive score set by the collector
+            private float minCompetitiveScore = Float.NEGATIVE_INFINITY;
+            private int lastTrackedDoc = -1;
+            // last target of advanceShallow and the feature score ranges of the current block
+            private int shallowTarget;
+            private final float[] minFeatureScores;
+            private final float[] maxFeatureScores;
+            private final DocIdSetIterator blockMaxIterator;
 
             RankerScorer(List<Scorer> scorers, DisjunctionDISI iterator, FVLtrRankerWrapper ranker,
                          int docBase, Map<Integer, float[]> featureScoreCache) {
@@ -307,6 +402,10 @@ public class RankerQuery extends Query {
                 this.ranker = ranker;
                 this.docBase = docBase;
                 this.featureScoreCache = featureScoreCache;
+                this.trackMissing = ranker.tracksMissingFeatures();
+                this.minFeatureScores = new float[scorers.size()];
+                this.maxFeatureScores = new float[scorers.size()];
+                this.blockMaxIterator = skipBlocks ? new BlockMaxDISI() : iterator;
             }
 
             @Override
@@ -328,6 +427,8 @@ public class RankerQuery extends Query {
                             // XXX: bold assumption that all models are dense
                             // do we need a some indirection to infer the featureId?
                             fv.setFeatureScore(ordinal, scorer.score());
+                        } else if (trackMissing) {
+                            fv.setFeatureMissing(ordinal);
                         }
                     }
                 } else {
@@ -339,6 +440,8 @@ public class RankerQuery extends Query {
                             ordinal++;
                             if (!Float.isNaN(score)) {
                                 fv.setFeatureScore(ordinal, score);
+                            } else if (trackMissing) {
+                                fv.setFeatureMissing(ordinal);
                             }
                         }
                     } else {  // Cache miss
@@ -350,13 +453,46 @@ public class RankerQuery extends Query {
                             if (scorer.docID() == docID()) {
                                 score = scorer.score();
                                 fv.setFeatureScore(ordinal, score);
+                            } else if (trackMissing) {
+                                fv.setFeatureMissing(ordinal);
                             }
                             featureScores[ordinal] = score;
                         }
                         featureScoreCache.put(perShardDocId, featureScores);
                     }
                 }
-                return ranker.score(fv);
+                if (stats == null) {
+                    return score(fv);
+                }
+                long start = System.nanoTime();
+                float score = score(fv);
+                stats.onScore(System.nanoTime() - start);
+                return score;
+            }
+
+            /**
+             * Scores below the minimum competitive score may be replaced with an upper bound lower than it
+             */
+            private float score(LtrRanker.FeatureVector fv) {
+                if (topScores == null && minCompetitiveScore == Float.NEGATIVE_INFINITY) {
+                    return ranker.score(fv);
+                }
+                float minScore = minCompetitiveScore;
+                if (topScores != null) {
+                    minScore = Math.max(minScore, topScores.minCompetitiveScore());
+                }
+                float score = minScore == Float.NEGATIVE_INFINITY ? ranker.score(fv) : ranker.score(fv, minScore);
+                // score() may be called more than once per document
+                if (topScores != null && docID() != lastTrackedDoc) {
+                    lastTrackedDoc = docID();
+                    topScores.add(score);
+                }
+                return score;
+            }
+
+            @Override
+            public void setMinCompetitiveScore(float minScore) {
+                this.minCompetitiveScore = minScore;
             }
 
 //            @Override
@@ -366,17 +502,99 @@ public class RankerQuery extends Query {
 
             @Override
             public DocIdSetIterator iterator() {
-                return iterator;
+                return blockMaxIterator;
+            }
+
+            /**
+             * The block ends where the first block of a feature ends
+             */
+            @Override
+            public int advanceShallow(int target) throws IOException {
+                shallowTarget = target;
+                int upTo = DocIdSetIterator.NO_MORE_DOCS;
+                for (Scorer scorer : scorers) {
+                    // exhausted features do not limit the block
+                    if (scorer.docID() != DocIdSetIterator.NO_MORE_DOCS) {
+                        upTo = Math.min(upTo, advanceShallow(scorer));
+                    }
+                }
+                return upTo;
+            }
+
+            /**
+             * Features are not advanced in sync with this scorer, a feature may already be positioned after the target
+             */
+            private int advanceShallow(Scorer scorer) throws IOException {
+                return scorer.advanceShallow(Math.max(shallowTarget, scorer.docID()));
             }
 
             /**
              * Return the maximum score that documents between the last {@code target}
              * that this iterator was {@link #advanceShallow(int) shallow-advanced} to
              * included and {@code upTo} included.
+             * The model is bounded with the maximum score of every feature over the same range.
              */
             @Override
             public float getMaxScore(int upTo) throws IOException {
-                return Float.POSITIVE_INFINITY;
+                for (int i = 0; i < scorers.size(); i++) {
+                    Scorer scorer = scorers.get(i);
+                    if (scorer.docID() > upTo || scorer.docID() == DocIdSetIterator.NO_MORE_DOCS) {
+                        // the feature does not match up to upTo, it scores 0
+                        minFeatureScores[i] = 0F;
+                        maxFeatureScores[i] = 0F;
+                    } else {
+                        advanceShallow(scorer);
+                        float max = scorer.getMaxScore(upTo);
+                        // features without a bound (e.g. derived features) may not follow the non-negative rule
+                        minFeatureScores[i] = max < Float.POSITIVE_INFINITY ? 0F : Float.NEGATIVE_INFINITY;
+                        maxFeatureScores[i] = Math.max(0F, max);
+                    }
+                }
+                // scores are not supposed to be negative
+                return Math.max(0F, ranker.maxScore(minFeatureScores, maxFeatureScores));
+            }
+
+            /**
+             * Skips the blocks of documents whose maximum score is lower than the minimum competitive score
+             */
+            class BlockMaxDISI extends DocIdSetIterator {
+                // last document of the current block and its maximum score
+                private int upTo = -1;
+                private float maxScore;
+
+                @Override
+                public int docID() {
+                    return iterator.docID();
+                }
+
+                @Override
+                public int nextDoc() throws IOException {
+                    return advance(iterator.docID() + 1);
+                }
+
+                @Override
+                public int advance(int target) throws IOException {
+                    return iterator.advance(competitiveTarget(target));
+                }
+
+                private int competitiveTarget(int target) throws IOException {
+                    while (minCompetitiveScore > Float.NEGATIVE_INFINITY && target != NO_MORE_DOCS) {
+                        if (target > upTo) {
+                            upTo = advanceShallow(target);
+                            maxScore = getMaxScore(upTo);
+                        }
+                        if (maxScore >= minCompetitiveScore) {
+                            return target;
+                        }
+                        target = upTo == NO_MORE_DOCS ? NO_MORE_DOCS : upTo + 1;
+                    }
+                    return target;
+                }
+
+                @Override
+                public long cost() {
+                    return iterator.cost();
+                }
             }
         }
     }
@@ -466,6 +684,26 @@ public class RankerQuery extends Query {
             return wrapped.score(point);
         }
 
+        @Override
+        public float score(FeatureVector point, float minScore) {
+            return wrapped.score(point, minScore);
+        }
+
+        @Override
+        public float maxScore() {
+            return wrapped.maxScore();
+        }
+
+        @Override
+        public float maxScore(float[] minFeatureScores, float[] maxFeatureScores) {
+            return wrapped.maxScore(minFeatureScores, maxFeatureScores);
+        }
+
+        @Override
+        public boolean tracksMissingFeatures() {
+            return wrapped.tracksMissingFeatures();
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -22,7 +22,9 @@ import com.o19s.es.ltr.feature.store.CompiledLtrModel;
 import com.o19s.es.ltr.feature.store.FeatureStore;
 import com.o19s.es.ltr.feature.store.index.IndexFeatureStore;
 import com.o19s.es.ltr.ranker.linear.LinearRanker;
+import com.o19s.es.ltr.stats.ModelStats;
 import com.o19s.es.ltr.utils.FeatureStoreLoader;
+import org.apache.lucene.util.SetOnce;
 import org.elasticsearch.TransportVersion;
 import org.elasticsearch.xcontent.ParseField;
 import org.elasticsearch.common.ParsingException;
@@ -33,6 +35,8 @@ import org.elasticsearch.xcontent.ObjectParser;
 import org.elasticsearch.xcontent.XContentBuilder;
 import org.elasticsearch.xcontent.XContentParser;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryRewriteContext;
 import org.elasticsearch.index.query.SearchExecutionContext;
 
 import java.io.IOException;
@@ -42,18 +46,27 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.Supplier;
 
 /**
  * sltr query, build a ltr query based on a stored model.
  */
 public class StoredLtrQueryBuilder extends AbstractQueryBuilder<StoredLtrQueryBuilder> implements NamedWriteable {
     public static final String NAME = "sltr";
+    /**
+     * Name under which builders using options unknown to older versions of the plugin are serialized. Nodes running
+     * an older plugin on the same elasticsearch version do not register it and fail to read the query instead of
+     * misreading it, elasticsearch's transport version cannot tell these nodes apart.
+     */
+    public static final String WITH_OPTIONS_WRITEABLE_NAME = "sltr_with_options";
     public static final ParseField MODEL_NAME = new ParseField("model");
     public static final ParseField FEATURE_CACHE_FLAG = new ParseField("cache");
     public static final ParseField FEATURESET_NAME = new ParseField("featureset");
     public static final ParseField STORE_NAME = new ParseField("store");
     public static final ParseField PARAMS = new ParseField("params");
     public static final ParseField ACTIVE_FEATURES = new ParseField("active_features");
+    public static final ParseField PROFILE_FEATURES = new ParseField("profile_features");
+    public static final ParseField EARLY_EXIT_TOP_K = new ParseField("early_exit_top_k");
     private static final ObjectParser<StoredLtrQueryBuilder, Void> PARSER;
 
     static {
@@ -64,28 +77,70 @@ public class StoredLtrQueryBuilder extends AbstractQueryBuilder<StoredLtrQueryBu
         PARSER.declareString(StoredLtrQueryBuilder::storeName, STORE_NAME);
         PARSER.declareField(StoredLtrQueryBuilder::params, XContentParser::map, PARAMS, ObjectParser.ValueType.OBJECT);
         PARSER.declareStringArray(StoredLtrQueryBuilder::activeFeatures, ACTIVE_FEATURES);
+        PARSER.declareBoolean(StoredLtrQueryBuilder::profileFeatures, PROFILE_FEATURES);
+        PARSER.declareInt(StoredLtrQueryBuilder::earlyExitTopK, EARLY_EXIT_TOP_K);
         declareStandardFields(PARSER);
     }
 
     /**
-     * Injected context used to load a {@link FeatureStore} when running {@link #doToQuery(SearchExecutionContext)}
+     * Injected context used to load a {@link FeatureStore} when running {@link #doRewrite(QueryRewriteContext)}
+     * or {@link #doToQuery(SearchExecutionContext)}
      */
     private final transient FeatureStoreLoader storeLoader;
+    /**
+     * Injected node level metrics of the models, null to disable instrumentation
+     */
+    private final transient ModelStats modelStats;
     private String modelName;
     private Boolean featureScoreCacheFlag;
     private String featureSetName;
     private String storeName;
     private Map<String, Object> params;
     private List<String> activeFeatures;
+    private boolean profileFeatures;
+    private int earlyExitTopK;
+    /**
+     * Model loaded from the store during {@link #doRewrite(QueryRewriteContext)}, null if the builder was not rewritten
+     * asynchronously. Never serialized, the receiving node loads the model from its own caches.
+     */
+    private transient Supplier<CompiledLtrModel> loadedModel;
+    /**
+     * Whether {@link #doRewrite(QueryRewriteContext)} loads the model. Builders read from the wire are on a node holding
+     * shards of the searched indices. The model loaded while rewriting on the coordinating node is not serialized, it
+     * only serves its local shards so nodes that cannot hold data leave the load to the nodes executing the query.
+     */
+    private transient boolean loadOnRewrite = true;
 
     public StoredLtrQueryBuilder(FeatureStoreLoader storeLoader) {
-        this.storeLoader = storeLoader;
+        this(storeLoader, (ModelStats) null);
     }
 
+    public StoredLtrQueryBuilder(FeatureStoreLoader storeLoader, ModelStats modelStats) {
+        this.storeLoader = storeLoader;
+        this.modelStats = modelStats;
+    }
 
     public StoredLtrQueryBuilder(FeatureStoreLoader storeLoader, StreamInput input) throws IOException {
+        this(storeLoader, null, input);
+    }
+
+    public StoredLtrQueryBuilder(FeatureStoreLoader storeLoader, ModelStats modelStats, StreamInput input) throws IOException {
+        this(storeLoader, modelStats, input, false);
+    }
+
+    /**
+     * Read a builder serialized under {@link #WITH_OPTIONS_WRITEABLE_NAME}
+     */
+    public static StoredLtrQueryBuilder readWithOptions(FeatureStoreLoader storeLoader, ModelStats modelStats,
+                                                        StreamInput input) throws IOException {
+        return new StoredLtrQueryBuilder(storeLoader, modelStats, input, true);
+    }
+
+    private StoredLtrQueryBuilder(FeatureStoreLoader storeLoader, ModelStats modelStats, StreamInput input,
+                                  boolean withOptions) throws IOException {
         super(input);
         this.storeLoader = Objects.requireNonNull(storeLoader);
+        this.modelStats = modelStats;
         modelName = input.readOptionalString();
         featureScoreCacheFlag = input.readOptionalBoolean();
         featureSetName = input.readOptionalString();
@@ -95,12 +150,38 @@ public class StoredLtrQueryBuilder extends AbstractQueryBuilder<StoredLtrQueryBu
             activeFeatures = activeFeat == null ? null : Arrays.asList(activeFeat);
         }
         storeName = input.readOptionalString();
+        if (withOptions) {
+            profileFeatures = input.readBoolean();
+            earlyExitTopK = input.readVInt();
+        }
+    }
+
+    private StoredLtrQueryBuilder(StoredLtrQueryBuilder other, Supplier<CompiledLtrModel> loadedModel) {
+        this.storeLoader = other.storeLoader;
+        this.modelStats = other.modelStats;
+        this.modelName = other.modelName;
+        this.featureScoreCacheFlag = other.featureScoreCacheFlag;
+        this.featureSetName = other.featureSetName;
+        this.storeName = other.storeName;
+        this.params = other.params;
+        this.activeFeatures = other.activeFeatures;
+        this.profileFeatures = other.profileFeatures;
+        this.earlyExitTopK = other.earlyExitTopK;
+        this.loadedModel = loadedModel;
+        this.loadOnRewrite = other.loadOnRewrite;
+        boost(other.boost());
+        queryName(other.queryName());
     }
 
     public static StoredLtrQueryBuilder fromXContent(FeatureStoreLoader storeLoader,
                                                      XContentParser parser) throws IOException {
+        return fromXContent(storeLoader, null, parser);
+    }
+
+    public static StoredLtrQueryBuilder fromXContent(FeatureStoreLoader storeLoader, ModelStats modelStats,
+                                                     XContentParser parser) throws IOException {
         storeLoader = Objects.requireNonNull(storeLoader);
-        final StoredLtrQueryBuilder builder = new StoredLtrQueryBuilder(storeLoader);
+        final StoredLtrQueryBuilder builder = new StoredLtrQueryBuilder(storeLoader, modelStats);
         try {
             PARSER.parse(parser, builder, null);
         } catch (IllegalArgumentException iae) {
@@ -125,6 +206,10 @@ public class StoredLtrQueryBuilder extends AbstractQueryBuilder<StoredLtrQueryBu
             out.writeOptionalStringArray(activeFeatures != null ? activeFeatures.toArray(new String[0]) : null);
         }
         out.writeOptionalString(storeName);
+        if (hasOptions()) {
+            out.writeBoolean(profileFeatures);
+            out.writeVInt(earlyExitTopK);
+        }
     }
 
     @Override
@@ -148,6 +233,12 @@ public class StoredLtrQueryBuilder extends AbstractQueryBuilder<StoredLtrQueryBu
         if (this.activeFeatures != null && !this.activeFeatures.isEmpty()) {
             builder.field(ACTIVE_FEATURES.getPreferredName(), this.activeFeatures);
         }
+        if (profileFeatures) {
+            builder.field(PROFILE_FEATURES.getPreferredName(), true);
+        }
+        if (earlyExitTopK > 0) {
+            builder.field(EARLY_EXIT_TOP_K.getPreferredName(), earlyExitTopK);
+        }
         printBoostAndQueryName(builder);
         builder.endObject();
     }
@@ -160,28 +251,72 @@ public class StoredLtrQueryBuilder extends AbstractQueryBuilder<StoredLtrQueryBu
         }
     }
 
+    /**
+     * Load the model or the feature set from the store without blocking the search thread.
+     * Contexts that cannot run asynchronous actions (shard level rewrites) are left to {@link #doToQuery(SearchExecutionContext)}.
+     */
+    @Override
+    protected QueryBuilder doRewrite(QueryRewriteContext ctx) throws IOException {
+        if (!loadOnRewrite || loadedModel != null || ctx.convertToSearchExecutionContext() != null) {
+            return this;
+        }
+        String indexName = storeIndexName();
+        SetOnce<CompiledLtrModel> model = new SetOnce<>();
+        ctx.registerAsyncAction((client, listener) -> {
+            try {
+                FeatureStore store = storeLoader.load(indexName, () -> client);
+                if (modelName != null) {
+                    long start = System.nanoTime();
+                    store.loadModel(modelName, listener.map((m) -> {
+                        if (modelStats != null) {
+                            modelStats.get(indexName, modelName).onRewrite(System.nanoTime() - start);
+                        }
+                        model.set(m);
+                        return null;
+                    }));
+                } else {
+                    store.loadSet(featureSetName, listener.map((set) -> {
+                        model.set(featureSetModel(set));
+                        return null;
+                    }));
+                }
+            } catch (Exception e) {
+                listener.onFailure(e);
+            }
+        });
+        return new StoredLtrQueryBuilder(this, model::get);
+    }
+
     @Override
     protected RankerQuery doToQuery(SearchExecutionContext context) throws IOException {
-        String indexName = storeName != null ? IndexFeatureStore.indexName(storeName) : IndexFeatureStore.DEFAULT_STORE;
-        FeatureStore store = storeLoader.load(indexName, context::getClient);
+        String indexName = storeIndexName();
+        CompiledLtrModel model = loadedModel != null ? loadedModel.get() : null;
+        if (model == null) {
+            // not rewritten asynchronously (e.g. percolator or tests), load the model on the calling thread
+            FeatureStore store = storeLoader.load(indexName, context::getClient);
+            model = modelName != null ? store.loadModel(modelName) : featureSetModel(store.loadSet(featureSetName));
+        }
         LtrQueryContext ltrQueryContext = new LtrQueryContext(context,
                 activeFeatures == null ? Collections.emptySet() : new HashSet<>(activeFeatures));
+        validateActiveFeatures(model.featureSet(), ltrQueryContext);
         if (modelName != null) {
-            CompiledLtrModel model = store.loadModel(modelName);
-            validateActiveFeatures(model.featureSet(), ltrQueryContext);
-            return RankerQuery.build(model, ltrQueryContext, params, featureScoreCacheFlag);
+            return RankerQuery.build(model, ltrQueryContext, params, featureScoreCacheFlag,
+                    modelStats != null ? modelStats.get(indexName, modelName) : null, profileFeatures, earlyExitTopK);
         } else {
-            assert featureSetName != null;
-            FeatureSet set = store.loadSet(featureSetName);
-            float[] weights = new float[set.size()];
-            Arrays.fill(weights, 1F);
-            LinearRanker ranker = new LinearRanker(weights);
-            CompiledLtrModel model = new CompiledLtrModel("linear", set, ranker);
-            validateActiveFeatures(model.featureSet(), ltrQueryContext);
             return RankerQuery.build(model, ltrQueryContext, params, featureScoreCacheFlag);
         }
     }
 
+    private String storeIndexName() {
+        return storeName != null ? IndexFeatureStore.indexName(storeName) : IndexFeatureStore.DEFAULT_STORE;
+    }
+
+    private static CompiledLtrModel featureSetModel(FeatureSet set) {
+        float[] weights = new float[set.size()];
+        Arrays.fill(weights, 1F);
+        return new CompiledLtrModel("linear", set, new LinearRanker(weights));
+    }
+
     @Override
     protected boolean doEquals(StoredLtrQueryBuilder other) {
         return Objects.equals(modelName, other.modelName) &&
@@ -189,23 +324,44 @@ public class StoredLtrQueryBuilder extends AbstractQueryBuilder<StoredLtrQueryBu
                 Objects.equals(featureSetName, other.featureSetName) &&
                 Objects.equals(storeName, other.storeName) &&
                 Objects.equals(params, other.params) &&
-                Objects.equals(activeFeatures, other.activeFeatures);
+                Objects.equals(activeFeatures, other.activeFeatures) &&
+                profileFeatures == other.profileFeatures &&
+                earlyExitTopK == other.earlyExitTopK;
     }
 
     @Override
     protected int doHashCode() {
-        return Objects.hash(modelName, featureScoreCacheFlag, featureSetName, storeName, params, activeFeatures);
+        return Objects.hash(modelName, featureScoreCacheFlag, featureSetName, storeName, params, activeFeatures, profileFeatures,
+                earlyExitTopK);
     }
 
     @Override
     public String getWriteableName() {
+        // without options the query is serialized as older versions of the plugin do
+        return hasOptions() ? WITH_OPTIONS_WRITEABLE_NAME : NAME;
+    }
+
+    @Override
+    public String getName() {
         return NAME;
     }
 
+    private boolean hasOptions() {
+        return profileFeatures || earlyExitTopK > 0;
+    }
+
     public String modelName() {
         return modelName;
     }
 
+    /**
+     * @param loadOnRewrite false to not load the model while rewriting on this node, e.g. when it cannot hold data
+     */
+    public StoredLtrQueryBuilder loadOnRewrite(boolean loadOnRewrite) {
+        this.loadOnRewrite = loadOnRewrite;
+        return this;
+    }
+
     public StoredLtrQueryBuilder modelName(String modelName) {
         this.modelName = Objects.requireNonNull(modelName);
         return this;
@@ -252,6 +408,34 @@ public class StoredLtrQueryBuilder extends AbstractQueryBuilder<StoredLtrQueryBu
         return this;
     }
 
+    public boolean profileFeatures() {
+        return profileFeatures;
+    }
+
+    /**
+     * Record the cost of each feature scorer in the model stats, has no effect on feature set queries.
+     */
+    public StoredLtrQueryBuilder profileFeatures(boolean profileFeatures) {
+        this.profileFeatures = profileFeatures;
+        return this;
+    }
+
+    public int earlyExitTopK() {
+        return earlyExitTopK;
+    }
+
+    /**
+     * Only the k best model scores must be exact, the other documents may be scored with an upper bound
+     * as soon as the model knows they cannot enter the top k. 0 disables early exit.
+     */
+    public StoredLtrQueryBuilder earlyExitTopK(int earlyExitTopK) {
+        if (earlyExitTopK < 0) {
+            throw new IllegalArgumentException("[" + EARLY_EXIT_TOP_K.getPreferredName() + "] must be positive");
+        }
+        this.earlyExitTopK = earlyExitTopK;
+        return this;
+    }
+
 
     @Override
     public TransportVersion getMinimalSupportedVersion() {
@@ -0,0 +1,77 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.query;
+
+/**
+ * Keeps the k best scores seen so far, the k-th best is the minimum competitive score
+ * given to the rankers that can stop scoring early.
+ * Shared by the scorers of a {@link RankerQuery.RankerWeight}, not thread safe.
+ */
+class TopScores {
+    // min-heap of the best scores
+    private final float[] heap;
+    private int size;
+
+    TopScores(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.heap = new float[k];
+    }
+
+    /**
+     * @return the k-th best score or {@link Float#NEGATIVE_INFINITY} if less than k scores were seen
+     */
+    float minCompetitiveScore() {
+        return size < heap.length ? Float.NEGATIVE_INFINITY : heap[0];
+    }
+
+    void add(float score) {
+        if (Float.isNaN(score)) {
+            return;
+        }
+        if (size < heap.length) {
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= score) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = score;
+        } else if (score > heap[0]) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= score) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = score;
+        }
+    }
+}
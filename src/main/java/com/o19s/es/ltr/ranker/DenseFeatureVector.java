@@ -16,6 +16,8 @@
 
 package com.o19s.es.ltr.ranker;
 
+import org.apache.lucene.util.FixedBitSet;
+
 import java.util.Arrays;
 
 /**
@@ -23,6 +25,7 @@ import java.util.Arrays;
  */
 public class DenseFeatureVector implements LtrRanker.FeatureVector {
     public final float[] scores;
+    private final FixedBitSet missing;
 
     /**
      * New simple array-backed datapoint
@@ -30,7 +33,16 @@ public class DenseFeatureVector implements LtrRanker.FeatureVector {
      * @param size size of the internal array
      */
     public DenseFeatureVector(int size) {
+        this(size, false);
+    }
+
+    /**
+     * @param size size of the internal array
+     * @param trackMissing record the features that did not match in a bitset
+     */
+    public DenseFeatureVector(int size, boolean trackMissing) {
         this.scores = new float[size];
+        this.missing = trackMissing ? new FixedBitSet(size) : null;
     }
 
     @Override
@@ -43,7 +55,24 @@ public class DenseFeatureVector implements LtrRanker.FeatureVector {
         return scores[featureIdx];
     }
 
+    @Override
+    public void setFeatureMissing(int featureIdx) {
+        if (missing != null) {
+            missing.set(featureIdx);
+        }
+    }
+
+    /**
+     * @return the features that did not match or null if they are not tracked
+     */
+    public FixedBitSet missing() {
+        return missing;
+    }
+
     public void reset() {
         Arrays.fill(scores, 0F);
+        if (missing != null) {
+            missing.clear(0, missing.length());
+        }
     }
 }
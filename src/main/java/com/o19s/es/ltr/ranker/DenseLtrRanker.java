@@ -19,6 +19,7 @@ package com.o19s.es.ltr.ranker;
 /**
  * A dense ranker base class to work with {@link DenseFeatureVector}
  * where missing feature scores are set to 0.
+ * Rankers that {@link #tracksMissingFeatures() track missing features} also get the bitset of the features that did not match.
  */
 public abstract class DenseLtrRanker implements LtrRanker {
     @Override
@@ -29,7 +30,7 @@ public abstract class DenseLtrRanker implements LtrRanker {
             vector.reset();
             return vector;
         }
-        return new DenseFeatureVector(size());
+        return new DenseFeatureVector(size(), tracksMissingFeatures());
     }
 
     @Override
@@ -40,6 +41,19 @@ public abstract class DenseLtrRanker implements LtrRanker {
 
     protected abstract float score(DenseFeatureVector vector);
 
+    @Override
+    public float score(FeatureVector vector, float minScore) {
+        assert vector instanceof DenseFeatureVector;
+        return this.score((DenseFeatureVector) vector, minScore);
+    }
+
+    /**
+     * Score the vector, rankers able to stop early when the score cannot reach minScore override this method.
+     */
+    protected float score(DenseFeatureVector vector, float minScore) {
+        return score(vector);
+    }
+
     /**
      * @return the number of features supported by this ranker
      */
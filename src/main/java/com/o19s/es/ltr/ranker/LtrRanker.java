@@ -53,6 +53,51 @@ public interface LtrRanker {
      */
     float score(FeatureVector point);
 
+    /**
+     * Score the data point, knowing that only scores greater than or equal to minScore are of interest.
+     * The ranker may stop as soon as it knows that the score cannot reach minScore
+     * and return any value lower than minScore.
+     *
+     * @param point the feature vector point to compute the score for
+     * @param minScore the minimum competitive score
+     * @return the score computed for the given point or a value lower than minScore
+     */
+    default float score(FeatureVector point, float minScore) {
+        return score(point);
+    }
+
+    /**
+     * An upper bound of the scores this ranker can produce whatever the feature scores are.
+     *
+     * @return the maximum score or {@link Float#POSITIVE_INFINITY} if unknown
+     */
+    default float maxScore() {
+        return Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * An upper bound of the scores this ranker can produce when the score of every feature is within the given range.
+     * Features that did not match keep a score of 0, the ranges of such features must include 0.
+     *
+     * @param minFeatureScores the lowest score of each feature, {@link Float#NEGATIVE_INFINITY} if unknown
+     * @param maxFeatureScores the highest score of each feature, {@link Float#POSITIVE_INFINITY} if unknown
+     * @return the maximum score or {@link Float#POSITIVE_INFINITY} if unknown
+     */
+    default float maxScore(float[] minFeatureScores, float[] maxFeatureScores) {
+        return maxScore();
+    }
+
+    /**
+     * Whether features that did not match must be distinguished from features that scored 0.
+     * When true the scorer marks these features with {@link FeatureVector#setFeatureMissing(int)},
+     * rankers that do not need it are spared the extra work.
+     *
+     * @return true if this ranker routes missing features differently
+     */
+    default boolean tracksMissingFeatures() {
+        return false;
+    }
+
     /**
      * A FeatureVector used to store individual feature scores
      */
@@ -73,5 +118,13 @@ public interface LtrRanker {
          */
         float getFeatureScore(int featureId);
 
+        /**
+         * Mark a feature that did not match the document, its score stays at the default value.
+         * Only called when the ranker {@link LtrRanker#tracksMissingFeatures() tracks missing features}.
+         *
+         * @param featureId the feature-id that did not match
+         */
+        default void setFeatureMissing(int featureId) {
+        }
     }
 }
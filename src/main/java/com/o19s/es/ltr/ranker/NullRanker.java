@@ -38,6 +38,11 @@ public class NullRanker extends DenseLtrRanker {
         return 0F;
     }
 
+    @Override
+    public float maxScore() {
+        return 0F;
+    }
+
     @Override
     protected int size() {
         return modelSize;
@@ -0,0 +1,28 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.ranker;
+
+/**
+ * Implemented by rankers holding some of their data outside the java heap.
+ * Off-heap bytes are not included in {@link org.apache.lucene.util.Accountable#ramBytesUsed()}.
+ */
+public interface OffHeapAccountable {
+    /**
+     * @return the number of bytes allocated outside the java heap
+     */
+    long offHeapBytesUsed();
+}
@@ -0,0 +1,785 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.ranker.dectree;
+
+import com.o19s.es.ltr.ranker.DenseFeatureVector;
+import com.o19s.es.ltr.ranker.DenseLtrRanker;
+import com.o19s.es.ltr.ranker.normalizer.Normalizer;
+import com.o19s.es.ltr.ranker.normalizer.Normalizers;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Additive decision tree backed by primitive arrays.
+ * Nodes of all the trees are stored in pre-order in parallel arrays:
+ * <ul>
+ *     <li>features: the feature ordinal used by a split or {@link #LEAF} for a leaf</li>
+ *     <li>values: the split threshold or the leaf output</li>
+ *     <li>rightChildren: the position of the right child of a split, the left child always immediately follows its parent</li>
+ * </ul>
+ * A split sends the document to its left child when the threshold is greater than the feature score.
+ * <p>
+ * Models trained with missing value or categorical support (e.g. LightGBM) may also set a split type per node:
+ * a combination of {@link #DEFAULT_LEFT}, {@link #MISSING_ZERO}, {@link #MISSING_NAN} and {@link #CATEGORICAL}.
+ * The value of a categorical split is the index of its category bitset in categoryBounds and categories.
+ * Ensembles without such splits do not store split types and keep the simple evaluation loop.
+ * Features that did not match the document are considered NaN when the ensemble has {@link #MISSING_NAN} splits,
+ * otherwise their score is 0 like with any other ranker.
+ * <p>
+ * When a minimum competitive score is given the trees are evaluated in stages of {@link #STAGE_SIZE} trees,
+ * the evaluation stops when the partial sum plus the largest contribution of the remaining trees
+ * (precomputed from their leaves) cannot reach it.
+ */
+public class FlatAdditiveDecisionTree extends DenseLtrRanker implements Accountable {
+    private static final long BASE_RAM_USED = RamUsageEstimator.shallowSizeOfInstance(FlatAdditiveDecisionTree.class);
+    public static final int LEAF = -1;
+    /**
+     * Documents whose feature value is considered missing go left, right otherwise
+     */
+    public static final byte DEFAULT_LEFT = 1;
+    /**
+     * Zero is considered a missing value, NaN is treated as zero
+     */
+    public static final byte MISSING_ZERO = 2;
+    /**
+     * NaN is considered a missing value
+     */
+    public static final byte MISSING_NAN = 4;
+    /**
+     * The document goes left if the integer value of its feature is in the category bitset of the split
+     */
+    public static final byte CATEGORICAL = 8;
+    // values whose magnitude is below this threshold are considered zero, same threshold as LightGBM
+    private static final float ZERO_THRESHOLD = 1e-35F;
+    /**
+     * Number of trees evaluated between two checks of the minimum competitive score
+     */
+    static final int STAGE_SIZE = 16;
+    /**
+     * Number of nodes {@link #maxScore(float[], float[])} visits before bounding the remaining stages with their
+     * precomputed bound, it is called for every block of documents and must stay cheap compared to scoring the block
+     */
+    static final int MAX_SCORE_VISITED_NODES = 4096;
+
+    private final int[] roots;
+    private final float[] weights;
+    private final int[] features;
+    private final float[] values;
+    private final int[] rightChildren;
+    private final byte[] splitTypes;
+    private final int[] categoryBounds;
+    private final int[] categories;
+    private final int modelSize;
+    private final Normalizer normalizer;
+    private final boolean tracksMissing;
+    // upper bound of the sum of the trees starting at each stage
+    private final float[] stageBounds;
+    private final boolean monotonic;
+
+    /**
+     * @param roots position of the root node of each tree
+     * @param weights the respective weights of each tree
+     * @param features feature ordinal of each node, {@link #LEAF} for leaves
+     * @param values threshold of each split or output of each leaf
+     * @param rightChildren position of the right child of each split (ignored for leaves)
+     * @param modelSize the modelSize in number of feature used
+     * @param normalizer class to perform any normalization on model score
+     */
+    public FlatAdditiveDecisionTree(int[] roots, float[] weights, int[] features, float[] values, int[] rightChildren,
+                                    int modelSize, Normalizer normalizer) {
+        this(roots, weights, features, values, rightChildren, null, null, null, modelSize, normalizer);
+    }
+
+    /**
+     * @param roots position of the root node of each tree
+     * @param weights the respective weights of each tree
+     * @param features feature ordinal of each node, {@link #LEAF} for leaves
+     * @param values threshold of each split, category bitset index of each categorical split or output of each leaf
+     * @param rightChildren position of the right child of each split (ignored for leaves)
+     * @param splitTypes split type of each node or null if all the splits are simple threshold splits
+     * @param categoryBounds start of each category bitset in categories followed by the end of the last one,
+     *                       null if there are no categorical splits
+     * @param categories category bitsets, bit i of a bitset is set if category i goes left
+     * @param modelSize the modelSize in number of feature used
+     * @param normalizer class to perform any normalization on model score
+     */
+    public FlatAdditiveDecisionTree(int[] roots, float[] weights, int[] features, float[] values, int[] rightChildren,
+                                    byte[] splitTypes, int[] categoryBounds, int[] categories,
+                                    int modelSize, Normalizer normalizer) {
+        if (roots.length != weights.length) {
+            throw new IllegalArgumentException("Expected one weight per tree");
+        }
+        if (features.length != values.length || features.length != rightChildren.length) {
+            throw new IllegalArgumentException("Node arrays must have the same length");
+        }
+        for (int root : roots) {
+            if (root < 0 || root >= features.length) {
+                throw new IllegalArgumentException("Tree root [" + root + "] is out of bounds");
+            }
+        }
+        for (int i = 0; i < features.length; i++) {
+            if (features[i] == LEAF) {
+                continue;
+            }
+            if (features[i] < 0 || features[i] >= modelSize) {
+                throw new IllegalArgumentException("Unknown feature ordinal [" + features[i] + "] at position [" + i + "]");
+            }
+            // the right child must be after the left subtree, this also guarantees that evaluation terminates
+            if (rightChildren[i] <= i + 1 || rightChildren[i] >= features.length) {
+                throw new IllegalArgumentException("Split at position [" + i + "] has an invalid right child");
+            }
+        }
+        if (splitTypes != null) {
+            validateSplitTypes(features, values, splitTypes, categoryBounds, categories);
+        }
+        this.roots = roots;
+        this.weights = weights;
+        this.features = features;
+        this.values = values;
+        this.rightChildren = rightChildren;
+        this.splitTypes = splitTypes;
+        this.categoryBounds = categoryBounds;
+        this.categories = categories;
+        this.modelSize = modelSize;
+        this.normalizer = Objects.requireNonNull(normalizer);
+        this.tracksMissing = hasMissingNaN(features, splitTypes);
+        this.stageBounds = stageBounds(roots, weights, features, values, rightChildren);
+        this.monotonic = Normalizers.isMonotonic(normalizer);
+    }
+
+    /**
+     * Compute, for each stage, an upper bound of the sum of the outputs of the trees from this stage to the last one.
+     * The bounds are padded to cover the rounding errors of the float sum computed when scoring.
+     */
+    static float[] stageBounds(int[] roots, float[] weights, int[] features, float[] values, int[] rightChildren) {
+        // children are always after their parent, the min/max leaf below each node is computed in reverse order
+        float[] maxLeaf = new float[features.length];
+        float[] minLeaf = new float[features.length];
+        for (int n = features.length - 1; n >= 0; n--) {
+            if (features[n] == LEAF) {
+                maxLeaf[n] = minLeaf[n] = values[n];
+            } else {
+                maxLeaf[n] = Math.max(maxLeaf[n + 1], maxLeaf[rightChildren[n]]);
+                minLeaf[n] = Math.min(minLeaf[n + 1], minLeaf[rightChildren[n]]);
+            }
+        }
+        float[] bounds = new float[(roots.length + STAGE_SIZE - 1) / STAGE_SIZE];
+        double sum = 0;
+        double absSum = 0;
+        for (int i = roots.length - 1; i >= 0; i--) {
+            float max = weights[i] >= 0 ? weights[i] * maxLeaf[roots[i]] : weights[i] * minLeaf[roots[i]];
+            float min = weights[i] >= 0 ? weights[i] * minLeaf[roots[i]] : weights[i] * maxLeaf[roots[i]];
+            sum += max;
+            absSum += Math.max(Math.abs(max), Math.abs(min));
+            if (i % STAGE_SIZE == 0) {
+                bounds[i / STAGE_SIZE] = (float) sum;
+            }
+        }
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = padSum(bounds[i], absSum, roots.length);
+        }
+        return bounds;
+    }
+
+    /**
+     * @return true if a split sends NaN, and thus features that did not match, to its default direction
+     */
+    static boolean hasMissingNaN(int[] features, byte[] splitTypes) {
+        if (splitTypes == null) {
+            return false;
+        }
+        for (int i = 0; i < features.length; i++) {
+            if (features[i] != LEAF && (splitTypes[i] & (MISSING_NAN | CATEGORICAL)) == MISSING_NAN) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void validateSplitTypes(int[] features, float[] values, byte[] splitTypes, int[] categoryBounds,
+                                           int[] categories) {
+        if (splitTypes.length != features.length) {
+            throw new IllegalArgumentException("Node arrays must have the same length");
+        }
+        int nbCategorical = categoryBounds == null ? 0 : categoryBounds.length - 1;
+        for (int i = 0; i < features.length; i++) {
+            if ((splitTypes[i] & CATEGORICAL) == 0 || features[i] == LEAF) {
+                continue;
+            }
+            int idx = (int) values[i];
+            if (idx != values[i] || idx < 0 || idx >= nbCategorical) {
+                throw new IllegalArgumentException("Categorical split at position [" + i + "] has an invalid category bitset");
+            }
+            if (categoryBounds[idx] < 0 || categoryBounds[idx] > categoryBounds[idx + 1]
+                    || categoryBounds[idx + 1] > categories.length) {
+                throw new IllegalArgumentException("Category bitset [" + idx + "] is out of bounds");
+            }
+        }
+    }
+
+    /**
+     * Convert a tree ensemble made of {@link NaiveAdditiveDecisionTree.Node} objects
+     */
+    public static FlatAdditiveDecisionTree fromNodes(NaiveAdditiveDecisionTree ranker) {
+        Builder builder = new Builder(ranker.size(), ranker.normalizer());
+        NaiveAdditiveDecisionTree.Node[] trees = ranker.trees();
+        float[] weights = ranker.weights();
+        for (int i = 0; i < trees.length; i++) {
+            builder.startTree(weights[i]);
+            builder.addNode(trees[i]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param values the new threshold of each split and output of each leaf
+     * @return a copy of this ensemble sharing the same tree structure but using different node values
+     */
+    public FlatAdditiveDecisionTree withValues(float[] values) {
+        return new FlatAdditiveDecisionTree(roots, weights, features, values, rightChildren, splitTypes, categoryBounds,
+                categories, modelSize, normalizer);
+    }
+
+    @Override
+    public String name() {
+        return "flat_additive_decision_tree";
+    }
+
+    @Override
+    protected float score(DenseFeatureVector vector) {
+        if (splitTypes != null) {
+            return normalizer.normalize(scoreTypedSplits(vector.scores, vector.missing(), 0F, 0, roots.length));
+        }
+        return normalizer.normalize(scoreTrees(vector.scores, 0F, 0, roots.length));
+    }
+
+    @Override
+    protected float score(DenseFeatureVector vector, float minScore) {
+        if (!monotonic || !(minScore > Float.NEGATIVE_INFINITY)) {
+            return score(vector);
+        }
+        float[] scores = vector.scores;
+        FixedBitSet missing = vector.missing();
+        float sum = 0F;
+        for (int stage = 0; stage < stageBounds.length; stage++) {
+            float bound = normalizer.normalize(sum + stageBounds[stage]);
+            if (bound < minScore) {
+                return bound;
+            }
+            int from = stage * STAGE_SIZE;
+            int to = Math.min(from + STAGE_SIZE, roots.length);
+            sum = splitTypes == null ? scoreTrees(scores, sum, from, to) : scoreTypedSplits(scores, missing, sum, from, to);
+        }
+        return normalizer.normalize(sum);
+    }
+
+    @Override
+    public float maxScore() {
+        if (!monotonic) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return normalizer.normalize(stageBounds.length > 0 ? stageBounds[0] : 0F);
+    }
+
+    /**
+     * Only the leaves a document within the given feature ranges can reach are considered.
+     * Typed splits are not evaluated, both of their children are considered reachable.
+     * Once {@link #MAX_SCORE_VISITED_NODES} nodes are visited the remaining stages are bounded with
+     * {@link #stageBounds()}, large ensembles get a looser bound but its cost does not grow with the number of trees.
+     */
+    @Override
+    public float maxScore(float[] minFeatureScores, float[] maxFeatureScores) {
+        if (!monotonic) {
+            return Float.POSITIVE_INFINITY;
+        }
+        int[] stack = new int[16];
+        double sum = 0;
+        double absSum = 0;
+        int visited = 0;
+        for (int i = 0; i < roots.length; i++) {
+            if (visited >= MAX_SCORE_VISITED_NODES && i % STAGE_SIZE == 0) {
+                // both bounds are padded, nextUp covers the rounding of their sum
+                return normalizer.normalize(Math.nextUp(padSum(sum, absSum, i) + stageBounds[i / STAGE_SIZE]));
+            }
+            float maxLeaf = Float.NEGATIVE_INFINITY;
+            float minLeaf = Float.POSITIVE_INFINITY;
+            int size = 0;
+            stack[size++] = roots[i];
+            while (size > 0) {
+                int n = stack[--size];
+                int feature = features[n];
+                visited++;
+                if (feature == LEAF) {
+                    maxLeaf = Math.max(maxLeaf, values[n]);
+                    minLeaf = Math.min(minLeaf, values[n]);
+                    continue;
+                }
+                boolean left = true;
+                boolean right = true;
+                if ((splitTypes == null || splitTypes[n] == 0) && feature < minFeatureScores.length) {
+                    // written so that NaN bounds keep both children
+                    left = !(values[n] <= minFeatureScores[feature]);
+                    right = !(values[n] > maxFeatureScores[feature]);
+                }
+                stack = ArrayUtil.grow(stack, size + 2);
+                if (left) {
+                    stack[size++] = n + 1;
+                }
+                if (right) {
+                    stack[size++] = rightChildren[n];
+                }
+            }
+            float max = weights[i] >= 0 ? weights[i] * maxLeaf : weights[i] * minLeaf;
+            float min = weights[i] >= 0 ? weights[i] * minLeaf : weights[i] * maxLeaf;
+            sum += max;
+            absSum += Math.max(Math.abs(max), Math.abs(min));
+        }
+        return normalizer.normalize(padSum(sum, absSum, roots.length));
+    }
+
+    /**
+     * Pad an exact sum of nbTerms tree outputs to cover the rounding errors of the float sum computed when scoring:
+     * each float addition loses at most one ulp of the magnitude of the partial sum.
+     */
+    private static float padSum(double sum, double absSum, int nbTerms) {
+        float bound = Math.nextUp((float) (sum + (nbTerms + 1) * absSum * Math.ulp(1F)));
+        return Float.isNaN(bound) ? Float.POSITIVE_INFINITY : bound;
+    }
+
+    /**
+     * Add the outputs of the trees from (inclusive) to to (exclusive) to sum
+     */
+    private float scoreTrees(float[] scores, float sum, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int n = roots[i];
+            int feature;
+            while ((feature = features[n]) != LEAF) {
+                n = values[n] > scores[feature] ? n + 1 : rightChildren[n];
+            }
+            sum += weights[i] * values[n];
+        }
+        return sum;
+    }
+
+    private float scoreTypedSplits(float[] scores, FixedBitSet missing, float sum, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int n = roots[i];
+            int feature;
+            while ((feature = features[n]) != LEAF) {
+                float score = missing != null && missing.get(feature) ? Float.NaN : scores[feature];
+                byte type = splitTypes[n];
+                boolean left = (type & CATEGORICAL) != 0 ? inCategory((int) values[n], score) : goesLeft(type, values[n], score);
+                n = left ? n + 1 : rightChildren[n];
+            }
+            sum += weights[i] * values[n];
+        }
+        return sum;
+    }
+
+    /**
+     * Routing of a split that is not categorical
+     */
+    static boolean goesLeft(byte type, float threshold, float score) {
+        if (Float.isNaN(score)) {
+            if ((type & MISSING_NAN) != 0) {
+                return (type & DEFAULT_LEFT) != 0;
+            }
+            score = 0F;
+        }
+        if ((type & MISSING_ZERO) != 0 && Math.abs(score) <= ZERO_THRESHOLD) {
+            return (type & DEFAULT_LEFT) != 0;
+        }
+        return threshold > score;
+    }
+
+    private boolean inCategory(int bitset, float score) {
+        // NaN converts to 0, it must be checked first
+        if (Float.isNaN(score)) {
+            return false;
+        }
+        int category = (int) score;
+        if (category < 0) {
+            return false;
+        }
+        int word = categoryBounds[bitset] + (category >>> 5);
+        return word < categoryBounds[bitset + 1] && (categories[word] & (1 << (category & 31))) != 0;
+    }
+
+    @Override
+    protected int size() {
+        return modelSize;
+    }
+
+    @Override
+    public boolean tracksMissingFeatures() {
+        return tracksMissing;
+    }
+
+    public int[] roots() {
+        return roots;
+    }
+
+    public float[] weights() {
+        return weights;
+    }
+
+    public int[] features() {
+        return features;
+    }
+
+    public float[] values() {
+        return values;
+    }
+
+    public int[] rightChildren() {
+        return rightChildren;
+    }
+
+    /**
+     * @return the split type of each node or null if all the splits are simple threshold splits
+     */
+    public byte[] splitTypes() {
+        return splitTypes;
+    }
+
+    /**
+     * @return the bounds of the category bitsets or null if there are no categorical splits
+     */
+    public int[] categoryBounds() {
+        return categoryBounds;
+    }
+
+    /**
+     * @return the category bitsets or null if there are no categorical splits
+     */
+    public int[] categories() {
+        return categories;
+    }
+
+    public Normalizer normalizer() {
+        return normalizer;
+    }
+
+    /**
+     * @return the upper bound of the sum of the trees starting at each stage of {@link #STAGE_SIZE} trees
+     */
+    float[] stageBounds() {
+        return stageBounds;
+    }
+
+    /**
+     * @return the number of nodes (splits and leaves) in the ensemble
+     */
+    public int numNodes() {
+        return features.length;
+    }
+
+    /**
+     * Return the memory usage of this object in bytes. Negative values are illegal.
+     */
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_USED + RamUsageEstimator.sizeOf(roots) + RamUsageEstimator.sizeOf(weights)
+                + RamUsageEstimator.sizeOf(features) + RamUsageEstimator.sizeOf(values)
+                + RamUsageEstimator.sizeOf(rightChildren) + RamUsageEstimator.sizeOf(stageBounds)
+                // optional arrays, RamUsageEstimator.sizeOf does not accept null
+                + (splitTypes != null ? RamUsageEstimator.sizeOf(splitTypes) : 0)
+                + (categoryBounds != null ? RamUsageEstimator.sizeOf(categoryBounds) + RamUsageEstimator.sizeOf(categories) : 0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        FlatAdditiveDecisionTree that = (FlatAdditiveDecisionTree) o;
+        return modelSize == that.modelSize
+                && normalizer.equals(that.normalizer)
+                && Arrays.equals(roots, that.roots)
+                && Arrays.equals(weights, that.weights)
+                && Arrays.equals(features, that.features)
+                && Arrays.equals(values, that.values)
+                && Arrays.equals(rightChildren, that.rightChildren)
+                && Arrays.equals(splitTypes, that.splitTypes)
+                && Arrays.equals(categoryBounds, that.categoryBounds)
+                && Arrays.equals(categories, that.categories);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Arrays.hashCode(roots);
+        result = 31 * result + Arrays.hashCode(features);
+        result = 31 * result + Arrays.hashCode(values);
+        return result;
+    }
+
+    /**
+     * Build a {@link FlatAdditiveDecisionTree} by appending nodes in pre-order.
+     * A split must be followed by its left subtree, the position of its right child
+     * is then set with {@link #setRightChild(int, int)}.
+     */
+    public static class Builder {
+        private final int modelSize;
+        private Normalizer normalizer;
+        private int[] roots = new int[8];
+        private float[] weights = new float[8];
+        private int nbTrees;
+        private int[] features = new int[64];
+        private float[] values = new float[64];
+        private int[] rightChildren = new int[64];
+        private int nbNodes;
+        // allocated with the first typed split
+        private byte[] splitTypes;
+        private int[] categoryBounds = new int[]{0};
+        private int[] categories = new int[0];
+        private int nbCategorical;
+
+        public Builder(int modelSize, Normalizer normalizer) {
+            this.modelSize = modelSize;
+            this.normalizer = Objects.requireNonNull(normalizer);
+        }
+
+        /**
+         * Replace the normalizer, useful when it is only known after the trees are read.
+         */
+        public Builder normalizer(Normalizer normalizer) {
+            this.normalizer = Objects.requireNonNull(normalizer);
+            return this;
+        }
+
+        /**
+         * Start a new tree, the next node added will be its root.
+         */
+        public Builder startTree(float weight) {
+            roots = ArrayUtil.grow(roots, nbTrees + 1);
+            weights = ArrayUtil.grow(weights, nbTrees + 1);
+            roots[nbTrees] = nbNodes;
+            weights[nbTrees] = weight;
+            nbTrees++;
+            return this;
+        }
+
+        /**
+         * @return the position of the new split
+         */
+        public int addSplit(int feature, float threshold) {
+            assert feature != LEAF;
+            return addNode(feature, threshold);
+        }
+
+        /**
+         * @return the position of the new leaf
+         */
+        public int addLeaf(float output) {
+            return addNode(LEAF, output);
+        }
+
+        /**
+         * Reserve a node whose type and value are set later with {@link #setSplit(int, int, float)}
+         * or {@link #setLeaf(int, float)}, so that nodes whose fields follow their children can be added in pre-order.
+         *
+         * @return the position of the new node
+         */
+        public int reserveNode() {
+            return addNode(LEAF, 0F);
+        }
+
+        /**
+         * Turn a node previously added into a split
+         */
+        public void setSplit(int node, int feature, float threshold) {
+            assert node < nbNodes && feature != LEAF;
+            features[node] = feature;
+            values[node] = threshold;
+        }
+
+        /**
+         * Turn a node previously added into a leaf
+         */
+        public void setLeaf(int node, float output) {
+            assert node < nbNodes;
+            features[node] = LEAF;
+            values[node] = output;
+            rightChildren[node] = LEAF;
+        }
+
+        /**
+         * Turn a node previously added into a categorical split
+         *
+         * @param categories bitset of the categories that go left, bit i of the word i / 32 is set if category i goes left
+         */
+        public void setCategoricalSplit(int node, int feature, int[] categories) {
+            assert node < nbNodes && feature != LEAF;
+            int start = categoryBounds[nbCategorical];
+            categoryBounds = ArrayUtil.grow(categoryBounds, nbCategorical + 2);
+            this.categories = ArrayUtil.grow(this.categories, start + categories.length);
+            System.arraycopy(categories, 0, this.categories, start, categories.length);
+            categoryBounds[nbCategorical + 1] = start + categories.length;
+            features[node] = feature;
+            values[node] = nbCategorical++;
+            setSplitType(node, CATEGORICAL);
+        }
+
+        /**
+         * Set the split type of a split previously added
+         *
+         * @param type a combination of {@link #DEFAULT_LEFT}, {@link #MISSING_ZERO}, {@link #MISSING_NAN}
+         *             and {@link #CATEGORICAL}
+         */
+        public void setSplitType(int split, int type) {
+            assert split < nbNodes;
+            if (type == 0 && splitTypes == null) {
+                return;
+            }
+            splitTypes = ArrayUtil.grow(splitTypes == null ? new byte[features.length] : splitTypes, features.length);
+            splitTypes[split] = (byte) type;
+        }
+
+        /**
+         * Change the weight of a tree previously started
+         */
+        public void setWeight(int tree, float weight) {
+            assert tree < nbTrees;
+            weights[tree] = weight;
+        }
+
+        /**
+         * @return the number of trees started
+         */
+        public int numTrees() {
+            return nbTrees;
+        }
+
+        /**
+         * Set the right child of a split previously added
+         */
+        public void setRightChild(int split, int rightChild) {
+            assert features[split] != LEAF;
+            rightChildren[split] = rightChild;
+        }
+
+        /**
+         * @return the position the next added node will have
+         */
+        public int nextNode() {
+            return nbNodes;
+        }
+
+        /**
+         * Append all the trees of another builder, node positions are shifted accordingly.
+         */
+        public Builder append(Builder other) {
+            int offset = nbNodes;
+            roots = ArrayUtil.grow(roots, nbTrees + other.nbTrees);
+            weights = ArrayUtil.grow(weights, nbTrees + other.nbTrees);
+            for (int i = 0; i < other.nbTrees; i++) {
+                roots[nbTrees + i] = other.roots[i] + offset;
+            }
+            System.arraycopy(other.weights, 0, weights, nbTrees, other.nbTrees);
+            nbTrees += other.nbTrees;
+
+            features = ArrayUtil.grow(features, nbNodes + other.nbNodes);
+            values = ArrayUtil.grow(values, nbNodes + other.nbNodes);
+            rightChildren = ArrayUtil.grow(rightChildren, nbNodes + other.nbNodes);
+            System.arraycopy(other.features, 0, features, nbNodes, other.nbNodes);
+            System.arraycopy(other.values, 0, values, nbNodes, other.nbNodes);
+            for (int i = 0; i < other.nbNodes; i++) {
+                int right = other.rightChildren[i];
+                rightChildren[nbNodes + i] = right == LEAF ? LEAF : right + offset;
+            }
+            if (other.splitTypes != null) {
+                splitTypes = ArrayUtil.grow(splitTypes == null ? new byte[features.length] : splitTypes, features.length);
+                System.arraycopy(other.splitTypes, 0, splitTypes, nbNodes, other.nbNodes);
+                for (int i = 0; i < other.nbNodes; i++) {
+                    if ((other.splitTypes[i] & CATEGORICAL) != 0 && other.features[i] != LEAF) {
+                        values[nbNodes + i] += nbCategorical;
+                    }
+                }
+            } else if (splitTypes != null) {
+                splitTypes = ArrayUtil.grow(splitTypes, features.length);
+            }
+            int catOffset = categoryBounds[nbCategorical];
+            categoryBounds = ArrayUtil.grow(categoryBounds, nbCategorical + other.nbCategorical + 1);
+            for (int i = 1; i <= other.nbCategorical; i++) {
+                categoryBounds[nbCategorical + i] = other.categoryBounds[i] + catOffset;
+            }
+            int nbWords = other.categoryBounds[other.nbCategorical];
+            categories = ArrayUtil.grow(categories, catOffset + nbWords);
+            System.arraycopy(other.categories, 0, categories, catOffset, nbWords);
+            nbCategorical += other.nbCategorical;
+            nbNodes += other.nbNodes;
+            return this;
+        }
+
+        /**
+         * @return the highest feature ordinal used by a split, -1 if there are no splits
+         */
+        public int maxFeature() {
+            int max = -1;
+            for (int i = 0; i < nbNodes; i++) {
+                max = Math.max(max, features[i]);
+            }
+            return max;
+        }
+
+        void addNode(NaiveAdditiveDecisionTree.Node node) {
+            if (node.isLeaf()) {
+                addLeaf(((NaiveAdditiveDecisionTree.Leaf) node).output());
+            } else {
+                NaiveAdditiveDecisionTree.Split split = (NaiveAdditiveDecisionTree.Split) node;
+                int pos = addSplit(split.feature(), split.threshold());
+                addNode(split.left());
+                setRightChild(pos, nextNode());
+                addNode(split.right());
+            }
+        }
+
+        private int addNode(int feature, float value) {
+            if (nbTrees == 0) {
+                throw new IllegalStateException("startTree must be called before adding nodes");
+            }
+            features = ArrayUtil.grow(features, nbNodes + 1);
+            values = ArrayUtil.grow(values, nbNodes + 1);
+            rightChildren = ArrayUtil.grow(rightChildren, nbNodes + 1);
+            if (splitTypes != null) {
+                splitTypes = ArrayUtil.grow(splitTypes, features.length);
+                splitTypes[nbNodes] = 0;
+            }
+            features[nbNodes] = feature;
+            values[nbNodes] = value;
+            rightChildren[nbNodes] = LEAF;
+            return nbNodes++;
+        }
+
+        public FlatAdditiveDecisionTree build() {
+            return new FlatAdditiveDecisionTree(ArrayUtil.copyOfSubArray(roots, 0, nbTrees),
+                    ArrayUtil.copyOfSubArray(weights, 0, nbTrees),
+                    ArrayUtil.copyOfSubArray(features, 0, nbNodes),
+                    ArrayUtil.copyOfSubArray(values, 0, nbNodes),
+                    ArrayUtil.copyOfSubArray(rightChildren, 0, nbNodes),
+                    splitTypes == null ? null : ArrayUtil.copyOfSubArray(splitTypes, 0, nbNodes),
+                    nbCategorical == 0 ? null : ArrayUtil.copyOfSubArray(categoryBounds, 0, nbCategorical + 1),
+                    nbCategorical == 0 ? null : ArrayUtil.copyOfSubArray(categories, 0, categoryBounds[nbCategorical]),
+                    modelSize, normalizer);
+        }
+    }
+}
@@ -74,6 +74,18 @@ public class NaiveAdditiveDecisionTree extends DenseLtrRanker implements Account
         return modelSize;
     }
 
+    public Node[] trees() {
+        return trees;
+    }
+
+    public float[] weights() {
+        return weights;
+    }
+
+    public Normalizer normalizer() {
+        return normalizer;
+    }
+
     /**
      * Return the memory usage of this object in bytes. Negative values are illegal.
      */
@@ -102,6 +114,22 @@ public class NaiveAdditiveDecisionTree extends DenseLtrRanker implements Account
             this.threshold = threshold;
         }
 
+        public Node left() {
+            return left;
+        }
+
+        public Node right() {
+            return right;
+        }
+
+        public int feature() {
+            return feature;
+        }
+
+        public float threshold() {
+            return threshold;
+        }
+
         @Override
         public boolean isLeaf() {
             return false;
@@ -141,6 +169,10 @@ public class NaiveAdditiveDecisionTree extends DenseLtrRanker implements Account
             this.output = output;
         }
 
+        public float output() {
+            return output;
+        }
+
         @Override
         public boolean isLeaf() {
             return true;
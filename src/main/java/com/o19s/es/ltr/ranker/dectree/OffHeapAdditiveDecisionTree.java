@@ -0,0 +1,279 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.ranker.dectree;
+
+import com.o19s.es.ltr.ranker.DenseFeatureVector;
+import com.o19s.es.ltr.ranker.DenseLtrRanker;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.OffHeapAccountable;
+import com.o19s.es.ltr.ranker.normalizer.FeatureNormalizingRanker;
+import com.o19s.es.ltr.ranker.normalizer.Normalizer;
+import com.o19s.es.ltr.ranker.normalizer.Normalizers;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Additive decision tree whose nodes live in a direct {@link ByteBuffer}.
+ * Same layout and evaluation as {@link FlatAdditiveDecisionTree}, the node arrays are interleaved
+ * so that a node is read from a single location: feature ordinal (int), value (float), right child (int).
+ * Only the roots and the weights of the trees are kept on heap, very large ensembles
+ * no longer put pressure on the garbage collector.
+ * The off-heap memory is released when the tree is garbage collected.
+ * When the ensemble has split types (default directions for missing values) they are stored as a fourth field
+ * of every node. Ensembles with categorical splits are not supported and stay on heap.
+ * Early exit on a minimum competitive score works like {@link FlatAdditiveDecisionTree}, the stage bounds are kept on heap.
+ */
+public class OffHeapAdditiveDecisionTree extends DenseLtrRanker implements Accountable, OffHeapAccountable {
+    private static final long BASE_RAM_USED = RamUsageEstimator.shallowSizeOfInstance(OffHeapAdditiveDecisionTree.class);
+    // approximate shallow size of a DirectByteBuffer
+    private static final long BUFFER_RAM_USED = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 64;
+    private static final int NODE_BYTES = Integer.BYTES + Float.BYTES + Integer.BYTES;
+    private static final int VALUE_OFFSET = Integer.BYTES;
+    private static final int RIGHT_OFFSET = Integer.BYTES + Float.BYTES;
+    private static final int TYPED_NODE_BYTES = NODE_BYTES + Integer.BYTES;
+    private static final int TYPE_OFFSET = NODE_BYTES;
+
+    private final int[] roots;
+    private final float[] weights;
+    private final ByteBuffer nodes;
+    private final int modelSize;
+    private final Normalizer normalizer;
+    private final boolean typed;
+    private final boolean tracksMissing;
+    private final float[] stageBounds;
+    private final boolean monotonic;
+
+    private OffHeapAdditiveDecisionTree(int[] roots, float[] weights, ByteBuffer nodes, int modelSize, Normalizer normalizer,
+                                        boolean typed, boolean tracksMissing, float[] stageBounds) {
+        this.roots = roots;
+        this.weights = weights;
+        this.nodes = nodes;
+        this.modelSize = modelSize;
+        this.normalizer = normalizer;
+        this.typed = typed;
+        this.tracksMissing = tracksMissing;
+        this.stageBounds = stageBounds;
+        this.monotonic = Normalizers.isMonotonic(normalizer);
+    }
+
+    /**
+     * Copy a flat tree ensemble off-heap, roots are converted to byte offsets.
+     */
+    public static OffHeapAdditiveDecisionTree copyOf(FlatAdditiveDecisionTree tree) {
+        if (tree.categoryBounds() != null) {
+            throw new IllegalArgumentException("Trees with categorical splits cannot be moved off-heap");
+        }
+        int[] features = tree.features();
+        float[] values = tree.values();
+        int[] rightChildren = tree.rightChildren();
+        byte[] splitTypes = tree.splitTypes();
+        int nodeBytes = splitTypes == null ? NODE_BYTES : TYPED_NODE_BYTES;
+        ByteBuffer nodes = ByteBuffer.allocateDirect(Math.multiplyExact(features.length, nodeBytes))
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < features.length; i++) {
+            nodes.putInt(features[i]);
+            nodes.putFloat(values[i]);
+            nodes.putInt(features[i] == FlatAdditiveDecisionTree.LEAF ? FlatAdditiveDecisionTree.LEAF
+                    : rightChildren[i] * nodeBytes);
+            if (splitTypes != null) {
+                nodes.putInt(splitTypes[i]);
+            }
+        }
+        nodes.flip();
+        int[] roots = tree.roots().clone();
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] *= nodeBytes;
+        }
+        return new OffHeapAdditiveDecisionTree(roots, tree.weights().clone(), nodes, tree.size(), tree.normalizer(),
+                splitTypes != null, tree.tracksMissingFeatures(), tree.stageBounds());
+    }
+
+    /**
+     * @return the off-heap bytes {@link #moveOffHeap(LtrRanker)} allocates for this ranker, 0 if it cannot be moved
+     */
+    public static long offHeapBytesNeeded(LtrRanker ranker) {
+        if (ranker instanceof FeatureNormalizingRanker) {
+            return offHeapBytesNeeded(((FeatureNormalizingRanker) ranker).getWrapped());
+        } else if (ranker instanceof NaiveAdditiveDecisionTree) {
+            long nodes = 0;
+            for (NaiveAdditiveDecisionTree.Node tree : ((NaiveAdditiveDecisionTree) ranker).trees()) {
+                nodes += countNodes(tree);
+            }
+            return nodes * NODE_BYTES;
+        } else if (ranker instanceof FlatAdditiveDecisionTree) {
+            FlatAdditiveDecisionTree tree = (FlatAdditiveDecisionTree) ranker;
+            if (tree.categoryBounds() != null) {
+                return 0;
+            }
+            return (long) tree.features().length * (tree.splitTypes() == null ? NODE_BYTES : TYPED_NODE_BYTES);
+        }
+        return 0;
+    }
+
+    private static long countNodes(NaiveAdditiveDecisionTree.Node node) {
+        if (node.isLeaf()) {
+            return 1;
+        }
+        NaiveAdditiveDecisionTree.Split split = (NaiveAdditiveDecisionTree.Split) node;
+        return 1 + countNodes(split.left()) + countNodes(split.right());
+    }
+
+    /**
+     * Move the trees of a ranker off-heap.
+     *
+     * @return the new ranker or null if the ranker is not a tree ensemble
+     */
+    public static LtrRanker moveOffHeap(LtrRanker ranker) {
+        if (ranker instanceof FeatureNormalizingRanker) {
+            FeatureNormalizingRanker normRanker = (FeatureNormalizingRanker) ranker;
+            LtrRanker wrapped = moveOffHeap(normRanker.getWrapped());
+            return wrapped != null ? new FeatureNormalizingRanker(wrapped, normRanker.getFtrNorms()) : null;
+        } else if (ranker instanceof NaiveAdditiveDecisionTree) {
+            return copyOf(FlatAdditiveDecisionTree.fromNodes((NaiveAdditiveDecisionTree) ranker));
+        } else if (ranker instanceof FlatAdditiveDecisionTree) {
+            FlatAdditiveDecisionTree tree = (FlatAdditiveDecisionTree) ranker;
+            return tree.categoryBounds() == null ? copyOf(tree) : null;
+        }
+        return null;
+    }
+
+    @Override
+    public String name() {
+        return "off_heap_additive_decision_tree";
+    }
+
+    @Override
+    protected float score(DenseFeatureVector vector) {
+        if (typed) {
+            return normalizer.normalize(scoreTypedSplits(vector.scores, vector.missing(), 0F, 0, roots.length));
+        }
+        return normalizer.normalize(scoreTrees(vector.scores, 0F, 0, roots.length));
+    }
+
+    @Override
+    protected float score(DenseFeatureVector vector, float minScore) {
+        if (!monotonic || !(minScore > Float.NEGATIVE_INFINITY)) {
+            return score(vector);
+        }
+        float[] scores = vector.scores;
+        FixedBitSet missing = vector.missing();
+        float sum = 0F;
+        for (int stage = 0; stage < stageBounds.length; stage++) {
+            float bound = normalizer.normalize(sum + stageBounds[stage]);
+            if (bound < minScore) {
+                return bound;
+            }
+            int from = stage * FlatAdditiveDecisionTree.STAGE_SIZE;
+            int to = Math.min(from + FlatAdditiveDecisionTree.STAGE_SIZE, roots.length);
+            sum = typed ? scoreTypedSplits(scores, missing, sum, from, to) : scoreTrees(scores, sum, from, to);
+        }
+        return normalizer.normalize(sum);
+    }
+
+    @Override
+    public float maxScore() {
+        if (!monotonic) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return normalizer.normalize(stageBounds.length > 0 ? stageBounds[0] : 0F);
+    }
+
+    private float scoreTrees(float[] scores, float sum, int from, int to) {
+        ByteBuffer nodes = this.nodes;
+        for (int i = from; i < to; i++) {
+            int n = roots[i];
+            int feature;
+            while ((feature = nodes.getInt(n)) != FlatAdditiveDecisionTree.LEAF) {
+                n = nodes.getFloat(n + VALUE_OFFSET) > scores[feature] ? n + NODE_BYTES : nodes.getInt(n + RIGHT_OFFSET);
+            }
+            sum += weights[i] * nodes.getFloat(n + VALUE_OFFSET);
+        }
+        return sum;
+    }
+
+    private float scoreTypedSplits(float[] scores, FixedBitSet missing, float sum, int from, int to) {
+        ByteBuffer nodes = this.nodes;
+        for (int i = from; i < to; i++) {
+            int n = roots[i];
+            int feature;
+            while ((feature = nodes.getInt(n)) != FlatAdditiveDecisionTree.LEAF) {
+                float score = missing != null && missing.get(feature) ? Float.NaN : scores[feature];
+                n = FlatAdditiveDecisionTree.goesLeft((byte) nodes.getInt(n + TYPE_OFFSET), nodes.getFloat(n + VALUE_OFFSET), score)
+                        ? n + TYPED_NODE_BYTES : nodes.getInt(n + RIGHT_OFFSET);
+            }
+            sum += weights[i] * nodes.getFloat(n + VALUE_OFFSET);
+        }
+        return sum;
+    }
+
+    @Override
+    protected int size() {
+        return modelSize;
+    }
+
+    @Override
+    public boolean tracksMissingFeatures() {
+        return tracksMissing;
+    }
+
+    /**
+     * @return the number of nodes (splits and leaves) in the ensemble
+     */
+    public int numNodes() {
+        return nodes.capacity() / (typed ? TYPED_NODE_BYTES : NODE_BYTES);
+    }
+
+    /**
+     * Return the on-heap memory usage of this object in bytes, off-heap nodes are excluded.
+     */
+    @Override
+    public long ramBytesUsed() {
+        return BASE_RAM_USED + BUFFER_RAM_USED + RamUsageEstimator.sizeOf(roots) + RamUsageEstimator.sizeOf(weights)
+                + RamUsageEstimator.sizeOf(stageBounds);
+    }
+
+    @Override
+    public long offHeapBytesUsed() {
+        return nodes.capacity();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        OffHeapAdditiveDecisionTree that = (OffHeapAdditiveDecisionTree) o;
+        return modelSize == that.modelSize
+                && normalizer.equals(that.normalizer)
+                && Arrays.equals(roots, that.roots)
+                && Arrays.equals(weights, that.weights)
+                && nodes.equals(that.nodes);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Arrays.hashCode(roots);
+        result = 31 * result + Arrays.hashCode(weights);
+        result = 31 * result + modelSize;
+        return result;
+    }
+}
@@ -26,13 +26,19 @@ import java.util.Objects;
 
 /**
  * Simple linear ranker that applies a dot product based
- * on the provided weights array.
+ * on the provided weights array, plus an optional intercept.
  */
 public class LinearRanker extends DenseLtrRanker implements Accountable {
     private final float[] weights;
+    private final float intercept;
 
     public LinearRanker(float[] weights) {
+        this(weights, 0F);
+    }
+
+    public LinearRanker(float[] weights, float intercept) {
         this.weights = Objects.requireNonNull(weights);
+        this.intercept = intercept;
     }
 
     @Override
@@ -43,18 +49,46 @@ public class LinearRanker extends DenseLtrRanker implements Accountable {
     @Override
     protected float score(DenseFeatureVector point) {
         float[] scores = point.scores;
-        float score = 0;
+        float score = intercept;
         for (int i = 0; i < weights.length; i++) {
             score += weights[i]*scores[i];
         }
         return score;
     }
 
+    @Override
+    public float maxScore(float[] minFeatureScores, float[] maxFeatureScores) {
+        double sum = intercept;
+        double absSum = Math.abs(intercept);
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] == 0F) {
+                continue;
+            }
+            float min = i < minFeatureScores.length ? minFeatureScores[i] : Float.NEGATIVE_INFINITY;
+            float max = i < maxFeatureScores.length ? maxFeatureScores[i] : Float.POSITIVE_INFINITY;
+            double high = weights[i] > 0 ? (double) weights[i] * max : (double) weights[i] * min;
+            double low = weights[i] > 0 ? (double) weights[i] * min : (double) weights[i] * max;
+            sum += high;
+            absSum += Math.max(Math.abs(high), Math.abs(low));
+        }
+        // each float operation of score() loses at most one ulp of the magnitude of the partial sum
+        float bound = Math.nextUp((float) (sum + 2 * (weights.length + 1) * absSum * Math.ulp(1F)));
+        return Float.isNaN(bound) ? Float.POSITIVE_INFINITY : bound;
+    }
+
     @Override
     protected int size() {
         return weights.length;
     }
 
+    public float[] weights() {
+        return weights;
+    }
+
+    public float intercept() {
+        return intercept;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -62,12 +96,12 @@ public class LinearRanker extends DenseLtrRanker implements Accountable {
 
         LinearRanker ranker = (LinearRanker) o;
 
-        return Arrays.equals(weights, ranker.weights);
+        return Float.compare(intercept, ranker.intercept) == 0 && Arrays.equals(weights, ranker.weights);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(weights);
+        return 31 * Arrays.hashCode(weights) + Float.hashCode(intercept);
     }
 
     /**
@@ -75,6 +109,6 @@ public class LinearRanker extends DenseLtrRanker implements Accountable {
      */
     @Override
     public long ramBytesUsed() {
-        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.sizeOf(weights);
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + Float.BYTES + RamUsageEstimator.sizeOf(weights);
     }
 }
@@ -1,16 +1,35 @@
 package com.o19s.es.ltr.ranker.normalizer;
 
+import com.o19s.es.ltr.ranker.DenseFeatureVector;
 import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.OffHeapAccountable;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.linear.LinearRanker;
 import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.RamUsageEstimator;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 
-public class FeatureNormalizingRanker implements LtrRanker, Accountable {
-
+/**
+ * Normalizes the feature scores before passing them to the wrapped ranker.
+ * Min/max and standard normalizers are applied as {@code (value - offset) / scale} from flat arrays,
+ * other normalizers are called one by one.
+ * Use {@link #fuse(LtrRanker, Map)} to fold the normalizers into the model when it is possible.
+ */
+public class FeatureNormalizingRanker implements LtrRanker, Accountable, OffHeapAccountable {
     private final LtrRanker wrapped;
     private final Map<Integer, Normalizer> ftrNorms;
+    private final int[] ords;
+    private final float[] offsets;
+    private final float[] scales;
+    private final int[] otherOrds;
+    private final Normalizer[] otherNorms;
     private static final long BASE_RAM_USED;
 
     private static final long PER_FTR_NORM_RAM_USED = 8;
@@ -21,12 +40,192 @@ public class FeatureNormalizingRanker implements LtrRanker, Accountable {
     public FeatureNormalizingRanker(LtrRanker wrapped, Map<Integer, Normalizer> ftrNorms) {
         this.wrapped = Objects.requireNonNull(wrapped);
         this.ftrNorms = Objects.requireNonNull(ftrNorms);
+        // iterate in ordinal order so that the feature vector is written sequentially
+        Map<Integer, Normalizer> sorted = new TreeMap<>(ftrNorms);
+        int nbAffine = (int) sorted.values().stream().filter(FeatureNormalizingRanker::isAffine).count();
+        this.ords = new int[nbAffine];
+        this.offsets = new float[nbAffine];
+        this.scales = new float[nbAffine];
+        this.otherOrds = new int[sorted.size() - nbAffine];
+        this.otherNorms = new Normalizer[sorted.size() - nbAffine];
+        int affine = 0;
+        int other = 0;
+        for (Map.Entry<Integer, Normalizer> ordToNorm : sorted.entrySet()) {
+            Normalizer norm = ordToNorm.getValue();
+            if (isAffine(norm)) {
+                ords[affine] = ordToNorm.getKey();
+                offsets[affine] = offset(norm);
+                scales[affine] = scale(norm);
+                affine++;
+            } else {
+                otherOrds[other] = ordToNorm.getKey();
+                otherNorms[other] = norm;
+                other++;
+            }
+        }
+    }
+
+    /**
+     * Fold the feature normalizers into the model when the model allows it:
+     * <ul>
+     *     <li>linear models fold them into their weights and intercept</li>
+     *     <li>tree ensembles with simple threshold splits fold them into the split thresholds,
+     *     the normalization being monotone the documents are routed exactly like before</li>
+     * </ul>
+     * The normalizers that can't be folded are applied by a {@link FeatureNormalizingRanker}.
+     *
+     * @return the ranker to use in place of {@code new FeatureNormalizingRanker(ranker, ftrNorms)}
+     */
+    public static LtrRanker fuse(LtrRanker ranker, Map<Integer, Normalizer> ftrNorms) {
+        Map<Integer, Normalizer> remaining = new HashMap<>(ftrNorms);
+        LtrRanker fused = ranker;
+        if (ranker instanceof LinearRanker) {
+            fused = fuseLinear((LinearRanker) ranker, remaining);
+        } else if (ranker instanceof FlatAdditiveDecisionTree && ((FlatAdditiveDecisionTree) ranker).splitTypes() == null) {
+            fused = fuseTrees((FlatAdditiveDecisionTree) ranker, remaining);
+        }
+        return remaining.isEmpty() ? fused : new FeatureNormalizingRanker(fused, remaining);
+    }
+
+    /**
+     * {@code w * (x - offset) / scale} is {@code (w / scale) * x - w * offset / scale}
+     */
+    private static LtrRanker fuseLinear(LinearRanker ranker, Map<Integer, Normalizer> remaining) {
+        float[] weights = ranker.weights().clone();
+        double intercept = ranker.intercept();
+        boolean folded = false;
+        for (Map.Entry<Integer, Normalizer> ordToNorm : new TreeMap<>(remaining).entrySet()) {
+            int ord = ordToNorm.getKey();
+            Normalizer norm = ordToNorm.getValue();
+            if (ord >= weights.length || !isAffine(norm) || !Float.isFinite(offset(norm))
+                    || !Float.isFinite(scale(norm)) || scale(norm) == 0F) {
+                continue;
+            }
+            double weight = weights[ord] / (double) scale(norm);
+            intercept -= weight * offset(norm);
+            weights[ord] = (float) weight;
+            remaining.remove(ord);
+            folded = true;
+        }
+        return folded ? new LinearRanker(weights, (float) intercept) : ranker;
+    }
+
+    private static LtrRanker fuseTrees(FlatAdditiveDecisionTree trees, Map<Integer, Normalizer> remaining) {
+        int[] features = trees.features();
+        float[] values = trees.values().clone();
+        Set<Integer> failed = new HashSet<>();
+        boolean folded = false;
+        for (int i = 0; i < features.length; i++) {
+            Normalizer norm = features[i] == FlatAdditiveDecisionTree.LEAF ? null : remaining.get(features[i]);
+            if (norm == null || !isAffine(norm)) {
+                continue;
+            }
+            float raw = rawThreshold(values[i], offset(norm), scale(norm));
+            if (Float.isNaN(raw) && !Float.isNaN(values[i])) {
+                failed.add(features[i]);
+            }
+            values[i] = raw;
+            folded = true;
+        }
+        if (!folded) {
+            return trees;
+        }
+        float[] original = trees.values();
+        for (int i = 0; i < features.length; i++) {
+            if (features[i] != FlatAdditiveDecisionTree.LEAF && failed.contains(features[i])) {
+                values[i] = original[i];
+            }
+        }
+        // normalizers of features not used by the trees are dropped as well
+        remaining.entrySet().removeIf((e) -> isAffine(e.getValue()) && !failed.contains(e.getKey()));
+        return trees.withValues(values);
+    }
+
+    /**
+     * A split goes left when {@code threshold > (x - offset) / scale}, since the normalization is monotone when
+     * scale is positive this is true iff x is lower than the smallest float whose normalized value is greater
+     * than or equal to threshold.
+     *
+     * @return the threshold to use on the raw feature value or NaN if the normalization is not increasing
+     */
+    static float rawThreshold(float threshold, float offset, float scale) {
+        if (Float.isNaN(threshold)) {
+            // nothing goes left
+            return threshold;
+        }
+        if (!Float.isFinite(offset) || !Float.isFinite(scale) || scale <= 0F) {
+            return Float.NaN;
+        }
+        // floats are searched in the order of their sortable int representation,
+        // hi is always a float that reaches the threshold and lo one that does not
+        final long min = NumericUtils.floatToSortableInt(Float.NEGATIVE_INFINITY);
+        final long max = NumericUtils.floatToSortableInt(Float.POSITIVE_INFINITY);
+        long estimate = NumericUtils.floatToSortableInt((float) ((double) threshold * scale + offset));
+        long lo;
+        long hi;
+        long step = 1;
+        if (reaches(estimate, threshold, offset, scale)) {
+            hi = estimate;
+            lo = Math.max(min, hi - step);
+            while (reaches(lo, threshold, offset, scale)) {
+                if (lo == min) {
+                    return Float.NEGATIVE_INFINITY;
+                }
+                hi = lo;
+                step *= 2;
+                lo = Math.max(min, hi - step);
+            }
+        } else {
+            // +Infinity always reaches the threshold
+            lo = estimate;
+            hi = Math.min(max, lo + step);
+            while (!reaches(hi, threshold, offset, scale)) {
+                lo = hi;
+                step *= 2;
+                hi = Math.min(max, lo + step);
+            }
+        }
+        while (hi - lo > 1) {
+            long mid = lo + (hi - lo) / 2;
+            if (reaches(mid, threshold, offset, scale)) {
+                hi = mid;
+            } else {
+                lo = mid;
+            }
+        }
+        return NumericUtils.sortableIntToFloat((int) hi);
+    }
+
+    private static boolean reaches(long sortableValue, float threshold, float offset, float scale) {
+        return (NumericUtils.sortableIntToFloat((int) sortableValue) - offset) / scale >= threshold;
+    }
+
+    private static boolean isAffine(Normalizer norm) {
+        return norm instanceof MinMaxFeatureNormalizer || norm instanceof StandardFeatureNormalizer;
+    }
+
+    private static float offset(Normalizer norm) {
+        return norm instanceof MinMaxFeatureNormalizer
+                ? ((MinMaxFeatureNormalizer) norm).getMinimum()
+                : ((StandardFeatureNormalizer) norm).getMean();
+    }
+
+    private static float scale(Normalizer norm) {
+        if (norm instanceof MinMaxFeatureNormalizer) {
+            MinMaxFeatureNormalizer minMax = (MinMaxFeatureNormalizer) norm;
+            return minMax.getMaximum() - minMax.getMinimum();
+        }
+        return ((StandardFeatureNormalizer) norm).getStdDeviation();
     }
 
     public Map<Integer, Normalizer> getFtrNorms() {
         return this.ftrNorms;
     }
 
+    public LtrRanker getWrapped() {
+        return this.wrapped;
+    }
+
     @Override
     public String name() {
         return wrapped.name();
@@ -37,17 +236,85 @@ public class FeatureNormalizingRanker implements LtrRanker, Accountable {
         return wrapped.newFeatureVector(reuse);
     }
 
+    @Override
+    public boolean tracksMissingFeatures() {
+        return wrapped.tracksMissingFeatures();
+    }
+
     @Override
     public float score(FeatureVector point) {
-        for (Map.Entry<Integer, Normalizer> ordToNorm: this.ftrNorms.entrySet()) {
-            int ord = ordToNorm.getKey();
-            float origFtrScore = point.getFeatureScore(ord);
-            float normed = ordToNorm.getValue().normalize(origFtrScore);
-            point.setFeatureScore(ord, normed);
-        }
+        normalize(point);
         return wrapped.score(point);
     }
 
+    @Override
+    public float score(FeatureVector point, float minScore) {
+        normalize(point);
+        return wrapped.score(point, minScore);
+    }
+
+    @Override
+    public float maxScore() {
+        return wrapped.maxScore();
+    }
+
+    /**
+     * The feature ranges are normalized before being passed to the wrapped ranker,
+     * the range of a feature whose normalizer is not monotonic becomes unknown.
+     */
+    @Override
+    public float maxScore(float[] minFeatureScores, float[] maxFeatureScores) {
+        float[] mins = minFeatureScores.clone();
+        float[] maxs = maxFeatureScores.clone();
+        for (int i = 0; i < ords.length; i++) {
+            int ord = ords[i];
+            if (ord >= mins.length) {
+                continue;
+            }
+            if (scales[i] > 0F) {
+                mins[ord] = (mins[ord] - offsets[i]) / scales[i];
+                maxs[ord] = (maxs[ord] - offsets[i]) / scales[i];
+            } else {
+                mins[ord] = Float.NEGATIVE_INFINITY;
+                maxs[ord] = Float.POSITIVE_INFINITY;
+            }
+        }
+        for (int i = 0; i < otherOrds.length; i++) {
+            int ord = otherOrds[i];
+            if (ord >= mins.length) {
+                continue;
+            }
+            if (Normalizers.isMonotonic(otherNorms[i])) {
+                // one ulp of margin in case the float implementation is not strictly monotonic
+                mins[ord] = Math.nextDown(otherNorms[i].normalize(mins[ord]));
+                maxs[ord] = Math.nextUp(otherNorms[i].normalize(maxs[ord]));
+            } else {
+                mins[ord] = Float.NEGATIVE_INFINITY;
+                maxs[ord] = Float.POSITIVE_INFINITY;
+            }
+        }
+        return wrapped.maxScore(mins, maxs);
+    }
+
+    private void normalize(FeatureVector point) {
+        if (point instanceof DenseFeatureVector) {
+            float[] scores = ((DenseFeatureVector) point).scores;
+            for (int i = 0; i < ords.length; i++) {
+                int ord = ords[i];
+                scores[ord] = (scores[ord] - offsets[i]) / scales[i];
+            }
+        } else {
+            for (int i = 0; i < ords.length; i++) {
+                int ord = ords[i];
+                point.setFeatureScore(ord, (point.getFeatureScore(ord) - offsets[i]) / scales[i]);
+            }
+        }
+        for (int i = 0; i < otherOrds.length; i++) {
+            int ord = otherOrds[i];
+            point.setFeatureScore(ord, otherNorms[i].normalize(point.getFeatureScore(ord)));
+        }
+    }
+
     @Override
     public boolean equals(Object other) {
         if (other == null) return false;
@@ -72,7 +339,9 @@ public class FeatureNormalizingRanker implements LtrRanker, Accountable {
     @Override
     public long ramBytesUsed() {
 
-        long ftrNormSize = ftrNorms.size() * (PER_FTR_NORM_RAM_USED);
+        long ftrNormSize = ftrNorms.size() * (PER_FTR_NORM_RAM_USED) + RamUsageEstimator.sizeOf(ords)
+                + RamUsageEstimator.sizeOf(offsets) + RamUsageEstimator.sizeOf(scales)
+                + RamUsageEstimator.sizeOf(otherOrds) + RamUsageEstimator.shallowSizeOf(otherNorms);
 
         if (this.wrapped instanceof Accountable) {
             Accountable accountable = (Accountable)this.wrapped;
@@ -81,4 +350,9 @@ public class FeatureNormalizingRanker implements LtrRanker, Accountable {
             return BASE_RAM_USED + ftrNormSize;
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public long offHeapBytesUsed() {
+        return wrapped instanceof OffHeapAccountable ? ((OffHeapAccountable) wrapped).offHeapBytesUsed() : 0;
+    }
+}
@@ -22,6 +22,14 @@ public class MinMaxFeatureNormalizer implements Normalizer  {
         this.maximum = maximum;
     }
 
+    public float getMinimum() {
+        return minimum;
+    }
+
+    public float getMaximum() {
+        return maximum;
+    }
+
     @Override
     public float normalize(float value) {
         return  (value - minimum) / (maximum - minimum);
@@ -11,12 +11,18 @@ public class Normalizers {
     private static final Map<String, Normalizer> NORMALIZERS = Collections.unmodifiableMap(new HashMap<String, Normalizer>() {{
         put(NOOP_NORMALIZER_NAME, new NoopNormalizer());
         put(SIGMOID_NORMALIZER_NAME, new SigmoidNormalizer());
+        put(EXP_NORMALIZER_NAME, new ExpNormalizer());
     }});
     public static final String NOOP_NORMALIZER_NAME = "noop";
     public static final String SIGMOID_NORMALIZER_NAME = "sigmoid";
+    public static final String EXP_NORMALIZER_NAME = "exp";
+    /**
+     * Prefix of the names of scaled sigmoids, followed by the scale, e.g. <code>sigmoid:2.0</code>
+     */
+    private static final String SCALED_SIGMOID_PREFIX = SIGMOID_NORMALIZER_NAME + ":";
 
     public static Normalizer get(String name) {
-        Normalizer normalizer = NORMALIZERS.get(name);
+        Normalizer normalizer = lookup(name);
         if (normalizer == null) {
             throw new IllegalArgumentException(name + " is not a valid Normalizer");
         }
@@ -24,7 +30,55 @@ public class Normalizers {
     }
 
     public static boolean exists(String name) {
-        return NORMALIZERS.containsKey(name);
+        return lookup(name) != null;
+    }
+
+    private static Normalizer lookup(String name) {
+        Normalizer normalizer = NORMALIZERS.get(name);
+        if (normalizer == null && name.startsWith(SCALED_SIGMOID_PREFIX)) {
+            try {
+                return sigmoid(Float.parseFloat(name.substring(SCALED_SIGMOID_PREFIX.length())));
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+        return normalizer;
+    }
+
+    /**
+     * @param normalizer a normalizer instance obtained with {@link #get(String)} or {@link #sigmoid(float)}
+     * @return the name it can be obtained with or null if unknown
+     */
+    public static String nameOf(Normalizer normalizer) {
+        if (normalizer instanceof ScaledSigmoidNormalizer) {
+            return SCALED_SIGMOID_PREFIX + ((ScaledSigmoidNormalizer) normalizer).scale;
+        }
+        for (Map.Entry<String, Normalizer> entry : NORMALIZERS.entrySet()) {
+            if (entry.getValue() == normalizer) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param scale multiplier applied to the score before the sigmoid
+     * @return a sigmoid normalizer, the registered instance if the scale is 1
+     */
+    public static Normalizer sigmoid(float scale) {
+        return scale == 1F ? get(SIGMOID_NORMALIZER_NAME) : new ScaledSigmoidNormalizer(scale);
+    }
+
+    /**
+     * @param normalizer a model output normalizer
+     * @return true if the normalizer never decreases the score, a bound of the raw score can then be normalized
+     */
+    public static boolean isMonotonic(Normalizer normalizer) {
+        if (normalizer instanceof ScaledSigmoidNormalizer) {
+            return ((ScaledSigmoidNormalizer) normalizer).scale >= 0F;
+        }
+        return normalizer instanceof NoopNormalizer || normalizer instanceof SigmoidNormalizer
+                || normalizer instanceof ExpNormalizer;
     }
 
     static class NoopNormalizer implements Normalizer {
@@ -44,4 +98,34 @@ public class Normalizers {
             return (float) (1 / (1 + Math.exp(-x)));
         }
     }
+
+    static class ScaledSigmoidNormalizer implements Normalizer {
+        private final float scale;
+
+        ScaledSigmoidNormalizer(float scale) {
+            this.scale = scale;
+        }
+
+        @Override
+        public float normalize(float val) {
+            return (float) (1 / (1 + Math.exp(-scale * val)));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ScaledSigmoidNormalizer && ((ScaledSigmoidNormalizer) o).scale == scale;
+        }
+
+        @Override
+        public int hashCode() {
+            return Float.hashCode(scale);
+        }
+    }
+
+    static class ExpNormalizer implements Normalizer {
+        @Override
+        public float normalize(float val) {
+            return (float) Math.exp(val);
+        }
+    }
 }
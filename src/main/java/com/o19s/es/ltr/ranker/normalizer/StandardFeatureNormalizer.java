@@ -12,6 +12,14 @@ public class StandardFeatureNormalizer implements Normalizer {
     }
 
 
+    public float getMean() {
+        return mean;
+    }
+
+    public float getStdDeviation() {
+        return stdDeviation;
+    }
+
     @Override
     public float normalize(float value) {
         return (value - this.mean) / this.stdDeviation;
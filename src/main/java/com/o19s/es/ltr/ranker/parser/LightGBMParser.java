@@ -0,0 +1,651 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.ranker.parser;
+
+import com.o19s.es.ltr.feature.FeatureSet;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.normalizer.Normalizer;
+import com.o19s.es.ltr.ranker.normalizer.Normalizers;
+import org.apache.lucene.util.ArrayUtil;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.XContentParserConfiguration;
+import org.elasticsearch.xcontent.json.JsonXContent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parse LightGBM models, either the text format written by {@code Booster.save_model()}
+ * or the json format returned by {@code Booster.dump_model()}.
+ *
+ * Splits reference features by the names listed in {@code feature_names}, they must match the feature names of the set.
+ * Numerical splits with a missing type and categorical splits are converted to the typed splits of
+ * {@link FlatAdditiveDecisionTree}, the {@code objective} defines the transformation applied to the sum of the trees.
+ * Multiclass and linear tree models are not supported.
+ */
+public class LightGBMParser implements LtrRankerParser {
+    public static final String TYPE = "model/lightgbm";
+
+    private static final int CATEGORICAL_MASK = 1;
+    private static final int DEFAULT_LEFT_MASK = 2;
+    private static final int MISSING_ZERO = 1;
+    private static final int MISSING_NAN = 2;
+
+    @Override
+    public FlatAdditiveDecisionTree parse(FeatureSet set, String model) {
+        for (int i = 0; i < model.length(); i++) {
+            if (!Character.isWhitespace(model.charAt(i))) {
+                return model.charAt(i) == '{' ? parseJson(set, model) : new TextModel(set, model).parse();
+            }
+        }
+        throw new IllegalArgumentException("LightGBM model is empty");
+    }
+
+    @Override
+    public FlatAdditiveDecisionTree parse(FeatureSet set, BytesReference model) {
+        for (int i = 0; i < model.length(); i++) {
+            if (!Character.isWhitespace(model.get(i))) {
+                return model.get(i) == '{' ? parseJson(set, model) : new TextModel(set, model.utf8ToString()).parse();
+            }
+        }
+        throw new IllegalArgumentException("LightGBM model is empty");
+    }
+
+    /**
+     * Output transformation of the LightGBM objective, as done by {@code ObjectiveFunction::ConvertOutput}
+     *
+     * @param objective the objective name followed by its parameters, e.g. {@code binary sigmoid:1}
+     */
+    static Normalizer normalizer(String objective) {
+        String[] parts = objective.trim().split("\\s+");
+        switch (parts[0]) {
+            case "regression":
+            case "regression_l2":
+            case "regression_l1":
+            case "huber":
+            case "fair":
+            case "quantile":
+            case "mape":
+            case "lambdarank":
+            case "rank_xendcg":
+            case "custom":
+                for (int i = 1; i < parts.length; i++) {
+                    if (parts[i].equals("sqrt")) {
+                        throw new IllegalArgumentException("Objective [" + objective + "] is not supported");
+                    }
+                }
+                return Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME);
+            case "binary":
+                float scale = 1F;
+                for (int i = 1; i < parts.length; i++) {
+                    if (parts[i].startsWith("sigmoid:")) {
+                        scale = Float.parseFloat(parts[i].substring("sigmoid:".length()));
+                    }
+                }
+                return Normalizers.sigmoid(scale);
+            case "cross_entropy":
+                return Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME);
+            case "poisson":
+            case "gamma":
+            case "tweedie":
+                return Normalizers.get(Normalizers.EXP_NORMALIZER_NAME);
+            default:
+                throw new IllegalArgumentException("Objective [" + objective + "] is not supported");
+        }
+    }
+
+    /**
+     * LightGBM sends documents left when {@code (double) score <= threshold},
+     * convert it to the strict float comparison of {@link FlatAdditiveDecisionTree}.
+     */
+    static float threshold(double threshold) {
+        float floor = (float) threshold;
+        if (floor > threshold) {
+            floor = Math.nextDown(floor);
+        }
+        return Math.nextUp(floor);
+    }
+
+    private static int splitType(boolean defaultLeft, int missingType) {
+        switch (missingType) {
+            case MISSING_ZERO:
+                return FlatAdditiveDecisionTree.MISSING_ZERO | (defaultLeft ? FlatAdditiveDecisionTree.DEFAULT_LEFT : 0);
+            case MISSING_NAN:
+                return FlatAdditiveDecisionTree.MISSING_NAN | (defaultLeft ? FlatAdditiveDecisionTree.DEFAULT_LEFT : 0);
+            default:
+                return 0;
+        }
+    }
+
+    private static int[] featureOrdinals(FeatureSet set, List<String> names) {
+        int[] ordinals = new int[names.size()];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = set.hasFeature(names.get(i)) ? set.featureOrdinal(names.get(i)) : -1;
+        }
+        return ordinals;
+    }
+
+    private static int featureOrdinal(int[] ordinals, List<String> names, int feature) {
+        if (feature < 0 || feature >= ordinals.length) {
+            throw new IllegalArgumentException("Split feature [" + feature + "] is not in feature_names");
+        }
+        if (ordinals[feature] < 0) {
+            throw new IllegalArgumentException("Unknown feature [" + names.get(feature) + "]");
+        }
+        return ordinals[feature];
+    }
+
+    private static void checkSingleOutput(int numClass, int numTreePerIteration) {
+        if (numClass > 1 || numTreePerIteration > 1) {
+            throw new IllegalArgumentException("Multiclass LightGBM models are not supported");
+        }
+    }
+
+    /**
+     * Random forests average the output of their trees
+     */
+    private static void averageOutput(FlatAdditiveDecisionTree.Builder builder) {
+        int nbTrees = builder.numTrees();
+        for (int i = 0; i < nbTrees; i++) {
+            builder.setWeight(i, 1F / nbTrees);
+        }
+    }
+
+    /**
+     * Parser of the text format, trees are stored as parallel arrays of internal nodes
+     * where a negative child {@code c} is the leaf {@code ~c}.
+     */
+    private static class TextModel {
+        private final FeatureSet set;
+        private final String model;
+        private final FlatAdditiveDecisionTree.Builder builder;
+        private int pos;
+        private int lineNumber;
+        private List<String> featureNames;
+        private int[] ordinals;
+        // stack used to emit the nodes in pre-order
+        private int[] pending = new int[16];
+        private int[] pendingParents = new int[16];
+
+        TextModel(FeatureSet set, String model) {
+            this.set = set;
+            this.model = model;
+            this.builder = new FlatAdditiveDecisionTree.Builder(set.size(), Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+        }
+
+        FlatAdditiveDecisionTree parse() {
+            int numClass = 1;
+            int numTreePerIteration = 1;
+            boolean averageOutput = false;
+            String line;
+            Map<String, String> tree = null;
+            while ((line = nextLine()) != null) {
+                if (line.startsWith("Tree=")) {
+                    if (tree != null) {
+                        addTree(tree);
+                    }
+                    tree = new HashMap<>();
+                    continue;
+                }
+                if (line.equals("end of trees")) {
+                    break;
+                }
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int eq = line.indexOf('=');
+                String key = eq < 0 ? line : line.substring(0, eq);
+                String value = eq < 0 ? "" : line.substring(eq + 1);
+                if (tree != null) {
+                    tree.put(key, value);
+                    continue;
+                }
+                switch (key) {
+                    case "num_class":
+                        numClass = parseInt(value);
+                        break;
+                    case "num_tree_per_iteration":
+                        numTreePerIteration = parseInt(value);
+                        break;
+                    case "objective":
+                        builder.normalizer(normalizer(value));
+                        break;
+                    case "average_output":
+                        averageOutput = true;
+                        break;
+                    case "feature_names":
+                        featureNames = List.of(value.trim().split("\\s+"));
+                        ordinals = featureOrdinals(set, featureNames);
+                        break;
+                    default:
+                        // version, label_index, feature_infos...
+                        break;
+                }
+            }
+            if (tree != null) {
+                addTree(tree);
+            }
+            checkSingleOutput(numClass, numTreePerIteration);
+            if (builder.numTrees() == 0) {
+                throw new IllegalArgumentException("LightGBM model must define at least one tree");
+            }
+            if (averageOutput) {
+                averageOutput(builder);
+            }
+            return builder.build();
+        }
+
+        private String nextLine() {
+            if (pos >= model.length()) {
+                return null;
+            }
+            int end = model.indexOf('\n', pos);
+            if (end < 0) {
+                end = model.length();
+            }
+            String line = model.substring(pos, end).trim();
+            pos = end + 1;
+            lineNumber++;
+            return line;
+        }
+
+        private void addTree(Map<String, String> tree) {
+            if (featureNames == null) {
+                throw new IllegalArgumentException("LightGBM model is missing [feature_names]");
+            }
+            if ("1".equals(tree.get("is_linear"))) {
+                throw new IllegalArgumentException("Linear trees are not supported (tree ending at line " + lineNumber + ")");
+            }
+            int numLeaves = parseInt(required(tree, "num_leaves"));
+            double[] leafValues = parseDoubles(required(tree, "leaf_value"), numLeaves, "leaf_value");
+            builder.startTree(1F);
+            if (numLeaves == 1) {
+                builder.addLeaf((float) leafValues[0]);
+                return;
+            }
+            int numSplits = numLeaves - 1;
+            int[] splitFeatures = parseInts(required(tree, "split_feature"), numSplits, "split_feature");
+            double[] thresholds = parseDoubles(required(tree, "threshold"), numSplits, "threshold");
+            int[] decisionTypes = parseInts(required(tree, "decision_type"), numSplits, "decision_type");
+            int[] leftChildren = parseInts(required(tree, "left_child"), numSplits, "left_child");
+            int[] rightChildren = parseInts(required(tree, "right_child"), numSplits, "right_child");
+            int numCat = tree.containsKey("num_cat") ? parseInt(tree.get("num_cat")) : 0;
+            int[] catBoundaries = null;
+            int[] catThresholds = null;
+            if (numCat > 0) {
+                catBoundaries = parseInts(required(tree, "cat_boundaries"), numCat + 1, "cat_boundaries");
+                catThresholds = parseUnsignedInts(required(tree, "cat_threshold"));
+            }
+
+            int sp = 0;
+            int nbNodes = 0;
+            pending[sp] = 0;
+            pendingParents[sp++] = -1;
+            while (sp > 0) {
+                int node = pending[--sp];
+                int parent = pendingParents[sp];
+                if (parent >= 0) {
+                    builder.setRightChild(parent, builder.nextNode());
+                }
+                // guards against cycles
+                if (++nbNodes > 2 * numLeaves - 1) {
+                    throw new IllegalArgumentException("Tree ending at line " + lineNumber + " is not a valid binary tree");
+                }
+                if (node < 0) {
+                    if (~node >= numLeaves) {
+                        throw new IllegalArgumentException("Leaf [" + ~node + "] is out of bounds");
+                    }
+                    builder.addLeaf((float) leafValues[~node]);
+                    continue;
+                }
+                if (node >= numSplits) {
+                    throw new IllegalArgumentException("Split [" + node + "] is out of bounds");
+                }
+                int split = builder.reserveNode();
+                int feature = featureOrdinal(ordinals, featureNames, splitFeatures[node]);
+                int decisionType = decisionTypes[node];
+                if ((decisionType & CATEGORICAL_MASK) != 0) {
+                    int cat = (int) thresholds[node];
+                    if (cat < 0 || cat >= numCat || catBoundaries[cat] < 0 || catBoundaries[cat] > catBoundaries[cat + 1]
+                            || catBoundaries[cat + 1] > catThresholds.length) {
+                        throw new IllegalArgumentException("Categorical split [" + node + "] has an invalid threshold");
+                    }
+                    builder.setCategoricalSplit(split, feature,
+                            ArrayUtil.copyOfSubArray(catThresholds, catBoundaries[cat], catBoundaries[cat + 1]));
+                } else {
+                    builder.setSplit(split, feature, threshold(thresholds[node]));
+                    builder.setSplitType(split, splitType((decisionType & DEFAULT_LEFT_MASK) != 0, (decisionType >> 2) & 3));
+                }
+                pending = ArrayUtil.grow(pending, sp + 2);
+                pendingParents = ArrayUtil.grow(pendingParents, sp + 2);
+                pending[sp] = rightChildren[node];
+                pendingParents[sp++] = split;
+                pending[sp] = leftChildren[node];
+                pendingParents[sp++] = -1;
+            }
+        }
+
+        private String required(Map<String, String> tree, String key) {
+            String value = tree.get(key);
+            if (value == null) {
+                throw new IllegalArgumentException("Tree ending at line " + lineNumber + " is missing [" + key + "]");
+            }
+            return value;
+        }
+
+        private int parseInt(String value) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid integer [" + value + "] at line " + lineNumber, e);
+            }
+        }
+
+        private int[] parseInts(String value, int expected, String key) {
+            String[] tokens = tokens(value, expected, key);
+            int[] values = new int[tokens.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = parseInt(tokens[i]);
+            }
+            return values;
+        }
+
+        private int[] parseUnsignedInts(String value) {
+            String[] tokens = value.trim().split("\\s+");
+            int[] values = new int[tokens.length];
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Integer.parseUnsignedInt(tokens[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid [cat_threshold] near line " + lineNumber, e);
+            }
+            return values;
+        }
+
+        private double[] parseDoubles(String value, int expected, String key) {
+            String[] tokens = tokens(value, expected, key);
+            double[] values = new double[tokens.length];
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Double.parseDouble(tokens[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid [" + key + "] near line " + lineNumber, e);
+            }
+            return values;
+        }
+
+        private String[] tokens(String value, int expected, String key) {
+            String[] tokens = value.trim().split("\\s+");
+            if (tokens.length != expected) {
+                throw new IllegalArgumentException("Expected " + expected + " values for [" + key + "] but got "
+                        + tokens.length + " near line " + lineNumber);
+            }
+            return tokens;
+        }
+    }
+
+    private static FlatAdditiveDecisionTree parseJson(FeatureSet set, String model) {
+        try (XContentParser parser = JsonXContent.jsonXContent.createParser(XContentParserConfiguration.EMPTY, model)) {
+            return new JsonModel(set, parser).parse();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot parse model", e);
+        }
+    }
+
+    private static FlatAdditiveDecisionTree parseJson(FeatureSet set, BytesReference model) {
+        try (XContentParser parser = JsonXContent.jsonXContent.createParser(XContentParserConfiguration.EMPTY, model.streamInput())) {
+            return new JsonModel(set, parser).parse();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot parse model", e);
+        }
+    }
+
+    /**
+     * Streaming parser of the json dump, nodes are appended to the builder as they are read.
+     * The left child of a split must precede its right child, as written by LightGBM.
+     */
+    private static class JsonModel {
+        private final FeatureSet set;
+        private final XContentParser parser;
+        private final FlatAdditiveDecisionTree.Builder builder;
+        private List<String> featureNames;
+        private int[] ordinals;
+
+        JsonModel(FeatureSet set, XContentParser parser) {
+            this.set = set;
+            this.parser = parser;
+            this.builder = new FlatAdditiveDecisionTree.Builder(set.size(), Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+        }
+
+        FlatAdditiveDecisionTree parse() throws IOException {
+            expect(parser.nextToken(), XContentParser.Token.START_OBJECT);
+            int numClass = 1;
+            int numTreePerIteration = 1;
+            boolean averageOutput = false;
+            try {
+                XContentParser.Token token;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    expect(token, XContentParser.Token.FIELD_NAME);
+                    String fieldName = parser.currentName();
+                    token = parser.nextToken();
+                    switch (fieldName) {
+                        case "num_class":
+                            numClass = parser.intValue();
+                            break;
+                        case "num_tree_per_iteration":
+                            numTreePerIteration = parser.intValue();
+                            break;
+                        case "objective":
+                            builder.normalizer(normalizer(parser.text()));
+                            break;
+                        case "average_output":
+                            averageOutput = parser.booleanValue();
+                            break;
+                        case "feature_names":
+                            expect(token, XContentParser.Token.START_ARRAY);
+                            featureNames = new ArrayList<>();
+                            while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                                featureNames.add(parser.text());
+                            }
+                            ordinals = featureOrdinals(set, featureNames);
+                            break;
+                        case "tree_info":
+                            expect(token, XContentParser.Token.START_ARRAY);
+                            parseTrees();
+                            break;
+                        default:
+                            parser.skipChildren();
+                    }
+                }
+                checkSingleOutput(numClass, numTreePerIteration);
+            } catch (IllegalArgumentException e) {
+                throw new ParsingException(parser.getTokenLocation(), "Unable to parse LightGBM model", e);
+            }
+            if (builder.numTrees() == 0) {
+                throw new ParsingException(parser.getTokenLocation(), "LightGBM model must define at least one tree");
+            }
+            if (averageOutput) {
+                averageOutput(builder);
+            }
+            return builder.build();
+        }
+
+        private void parseTrees() throws IOException {
+            if (featureNames == null) {
+                throw new ParsingException(parser.getTokenLocation(), "[feature_names] must be defined before [tree_info]");
+            }
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                expect(token, XContentParser.Token.START_OBJECT);
+                boolean hasStructure = false;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    expect(token, XContentParser.Token.FIELD_NAME);
+                    String fieldName = parser.currentName();
+                    token = parser.nextToken();
+                    if ("tree_structure".equals(fieldName)) {
+                        expect(token, XContentParser.Token.START_OBJECT);
+                        builder.startTree(1F);
+                        parseNode();
+                        hasStructure = true;
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (!hasStructure) {
+                    throw new ParsingException(parser.getTokenLocation(), "Tree is missing [tree_structure]");
+                }
+            }
+        }
+
+        private void parseNode() throws IOException {
+            int pos = builder.reserveNode();
+            Integer splitFeature = null;
+            Double threshold = null;
+            String categories = null;
+            String decisionType = "<=";
+            boolean defaultLeft = false;
+            int missingType = 0;
+            Double leafValue = null;
+            boolean hasLeft = false;
+            boolean hasRight = false;
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                expect(token, XContentParser.Token.FIELD_NAME);
+                String fieldName = parser.currentName();
+                token = parser.nextToken();
+                switch (fieldName) {
+                    case "split_feature":
+                        splitFeature = parser.intValue();
+                        break;
+                    case "threshold":
+                        if (token == XContentParser.Token.VALUE_STRING) {
+                            categories = parser.text();
+                        } else {
+                            threshold = parser.doubleValue();
+                        }
+                        break;
+                    case "decision_type":
+                        decisionType = parser.text();
+                        break;
+                    case "default_left":
+                        defaultLeft = parser.booleanValue();
+                        break;
+                    case "missing_type":
+                        missingType = missingType(parser.text());
+                        break;
+                    case "leaf_value":
+                        leafValue = parser.doubleValue();
+                        break;
+                    case "leaf_coeff":
+                        throw new ParsingException(parser.getTokenLocation(), "Linear trees are not supported");
+                    case "left_child":
+                        expect(token, XContentParser.Token.START_OBJECT);
+                        if (hasLeft || hasRight) {
+                            throw new ParsingException(parser.getTokenLocation(), "[left_child] must precede [right_child]");
+                        }
+                        parseNode();
+                        hasLeft = true;
+                        break;
+                    case "right_child":
+                        expect(token, XContentParser.Token.START_OBJECT);
+                        if (!hasLeft || hasRight) {
+                            throw new ParsingException(parser.getTokenLocation(), "[left_child] must precede [right_child]");
+                        }
+                        builder.setRightChild(pos, builder.nextNode());
+                        parseNode();
+                        hasRight = true;
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (!hasLeft && !hasRight) {
+                if (leafValue == null) {
+                    throw new ParsingException(parser.getTokenLocation(), "Leaf is missing [leaf_value]");
+                }
+                builder.setLeaf(pos, leafValue.floatValue());
+                return;
+            }
+            if (!hasRight || splitFeature == null || (threshold == null && categories == null)) {
+                throw new ParsingException(parser.getTokenLocation(), "This split does not have all the required fields");
+            }
+            int feature = featureOrdinal(ordinals, featureNames, splitFeature);
+            if ("==".equals(decisionType)) {
+                if (categories == null) {
+                    categories = String.valueOf(threshold.intValue());
+                }
+                builder.setCategoricalSplit(pos, feature, categoryBitset(categories));
+            } else if ("<=".equals(decisionType) && threshold != null) {
+                builder.setSplit(pos, feature, threshold(threshold));
+                builder.setSplitType(pos, splitType(defaultLeft, missingType));
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "Invalid split [" + decisionType + "]");
+            }
+        }
+
+        private int missingType(String missingType) {
+            switch (missingType) {
+                case "None":
+                    return 0;
+                case "Zero":
+                    return MISSING_ZERO;
+                case "NaN":
+                    return MISSING_NAN;
+                default:
+                    throw new ParsingException(parser.getTokenLocation(), "Unknown missing_type [" + missingType + "]");
+            }
+        }
+
+        /**
+         * Categories are written as a list of integers separated by {@code ||}
+         */
+        private int[] categoryBitset(String categories) {
+            String[] values = categories.split("\\|\\|");
+            int[] bitset = new int[0];
+            for (String value : values) {
+                int category;
+                try {
+                    category = Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    throw new ParsingException(parser.getTokenLocation(), "Invalid category [" + value + "]", e);
+                }
+                if (category < 0) {
+                    continue;
+                }
+                int word = category >>> 5;
+                if (word >= bitset.length) {
+                    bitset = ArrayUtil.growExact(bitset, word + 1);
+                }
+                bitset[word] |= 1 << (category & 31);
+            }
+            return bitset;
+        }
+
+        private void expect(XContentParser.Token token, XContentParser.Token expected) {
+            if (token != expected) {
+                throw new ParsingException(parser.getTokenLocation(), "Expected [" + expected + "] but got [" + token + "]");
+            }
+        }
+    }
+}
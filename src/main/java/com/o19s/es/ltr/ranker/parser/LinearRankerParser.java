@@ -19,6 +19,7 @@ package com.o19s.es.ltr.ranker.parser;
 import com.o19s.es.ltr.feature.FeatureSet;
 import com.o19s.es.ltr.ranker.linear.LinearRanker;
 import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.xcontent.XContentParser;
 import org.elasticsearch.xcontent.json.JsonXContent;
 
@@ -40,6 +41,15 @@ public class LinearRankerParser implements LtrRankerParser {
         }
     }
 
+    @Override
+    public LinearRanker parse(FeatureSet set, BytesReference model) {
+        try (XContentParser parser = JsonXContent.jsonXContent.createParser(EMPTY, model.streamInput())) {
+            return parse(parser, set);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
     private LinearRanker parse(XContentParser parser, FeatureSet set) throws IOException {
         float[] weights = new float[set.size()];
         if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
@@ -18,6 +18,7 @@ package com.o19s.es.ltr.ranker.parser;
 
 import com.o19s.es.ltr.feature.FeatureSet;
 import com.o19s.es.ltr.ranker.LtrRanker;
+import org.elasticsearch.common.bytes.BytesReference;
 
 /**
  * A model parser (don't have to be thread-safe)
@@ -32,4 +33,16 @@ public interface LtrRankerParser {
      * @return the {@link LtrRanker} parsed from the given model and feature-set
      */
     LtrRanker parse(FeatureSet set, String model);
+
+    /**
+     * Parse the model from its UTF-8 bytes, parsers of json models read the bytes in place instead of
+     * decoding the whole definition to a String first.
+     *
+     * @param set the feature-set to use to parse the model
+     * @param model the UTF-8 bytes of the model definition
+     * @return the {@link LtrRanker} parsed from the given model and feature-set
+     */
+    default LtrRanker parse(FeatureSet set, BytesReference model) {
+        return parse(set, model.utf8ToString());
+    }
 }
@@ -17,218 +17,278 @@
 package com.o19s.es.ltr.ranker.parser;
 
 import com.o19s.es.ltr.feature.FeatureSet;
-import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTree;
-import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTree.Node;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
 import com.o19s.es.ltr.ranker.normalizer.Normalizer;
 import com.o19s.es.ltr.ranker.normalizer.Normalizers;
-import org.elasticsearch.xcontent.ParseField;
 import org.elasticsearch.common.ParsingException;
-import org.elasticsearch.xcontent.ObjectParser;
-import org.elasticsearch.xcontent.XContentParseException;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.xcontent.XContentParser;
 import org.elasticsearch.xcontent.XContentParserConfiguration;
 import org.elasticsearch.xcontent.json.JsonXContent;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.ListIterator;
 
 /**
  * Parse XGBoost models generated by mjolnir (https://github.com/wikimedia/search-MjoLniR)
+ *
+ * The model is streamed: nodes are appended to a {@link FlatAdditiveDecisionTree.Builder} while
+ * the tokens are read so that only the path from the root to the current node is kept in memory.
+ *
+ * Features that did not match are routed to the {@code missing} branch of the splits. Since unmatched features
+ * otherwise score 0, a split only records a default direction when 0 would take the other branch.
  */
 public class XGBoostJsonParser implements LtrRankerParser {
     public static final String TYPE = "model/xgboost+json";
 
+    private static final String OBJECTIVE = "objective";
+    private static final String SPLITS = "splits";
+
     @Override
-    public NaiveAdditiveDecisionTree parse(FeatureSet set, String model) {
-        XGBoostDefinition modelDefinition;
+    public FlatAdditiveDecisionTree parse(FeatureSet set, String model) {
         try (XContentParser parser = JsonXContent.jsonXContent.createParser(XContentParserConfiguration.EMPTY,
                 model)
         ) {
-            modelDefinition = XGBoostDefinition.parse(parser, set);
+            return parse(parser, set);
         } catch (IOException e) {
             throw new IllegalArgumentException("Cannot parse model", e);
         }
-
-        Node[] trees = modelDefinition.getTrees(set);
-        float[] weights = new float[trees.length];
-        // Tree weights are already encoded in outputs
-        Arrays.fill(weights, 1F);
-        return new NaiveAdditiveDecisionTree(trees, weights, set.size(), modelDefinition.normalizer);
     }
 
-    private static class XGBoostDefinition {
-        private static final ObjectParser<XGBoostDefinition, FeatureSet> PARSER;
-        static {
-            PARSER = new ObjectParser<>("xgboost_definition", XGBoostDefinition::new);
-            PARSER.declareString(XGBoostDefinition::setNormalizer, new ParseField("objective"));
-            PARSER.declareObjectArray(XGBoostDefinition::setSplitParserStates, SplitParserState::parse, new ParseField("splits"));
+    @Override
+    public FlatAdditiveDecisionTree parse(FeatureSet set, BytesReference model) {
+        try (XContentParser parser = JsonXContent.jsonXContent.createParser(XContentParserConfiguration.EMPTY, model.streamInput())) {
+            return parse(parser, set);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot parse model", e);
         }
+    }
 
-        private Normalizer normalizer;
-        private List<SplitParserState> splitParserStates;
+    private static FlatAdditiveDecisionTree parse(XContentParser parser, FeatureSet set) throws IOException {
+        // Tree weights are already encoded in outputs
+        FlatAdditiveDecisionTree.Builder builder = new FlatAdditiveDecisionTree.Builder(set.size(),
+                Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+        XContentParser.Token startToken = parser.nextToken();
 
-        public static XGBoostDefinition parse(XContentParser parser, FeatureSet set) throws IOException {
-            XGBoostDefinition definition;
-            XContentParser.Token startToken = parser.nextToken();
+        // The model definition can either be an array of tree definitions, or an object containing the
+        // tree definitions in the 'splits' field. Using an object allows for specification of additional
+        // parameters.
+        int nbTrees;
+        if (startToken == XContentParser.Token.START_OBJECT) {
+            try {
+                nbTrees = parseObject(parser, set, builder);
+            } catch (ParsingException | IllegalArgumentException e) {
+                throw new ParsingException(parser.getTokenLocation(), "Unable to parse XGBoost object", e);
+            }
+            if (nbTrees < 0) {
+                throw new ParsingException(parser.getTokenLocation(), "XGBoost model missing required field [splits]");
+            }
+        } else if (startToken == XContentParser.Token.START_ARRAY) {
+            nbTrees = parseTrees(parser, set, builder);
+        } else {
+            throw new ParsingException(parser.getTokenLocation(), "Expected [START_ARRAY] or [START_OBJECT] but got ["
+                    + startToken + "]");
+        }
+        if (nbTrees == 0) {
+            throw new ParsingException(parser.getTokenLocation(), "XGBoost model must define at lease one tree");
+        }
+        return builder.build();
+    }
 
-            // The model definition can either be an array of tree definitions, or an object containing the
-            // tree definitions in the 'splits' field. Using an object allows for specification of additional
-            // parameters.
-            if (startToken == XContentParser.Token.START_OBJECT) {
-                try {
-                    definition = PARSER.apply(parser, set);
-                } catch (XContentParseException e) {
-                    throw new ParsingException(parser.getTokenLocation(), "Unable to parse XGBoost object", e);
-                }
-                if (definition.splitParserStates == null) {
-                    throw new ParsingException(parser.getTokenLocation(), "XGBoost model missing required field [splits]");
-                }
-            } else if (startToken == XContentParser.Token.START_ARRAY) {
-                definition = new XGBoostDefinition();
-                definition.splitParserStates = new ArrayList<>();
-                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
-                    definition.splitParserStates.add(SplitParserState.parse(parser, set));
-                }
-            } else {
-                throw new ParsingException(parser.getTokenLocation(), "Expected [START_ARRAY] or [START_OBJECT] but got ["
-                        + startToken + "]");
+    /**
+     * @return the number of trees or -1 if the splits field is missing
+     */
+    private static int parseObject(XContentParser parser, FeatureSet set, FlatAdditiveDecisionTree.Builder builder)
+            throws IOException {
+        int nbTrees = -1;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token != XContentParser.Token.FIELD_NAME) {
+                throw new ParsingException(parser.getTokenLocation(), "Expected [FIELD_NAME] but got [" + token + "]");
             }
-            if (definition.splitParserStates.size() == 0) {
-                throw new ParsingException(parser.getTokenLocation(), "XGBoost model must define at lease one tree");
+            String fieldName = parser.currentName();
+            token = parser.nextToken();
+            if (OBJECTIVE.equals(fieldName) && token.isValue()) {
+                builder.normalizer(normalizer(parser.text()));
+            } else if (SPLITS.equals(fieldName) && token == XContentParser.Token.START_ARRAY) {
+                nbTrees = parseTrees(parser, set, builder);
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "[xgboost_definition] unknown field ["
+                        + fieldName + "]");
             }
-            return definition;
         }
+        return nbTrees;
+    }
 
-        XGBoostDefinition() {
-            normalizer = Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME);
+    private static int parseTrees(XContentParser parser, FeatureSet set, FlatAdditiveDecisionTree.Builder builder)
+            throws IOException {
+        int nbTrees = 0;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            expectStartObject(parser, token);
+            builder.startTree(1F);
+            parseNode(parser, set, builder);
+            nbTrees++;
         }
+        return nbTrees;
+    }
 
-        /**
-         * Set a normalizer based on the 'objective' parameter of the XGBoost model
-         *
-         * Depending on the objective, the model prediction may require normalization. Currently only
-         * untransformed (noop) and logistic (sigmoid) types are implemented.
-         * See <a href="https://xgboost.readthedocs.io/en/latest/parameter.html#learning-task-parameters">task params</a>
-         *
-         * @param objectiveName XGBoost objective name
-         */
-        void setNormalizer(String objectiveName) {
-            switch (objectiveName) {
-                case "binary:logitraw":
-                case "rank:pairwise":
-                case "reg:linear":
-                    normalizer = Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME);
-                    break;
-                case "binary:logistic":
-                case "reg:logistic":
-                    normalizer = Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME);
-                    break;
-                default:
-                    throw new IllegalArgumentException("Objective [" + objectiveName + "] is not a valid XGBoost objective");
-            }
+    /**
+     * Set a normalizer based on the 'objective' parameter of the XGBoost model
+     *
+     * Depending on the objective, the model prediction may require normalization. Currently only
+     * untransformed (noop) and logistic (sigmoid) types are implemented.
+     * See <a href="https://xgboost.readthedocs.io/en/latest/parameter.html#learning-task-parameters">task params</a>
+     *
+     * @param objectiveName XGBoost objective name
+     */
+    private static Normalizer normalizer(String objectiveName) {
+        switch (objectiveName) {
+            case "binary:logitraw":
+            case "rank:pairwise":
+            case "reg:linear":
+                return Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME);
+            case "binary:logistic":
+            case "reg:logistic":
+                return Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME);
+            default:
+                throw new IllegalArgumentException("Objective [" + objectiveName + "] is not a valid XGBoost objective");
         }
+    }
 
-        void setSplitParserStates(List<SplitParserState> splitParserStates) {
-            this.splitParserStates = splitParserStates;
+    /**
+     * Parse a node and its children, the parser must be positioned on the start of the node object.
+     * The node is reserved before reading its fields since the children may be read before the split fields.
+     *
+     * @return the id of the node
+     */
+    private static int parseNode(XContentParser parser, FeatureSet set, FlatAdditiveDecisionTree.Builder builder)
+            throws IOException {
+        int pos = builder.reserveNode();
+        NodeState node = new NodeState();
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token != XContentParser.Token.FIELD_NAME) {
+                throw new ParsingException(parser.getTokenLocation(), "Expected [FIELD_NAME] but got [" + token + "]");
+            }
+            String fieldName = parser.currentName();
+            token = parser.nextToken();
+            if ("children".equals(fieldName) && token == XContentParser.Token.START_ARRAY) {
+                parseChildren(parser, set, builder, node);
+            } else if (token.isValue()) {
+                node.setField(parser, fieldName);
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "[node] unknown field [" + fieldName + "]");
+            }
+        }
+        node.validate(parser, set);
+        if (node.isSplit()) {
+            builder.setSplit(pos, set.featureOrdinal(node.split), node.threshold);
+            builder.setSplitType(pos, node.splitType());
+            builder.setRightChild(pos, node.rightChildPos);
+        } else {
+            builder.setLeaf(pos, node.leaf);
         }
+        return node.nodeId;
+    }
 
-        Node[] getTrees(FeatureSet set) {
-            Node[] trees = new Node[splitParserStates.size()];
-            ListIterator<SplitParserState> it = splitParserStates.listIterator();
-            while(it.hasNext()) {
-                trees[it.nextIndex()] = it.next().toNode(set);
+    private static void parseChildren(XContentParser parser, FeatureSet set, FlatAdditiveDecisionTree.Builder builder,
+                                      NodeState node) throws IOException {
+        if (node.nbChildren > 0) {
+            throw new ParsingException(parser.getTokenLocation(), "[node] field [children] is repeated");
+        }
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            expectStartObject(parser, token);
+            if (node.nbChildren == 1) {
+                node.rightChildPos = builder.nextNode();
             }
-            return trees;
+            int childId = parseNode(parser, set, builder);
+            if (node.nbChildren == 0) {
+                node.leftChildId = childId;
+            } else if (node.nbChildren == 1) {
+                node.rightChildId = childId;
+            }
+            node.nbChildren++;
         }
     }
 
-    private static class SplitParserState {
-        private static final ObjectParser<SplitParserState, FeatureSet> PARSER;
-        static {
-            PARSER = new ObjectParser<>("node", SplitParserState::new);
-            PARSER.declareInt(SplitParserState::setNodeId, new ParseField("nodeid"));
-            PARSER.declareInt(SplitParserState::setDepth, new ParseField("depth"));
-            PARSER.declareString(SplitParserState::setSplit, new ParseField("split"));
-            PARSER.declareFloat(SplitParserState::setThreshold, new ParseField("split_condition"));
-            PARSER.declareInt(SplitParserState::setRightNodeId, new ParseField("no"));
-            PARSER.declareInt(SplitParserState::setLeftNodeId, new ParseField("yes"));
-            PARSER.declareInt(SplitParserState::setMissingNodeId, new ParseField("missing"));
-            PARSER.declareFloat(SplitParserState::setLeaf, new ParseField("leaf"));
-            PARSER.declareObjectArray(SplitParserState::setChildren, SplitParserState::parse,
-                    new ParseField("children"));
+    private static void expectStartObject(XContentParser parser, XContentParser.Token token) {
+        if (token != XContentParser.Token.START_OBJECT) {
+            throw new ParsingException(parser.getTokenLocation(), "Expected [START_OBJECT] but got [" + token + "]");
         }
+    }
 
+    /**
+     * Fields of the node being parsed, children are written to the builder as they are read.
+     */
+    private static class NodeState {
         private Integer nodeId;
         private Integer depth;
         private String split;
         private Float threshold;
         private Integer rightNodeId;
         private Integer leftNodeId;
-        // Ignored
         private Integer missingNodeId;
         private Float leaf;
-        private List<SplitParserState> children;
+        private int nbChildren;
+        private int leftChildId;
+        private int rightChildId;
+        private int rightChildPos;
+
+        void setField(XContentParser parser, String fieldName) throws IOException {
+            switch (fieldName) {
+                case "nodeid":
+                    nodeId = parser.intValue();
+                    break;
+                case "depth":
+                    depth = parser.intValue();
+                    break;
+                case "split":
+                    split = parser.text();
+                    break;
+                case "split_condition":
+                    threshold = parser.floatValue();
+                    break;
+                case "no":
+                    rightNodeId = parser.intValue();
+                    break;
+                case "yes":
+                    leftNodeId = parser.intValue();
+                    break;
+                case "missing":
+                    missingNodeId = parser.intValue();
+                    break;
+                case "leaf":
+                    leaf = parser.floatValue();
+                    break;
+                default:
+                    throw new ParsingException(parser.getTokenLocation(), "[node] unknown field [" + fieldName + "]");
+            }
+        }
 
-        public static SplitParserState parse(XContentParser parser, FeatureSet set) {
-            SplitParserState split = PARSER.apply(parser, set);
-            if (split.isSplit()) {
-                if (!split.splitHasAllFields()) {
+        void validate(XContentParser parser, FeatureSet set) {
+            if (isSplit()) {
+                if (!splitHasAllFields()) {
                     throw new ParsingException(parser.getTokenLocation(), "This split does not have all the required fields");
                 }
-                if (!split.splitHasValidChildren()) {
+                if (!splitHasValidChildren()) {
                     throw new ParsingException(parser.getTokenLocation(), "Split structure is invalid, yes, no and/or" +
                             " missing branches does not point to the proper children.");
                 }
-                if (!set.hasFeature(split.split)) {
-                    throw new ParsingException(parser.getTokenLocation(), "Unknown feature [" + split.split + "]");
+                if (!set.hasFeature(split)) {
+                    throw new ParsingException(parser.getTokenLocation(), "Unknown feature [" + split + "]");
                 }
-            } else if (!split.leafHasAllFields()) {
+            } else if (!leafHasAllFields()) {
                 throw new ParsingException(parser.getTokenLocation(), "This leaf does not have all the required fields");
+            } else if (nbChildren > 0) {
+                // the children are already written to the builder and would be left orphan
+                throw new ParsingException(parser.getTokenLocation(), "A leaf cannot have children");
             }
-            return split;
-        }
-        void setNodeId(Integer nodeId) {
-            this.nodeId = nodeId;
-        }
-
-        void setDepth(Integer depth) {
-            this.depth = depth;
-        }
-
-        void setSplit(String split) {
-            this.split = split;
-        }
-
-        void setThreshold(Float threshold) {
-            this.threshold = threshold;
-        }
-
-        void setRightNodeId(Integer rightNodeId) {
-            this.rightNodeId = rightNodeId;
-        }
-
-        void setLeftNodeId(Integer leftNodeId) {
-            this.leftNodeId = leftNodeId;
-        }
-
-        void setMissingNodeId(Integer missingNodeId) {
-            this.missingNodeId = missingNodeId;
-        }
-
-        void setLeaf(Float leaf) {
-            this.leaf = leaf;
-        }
-
-        void setChildren(List<SplitParserState> children) {
-            this.children = children;
         }
 
         boolean splitHasAllFields() {
             return nodeId != null && threshold != null && split != null && leftNodeId != null && rightNodeId != null && depth != null
-                    && children != null && children.size() == 2;
+                    && nbChildren == 2;
         }
 
         boolean leafHasAllFields() {
@@ -236,21 +296,27 @@ public class XGBoostJsonParser implements LtrRankerParser {
         }
 
         boolean splitHasValidChildren() {
-            return children.size() == 2 &&
-                    leftNodeId.equals(children.get(0).nodeId) && rightNodeId.equals(children.get(1).nodeId);
-        }
-        boolean isSplit() {
-            return leaf == null;
+            return leftNodeId == leftChildId && rightNodeId == rightChildId
+                    && (missingNodeId == null || missingNodeId == leftChildId || missingNodeId == rightChildId);
         }
 
-
-        Node toNode(FeatureSet set) {
-            if (isSplit()) {
-                return new NaiveAdditiveDecisionTree.Split(children.get(0).toNode(set), children.get(1).toNode(set),
-                        set.featureOrdinal(split), threshold);
-            } else {
-                return new NaiveAdditiveDecisionTree.Leaf(leaf);
+        /**
+         * @return the split type routing missing features to the missing branch, 0 if a score of 0 already goes there
+         */
+        int splitType() {
+            if (missingNodeId == null) {
+                return 0;
             }
+            boolean missingLeft = missingNodeId == leftChildId;
+            boolean zeroLeft = threshold > 0F;
+            if (missingLeft == zeroLeft) {
+                return 0;
+            }
+            return FlatAdditiveDecisionTree.MISSING_NAN | (missingLeft ? FlatAdditiveDecisionTree.DEFAULT_LEFT : 0);
+        }
+
+        boolean isSplit() {
+            return leaf == null;
         }
     }
 }
@@ -59,13 +59,15 @@ public class DenseProgramaticDataPoint extends DataPoint implements LtrRanker.Fe
     @Override
     public void setFeatureScore(int featureIdx, float score) {
         // add 1 because RankLib features 1 based
-        this.setFeatureValue(featureIdx+1, score);
+        // the plugin only sets ordinals of the feature set, rely on the array bounds check
+        this.fVals[featureIdx+1] = score;
     }
 
     @Override
     public float getFeatureScore(int featureIdx) {
         // add 1 because RankLib features 1 based
-        return this.getFeatureValue(featureIdx+1);
+        float score = this.fVals[featureIdx+1];
+        return isUnknown(score)?0.0F:score;
     }
 
     public void reset() {
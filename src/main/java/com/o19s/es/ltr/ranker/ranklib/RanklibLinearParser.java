@@ -0,0 +1,78 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.ranker.ranklib;
+
+import com.o19s.es.ltr.feature.FeatureSet;
+import com.o19s.es.ltr.ranker.linear.LinearRanker;
+
+import java.util.Arrays;
+
+/**
+ * Native parser for the linear models written by ranklib (Coordinate Ascent and Linear Regression).
+ * The model is a list of {@code feature:weight} pairs with 1-based feature ids, linear regression
+ * models use the id 0 for the intercept.
+ */
+final class RanklibLinearParser {
+    private static final String COORDINATE_ASCENT = "Coordinate Ascent";
+    private static final String LINEAR_REGRESSION = "Linear Regression";
+
+    private RanklibLinearParser() {}
+
+    /**
+     * @param set the feature set, null to size the model with the highest feature used
+     * @param model the ranklib model
+     * @return the linear ranker or null if the model is not a linear model supported by this parser
+     */
+    static LinearRanker parse(FeatureSet set, String model) {
+        String type = RanklibTreeParser.modelType(model);
+        boolean hasIntercept = LINEAR_REGRESSION.equals(type);
+        if (!hasIntercept && !COORDINATE_ASCENT.equals(type)) {
+            return null;
+        }
+        float[] weights = new float[set != null ? set.size() : 0];
+        float intercept = 0F;
+        for (String line : model.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("##")) {
+                continue;
+            }
+            for (String pair : line.split("\\s+")) {
+                int sep = pair.indexOf(':');
+                if (sep <= 0) {
+                    throw new IllegalArgumentException("Cannot parse ranklib model: invalid weight [" + pair + "]");
+                }
+                int feature = Integer.parseInt(pair.substring(0, sep));
+                float weight = Float.parseFloat(pair.substring(sep + 1));
+                if (feature == 0 && hasIntercept) {
+                    intercept = weight;
+                    continue;
+                } else if (feature < 1) {
+                    throw new IllegalArgumentException("Cannot parse ranklib model: invalid feature [" + feature + "]");
+                }
+                if (feature > weights.length) {
+                    if (set != null) {
+                        throw new IllegalArgumentException("Ranklib model uses feature [" + feature + "] but the feature set has ["
+                                + set.size() + "] features");
+                    }
+                    weights = Arrays.copyOf(weights, feature);
+                }
+                weights[feature - 1] = weight;
+            }
+        }
+        return new LinearRanker(weights, intercept);
+    }
+}
@@ -22,20 +22,41 @@ import com.o19s.es.ltr.feature.FeatureSet;
 import com.o19s.es.ltr.ranker.LtrRanker;
 import com.o19s.es.ltr.ranker.parser.LtrRankerParser;
 
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
 /**
  * Load a ranklib model from a script file, mostly a wrapper around the
- * existing script that complies with the {@link LtrRankerParser} interface
+ * existing script that complies with the {@link LtrRankerParser} interface.
+ * Tree ensembles and linear models are parsed natively by {@link RanklibTreeParser} and {@link RanklibLinearParser},
+ * they are scored with the plugin rankers. Other models are loaded and scored by ranklib.
  */
 public class RanklibModelParser implements LtrRankerParser {
     public static final String TYPE = "model/ranklib";
     private final RankerFactory factory;
+    private final Supplier<Executor> helpers;
 
     public RanklibModelParser(RankerFactory factory) {
+        this(factory, () -> null);
+    }
+
+    /**
+     * @param helpers the executor helping to parse large tree ensembles, see {@link RanklibTreeParser}, may supply null
+     */
+    public RanklibModelParser(RankerFactory factory, Supplier<Executor> helpers) {
         this.factory = factory;
+        this.helpers = helpers;
     }
 
     @Override
     public LtrRanker parse(FeatureSet set, String model) {
+        LtrRanker ranker = RanklibTreeParser.parse(set, model, helpers.get());
+        if (ranker == null) {
+            ranker = RanklibLinearParser.parse(set, model);
+        }
+        if (ranker != null) {
+            return ranker;
+        }
         Ranker ranklibRanker = factory.loadRankerFromString(model);
         int numFeatures = ranklibRanker.getFeatures().length;
         if (set != null) {
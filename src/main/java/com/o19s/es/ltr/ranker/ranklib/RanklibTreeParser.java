@@ -0,0 +1,288 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.ranker.ranklib;
+
+import com.o19s.es.ltr.feature.FeatureSet;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.normalizer.Normalizers;
+import org.apache.lucene.util.ArrayUtil;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Native parser for the tree ensembles written by ranklib (LambdaMART, MART and Random Forests).
+ * The trees are read directly into a {@link FlatAdditiveDecisionTree}, large ensembles are split
+ * in chunks of trees that idle threads of the given executor (the model compile pool in a node) help parse.
+ * The calling thread parses the chunks no helper took, it never waits on a queued task so that compiling
+ * on a thread of the same pool cannot deadlock.
+ *
+ * Ranklib features are 1-based and a split sends the document to the left when the feature value
+ * is lower or equal to the threshold, thresholds are shifted to the next float so that the
+ * strict comparison of {@link FlatAdditiveDecisionTree} gives the same results.
+ */
+final class RanklibTreeParser {
+    static final int TREES_PER_CHUNK = 128;
+    static final int MAX_HELPERS = 8;
+
+    private static final String LAMBDAMART = "LambdaMART";
+    private static final String MART = "MART";
+    private static final String RANDOM_FORESTS = "Random Forests";
+
+    private RanklibTreeParser() {}
+
+    /**
+     * @param set the feature set, null to size the model with the highest feature used
+     * @param model the ranklib model
+     * @return the parsed trees or null if the model is not a tree ensemble supported by this parser
+     */
+    static FlatAdditiveDecisionTree parse(FeatureSet set, String model) {
+        return parse(set, model, null);
+    }
+
+    /**
+     * @param set the feature set, null to size the model with the highest feature used
+     * @param model the ranklib model
+     * @param helpers executor of the threads helping to parse large ensembles, null to parse on the calling thread only
+     * @return the parsed trees or null if the model is not a tree ensemble supported by this parser
+     */
+    static FlatAdditiveDecisionTree parse(FeatureSet set, String model, Executor helpers) {
+        String type = modelType(model);
+        if (!LAMBDAMART.equals(type) && !MART.equals(type) && !RANDOM_FORESTS.equals(type)) {
+            return null;
+        }
+        int[] treeStarts = new int[64];
+        int nbTrees = 0;
+        for (int i = model.indexOf("<tree"); i >= 0; i = model.indexOf("<tree", i + 1)) {
+            treeStarts = ArrayUtil.grow(treeStarts, nbTrees + 1);
+            treeStarts[nbTrees++] = i;
+        }
+        if (nbTrees == 0) {
+            throw new IllegalArgumentException("Ranklib model [" + type + "] has no trees");
+        }
+        // random forests average the ensembles of each bag
+        float weightFactor = 1F;
+        if (RANDOM_FORESTS.equals(type)) {
+            int nbEnsembles = 0;
+            for (int i = model.indexOf("<ensemble>"); i >= 0; i = model.indexOf("<ensemble>", i + 1)) {
+                nbEnsembles++;
+            }
+            weightFactor = 1F / Math.max(1, nbEnsembles);
+        }
+
+        final int[] starts = treeStarts;
+        final int totalTrees = nbTrees;
+        final float factor = weightFactor;
+        final int nbChunks = (nbTrees + TREES_PER_CHUNK - 1) / TREES_PER_CHUNK;
+        final FlatAdditiveDecisionTree.Builder[] parsed = new FlatAdditiveDecisionTree.Builder[nbChunks];
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(nbChunks);
+        Runnable worker = () -> {
+            int c;
+            while ((c = nextChunk.getAndIncrement()) < nbChunks) {
+                try {
+                    if (failure.get() == null) {
+                        int from = starts[c * TREES_PER_CHUNK];
+                        int lastTree = Math.min(totalTrees, (c + 1) * TREES_PER_CHUNK);
+                        int to = lastTree < totalTrees ? starts[lastTree] : model.length();
+                        parsed[c] = new Scanner(model, from, to).parseTrees(factor);
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        if (helpers != null) {
+            for (int i = 0; i < Math.min(nbChunks - 1, MAX_HELPERS); i++) {
+                try {
+                    helpers.execute(worker);
+                } catch (RejectedExecutionException e) {
+                    // the pool is busy, the calling thread parses the remaining chunks
+                    break;
+                }
+            }
+        }
+        worker.run();
+        try {
+            // only waits for the chunks being parsed by a helper
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while parsing the ranklib model", e);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        int maxFeature = -1;
+        for (FlatAdditiveDecisionTree.Builder chunk : parsed) {
+            maxFeature = Math.max(maxFeature, chunk.maxFeature());
+        }
+        int modelSize = set != null ? set.size() : maxFeature + 1;
+        if (maxFeature >= modelSize) {
+            throw new IllegalArgumentException("Ranklib model uses feature [" + (maxFeature + 1) + "] but the feature set has ["
+                    + modelSize + "] features");
+        }
+        FlatAdditiveDecisionTree.Builder builder = new FlatAdditiveDecisionTree.Builder(modelSize,
+                Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+        for (FlatAdditiveDecisionTree.Builder chunk : parsed) {
+            builder.append(chunk);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Same detection as ranklib's RankerFactory: the name of the ranker is on the first line
+     */
+    static String modelType(String model) {
+        int eol = model.indexOf('\n');
+        String firstLine = eol >= 0 ? model.substring(0, eol) : model;
+        return firstLine.replace("## ", "").trim();
+    }
+
+    /**
+     * Minimal scanner over the xml-like ranklib format, reads tags and values without copying the model.
+     */
+    private static class Scanner {
+        private final String model;
+        private final int end;
+        private int pos;
+        private int tagStart;
+        private int tagEnd;
+
+        Scanner(String model, int from, int to) {
+            this.model = model;
+            this.pos = from;
+            this.end = to;
+        }
+
+        FlatAdditiveDecisionTree.Builder parseTrees(float weightFactor) {
+            FlatAdditiveDecisionTree.Builder builder = new FlatAdditiveDecisionTree.Builder(Integer.MAX_VALUE,
+                    Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+            while (nextTag()) {
+                if (isTag("tree")) {
+                    builder.startTree(weightAttribute() * weightFactor);
+                    expectTag("split");
+                    parseSplit(builder);
+                    expectTag("/tree");
+                } else if (!isTag("ensemble") && !isTag("/ensemble")) {
+                    throw error("Unexpected tag");
+                }
+            }
+            return builder;
+        }
+
+        private void parseSplit(FlatAdditiveDecisionTree.Builder builder) {
+            expectNextTag();
+            if (isTag("output")) {
+                builder.addLeaf(Float.parseFloat(readValue()));
+                expectTag("/output");
+            } else if (isTag("feature")) {
+                int feature = Integer.parseInt(readValue());
+                expectTag("/feature");
+                if (feature < 1) {
+                    throw error("Invalid feature [" + feature + "]");
+                }
+                expectTag("threshold");
+                float threshold = Math.nextUp(Float.parseFloat(readValue()));
+                expectTag("/threshold");
+                int split = builder.addSplit(feature - 1, threshold);
+                expectTag("split");
+                parseSplit(builder);
+                builder.setRightChild(split, builder.nextNode());
+                expectTag("split");
+                parseSplit(builder);
+            } else {
+                throw error("Expected [feature] or [output]");
+            }
+            expectTag("/split");
+        }
+
+        /**
+         * Move to the next tag
+         *
+         * @return false if there are no more tags
+         */
+        private boolean nextTag() {
+            int start = model.indexOf('<', pos);
+            if (start < 0 || start >= end) {
+                pos = end;
+                return false;
+            }
+            int close = model.indexOf('>', start);
+            if (close < 0 || close >= end) {
+                throw error("Unterminated tag");
+            }
+            tagStart = start + 1;
+            tagEnd = close;
+            pos = close + 1;
+            return true;
+        }
+
+        private void expectNextTag() {
+            if (!nextTag()) {
+                throw error("Unexpected end of model");
+            }
+        }
+
+        private void expectTag(String name) {
+            expectNextTag();
+            if (!isTag(name)) {
+                throw error("Expected [" + name + "]");
+            }
+        }
+
+        private boolean isTag(String name) {
+            int nameEnd = tagStart + name.length();
+            return model.startsWith(name, tagStart)
+                    && (nameEnd == tagEnd || Character.isWhitespace(model.charAt(nameEnd)));
+        }
+
+        private float weightAttribute() {
+            int attr = model.indexOf("weight=\"", tagStart);
+            if (attr < 0 || attr >= tagEnd) {
+                throw error("Tree without weight");
+            }
+            attr += "weight=\"".length();
+            int quote = model.indexOf('"', attr);
+            if (quote < 0 || quote >= tagEnd) {
+                throw error("Invalid weight");
+            }
+            return Float.parseFloat(model.substring(attr, quote));
+        }
+
+        private String readValue() {
+            int next = model.indexOf('<', pos);
+            if (next < 0 || next >= end) {
+                throw error("Unexpected end of model");
+            }
+            String value = model.substring(pos, next).trim();
+            pos = next;
+            return value;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Cannot parse ranklib model: " + message + " at offset [" + pos + "]");
+        }
+    }
+}
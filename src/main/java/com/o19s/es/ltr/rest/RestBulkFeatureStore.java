@@ -0,0 +1,110 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.rest;
+
+import com.o19s.es.ltr.action.BulkFeatureStoreAction.BulkFeatureStoreRequestBuilder;
+import com.o19s.es.ltr.action.FeatureStoreAction.FeatureStoreRequest;
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.rest.action.RestStatusToXContentListener;
+import org.elasticsearch.xcontent.XContent;
+import org.elasticsearch.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Store many elements at once, the body is a newline delimited list of elements
+ * using the same format as the single element APIs (including the optional validation).
+ */
+public class RestBulkFeatureStore extends FeatureStoreBaseRestHandler {
+
+    @Override
+    public String getName() {
+        return "Add or update features, featuresets and models in bulk";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return unmodifiableList(asList(
+                new Route(RestRequest.Method.POST, "/_ltr/_bulk"),
+                new Route(RestRequest.Method.PUT, "/_ltr/_bulk"),
+                new Route(RestRequest.Method.POST, "/_ltr/{store}/_bulk"),
+                new Route(RestRequest.Method.PUT, "/_ltr/{store}/_bulk")
+        ));
+    }
+
+    @Override
+    public boolean supportsContentStream() {
+        return true;
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        String store = indexName(request);
+        String routing = request.param("routing");
+        FeatureStoreRequest.Action action = parseOpType(request.param("op_type", "create"));
+        BulkFeatureStoreRequestBuilder builder = new BulkFeatureStoreRequestBuilder(client, store);
+
+        XContent xContent = request.getXContentType().xContent();
+        byte separator = xContent.streamSeparator();
+        BytesReference data = request.requiredContent();
+        int from = 0;
+        while (from < data.length()) {
+            int next = data.indexOf(separator, from);
+            if (next < 0) {
+                next = data.length();
+            }
+            if (next > from) {
+                try (XContentParser parser = xContent.createParser(request.contentParserConfig(),
+                        data.slice(from, next - from).streamInput())) {
+                    AutoDetectParser parserState = new AutoDetectParser(null);
+                    parserState.parse(parser);
+                    if (action == FeatureStoreRequest.Action.UPDATE && !parserState.getElement().updatable()) {
+                        IllegalArgumentException iae = new IllegalArgumentException("Element of type ["
+                                + parserState.getElement().type() + "] named [" + parserState.getElement().name()
+                                + "] are not updatable, please create a new one instead.");
+                        return (channel) -> channel.sendResponse(new RestResponse(channel, RestStatus.METHOD_NOT_ALLOWED, iae));
+                    }
+                    FeatureStoreRequest item = new FeatureStoreRequest(store, parserState.getElement(), action);
+                    item.setRouting(routing);
+                    item.setValidation(parserState.getValidation());
+                    builder.add(item);
+                }
+            }
+            from = next + 1;
+        }
+        return (channel) -> builder.execute(new RestStatusToXContentListener<>(channel));
+    }
+
+    private static FeatureStoreRequest.Action parseOpType(String opType) {
+        switch (opType) {
+        case "create":
+            return FeatureStoreRequest.Action.CREATE;
+        case "update":
+            return FeatureStoreRequest.Action.UPDATE;
+        default:
+            throw new IllegalArgumentException("[op_type] must be one of [create, update] but was [" + opType + "]");
+        }
+    }
+}
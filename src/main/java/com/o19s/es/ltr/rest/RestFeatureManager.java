@@ -6,6 +6,7 @@ import com.o19s.es.ltr.feature.store.StorableElement;
 import com.o19s.es.ltr.feature.store.StoredFeature;
 import com.o19s.es.ltr.feature.store.StoredFeatureSet;
 import com.o19s.es.ltr.feature.store.StoredLtrModel;
+import com.o19s.es.ltr.feature.store.index.IndexFeatureStore;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetResponse;
@@ -109,6 +110,7 @@ public class RestFeatureManager extends FeatureStoreBaseRestHandler {
         String id = generateId(type, name);
         return (channel) -> client.prepareGet(indexName, id)
                 .setRouting(routing)
+                .setFetchSource(null, IndexFeatureStore.COMPILED_MODEL_FIELD)
                 .execute(new RestToXContentListener<GetResponse>(channel) {
                     @Override
                     protected RestStatus getStatus(final GetResponse response) {
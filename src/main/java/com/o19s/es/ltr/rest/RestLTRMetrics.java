@@ -0,0 +1,65 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.rest;
+
+import com.o19s.es.ltr.stats.LTRStats;
+import com.o19s.es.ltr.stats.MetricsWriter;
+import org.elasticsearch.client.internal.node.NodeClient;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * Node level stats of the plugin in the Prometheus text format, meant to be scraped on each node.
+ * Only the counters of the node serving the request are written, no request is sent to the other nodes.
+ */
+public class RestLTRMetrics extends BaseRestHandler {
+    public static final String LTR_METRICS_URI = "/_ltr/_metrics";
+    private static final String NAME = "learning_to_rank_metrics";
+
+    private final Supplier<LTRStats> ltrStats;
+
+    public RestLTRMetrics(Supplier<LTRStats> ltrStats) {
+        this.ltrStats = Objects.requireNonNull(ltrStats);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public List<Route> routes() {
+        return singletonList(new Route(RestRequest.Method.GET, LTR_METRICS_URI));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        return (channel) -> {
+            MetricsWriter writer = new MetricsWriter();
+            ltrStats.get().exportMetrics(writer);
+            channel.sendResponse(new RestResponse(RestStatus.OK, MetricsWriter.CONTENT_TYPE, writer.toString()));
+        };
+    }
+}
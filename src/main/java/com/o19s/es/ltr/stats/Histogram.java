@@ -0,0 +1,81 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, recorded in power of two buckets.
+ * Bucket {@code i} counts the durations lower than {@code 2^i} nanos, the last bucket counts everything above.
+ */
+public class Histogram {
+    static final int BUCKETS = Long.SIZE;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        buckets[bucket(nanos)].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * @return the number of durations per bucket
+     */
+    public long[] counts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return the sum of the recorded durations in nanos
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the exclusive upper bound of the bucket in nanos, {@link Long#MAX_VALUE} for the last one
+     */
+    public static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : Math.min(BUCKETS - 1, BUCKETS - Long.numberOfLeadingZeros(nanos));
+    }
+}
@@ -23,4 +23,13 @@ public class LTRStat {
     public Object getStatValue() {
         return supplier.get();
     }
+
+    /**
+     * Write the metrics of this stat if its supplier is a {@link MetricsExporter}
+     */
+    public void exportMetrics(MetricsWriter writer) {
+        if (supplier instanceof MetricsExporter) {
+            ((MetricsExporter) supplier).exportMetrics(writer);
+        }
+    }
 }
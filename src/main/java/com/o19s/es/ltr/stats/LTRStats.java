@@ -1,6 +1,7 @@
 package com.o19s.es.ltr.stats;
 
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 
@@ -41,4 +42,12 @@ public class LTRStats {
                 .filter(e -> e.getValue().isClusterLevel() == isClusterStats)
                 .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
     }
+
+    /**
+     * Write the node level stats that can be scraped
+     */
+    public void exportMetrics(MetricsWriter writer) {
+        // sorted so that the metrics are always written in the same order
+        new TreeMap<>(getNodeStats()).values().forEach((stat) -> stat.exportMetrics(writer));
+    }
 }
@@ -0,0 +1,25 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.stats;
+
+/**
+ * Implemented by the suppliers of node level stats that can be scraped, see {@link LTRStats#exportMetrics(MetricsWriter)}.
+ * Exporting must be cheap: read the counters, do not compute the stats nor send requests.
+ */
+public interface MetricsExporter {
+    void exportMetrics(MetricsWriter writer);
+}
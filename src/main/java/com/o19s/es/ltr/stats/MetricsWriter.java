@@ -0,0 +1,140 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.stats;
+
+/**
+ * Writes metrics in the Prometheus text exposition format (version 0.0.4).
+ * Samples of a metric must be written right after its {@link #family(String, String, String) family} header.
+ * Durations recorded in nanos are exposed in seconds.
+ */
+public class MetricsWriter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PREFIX = "ltr_";
+    private static final double NANOS_PER_SECOND = 1_000_000_000D;
+    // exposed buckets: 2^10 nanos (~1us) to 2^36 nanos (~68s)
+    private static final int MIN_BUCKET = 10;
+    private static final int MAX_BUCKET = 36;
+
+    private final StringBuilder builder = new StringBuilder();
+
+    /**
+     * Start a new metric family
+     *
+     * @param name the name of the metric, without the plugin prefix
+     * @param type counter, gauge or histogram
+     * @param help the description of the metric
+     */
+    public MetricsWriter family(String name, String type, String help) {
+        builder.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * @param labels label names and values, alternated
+     */
+    public MetricsWriter sample(String name, long value, String... labels) {
+        appendName(name, labels);
+        builder.append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * @param labels label names and values, alternated
+     */
+    public MetricsWriter sample(String name, double value, String... labels) {
+        appendName(name, labels);
+        builder.append(formatDouble(value)).append('\n');
+        return this;
+    }
+
+    /**
+     * Write the cumulative buckets, the sum and the count of a histogram of durations.
+     * The same buckets are always written, from about 1 microsecond to about 1 minute, shorter durations are counted
+     * in the first bucket and longer durations in the +Inf bucket.
+     *
+     * @param labels label names and values, alternated
+     */
+    public MetricsWriter histogram(String name, Histogram histogram, String... labels) {
+        long[] counts = histogram.counts();
+        String[] bucketLabels = new String[labels.length + 2];
+        System.arraycopy(labels, 0, bucketLabels, 0, labels.length);
+        bucketLabels[labels.length] = "le";
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (i >= MIN_BUCKET && i <= MAX_BUCKET) {
+                bucketLabels[labels.length + 1] = formatDouble(Histogram.upperBound(i) / NANOS_PER_SECOND);
+                sample(name + "_bucket", cumulative, bucketLabels);
+            }
+        }
+        bucketLabels[labels.length + 1] = "+Inf";
+        sample(name + "_bucket", cumulative, bucketLabels);
+        sample(name + "_sum", histogram.sum() / NANOS_PER_SECOND, labels);
+        sample(name + "_count", cumulative, labels);
+        return this;
+    }
+
+    private void appendName(String name, String... labels) {
+        assert labels.length % 2 == 0;
+        builder.append(PREFIX).append(name);
+        if (labels.length > 0) {
+            builder.append('{');
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(labels[i]).append("=\"");
+                escape(labels[i + 1]);
+                builder.append('"');
+            }
+            builder.append('}');
+        }
+        builder.append(' ');
+    }
+
+    private void escape(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '\\':
+                builder.append("\\\\");
+                break;
+            case '"':
+                builder.append("\\\"");
+                break;
+            case '\n':
+                builder.append("\\n");
+                break;
+            default:
+                builder.append(c);
+            }
+        }
+    }
+
+    private static String formatDouble(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return Double.toString(value);
+    }
+
+    @Override
+    public String toString() {
+        return builder.toString();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.stats;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node level scoring metrics of the models used by the sltr query.
+ * Counters are {@link LongAdder}s so that concurrent search threads do not contend when scoring.
+ */
+public class ModelStats {
+    private final Map<String, Map<String, PerModelStats>> stores = new ConcurrentHashMap<>();
+    private final LongAdder docsLogged = new LongAdder();
+    private final LongAdder featuresLogged = new LongAdder();
+
+    /**
+     * @param store the store index name
+     * @param model the model name
+     * @return the stats of the model, created if needed
+     */
+    public PerModelStats get(String store, String model) {
+        return stores.computeIfAbsent(store, (k) -> new ConcurrentHashMap<>())
+                .computeIfAbsent(model, (k) -> new PerModelStats());
+    }
+
+    /**
+     * Record the feature values logged for a hit by the logging extension
+     *
+     * @param features the number of feature values logged
+     */
+    public void onLogging(int features) {
+        docsLogged.increment();
+        featuresLogged.add(features);
+    }
+
+    public long docsLogged() {
+        return docsLogged.sum();
+    }
+
+    public long featuresLogged() {
+        return featuresLogged.sum();
+    }
+
+    /**
+     * @return the stats of all models grouped by store, the maps are live views
+     */
+    public Map<String, Map<String, PerModelStats>> stores() {
+        return Collections.unmodifiableMap(stores);
+    }
+
+    /**
+     * Drop the stats of all the models of a store
+     */
+    public void evict(String store) {
+        stores.remove(store);
+    }
+
+    /**
+     * @return the stats of all models grouped by store
+     */
+    public Map<String, Map<String, Object>> toMap() {
+        Map<String, Map<String, Object>> values = new HashMap<>();
+        for (Map.Entry<String, Map<String, PerModelStats>> store : stores.entrySet()) {
+            Map<String, Object> models = new HashMap<>();
+            for (Map.Entry<String, PerModelStats> model : store.getValue().entrySet()) {
+                models.put(model.getKey(), model.getValue().toMap());
+            }
+            values.put(store.getKey(), Collections.unmodifiableMap(models));
+        }
+        return Collections.unmodifiableMap(values);
+    }
+
+    public enum Stat {
+        DOCS_SCORED("docs_scored"),
+        SCORE_TIME_IN_NANOS("score_time_in_nanos"),
+        SCORE_LATENCY_HISTOGRAM("score_latency_histogram"),
+        QUERY_BUILD_COUNT("query_build_count"),
+        QUERY_BUILD_TIME_IN_NANOS("query_build_time_in_nanos"),
+        WEIGHT_CREATION_COUNT("weight_creation_count"),
+        WEIGHT_CREATION_TIME_IN_NANOS("weight_creation_time_in_nanos"),
+        FEATURES("features"),
+        COMPILE_COUNT("compile_count"),
+        COMPILE_TIME_IN_NANOS("compile_time_in_nanos"),
+        REWRITE_COUNT("rewrite_count"),
+        REWRITE_TIME_IN_NANOS("rewrite_time_in_nanos"),
+
+        FEATURE_ADVANCE_COUNT("advance_count"),
+        FEATURE_ADVANCE_TIME_IN_NANOS("advance_time_in_nanos"),
+        FEATURE_MATCH_COUNT("match_count"),
+        FEATURE_SCORE_TIME_IN_NANOS("score_time_in_nanos");
+
+        private final String name;
+
+        Stat(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Metrics of a single model.
+     * Score, compilation and rewrite latencies are recorded in power of two buckets of nanoseconds.
+     */
+    public static class PerModelStats {
+        private final LongAdder docsScored = new LongAdder();
+        private final Histogram scoreHistogram = new Histogram();
+        private final LongAdder queryBuilds = new LongAdder();
+        private final LongAdder queryBuildNanos = new LongAdder();
+        private final LongAdder weightCreations = new LongAdder();
+        private final LongAdder weightCreationNanos = new LongAdder();
+        private final Histogram compileHistogram = new Histogram();
+        private final Histogram rewriteHistogram = new Histogram();
+        private final Map<String, FeatureStats> features = new ConcurrentHashMap<>();
+
+        PerModelStats() {}
+
+        public void onScore(long nanos) {
+            docsScored.increment();
+            scoreHistogram.record(nanos);
+        }
+
+        /**
+         * A model compiled when stored
+         */
+        public void onCompile(long nanos) {
+            compileHistogram.record(nanos);
+        }
+
+        /**
+         * The model loaded asynchronously while rewriting a sltr query, including the time spent waiting for the store
+         */
+        public void onRewrite(long nanos) {
+            rewriteHistogram.record(nanos);
+        }
+
+        public void onQueryBuild(long nanos) {
+            queryBuilds.increment();
+            queryBuildNanos.add(nanos);
+        }
+
+        public void onWeightCreation(long nanos) {
+            weightCreations.increment();
+            weightCreationNanos.add(nanos);
+        }
+
+        /**
+         * @param featureNames the name of each feature of the model, in ordinal order
+         * @return the profiling stats of each feature, created if needed
+         */
+        public FeatureStats[] featureStats(List<String> featureNames) {
+            FeatureStats[] stats = new FeatureStats[featureNames.size()];
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = features.computeIfAbsent(featureNames.get(i), (k) -> new FeatureStats());
+            }
+            return stats;
+        }
+
+        public long docsScored() {
+            return docsScored.sum();
+        }
+
+        public long scoreNanos() {
+            return scoreHistogram.sum();
+        }
+
+        public long queryBuilds() {
+            return queryBuilds.sum();
+        }
+
+        public long weightCreations() {
+            return weightCreations.sum();
+        }
+
+        public long queryBuildNanos() {
+            return queryBuildNanos.sum();
+        }
+
+        public long weightCreationNanos() {
+            return weightCreationNanos.sum();
+        }
+
+        public Histogram scoreHistogram() {
+            return scoreHistogram;
+        }
+
+        public Histogram compileHistogram() {
+            return compileHistogram;
+        }
+
+        public Histogram rewriteHistogram() {
+            return rewriteHistogram;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> stat = new HashMap<>();
+            stat.put(Stat.DOCS_SCORED.getName(), docsScored());
+            stat.put(Stat.SCORE_TIME_IN_NANOS.getName(), scoreNanos());
+            // only non-empty buckets keyed by their exclusive upper bound
+            Map<String, Object> histogram = new LinkedHashMap<>();
+            long[] counts = scoreHistogram.counts();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    histogram.put("lt_" + Histogram.upperBound(i), counts[i]);
+                }
+            }
+            stat.put(Stat.SCORE_LATENCY_HISTOGRAM.getName(), Collections.unmodifiableMap(histogram));
+            stat.put(Stat.QUERY_BUILD_COUNT.getName(), queryBuilds());
+            stat.put(Stat.QUERY_BUILD_TIME_IN_NANOS.getName(), queryBuildNanos.sum());
+            stat.put(Stat.WEIGHT_CREATION_COUNT.getName(), weightCreations());
+            stat.put(Stat.WEIGHT_CREATION_TIME_IN_NANOS.getName(), weightCreationNanos.sum());
+            stat.put(Stat.COMPILE_COUNT.getName(), compileHistogram.count());
+            stat.put(Stat.COMPILE_TIME_IN_NANOS.getName(), compileHistogram.sum());
+            stat.put(Stat.REWRITE_COUNT.getName(), rewriteHistogram.count());
+            stat.put(Stat.REWRITE_TIME_IN_NANOS.getName(), rewriteHistogram.sum());
+            if (!features.isEmpty()) {
+                Map<String, Object> featureValues = new HashMap<>();
+                for (Map.Entry<String, FeatureStats> feature : features.entrySet()) {
+                    featureValues.put(feature.getKey(), feature.getValue().toMap());
+                }
+                stat.put(Stat.FEATURES.getName(), Collections.unmodifiableMap(featureValues));
+            }
+            return Collections.unmodifiableMap(stat);
+        }
+    }
+
+    /**
+     * Cost of the scorer of a single feature, only collected when the sltr query profiles its features.
+     */
+    public static class FeatureStats {
+        private final LongAdder advances = new LongAdder();
+        private final LongAdder advanceNanos = new LongAdder();
+        private final LongAdder matches = new LongAdder();
+        private final LongAdder scoreNanos = new LongAdder();
+
+        FeatureStats() {}
+
+        public void onAdvance(long nanos) {
+            advances.increment();
+            advanceNanos.add(nanos);
+        }
+
+        /**
+         * A feature is only scored on the documents it matches
+         */
+        public void onScore(long nanos) {
+            matches.increment();
+            scoreNanos.add(nanos);
+        }
+
+        public long advances() {
+            return advances.sum();
+        }
+
+        public long matches() {
+            return matches.sum();
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> stat = new HashMap<>();
+            stat.put(Stat.FEATURE_ADVANCE_COUNT.getName(), advances());
+            stat.put(Stat.FEATURE_ADVANCE_TIME_IN_NANOS.getName(), advanceNanos.sum());
+            stat.put(Stat.FEATURE_MATCH_COUNT.getName(), matches());
+            stat.put(Stat.FEATURE_SCORE_TIME_IN_NANOS.getName(), scoreNanos.sum());
+            return Collections.unmodifiableMap(stat);
+        }
+    }
+}
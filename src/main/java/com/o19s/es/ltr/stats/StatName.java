@@ -7,7 +7,8 @@ import java.util.Set;
 public enum StatName {
     PLUGIN_STATUS("status"),
     STORES("stores"),
-    CACHE("cache");
+    CACHE("cache"),
+    MODELS("models");
 
     private final String name;
 
@@ -24,6 +25,7 @@ public enum StatName {
         statNames.add(PLUGIN_STATUS.name);
         statNames.add(STORES.name);
         statNames.add(CACHE.name);
+        statNames.add(MODELS.name);
         return Collections.unmodifiableSet(statNames);
     }
 }
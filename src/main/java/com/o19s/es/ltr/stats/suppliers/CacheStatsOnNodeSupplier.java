@@ -1,17 +1,20 @@
 package com.o19s.es.ltr.stats.suppliers;
 
 import com.o19s.es.ltr.feature.store.index.Caches;
+import com.o19s.es.ltr.stats.MetricsExporter;
+import com.o19s.es.ltr.stats.MetricsWriter;
 import org.elasticsearch.common.cache.Cache;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.function.Supplier;
 
 /**
  * Aggregate stats on the cache used by the plugin per node.
  */
-public class CacheStatsOnNodeSupplier implements Supplier<Map<String, Map<String, Object>>> {
+public class CacheStatsOnNodeSupplier implements Supplier<Map<String, Map<String, Object>>>, MetricsExporter {
     private final Caches caches;
 
     public enum Stat {
@@ -23,7 +26,11 @@ public class CacheStatsOnNodeSupplier implements Supplier<Map<String, Map<String
         CACHE_MISS_COUNT("miss_count"),
         CACHE_EVICTION_COUNT("eviction_count"),
         CACHE_ENTRY_COUNT("entry_count"),
-        CACHE_MEMORY_USAGE_IN_BYTES("memory_usage_in_bytes");
+        CACHE_MEMORY_USAGE_IN_BYTES("memory_usage_in_bytes"),
+        CACHE_OFF_HEAP_MEMORY_USAGE_IN_BYTES("off_heap_memory_usage_in_bytes"),
+        CACHE_PINNED_COUNT("pinned_count"),
+        CACHE_PINNED_MEMORY_USAGE_IN_BYTES("pinned_memory_usage_in_bytes"),
+        CACHE_ADMISSION_REJECTED_COUNT("admission_rejected_count");
 
         private final String name;
 
@@ -45,7 +52,12 @@ public class CacheStatsOnNodeSupplier implements Supplier<Map<String, Map<String
         Map<String, Map<String, Object>> values = new HashMap<>();
         values.put(Stat.CACHE_FEATURE.getName(), getCacheStats(caches.featureCache()));
         values.put(Stat.CACHE_FEATURE_SET.getName(), getCacheStats(caches.featureSetCache()));
-        values.put(Stat.CACHE_MODEL.getName(), getCacheStats(caches.modelCache()));
+        Map<String, Object> modelStats = new HashMap<>(getCacheStats(caches.modelCache()));
+        modelStats.put(Stat.CACHE_OFF_HEAP_MEMORY_USAGE_IN_BYTES.getName(), caches.getOffHeapWeight());
+        modelStats.put(Stat.CACHE_PINNED_COUNT.getName(), caches.pinnedModelCount());
+        modelStats.put(Stat.CACHE_PINNED_MEMORY_USAGE_IN_BYTES.getName(), caches.pinnedModelWeight());
+        modelStats.put(Stat.CACHE_ADMISSION_REJECTED_COUNT.getName(), caches.rejectedModelCount());
+        values.put(Stat.CACHE_MODEL.getName(), Collections.unmodifiableMap(modelStats));
         return Collections.unmodifiableMap(values);
     }
 
@@ -58,4 +70,40 @@ public class CacheStatsOnNodeSupplier implements Supplier<Map<String, Map<String
         stat.put(Stat.CACHE_MEMORY_USAGE_IN_BYTES.getName(), cache.weight());
         return Collections.unmodifiableMap(stat);
     }
+
+    @Override
+    public void exportMetrics(MetricsWriter writer) {
+        Map<String, Cache<Caches.CacheKey, ?>> cachesByName = new LinkedHashMap<>();
+        cachesByName.put(Stat.CACHE_FEATURE.getName(), caches.featureCache());
+        cachesByName.put(Stat.CACHE_FEATURE_SET.getName(), caches.featureSetCache());
+        cachesByName.put(Stat.CACHE_MODEL.getName(), caches.modelCache());
+        Map<String, Cache.CacheStats> stats = new LinkedHashMap<>();
+        cachesByName.forEach((name, cache) -> stats.put(name, cache.stats()));
+
+        writer.family("cache_hits_total", "counter", "Lookups served by the cache");
+        stats.forEach((name, s) -> writer.sample("cache_hits_total", s.getHits(), "cache", name));
+        writer.family("cache_misses_total", "counter", "Lookups that loaded the element from the store");
+        stats.forEach((name, s) -> writer.sample("cache_misses_total", s.getMisses(), "cache", name));
+        writer.family("cache_hit_ratio", "gauge", "Ratio of the lookups served by the cache since the node started");
+        stats.forEach((name, s) -> {
+            long lookups = s.getHits() + s.getMisses();
+            writer.sample("cache_hit_ratio", lookups == 0 ? 0D : (double) s.getHits() / lookups, "cache", name);
+        });
+        writer.family("cache_evictions_total", "counter", "Entries evicted from the cache");
+        stats.forEach((name, s) -> writer.sample("cache_evictions_total", s.getEvictions(), "cache", name));
+        writer.family("cache_entries", "gauge", "Entries in the cache");
+        cachesByName.forEach((name, cache) -> writer.sample("cache_entries", cache.count(), "cache", name));
+        writer.family("cache_memory_bytes", "gauge", "Heap used by the cache");
+        cachesByName.forEach((name, cache) -> writer.sample("cache_memory_bytes", cache.weight(), "cache", name));
+        writer.family("cache_off_heap_memory_bytes", "gauge", "Off-heap memory used by the cached models");
+        writer.sample("cache_off_heap_memory_bytes", caches.getOffHeapWeight());
+        writer.family("cache_pinned_models", "gauge", "Pinned models loaded, not counted in the model cache");
+        writer.sample("cache_pinned_models", caches.pinnedModelCount());
+        writer.family("cache_pinned_memory_bytes", "gauge", "Heap used by the pinned models");
+        writer.sample("cache_pinned_memory_bytes", caches.pinnedModelWeight());
+        writer.family("cache_admission_rejected_total", "counter", "Models loaded but not cached by the frequency admission");
+        writer.sample("cache_admission_rejected_total", caches.rejectedModelCount());
+        writer.family("model_load_seconds", "histogram", "Time spent loading the models missing from the cache");
+        writer.histogram("model_load_seconds", caches.modelLoadHistogram());
+    }
 }
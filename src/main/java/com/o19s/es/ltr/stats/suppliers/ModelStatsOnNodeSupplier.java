@@ -0,0 +1,65 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.stats.suppliers;
+
+import com.o19s.es.ltr.stats.MetricsExporter;
+import com.o19s.es.ltr.stats.MetricsWriter;
+import com.o19s.es.ltr.stats.ModelStats;
+import com.o19s.es.ltr.stats.ModelStats.PerModelStats;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Scoring metrics of the models used on the node, grouped by store.
+ */
+public class ModelStatsOnNodeSupplier implements Supplier<Map<String, Map<String, Object>>>, MetricsExporter {
+    private final ModelStats modelStats;
+
+    public ModelStatsOnNodeSupplier(ModelStats modelStats) {
+        this.modelStats = modelStats;
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> get() {
+        return modelStats.toMap();
+    }
+
+    @Override
+    public void exportMetrics(MetricsWriter writer) {
+        writer.family("model_docs_scored_total", "counter", "Documents scored by the model");
+        forEachModel((labels, stats) -> writer.sample("model_docs_scored_total", stats.docsScored(), labels));
+        writer.family("model_score_seconds", "histogram", "Time spent scoring a document with the model");
+        forEachModel((labels, stats) -> writer.histogram("model_score_seconds", stats.scoreHistogram(), labels));
+        writer.family("model_query_builds_total", "counter", "Queries built for the model");
+        forEachModel((labels, stats) -> writer.sample("model_query_builds_total", stats.queryBuilds(), labels));
+        writer.family("model_compile_seconds", "histogram", "Time spent compiling the model when stored");
+        forEachModel((labels, stats) -> writer.histogram("model_compile_seconds", stats.compileHistogram(), labels));
+        writer.family("model_rewrite_seconds", "histogram", "Time spent loading the model while rewriting a sltr query");
+        forEachModel((labels, stats) -> writer.histogram("model_rewrite_seconds", stats.rewriteHistogram(), labels));
+        writer.family("logging_docs_total", "counter", "Hits whose feature values were logged");
+        writer.sample("logging_docs_total", modelStats.docsLogged());
+        writer.family("logging_features_total", "counter", "Feature values logged");
+        writer.sample("logging_features_total", modelStats.featuresLogged());
+    }
+
+    private void forEachModel(BiConsumer<String[], PerModelStats> consumer) {
+        modelStats.stores().forEach((store, models) ->
+                models.forEach((model, stats) -> consumer.accept(new String[]{"store", store, "model", model}, stats)));
+    }
+}
@@ -3,21 +3,24 @@ package com.o19s.es.ltr.stats.suppliers;
 import com.o19s.es.ltr.feature.store.index.IndexFeatureStore;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.admin.cluster.state.ClusterStateRequest;
 import org.elasticsearch.action.search.MultiSearchRequestBuilder;
 import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.client.internal.Client;
 import org.elasticsearch.cluster.health.ClusterIndexHealth;
 import org.elasticsearch.cluster.metadata.IndexMetadata;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.index.Index;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -25,21 +28,38 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * A supplier which provides information on all feature stores. It provides basic
  * information such as the index health and count of feature sets, features and
  * models in the store.
+ * <p>
+ * The counts come from a snapshot of the stores, taken with a terms aggregation and refreshed in the background
+ * when older than {@link #STORE_STATS_REFRESH_INTERVAL}, plus the elements created through this node since then.
+ * Elements deleted or created on other nodes are only visible after the next refresh, writes acknowledged
+ * while a refresh is running may also be missed until the next one.
  */
 public class StoreStatsSupplier implements Supplier<Map<String, Map<String, Object>>> {
+    public static final Setting<TimeValue> STORE_STATS_REFRESH_INTERVAL = Setting.timeSetting("ltr.stats.store_refresh_interval",
+            TimeValue.timeValueMinutes(1),
+            TimeValue.timeValueNanos(0),
+            Setting.Property.NodeScope);
     private static final Logger LOG = LogManager.getLogger(StoreStatsSupplier.class);
     private static final String AGG_FIELD = "type";
     private final Client client;
     private final ClusterService clusterService;
     private final IndexNameExpressionResolver indexNameExpressionResolver;
+    private final long refreshIntervalMillis;
+    private final AtomicReference<PlainActionFuture<Snapshot>> refreshing = new AtomicReference<>();
+    private volatile Snapshot snapshot;
+    private volatile Map<Index, Map<String, LongAdder>> created = new ConcurrentHashMap<>();
 
     public enum Stat {
         STORE_STATUS("status"),
@@ -59,9 +79,31 @@ public class StoreStatsSupplier implements Supplier<Map<String, Map<String, Obje
     }
 
     public StoreStatsSupplier(Client client, ClusterService clusterService, IndexNameExpressionResolver indexNameExpressionResolver) {
+        this(client, clusterService, indexNameExpressionResolver, STORE_STATS_REFRESH_INTERVAL.get(clusterService.getSettings()));
+    }
+
+    public StoreStatsSupplier(Client client, ClusterService clusterService, IndexNameExpressionResolver indexNameExpressionResolver,
+                              TimeValue refreshInterval) {
         this.client = client;
         this.clusterService = clusterService;
         this.indexNameExpressionResolver = indexNameExpressionResolver;
+        this.refreshIntervalMillis = refreshInterval.millis();
+    }
+
+    /**
+     * Count an element created in a store, called once the element is indexed.
+     *
+     * @param store the store index
+     * @param type the type of the element
+     */
+    public void onCreated(String store, String type) {
+        IndexMetadata metadata = clusterService.state().metadata().index(store);
+        if (metadata == null) {
+            return;
+        }
+        created.computeIfAbsent(metadata.getIndex(), (k) -> new ConcurrentHashMap<>())
+                .computeIfAbsent(typeToStatName(type), (k) -> new LongAdder())
+                .increment();
     }
 
     @Override
@@ -69,50 +111,99 @@ public class StoreStatsSupplier implements Supplier<Map<String, Map<String, Obje
         String[] names = indexNameExpressionResolver.concreteIndexNames(clusterService.state(),
                 new ClusterStateRequest().indices(
                         IndexFeatureStore.DEFAULT_STORE, IndexFeatureStore.STORE_PREFIX + "*"));
-        final MultiSearchRequestBuilder requestBuilder = client.prepareMultiSearch();
-        List<String> indices = new ArrayList<>();
-        Stream.of(names)
+        List<Index> indices = Stream.of(names)
                 .filter(IndexFeatureStore::isIndexStore)
                 .map(s -> clusterService.state().metadata().index(s))
                 .filter(Objects::nonNull)
                 .map(IndexMetadata::getIndex)
-                .map(Index::getName)
-                .forEach(idx -> {
-                    indices.add(idx);
-                    requestBuilder.add(countSearchRequest(idx));
-                });
-        return createStoreStatsResponse(requestBuilder, indices);
+                .collect(Collectors.toList());
+
+        Snapshot current = snapshot;
+        if (current == null) {
+            // nothing to serve yet, wait for the first snapshot
+            try {
+                current = refresh(indices).get();
+            } catch (InterruptedException | ExecutionException e) {
+                LOG.error("Error retrieving store stats", e);
+                return Collections.emptyMap();
+            }
+        } else if (relativeTimeInMillis() - current.timestamp >= refreshIntervalMillis) {
+            refresh(indices);
+        }
+        return createStoreStatsResponse(current, created, indices);
     }
 
-    private Map<String, Map<String, Object>> createStoreStatsResponse(MultiSearchRequestBuilder requestBuilder,
-                                                                      List<String> indices) {
-        try {
-            MultiSearchResponse msr = requestBuilder.execute().get();
-            assert indices.size() == msr.getResponses().length;
-            Map<String, Map<String, Object>> stats = new HashMap<>(indices.size());
+    private Map<String, Map<String, Object>> createStoreStatsResponse(Snapshot snapshot, Map<Index, Map<String, LongAdder>> created,
+                                                                      List<Index> indices) {
+        Map<String, Map<String, Object>> stats = new HashMap<>(indices.size());
+        for (Index index : indices) {
+            Map<String, Object> storeStat = initStoreStat(index.getName());
+            stats.put(IndexFeatureStore.storeName(index.getName()), storeStat);
+            snapshot.counts.getOrDefault(index, Collections.emptyMap())
+                    .forEach((stat, count) -> storeStat.computeIfPresent(stat, (k, v) -> count + (long) v));
+            created.getOrDefault(index, Collections.emptyMap())
+                    .forEach((stat, count) -> storeStat.computeIfPresent(stat, (k, v) -> count.sum() + (long) v));
+        }
+        return stats;
+    }
 
-            Iterator<String> indicesItr = indices.iterator();
+    /**
+     * Take a new snapshot unless one is already being taken.
+     *
+     * @return a future completed with the new snapshot
+     */
+    private PlainActionFuture<Snapshot> refresh(List<Index> indices) {
+        PlainActionFuture<Snapshot> future = PlainActionFuture.newFuture();
+        PlainActionFuture<Snapshot> running = refreshing.compareAndExchange(null, future);
+        if (running != null) {
+            return running;
+        }
+        long timestamp = relativeTimeInMillis();
+        if (indices.isEmpty()) {
+            onRefreshed(new Snapshot(Collections.emptyMap(), timestamp), future);
+            return future;
+        }
+        MultiSearchRequestBuilder requestBuilder = client.prepareMultiSearch();
+        indices.forEach(idx -> requestBuilder.add(countSearchRequest(idx.getName())));
+        requestBuilder.execute(ActionListener.wrap((msr) -> {
+            assert indices.size() == msr.getResponses().length;
+            Map<Index, Map<String, Long>> counts = new HashMap<>(indices.size());
+            Iterator<Index> indicesItr = indices.iterator();
             Iterator<MultiSearchResponse.Item> responseItr = msr.iterator();
             while (indicesItr.hasNext() && responseItr.hasNext()) {
                 MultiSearchResponse.Item it = responseItr.next();
-                String index = indicesItr.next();
-                Map<String, Object> storeStat = initStoreStat(index);
-                stats.put(IndexFeatureStore.storeName(index), storeStat);
+                Index index = indicesItr.next();
                 if (!it.isFailure()) {
+                    Map<String, Long> storeCounts = new HashMap<>();
                     Terms aggs = it.getResponse()
                             .getAggregations()
                             .get(AGG_FIELD);
                     aggs.getBuckets()
                             .stream()
                             .filter(Objects::nonNull)
-                            .forEach(bucket -> updateCount(bucket, storeStat));
+                            .forEach(bucket -> storeCounts.merge(typeToStatName(bucket.getKeyAsString()), bucket.getDocCount(), Long::sum));
+                    counts.put(index, storeCounts);
                 }
             }
-            return stats;
-        } catch (InterruptedException | ExecutionException e) {
+            onRefreshed(new Snapshot(counts, timestamp), future);
+        }, (e) -> {
             LOG.error("Error retrieving store stats", e);
-            return Collections.emptyMap();
-        }
+            refreshing.set(null);
+            future.onFailure(e);
+        }));
+        return future;
+    }
+
+    private void onRefreshed(Snapshot newSnapshot, PlainActionFuture<Snapshot> future) {
+        // the snapshot now includes the elements created before it was taken
+        created = new ConcurrentHashMap<>();
+        snapshot = newSnapshot;
+        refreshing.set(null);
+        future.onResponse(newSnapshot);
+    }
+
+    private long relativeTimeInMillis() {
+        return clusterService.threadPool().relativeTimeInMillis();
     }
 
     private Map<String, Object> initStoreStat(String index) {
@@ -124,12 +215,6 @@ public class StoreStatsSupplier implements Supplier<Map<String, Map<String, Obje
         return storeStat;
     }
 
-    private void updateCount(Terms.Bucket bucket, Map<String, Object> storeStat) {
-        storeStat.computeIfPresent(
-                typeToStatName(bucket.getKeyAsString()),
-                (k, v) -> bucket.getDocCount() + (long) v);
-    }
-
     private String typeToStatName(String type) {
         return type + "_count";
     }
@@ -150,4 +235,17 @@ public class StoreStatsSupplier implements Supplier<Map<String, Map<String, Obje
                 .addAggregation(
                         AggregationBuilders.terms(AGG_FIELD).field(AGG_FIELD).size(100));
     }
+
+    /**
+     * Element counts per store index, keyed by index so that a store deleted and recreated is not mixed up with the old one
+     */
+    private static class Snapshot {
+        private final Map<Index, Map<String, Long>> counts;
+        private final long timestamp;
+
+        Snapshot(Map<Index, Map<String, Long>> counts, long timestamp) {
+            this.counts = counts;
+            this.timestamp = timestamp;
+        }
+    }
 }
@@ -59,6 +59,9 @@ public class TermStatScorer extends Scorer {
         return iter;
     }
 
+    /**
+     * The expression is arbitrary, its scores cannot be bounded
+     */
     @Override
     public float getMaxScore(int upTo) throws IOException {
         return Float.POSITIVE_INFINITY;
@@ -22,14 +22,19 @@ import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
 import org.apache.lucene.store.ByteBuffersDirectory;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.tests.util.LuceneTestCase;
@@ -101,6 +106,32 @@ public class ExplorerQueryTests extends LuceneTestCase {
         assertThat(explanation.toString().trim(), equalTo("1.0 = Stat Score: sum_raw_tf"));
     }
 
+    public void testMaxScore() throws Exception {
+        Query q = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("text", "break")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term("text", "dance")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term("text", "cow")), BooleanClause.Occur.SHOULD)
+                .build();
+        for (String statsType : new String[]{"sum_raw_tf", "mean_raw_tf", "max_raw_tf", "min_raw_tf", "stddev_raw_tf"}) {
+            ExplorerQuery eq = new ExplorerQuery(q, statsType);
+            Weight weight = searcher.createWeight(searcher.rewrite(eq), ScoreMode.TOP_SCORES, 1F);
+            for (LeafReaderContext context : reader.leaves()) {
+                Scorer scorer = weight.scorer(context);
+                if (scorer == null) {
+                    continue;
+                }
+                int upTo = scorer.advanceShallow(0);
+                float maxScore = scorer.getMaxScore(upTo);
+                // bounded by the sum of the total frequencies of the terms
+                assertTrue(maxScore <= 3 + 2 + 2);
+                DocIdSetIterator iterator = scorer.iterator();
+                for (int doc = iterator.nextDoc(); doc <= upTo && doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+                    assertTrue(scorer.score() <= maxScore);
+                }
+            }
+        }
+    }
+
     public void testQueryWithEmptyResults() throws Exception {
         Query q = new TermQuery(new Term("text", "xxxxxxxxxxxxxxxxxx"));
 
@@ -0,0 +1,85 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.o19s.es.ltr.action;
+
+import com.o19s.es.ltr.action.FeatureStoreAction.FeatureStoreRequest;
+import com.o19s.es.ltr.feature.store.StorableElement;
+import com.o19s.es.ltr.feature.store.StoredFeature;
+import com.o19s.es.ltr.feature.store.index.IndexFeatureStore;
+import org.apache.lucene.tests.util.LuceneTestCase;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.NamedWriteableAwareStreamInput;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.tasks.TaskId;
+
+import java.io.IOException;
+
+import static com.o19s.es.ltr.LtrTestUtils.randomFeature;
+import static java.util.Collections.singletonList;
+import static org.elasticsearch.index.seqno.SequenceNumbers.UNASSIGNED_PRIMARY_TERM;
+import static org.elasticsearch.index.seqno.SequenceNumbers.UNASSIGNED_SEQ_NO;
+
+public class FeatureStoreRequestTests extends LuceneTestCase {
+    private final NamedWriteableRegistry registry = new NamedWriteableRegistry(singletonList(
+            new NamedWriteableRegistry.Entry(StorableElement.class, StoredFeature.TYPE, StoredFeature::new)));
+
+    public void testUnconditionalRequestKeepsLegacyFormat() throws IOException {
+        StoredFeature feature = randomFeature("feature");
+        FeatureStoreRequest request = new FeatureStoreRequest(IndexFeatureStore.DEFAULT_STORE, feature,
+                random().nextBoolean() ? FeatureStoreRequest.Action.CREATE : FeatureStoreRequest.Action.UPDATE);
+        request.setRouting("routing");
+
+        // read as older versions of the plugin do
+        StreamInput in = serialize(request);
+        TaskId.readFromStream(in);
+        assertEquals(IndexFeatureStore.DEFAULT_STORE, in.readString());
+        assertEquals("routing", in.readOptionalString());
+        assertEquals(request.getAction().ordinal(), in.readVInt());
+        assertEquals(feature, in.readNamedWriteable(StorableElement.class));
+        assertFalse(in.readBoolean());
+        assertEquals(0, in.available());
+
+        in = serialize(request);
+        FeatureStoreRequest read = new FeatureStoreRequest(in);
+        assertEquals(request.getAction(), read.getAction());
+        assertEquals(UNASSIGNED_SEQ_NO, read.getIfSeqNo());
+        assertEquals(UNASSIGNED_PRIMARY_TERM, read.getIfPrimaryTerm());
+        assertEquals(0, in.available());
+    }
+
+    public void testConditionalUpdate() throws IOException {
+        long seqNo = random().nextInt(1000);
+        long primaryTerm = random().nextInt(10) + 1;
+        FeatureStoreRequest request = new FeatureStoreRequest(IndexFeatureStore.DEFAULT_STORE, randomFeature("feature"),
+                seqNo, primaryTerm);
+        StreamInput in = serialize(request);
+        FeatureStoreRequest read = new FeatureStoreRequest(in);
+        assertEquals(FeatureStoreRequest.Action.UPDATE, read.getAction());
+        assertEquals(request.getStorableElement(), read.getStorableElement());
+        assertEquals(seqNo, read.getIfSeqNo());
+        assertEquals(primaryTerm, read.getIfPrimaryTerm());
+        assertEquals(0, in.available());
+    }
+
+    private StreamInput serialize(FeatureStoreRequest request) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        return new NamedWriteableAwareStreamInput(out.bytes().streamInput(), registry);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.feature.store;
+
+import com.o19s.es.ltr.LtrTestUtils;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTreeTests;
+import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTreeTests;
+import com.o19s.es.ltr.ranker.linear.LinearRanker;
+import com.o19s.es.ltr.ranker.linear.LinearRankerTests;
+import com.o19s.es.ltr.ranker.normalizer.Normalizers;
+import com.o19s.es.ltr.ranker.parser.LinearRankerParser;
+import org.apache.lucene.tests.util.LuceneTestCase;
+import org.apache.lucene.tests.util.TestUtil;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.instanceOf;
+
+public class CompiledModelSnapshotTests extends LuceneTestCase {
+    public void testRoundTrip() throws IOException {
+        CompiledLtrModel model = LtrTestUtils.buildRandomModel();
+        assertTrue(CompiledModelSnapshot.supports(model.ranker()));
+        BytesReference snapshot = CompiledModelSnapshot.write(model.ranker(), "hash");
+        LtrRanker ranker = CompiledModelSnapshot.read(snapshot, model.featureSet(), "hash");
+        assertNotNull(ranker);
+
+        int nPass = TestUtil.nextInt(random(), 10, 50);
+        for (int i = 0; i < nPass; i++) {
+            float[] scores = new float[model.featureSet().size()];
+            LinearRankerTests.fillRandomWeights(scores);
+            LtrRanker.FeatureVector expected = model.ranker().newFeatureVector(null);
+            LtrRanker.FeatureVector actual = ranker.newFeatureVector(null);
+            for (int j = 0; j < scores.length; j++) {
+                expected.setFeatureScore(j, scores[j]);
+                actual.setFeatureScore(j, scores[j]);
+            }
+            assertEquals(model.ranker().score(expected), ranker.score(actual), 0F);
+        }
+    }
+
+    public void testTreesAreFlattened() throws IOException {
+        StoredFeatureSet set = LtrTestUtils.randomFeatureSet();
+        NaiveAdditiveDecisionTree naive = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(set.size(),
+                TestUtil.nextInt(random(), 1, 20), 2, 10, null);
+        LtrRanker ranker = CompiledModelSnapshot.read(CompiledModelSnapshot.write(naive, "hash"), set, "hash");
+        assertThat(ranker, instanceOf(FlatAdditiveDecisionTree.class));
+        assertEquals(FlatAdditiveDecisionTree.fromNodes(naive), ranker);
+    }
+
+    public void testTypedSplits() throws IOException {
+        FlatAdditiveDecisionTree trees = FlatAdditiveDecisionTreeTests.typedSplits().build();
+        StoredFeatureSet set = new StoredFeatureSet("set", Arrays.asList(LtrTestUtils.randomFeature("f0"),
+                LtrTestUtils.randomFeature("f1"), LtrTestUtils.randomFeature("f2")));
+        assertEquals(trees, CompiledModelSnapshot.read(CompiledModelSnapshot.write(trees, "hash"), set, "hash"));
+    }
+
+    public void testScaledSigmoid() throws IOException {
+        FlatAdditiveDecisionTree trees = FlatAdditiveDecisionTreeTests.typedSplits().normalizer(Normalizers.sigmoid(2F)).build();
+        StoredFeatureSet set = new StoredFeatureSet("set", Arrays.asList(LtrTestUtils.randomFeature("f0"),
+                LtrTestUtils.randomFeature("f1"), LtrTestUtils.randomFeature("f2")));
+        assertTrue(CompiledModelSnapshot.supports(trees));
+        assertEquals(trees, CompiledModelSnapshot.read(CompiledModelSnapshot.write(trees, "hash"), set, "hash"));
+    }
+
+    public void testUnknownVersionIsIgnored() throws IOException {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            out.writeVInt(CompiledModelSnapshot.FORMAT_VERSION + 1);
+            assertNull(CompiledModelSnapshot.read(out.bytes(), LtrTestUtils.randomFeatureSet(), "hash"));
+        }
+    }
+
+    public void testSnapshotOfAnotherDefinitionIsIgnored() throws IOException {
+        StoredFeatureSet set = LtrTestUtils.randomFeatureSet();
+        StoredLtrModel model = new StoredLtrModel("model", set, LinearRankerParser.TYPE, "{}", false, new StoredFeatureNormalizers());
+        StoredLtrModel updated = new StoredLtrModel("model", set, LinearRankerParser.TYPE, "{ }", false, new StoredFeatureNormalizers());
+        BytesReference snapshot = CompiledModelSnapshot.write(new LinearRanker(new float[set.size()]), model.contentHash());
+        assertNotNull(model.compile(snapshot));
+        assertNull(updated.compile(snapshot));
+    }
+
+    public void testCorruptedSnapshot() throws IOException {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            out.writeVInt(CompiledModelSnapshot.FORMAT_VERSION);
+            out.writeString("hash");
+            out.writeByte((byte) 42);
+            expectThrows(IOException.class, () -> CompiledModelSnapshot.read(out.bytes(), LtrTestUtils.randomFeatureSet(), "hash"));
+        }
+    }
+}
@@ -115,4 +115,20 @@ public class StoredFeatureSetTests extends LuceneTestCase {
         assertSame(feat2_v1, set_v3.feature(1));
         assertSame(feat3_v1, set_v3.feature(2));
     }
-}
\ No newline at end of file
+
+    public void testMergeKeepsNamesIndexed() throws IOException {
+        StoredFeatureSet set_v1 = new StoredFeatureSet("name", asList(randomFeature("feat1"), randomFeature("feat2")));
+        StoredFeatureSet set_v2 = set_v1.merge(asList(randomFeature("feat3"), randomFeature("feat2")))
+                .append(singletonList(randomFeature("feat4")));
+        assertEquals(4, set_v2.size());
+        for (int i = 0; i < set_v2.size(); i++) {
+            assertEquals(i, set_v2.featureOrdinal("feat" + (i + 1)));
+            assertTrue(set_v2.hasFeature("feat" + (i + 1)));
+        }
+        assertFalse(set_v1.hasFeature("feat3"));
+        expectThrows(IllegalArgumentException.class,
+                () -> set_v1.merge(asList(randomFeature("feat3"), randomFeature("feat3"))));
+        expectThrows(IllegalArgumentException.class,
+                () -> set_v1.append(asList(randomFeature("feat3"), randomFeature("feat3"))));
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.o19s.es.ltr.feature.store;
 
+import com.o19s.es.ltr.LtrTestUtils;
 import com.o19s.es.ltr.ranker.LtrRanker;
 import com.o19s.es.ltr.ranker.linear.LinearRanker;
 import com.o19s.es.ltr.ranker.normalizer.FeatureNormalizingRanker;
@@ -24,10 +25,13 @@ import com.o19s.es.ltr.ranker.normalizer.StandardFeatureNormalizer;
 import com.o19s.es.ltr.ranker.parser.LtrRankerParserFactory;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.tests.util.LuceneTestCase;
+import org.apache.lucene.tests.util.TestUtil;
 import org.elasticsearch.TransportVersion;
 import org.elasticsearch.common.ParsingException;
 import org.elasticsearch.common.Randomness;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.hash.MessageDigests;
 import org.elasticsearch.common.io.stream.ByteBufferStreamInput;
 import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.io.stream.StreamInput;
@@ -129,6 +133,32 @@ public class StoredLtrModelParserTests extends LuceneTestCase {
         assertTrue(model.featureSet().size() > 0);
     }
 
+    public void testContentHash() throws IOException {
+        StoredFeatureSet set = LtrTestUtils.randomFeatureSet();
+        StoredLtrModel model = new StoredLtrModel("a", set, "model/dummy", "definition", false, new StoredFeatureNormalizers());
+        StoredLtrModel renamed = new StoredLtrModel("b", set, "model/dummy", "definition", false, new StoredFeatureNormalizers());
+        StoredLtrModel other = new StoredLtrModel("a", set, "model/dummy", "other", false, new StoredFeatureNormalizers());
+        assertEquals(model.contentHash(), renamed.contentHash());
+        assertNotEquals(model.contentHash(), other.contentHash());
+        assertEquals(model.contentHash(), model.compile(factory).contentHash());
+    }
+
+    public void testContentHashOfSerializedDefinition() throws IOException {
+        StoredFeatureSet set = LtrTestUtils.randomFeatureSet();
+        String definition = TestUtil.randomRealisticUnicodeString(random(), 1000, 10000);
+        StoredLtrModel model = new StoredLtrModel("a", set, "model/dummy", definition, true, new StoredFeatureNormalizers());
+        BytesStreamOutput out = new BytesStreamOutput();
+        out.writeString(set.contentHash());
+        out.writeString("model/dummy");
+        out.writeBytesReference(new BytesArray(definition));
+        out.writeBoolean(true);
+        new StoredFeatureNormalizers().writeTo(out);
+        String expected = MessageDigests.toHexString(MessageDigests.digest(out.bytes(), MessageDigests.sha256()));
+        assertEquals(expected, model.contentHash());
+        // computed once
+        assertSame(model.contentHash(), model.contentHash());
+    }
+
     public void testCompileFeatureNorms() throws IOException {
         String modelJson = "{\n" +
                 " \"name\":\"my_model\",\n" +
@@ -146,21 +176,23 @@ public class StoredLtrModelParserTests extends LuceneTestCase {
         StoredLtrModel model = parse(modelJson);
         CompiledLtrModel compiledModel = model.compile(factory);
 
+        // the normalizer is folded in the weights of the linear model
         LtrRanker ranker = compiledModel.ranker();
-        assertEquals(ranker.getClass(), FeatureNormalizingRanker.class);
-
-        FeatureNormalizingRanker normRanker = (FeatureNormalizingRanker)ranker;
-
-        LtrRanker.FeatureVector ftrVector = normRanker.newFeatureVector(null);
-
-        ftrVector.setFeatureScore(0, 1.25f);
-        ftrVector.setFeatureScore(1, 1.25f);
+        assertEquals(ranker.getClass(), LinearRanker.class);
 
-        float ftr0Before = ftrVector.getFeatureScore(0);
-        float ftr1Before = ftrVector.getFeatureScore(1);
+        FeatureNormalizingRanker normRanker = new FeatureNormalizingRanker(this.ranker,
+                model.getFeatureNormalizers().compileOrdToNorms(compiledModel.featureSet()));
 
-        normRanker.score(ftrVector);
+        LtrRanker.FeatureVector ftrVector = ranker.newFeatureVector(null);
+        LtrRanker.FeatureVector normFtrVector = normRanker.newFeatureVector(null);
 
+        for (float value : new float[]{0F, 1.25F, 3.5F}) {
+            ftrVector.setFeatureScore(0, 1.25f);
+            ftrVector.setFeatureScore(1, value);
+            normFtrVector.setFeatureScore(0, 1.25f);
+            normFtrVector.setFeatureScore(1, value);
+            assertEquals(normRanker.score(normFtrVector), ranker.score(ftrVector), 1e-5F);
+        }
     }
 
     public void testFeatureStdNormParsing() throws IOException {
@@ -17,18 +17,33 @@
 package com.o19s.es.ltr.feature.store.index;
 
 import com.o19s.es.ltr.LtrTestUtils;
+import com.o19s.es.ltr.feature.Feature;
+import com.o19s.es.ltr.feature.FeatureSet;
 import com.o19s.es.ltr.feature.store.CompiledLtrModel;
+import com.o19s.es.ltr.feature.store.FeatureStore;
 import com.o19s.es.ltr.feature.store.MemStore;
 import com.o19s.es.ltr.feature.store.StoredFeature;
 import com.o19s.es.ltr.feature.store.StoredFeatureSet;
+import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTreeTests;
+import com.o19s.es.ltr.ranker.dectree.OffHeapAdditiveDecisionTree;
 import org.apache.lucene.tests.util.LuceneTestCase;
 import org.apache.lucene.tests.util.TestUtil;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.core.TimeValue;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.instanceOf;
 
 public class CachedFeatureStoreTests extends LuceneTestCase {
@@ -92,6 +107,21 @@ public class CachedFeatureStoreTests extends LuceneTestCase {
                 instanceOf(IllegalArgumentException.class));
     }
 
+    public void testCacheStoredModel() throws IOException {
+        CompiledLtrModel model = LtrTestUtils.buildRandomModel();
+        CachedFeatureStore store = new CachedFeatureStore(memStore, caches);
+        caches.cacheModel(memStore.getStoreName(), model.name(), model);
+        // not in the inner store, must come from the cache
+        assertSame(model, store.loadModel(model.name()));
+        assertEquals(1, caches.getPerStoreStats(memStore.getStoreName()).modelCount());
+
+        CompiledLtrModel replacement = new CompiledLtrModel(model.name(), model.featureSet(), model.ranker());
+        caches.cacheModel(memStore.getStoreName(), model.name(), replacement);
+        assertSame(replacement, store.loadModel(model.name()));
+        assertEquals(1, caches.getPerStoreStats(memStore.getStoreName()).modelCount());
+        assertEquals(replacement.ramBytesUsed(), caches.getPerStoreStats(memStore.getStoreName()).modelRam());
+    }
+
     public void testWontBlowUp() throws IOException {
         Caches caches = new Caches(TimeValue.timeValueHours(1), TimeValue.timeValueHours(1), ByteSizeValue.ofBytes(100000));
         CachedFeatureStore store = new CachedFeatureStore(memStore, caches);
@@ -190,4 +220,332 @@ public class CachedFeatureStoreTests extends LuceneTestCase {
         caches.evict(two.getStoreName());
         assertTrue(caches.getCachedStoreNames().isEmpty());
     }
+
+    public void testStoreEvictionIsScopedToStore() throws IOException {
+        MemStore one = new MemStore("one");
+        MemStore two = new MemStore("two");
+        CachedFeatureStore onefs = new CachedFeatureStore(one, caches);
+        CachedFeatureStore twofs = new CachedFeatureStore(two, caches);
+        CompiledLtrModel model = LtrTestUtils.buildRandomModel();
+        one.add(model);
+        two.add(model);
+        StoredFeatureSet set = LtrTestUtils.randomFeatureSet();
+        one.add(set);
+        two.add(set);
+        onefs.loadModel(model.name());
+        onefs.loadSet(set.name());
+        twofs.loadModel(model.name());
+        twofs.loadSet(set.name());
+
+        caches.evict(one.getStoreName());
+        assertNull(onefs.getCachedModel(model.name()));
+        assertNull(onefs.getCachedFeatureSet(set.name()));
+        assertNotNull(twofs.getCachedModel(model.name()));
+        assertNotNull(twofs.getCachedFeatureSet(set.name()));
+        assertEquals(2, caches.getPerStoreStats(two.getStoreName()).totalCount());
+
+        // evicting a store with nothing cached is a noop
+        caches.evict(one.getStoreName());
+        assertEquals(2, caches.getPerStoreStats(two.getStoreName()).totalCount());
+
+        // single element eviction keeps the store index consistent
+        caches.evictModel(two.getStoreName(), model.name());
+        caches.evict(two.getStoreName());
+        assertTrue(caches.getCachedStoreNames().isEmpty());
+    }
+
+    public void testLargeTreeModelsMovedOffHeap() throws IOException {
+        Caches caches = new Caches(TimeValue.timeValueHours(1), TimeValue.timeValueHours(1), ByteSizeValue.ofMb(10),
+                ByteSizeValue.ofMb(10), ByteSizeValue.ofBytes(0));
+        CachedFeatureStore store = new CachedFeatureStore(memStore, caches);
+        StoredFeatureSet set = LtrTestUtils.randomFeatureSet();
+        NaiveAdditiveDecisionTree trees = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(set.size(), 10, 2, 10, null);
+        CompiledLtrModel model = new CompiledLtrModel("trees", set, trees);
+        memStore.add(model);
+        CompiledLtrModel cached = store.loadModel(model.name());
+        assertThat(cached.ranker(), instanceOf(OffHeapAdditiveDecisionTree.class));
+        assertEquals(cached.offHeapBytesUsed(), caches.getOffHeapWeight());
+        assertEquals(cached.offHeapBytesUsed(), caches.getPerStoreStats(memStore.getStoreName()).modelOffHeapRam());
+        assertEquals(cached.ramBytesUsed(), store.modelWeight());
+
+        caches.evict(memStore.getStoreName());
+        assertEquals(0, caches.getOffHeapWeight());
+    }
+
+    public void testOffHeapBudget() throws IOException {
+        Caches caches = new Caches(TimeValue.timeValueHours(1), TimeValue.timeValueHours(1), ByteSizeValue.ofMb(10),
+                ByteSizeValue.ofBytes(1), ByteSizeValue.ofBytes(0));
+        CachedFeatureStore store = new CachedFeatureStore(memStore, caches);
+        StoredFeatureSet set = LtrTestUtils.randomFeatureSet();
+        NaiveAdditiveDecisionTree trees = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(set.size(), 10, 2, 10, null);
+        memStore.add(new CompiledLtrModel("trees", set, trees));
+        assertSame(trees, store.loadModel("trees").ranker());
+        assertEquals(0, caches.getOffHeapWeight());
+    }
+
+    public void testRejectedModelsStayOnHeap() throws IOException {
+        StoredFeatureSet set = LtrTestUtils.randomFeatureSet();
+        NaiveAdditiveDecisionTree trees = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(set.size(), 10, 2, 10, null);
+        for (String name : new String[]{"hot1", "hot2", "oneoff"}) {
+            memStore.add(new CompiledLtrModel(name, set, trees));
+        }
+        long onHeap = new CompiledLtrModel("hot1", set, trees).ramBytesUsed();
+        long offHeap = new CompiledLtrModel("hot1", set, OffHeapAdditiveDecisionTree.moveOffHeap(trees)).ramBytesUsed();
+        // room for a single model on heap, the two hot models are admitted once moved off-heap
+        Caches caches = new Caches(Settings.builder()
+                .put(Caches.LTR_MODEL_CACHE_MEM_SETTING.getKey(), (onHeap + offHeap) + "b")
+                .put(Caches.LTR_MODEL_CACHE_FREQUENCY_ADMISSION_SETTING.getKey(), true)
+                .put(Caches.LTR_CACHE_MAX_OFF_HEAP_MEM_SETTING.getKey(), "10mb")
+                .put(Caches.LTR_CACHE_OFF_HEAP_THRESHOLD_SETTING.getKey(), "0b")
+                .build());
+        CachedFeatureStore store = new CachedFeatureStore(memStore, caches);
+        assertThat(store.loadModel("hot1").ranker(), instanceOf(OffHeapAdditiveDecisionTree.class));
+        assertThat(store.loadModel("hot2").ranker(), instanceOf(OffHeapAdditiveDecisionTree.class));
+        assertSame(trees, store.loadModel("oneoff").ranker());
+        assertEquals(1, caches.rejectedModelCount());
+        assertEquals(2 * OffHeapAdditiveDecisionTree.offHeapBytesNeeded(trees), caches.getOffHeapWeight());
+    }
+
+    public void testSharedOffHeapModelsAreCountedOnce() throws IOException {
+        Caches caches = new Caches(TimeValue.timeValueHours(1), TimeValue.timeValueHours(1), ByteSizeValue.ofMb(10),
+                ByteSizeValue.ofMb(10), ByteSizeValue.ofBytes(0));
+        StoredFeatureSet set = LtrTestUtils.randomFeatureSet();
+        NaiveAdditiveDecisionTree trees = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(set.size(), 10, 2, 10, null);
+        MemStore one = new MemStore("one");
+        MemStore two = new MemStore("two");
+        one.add(new CompiledLtrModel("trees", set, trees, "hash"));
+        two.add(new CompiledLtrModel("trees", set, trees, "hash"));
+        CompiledLtrModel first = new CachedFeatureStore(one, caches).loadModel("trees");
+        CompiledLtrModel second = new CachedFeatureStore(two, caches).loadModel("trees");
+        assertThat(first.ranker(), instanceOf(OffHeapAdditiveDecisionTree.class));
+        assertSame(first.ranker(), second.ranker());
+        assertEquals(first.offHeapBytesUsed(), caches.getOffHeapWeight());
+
+        caches.evict("one");
+        assertEquals(first.offHeapBytesUsed(), caches.getOffHeapWeight());
+        caches.evict("two");
+        assertEquals(0, caches.getOffHeapWeight());
+    }
+
+    public void testTierSettings() {
+        Settings settings = Settings.builder()
+                .put(Caches.LTR_CACHE_MEM_SETTING.getKey(), "1mb")
+                .put(Caches.LTR_MODEL_CACHE_MEM_SETTING.getKey(), "3mb")
+                .build();
+        assertEquals(ByteSizeValue.ofMb(1), Caches.LTR_FEATURE_CACHE_MEM_SETTING.get(settings));
+        assertEquals(ByteSizeValue.ofMb(3).getBytes(), new Caches(settings).getMaxWeight());
+        assertEquals("ltr.caches.model.expire_after_read", Caches.LTR_MODEL_CACHE_EXPIRE_AFTER_READ.getKey());
+        assertEquals(TimeValue.timeValueHours(1), Caches.LTR_MODEL_CACHE_EXPIRE_AFTER_READ.get(settings));
+    }
+
+    public void testPinnedModels() throws IOException {
+        Caches caches = new Caches(Settings.builder()
+                .put(Caches.LTR_MODEL_CACHE_MEM_SETTING.getKey(), "1b")
+                .putList(Caches.LTR_MODEL_CACHE_PINNED_SETTING.getKey(), "pinned")
+                .build());
+        CompiledLtrModel model = LtrTestUtils.buildRandomModel();
+        CompiledLtrModel pinned = new CompiledLtrModel("pinned", model.featureSet(), model.ranker());
+        memStore.add(model);
+        memStore.add(pinned);
+        CachedFeatureStore store = new CachedFeatureStore(memStore, caches);
+        store.loadModel(model.name());
+        assertSame(pinned, store.loadModel("pinned"));
+        // too large for the model cache
+        assertNull(store.getCachedModel(model.name()));
+        assertSame(pinned, store.getCachedModel("pinned"));
+        assertEquals(1, caches.pinnedModelCount());
+        assertEquals(pinned.ramBytesUsed(), caches.pinnedModelWeight());
+        assertEquals(1, caches.getPerStoreStats(memStore.getStoreName()).modelCount());
+
+        caches.evictModel(memStore.getStoreName(), "pinned");
+        assertNull(store.getCachedModel("pinned"));
+        assertEquals(0, caches.pinnedModelCount());
+        assertTrue(caches.getCachedStoreNames().isEmpty());
+    }
+
+    public void testFrequencyAdmission() throws IOException {
+        CompiledLtrModel base = LtrTestUtils.buildRandomModel();
+        List<CompiledLtrModel> models = new ArrayList<>();
+        for (String name : new String[]{"hot1", "hot2", "oneoff"}) {
+            models.add(new CompiledLtrModel(name, base.featureSet(), base.ranker()));
+            memStore.add(models.get(models.size() - 1));
+        }
+        // room for two models
+        long maxWeight = models.get(0).ramBytesUsed() * 5 / 2;
+        Caches caches = new Caches(Settings.builder()
+                .put(Caches.LTR_MODEL_CACHE_MEM_SETTING.getKey(), maxWeight + "b")
+                .put(Caches.LTR_MODEL_CACHE_FREQUENCY_ADMISSION_SETTING.getKey(), true)
+                .build());
+        CachedFeatureStore store = new CachedFeatureStore(memStore, caches);
+        for (int i = 0; i < 3; i++) {
+            store.loadModel("hot1");
+            store.loadModel("hot2");
+        }
+        assertSame(models.get(2), store.loadModel("oneoff"));
+        assertNull(store.getCachedModel("oneoff"));
+        assertNotNull(store.getCachedModel("hot1"));
+        assertNotNull(store.getCachedModel("hot2"));
+        assertEquals(1, caches.rejectedModelCount());
+
+        // once used more often than the cached models it replaces the least recently used one
+        for (int i = 0; i < 3; i++) {
+            store.loadModel("oneoff");
+        }
+        assertNotNull(store.getCachedModel("oneoff"));
+        assertNull(store.getCachedModel("hot1"));
+        assertNotNull(store.getCachedModel("hot2"));
+        assertEquals(3, caches.rejectedModelCount());
+    }
+
+    public void testIdenticalModelsAreShared() throws IOException {
+        CompiledLtrModel model = LtrTestUtils.buildRandomModel();
+        CompiledLtrModel first = new CompiledLtrModel(model.name(), model.featureSet(), model.ranker(), "hash");
+        CompiledLtrModel copy = new CompiledLtrModel(model.name(), LtrTestUtils.randomFeatureSet(),
+                LtrTestUtils.buildRandomModel().ranker(), "hash");
+        MemStore one = new MemStore("one");
+        MemStore two = new MemStore("two");
+        one.add(first);
+        two.add(copy);
+        CachedFeatureStore storeOne = new CachedFeatureStore(one, caches);
+        CachedFeatureStore storeTwo = new CachedFeatureStore(two, caches);
+        assertSame(first, storeOne.loadModel(model.name()));
+        CompiledLtrModel shared = storeTwo.loadModel(model.name());
+        assertSame(first.ranker(), shared.ranker());
+        assertSame(first.featureSet(), shared.featureSet());
+        assertEquals(1, caches.sharedModelCount());
+
+        // still referenced by the second store
+        caches.evict("one");
+        assertEquals(1, caches.sharedModelCount());
+        assertSame(first.ranker(), storeTwo.getCachedModel(model.name()).ranker());
+        caches.evict("two");
+        assertEquals(0, caches.sharedModelCount());
+    }
+
+    public void testIdenticalFeatureSetsAreShared() throws IOException {
+        StoredFeatureSet set = LtrTestUtils.randomFeatureSet();
+        List<StoredFeature> features = new ArrayList<>(set.size());
+        for (int i = 0; i < set.size(); i++) {
+            features.add(set.feature(i));
+        }
+        StoredFeatureSet copy = new StoredFeatureSet(set.name(), features);
+        MemStore one = new MemStore("one");
+        MemStore two = new MemStore("two");
+        one.add(set);
+        two.add(copy);
+        FeatureSet loaded = new CachedFeatureStore(one, caches).loadSet(set.name());
+        assertSame(loaded, new CachedFeatureStore(two, caches).loadSet(set.name()));
+    }
+
+    public void testSyncLoadsAreCoalesced() throws Exception {
+        CompiledLtrModel slow = LtrTestUtils.buildRandomModel();
+        CompiledLtrModel fast = new CompiledLtrModel("fast", slow.featureSet(), slow.ranker());
+        memStore.add(slow);
+        memStore.add(fast);
+        AtomicInteger slowLoads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FeatureStore blockingStore = new MemStore(memStore.getStoreName()) {
+            @Override
+            public CompiledLtrModel loadModel(String name) throws IOException {
+                if (name.equals(slow.name())) {
+                    slowLoads.incrementAndGet();
+                    loading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return memStore.loadModel(name);
+            }
+        };
+        CachedFeatureStore store = new CachedFeatureStore(blockingStore, caches);
+        List<Thread> threads = new ArrayList<>();
+        List<CompiledLtrModel> loaded = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < TestUtil.nextInt(random(), 2, 8); i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    loaded.add(store.loadModel(slow.name()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        loading.await();
+        // another key is not blocked by the pending load
+        assertSame(fast, store.loadModel(fast.name()));
+        release.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, slowLoads.get());
+        assertEquals(threads.size(), loaded.size());
+        for (CompiledLtrModel m : loaded) {
+            assertSame(slow, m);
+        }
+        assertEquals(2, caches.getPerStoreStats(memStore.getStoreName()).modelCount());
+    }
+
+    public void testAsyncLoadsAreCoalesced() throws IOException {
+        CompiledLtrModel model = LtrTestUtils.buildRandomModel();
+        memStore.add(model);
+        List<ActionListener<CompiledLtrModel>> pending = new ArrayList<>();
+        FeatureStore asyncStore = new FeatureStore() {
+            @Override
+            public String getStoreName() {
+                return memStore.getStoreName();
+            }
+
+            @Override
+            public Feature load(String name) throws IOException {
+                return memStore.load(name);
+            }
+
+            @Override
+            public FeatureSet loadSet(String name) throws IOException {
+                return memStore.loadSet(name);
+            }
+
+            @Override
+            public CompiledLtrModel loadModel(String name) throws IOException {
+                return memStore.loadModel(name);
+            }
+
+            @Override
+            public void loadModel(String name, ActionListener<CompiledLtrModel> listener) {
+                pending.add(listener);
+            }
+        };
+        CachedFeatureStore store = new CachedFeatureStore(asyncStore, caches);
+        PlainActionFuture<CompiledLtrModel> first = PlainActionFuture.newFuture();
+        PlainActionFuture<CompiledLtrModel> second = PlainActionFuture.newFuture();
+        store.loadModel(model.name(), first);
+        store.loadModel(model.name(), second);
+        assertEquals(1, pending.size());
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+
+        pending.get(0).onResponse(model);
+        assertSame(model, first.actionGet());
+        assertSame(model, second.actionGet());
+        assertSame(model, store.getCachedModel(model.name()));
+        assertEquals(1, caches.getPerStoreStats(memStore.getStoreName()).modelCount());
+
+        // served from the cache
+        PlainActionFuture<CompiledLtrModel> third = PlainActionFuture.newFuture();
+        store.loadModel(model.name(), third);
+        assertSame(model, third.actionGet());
+        assertEquals(1, pending.size());
+
+        // failures are not cached and the next call retries
+        PlainActionFuture<CompiledLtrModel> failed = PlainActionFuture.newFuture();
+        store.loadModel("unk", failed);
+        pending.get(1).onFailure(new IllegalArgumentException("Unknown model [unk]"));
+        assertThat(expectThrows(IllegalArgumentException.class, failed::actionGet).getMessage(), equalTo("Unknown model [unk]"));
+        store.loadModel("unk", PlainActionFuture.newFuture());
+        assertEquals(3, pending.size());
+    }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.o19s.es.ltr.feature.store.index;
+
+import org.apache.lucene.tests.util.LuceneTestCase;
+
+public class FrequencySketchTests extends LuceneTestCase {
+    public void testFrequency() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        assertEquals(0, sketch.frequency("a"));
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+        }
+        sketch.increment("b");
+        assertEquals(5, sketch.frequency("a"));
+        assertEquals(1, sketch.frequency("b"));
+    }
+
+    public void testSaturates() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("a");
+        }
+        assertEquals(15, sketch.frequency("a"));
+    }
+
+    public void testAging() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment("hot");
+        }
+        // 10 increments per counter of a row trigger the halving of all the counters
+        for (int i = 0; i < 10 * 64; i++) {
+            sketch.increment(i);
+        }
+        assertTrue(sketch.frequency("hot") < 8);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.o19s.es.ltr.feature.store.index;
+
+import org.apache.lucene.tests.util.LuceneTestCase;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class SampledKeySetTests extends LuceneTestCase {
+    public void testAddRemove() {
+        SampledKeySet<String> keys = new SampledKeySet<>();
+        assertTrue(keys.sample(random(), 5).isEmpty());
+        keys.add("a");
+        keys.add("b");
+        keys.add("c");
+        keys.add("a");
+        assertEquals(3, keys.size());
+        keys.remove("a");
+        keys.remove("unknown");
+        assertEquals(2, keys.size());
+        for (String key : keys.sample(random(), 20)) {
+            assertTrue(key.equals("b") || key.equals("c"));
+        }
+        keys.remove("c");
+        keys.remove("b");
+        assertEquals(0, keys.size());
+        assertTrue(keys.sample(random(), 5).isEmpty());
+    }
+
+    public void testSampleCoversAllKeys() {
+        SampledKeySet<Integer> keys = new SampledKeySet<>();
+        int nKeys = 10;
+        for (int i = 0; i < nKeys * 2; i++) {
+            keys.add(i);
+        }
+        // remove every other key so that the remaining ones are moved around
+        for (int i = 0; i < nKeys * 2; i += 2) {
+            keys.remove(i);
+        }
+        List<Integer> sample = keys.sample(random(), 1000);
+        assertEquals(1000, sample.size());
+        Set<Integer> seen = new HashSet<>(sample);
+        assertEquals(nKeys, seen.size());
+        for (Integer key : seen) {
+            assertEquals(1, key % 2);
+        }
+    }
+}
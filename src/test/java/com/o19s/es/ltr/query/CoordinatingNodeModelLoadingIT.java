@@ -0,0 +1,87 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.o19s.es.ltr.query;
+
+import com.o19s.es.ltr.LtrQueryParserPlugin;
+import com.o19s.es.ltr.action.FeatureStoreAction;
+import com.o19s.es.ltr.action.FeatureStoreAction.FeatureStoreRequest;
+import com.o19s.es.ltr.feature.store.StorableElement;
+import com.o19s.es.ltr.feature.store.StoredFeature;
+import com.o19s.es.ltr.feature.store.StoredFeatureSet;
+import com.o19s.es.ltr.feature.store.StoredLtrModel;
+import com.o19s.es.ltr.feature.store.index.Caches;
+import com.o19s.es.ltr.feature.store.index.IndexFeatureStore;
+import com.o19s.es.ltr.ranker.parser.LinearRankerParser;
+import org.elasticsearch.action.admin.indices.create.CreateIndexAction;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.WrapperQueryBuilder;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.test.ESIntegTestCase;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import static java.util.Collections.singletonList;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchResponse;
+
+@ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.TEST, numDataNodes = 1, numClientNodes = 0)
+public class CoordinatingNodeModelLoadingIT extends ESIntegTestCase {
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins() {
+        return singletonList(LtrQueryParserPlugin.class);
+    }
+
+    public void testCoordinatingOnlyNodeDoesNotCacheModels() throws Exception {
+        String dataNode = internalCluster().getMasterName();
+        String coordinatingNode = internalCluster().startCoordinatingOnlyNode(Settings.EMPTY);
+
+        client(dataNode).execute(CreateIndexAction.INSTANCE, IndexFeatureStore.buildIndexRequest(IndexFeatureStore.DEFAULT_STORE))
+                .get();
+        StoredFeature feature = new StoredFeature("feature1", singletonList("query"), "mustache",
+                QueryBuilders.matchQuery("field1", "{{query}}").toString());
+        StoredFeatureSet set = new StoredFeatureSet("my_set", singletonList(feature));
+        store(dataNode, new StoredLtrModel("my_model", set,
+                new StoredLtrModel.LtrModelDefinition(LinearRankerParser.TYPE, "{\"feature1\": 1.0}", true)));
+        client(dataNode).prepareIndex("test_index").setSource("field1", "hello").get();
+        client(dataNode).admin().indices().prepareRefresh("test_index").get();
+        // storing the model cached it on the data node, start from empty caches
+        internalCluster().getInstance(Caches.class, dataNode).evictModel(IndexFeatureStore.DEFAULT_STORE, "my_model");
+
+        // parsed on the coordinating node, like queries sent to its REST layer
+        String sltr = new StoredLtrQueryBuilder((storeName, client) -> null)
+                .modelName("my_model")
+                .params(Collections.singletonMap("query", "hello"))
+                .toString();
+        SearchResponse response = client(coordinatingNode).prepareSearch("test_index")
+                .setQuery(new WrapperQueryBuilder(sltr))
+                .get();
+        assertSearchResponse(response);
+        assertEquals(1, response.getHits().getTotalHits().value);
+
+        assertEquals(0, internalCluster().getInstance(Caches.class, coordinatingNode).modelCache().count());
+        assertEquals(1, internalCluster().getInstance(Caches.class, dataNode).modelCache().count());
+    }
+
+    private void store(String node, StorableElement element) throws Exception {
+        FeatureStoreRequest request = new FeatureStoreRequest(IndexFeatureStore.DEFAULT_STORE, element,
+                FeatureStoreRequest.Action.CREATE);
+        client(node).execute(FeatureStoreAction.INSTANCE, request).get();
+    }
+}
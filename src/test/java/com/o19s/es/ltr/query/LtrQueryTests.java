@@ -24,17 +24,22 @@ import ciir.umass.edu.learning.RankerFactory;
 import ciir.umass.edu.learning.RankerTrainer;
 import ciir.umass.edu.metric.NDCGScorer;
 import ciir.umass.edu.utilities.MyThreadPool;
+import com.o19s.es.ltr.LtrQueryContext;
 import com.o19s.es.ltr.feature.FeatureSet;
 import com.o19s.es.ltr.feature.PrebuiltFeature;
 import com.o19s.es.ltr.feature.PrebuiltFeatureSet;
 import com.o19s.es.ltr.feature.PrebuiltLtrModel;
 import com.o19s.es.ltr.ranker.LogLtrRanker;
 import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.linear.LinearRanker;
 import com.o19s.es.ltr.ranker.normalizer.FeatureNormalizingRanker;
 import com.o19s.es.ltr.ranker.normalizer.Normalizer;
+import com.o19s.es.ltr.ranker.normalizer.Normalizers;
 import com.o19s.es.ltr.ranker.normalizer.StandardFeatureNormalizer;
 import com.o19s.es.ltr.ranker.ranklib.DenseProgramaticDataPoint;
 import com.o19s.es.ltr.ranker.ranklib.RanklibRanker;
+import com.o19s.es.ltr.stats.ModelStats;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
@@ -57,6 +62,7 @@ import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.SimpleCollector;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.similarities.AfterEffectB;
 import org.apache.lucene.search.similarities.AxiomaticF3LOG;
 import org.apache.lucene.search.similarities.BM25Similarity;
@@ -433,6 +439,125 @@ public class LtrQueryTests extends LuceneTestCase {
                 .collect(Collectors.toList());
     }
 
+    public void testProfileFeatures() throws IOException {
+        List<PrebuiltFeature> features = Arrays.asList(
+                new PrebuiltFeature("brown", new TermQuery(new Term("field",  "brown"))),
+                new PrebuiltFeature("banana", new TermQuery(new Term("field",  "banana"))));
+        LtrRanker ranker = new LinearRanker(new float[] {1F, 1F});
+        PrebuiltLtrModel model = new PrebuiltLtrModel(ranker.name(), ranker, new PrebuiltFeatureSet(null, features));
+        ModelStats.PerModelStats stats = new ModelStats().get("store", "model");
+        RankerQuery query = RankerQuery.build(model, new LtrQueryContext(null, Collections.emptySet()),
+                Collections.emptyMap(), false, stats, true);
+        searcherUnderTest.search(query, docs.length);
+
+        ModelStats.FeatureStats[] featureStats = stats.featureStats(Arrays.asList("brown", "banana"));
+        assertTrue(stats.docsScored() >= docs.length);
+        assertTrue(featureStats[0].advances() > 0);
+        assertTrue(featureStats[0].matches() >= 3);
+        // 3 docs contain brown and 1 contains banana, all the docs are scored the same number of times
+        assertEquals(featureStats[0].matches(), 3 * featureStats[1].matches());
+    }
+
+    public void testMissingFeatures() throws IOException {
+        List<PrebuiltFeature> features = Arrays.asList(
+                new PrebuiltFeature("brown", new TermQuery(new Term("field",  "brown"))),
+                new PrebuiltFeature("banana", new TermQuery(new Term("field",  "banana"))));
+        // banana matches a single doc, the other docs take the missing branch
+        FlatAdditiveDecisionTree.Builder builder = new FlatAdditiveDecisionTree.Builder(2,
+                Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+        builder.startTree(1F);
+        int split = builder.addSplit(1, Float.MAX_VALUE);
+        builder.setSplitType(split, FlatAdditiveDecisionTree.MISSING_NAN);
+        builder.addLeaf(1F);
+        builder.setRightChild(split, builder.nextNode());
+        builder.addLeaf(10F);
+        LtrRanker ranker = builder.build();
+        assertTrue(ranker.tracksMissingFeatures());
+        PrebuiltLtrModel model = new PrebuiltLtrModel(ranker.name(), ranker, new PrebuiltFeatureSet(null, features));
+
+        for (boolean cache : new boolean[]{false, true}) {
+            RankerQuery query = RankerQuery.build(model, new LtrQueryContext(null, Collections.emptySet()),
+                    Collections.emptyMap(), cache);
+            TopDocs topDocs = searcherUnderTest.search(query, docs.length);
+            assertEquals(docs.length, topDocs.scoreDocs.length);
+            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                String id = searcherUnderTest.doc(scoreDoc.doc).get("id");
+                float expected = "3".equals(id) ? 1F : 10F;
+                assertEquals(expected, scoreDoc.score, 0F);
+                assertEquals(expected, searcherUnderTest.explain(query, scoreDoc.doc).getValue().floatValue(), 0F);
+            }
+        }
+    }
+
+    /**
+     * brown docs score 10 + 31 * 0.5, the banana doc 31 * 0.1
+     */
+    private PrebuiltLtrModel brownBananaTrees() {
+        List<PrebuiltFeature> features = Arrays.asList(
+                new PrebuiltFeature("brown", new TermQuery(new Term("field",  "brown"))),
+                new PrebuiltFeature("banana", new TermQuery(new Term("field",  "banana"))));
+        FlatAdditiveDecisionTree.Builder builder = new FlatAdditiveDecisionTree.Builder(2,
+                Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+        builder.startTree(1F);
+        int split = builder.addSplit(0, Float.MIN_VALUE);
+        builder.addLeaf(0F);
+        builder.setRightChild(split, builder.nextNode());
+        builder.addLeaf(10F);
+        for (int i = 0; i < 31; i++) {
+            builder.startTree(1F);
+            split = builder.addSplit(1, Float.MIN_VALUE);
+            builder.addLeaf(0.5F);
+            builder.setRightChild(split, builder.nextNode());
+            builder.addLeaf(0.1F);
+        }
+        LtrRanker ranker = builder.build();
+        return new PrebuiltLtrModel(ranker.name(), ranker, new PrebuiltFeatureSet(null, features));
+    }
+
+    public void testEarlyExit() throws IOException {
+        PrebuiltLtrModel model = brownBananaTrees();
+        // some similarities may score brown 0
+        searcherUnderTest.setSimilarity(new BooleanSimilarity());
+
+        RankerQuery exactQuery = RankerQuery.build(model, new LtrQueryContext(null, Collections.emptySet()),
+                Collections.emptyMap(), false, null, false, 0);
+        RankerQuery query = RankerQuery.build(model, new LtrQueryContext(null, Collections.emptySet()),
+                Collections.emptyMap(), false, null, false, 1);
+        TopDocs exact = searcherUnderTest.search(exactQuery, docs.length);
+        TopDocs topDocs = searcherUnderTest.search(query, docs.length);
+        assertEquals(docs.length, topDocs.scoreDocs.length);
+        for (int i = 0; i < docs.length; i++) {
+            ScoreDoc scoreDoc = topDocs.scoreDocs[i];
+            assertEquals(exact.scoreDocs[i].doc, scoreDoc.doc);
+            if ("3".equals(searcherUnderTest.doc(scoreDoc.doc).get("id"))) {
+                // abandoned if scored after a brown doc, its score is then only an upper bound
+                assertEquals(3.1F, exact.scoreDocs[i].score, 1e-5F);
+                assertTrue(scoreDoc.score >= exact.scoreDocs[i].score);
+                assertTrue(scoreDoc.score < 25.5F);
+                assertEquals(3.1F, searcherUnderTest.explain(query, scoreDoc.doc).getValue().floatValue(), 1e-5F);
+            } else {
+                assertEquals(exact.scoreDocs[i].score, scoreDoc.score, 0F);
+            }
+        }
+    }
+
+    public void testTopScores() throws IOException {
+        PrebuiltLtrModel trees = brownBananaTrees();
+        PrebuiltLtrModel linear = new PrebuiltLtrModel("linear", new LinearRanker(new float[]{10F, 1F}, 0.5F),
+                (PrebuiltFeatureSet) trees.featureSet());
+        for (PrebuiltLtrModel model : new PrebuiltLtrModel[]{trees, linear}) {
+            RankerQuery query = RankerQuery.build(model, new LtrQueryContext(null, Collections.emptySet()),
+                    Collections.emptyMap(), false);
+            TopDocs exact = searcherUnderTest.search(query, docs.length);
+            // the total hit count is not needed, blocks of documents that cannot compete may be skipped
+            TopScoreDocCollector collector = TopScoreDocCollector.create(1, 1);
+            searcherUnderTest.search(query, collector);
+            TopDocs topDocs = collector.topDocs();
+            assertEquals(1, topDocs.scoreDocs.length);
+            assertEquals(exact.scoreDocs[0].score, topDocs.scoreDocs[0].score, 0F);
+        }
+    }
+
     public void testNoMatchQueries() throws IOException {
         String userQuery = "brown cow";
 
@@ -18,7 +18,10 @@ package com.o19s.es.ltr.query;
 
 import com.o19s.es.ltr.LtrQueryParserPlugin;
 import com.o19s.es.ltr.LtrTestUtils;
+import com.o19s.es.ltr.feature.Feature;
+import com.o19s.es.ltr.feature.FeatureSet;
 import com.o19s.es.ltr.feature.store.CompiledLtrModel;
+import com.o19s.es.ltr.feature.store.FeatureStore;
 import com.o19s.es.ltr.feature.store.MemStore;
 import com.o19s.es.ltr.feature.store.StoredFeature;
 import com.o19s.es.ltr.feature.store.StoredFeatureSet;
@@ -32,6 +35,8 @@ import com.o19s.es.ltr.utils.FeatureStoreLoader;
 import org.apache.lucene.search.MatchNoDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.common.io.stream.ByteBufferStreamInput;
 import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.io.stream.StreamInput;
@@ -57,6 +62,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.hamcrest.CoreMatchers.equalTo;
@@ -111,6 +117,8 @@ public class StoredLtrQueryBuilderTests extends AbstractQueryTestCase<StoredLtrQ
         StoredLtrQueryBuilder builder = new StoredLtrQueryBuilder(LtrTestUtils.wrapMemStore(store));
         if (random().nextBoolean()) { // executing a model
             builder.modelName("model1");
+            builder.profileFeatures(random().nextBoolean());
+            builder.earlyExitTopK(random().nextBoolean() ? 0 : random().nextInt(100) + 1);
         } else { // logging
             builder.featureSetName("set1");
         }
@@ -156,6 +164,147 @@ public class StoredLtrQueryBuilderTests extends AbstractQueryTestCase<StoredLtrQ
                 LtrTestUtils.wrapMemStore(StoredLtrQueryBuilderTests.store), input);
         List<String> expected = Collections.singletonList("match1");
         assertEquals(expected, builderFromInputStream.activeFeatures());
+        assertFalse(builderFromInputStream.profileFeatures());
+        assertEquals(0, builderFromInputStream.earlyExitTopK());
+    }
+
+    public void testSerDeWithoutOptionsKeepsLegacyFormat() throws IOException {
+        StoredLtrQueryBuilder builder = new StoredLtrQueryBuilder(LtrTestUtils.wrapMemStore(StoredLtrQueryBuilderTests.store));
+        builder.modelName("model1");
+        builder.params(Collections.emptyMap());
+        assertEquals(StoredLtrQueryBuilder.NAME, builder.getWriteableName());
+        BytesStreamOutput out = new BytesStreamOutput();
+        builder.writeTo(out);
+        out.close();
+
+        // read as older versions of the plugin do
+        BytesRef ref = out.bytes().toBytesRef();
+        StreamInput input = ByteBufferStreamInput.wrap(ref.bytes, ref.offset, ref.length);
+        StoredLtrQueryBuilder builderFromInputStream = new StoredLtrQueryBuilder(
+                LtrTestUtils.wrapMemStore(StoredLtrQueryBuilderTests.store), input);
+        assertEquals(builder, builderFromInputStream);
+        assertEquals(0, input.available());
+    }
+
+    public void testSerDeWithOptions() throws IOException {
+        StoredLtrQueryBuilder builder = new StoredLtrQueryBuilder(LtrTestUtils.wrapMemStore(StoredLtrQueryBuilderTests.store));
+        builder.modelName("model1");
+        builder.params(Collections.emptyMap());
+        builder.profileFeatures(true);
+        // options are serialized under a name that older versions of the plugin do not register
+        assertEquals(StoredLtrQueryBuilder.WITH_OPTIONS_WRITEABLE_NAME, builder.getWriteableName());
+        assertEquals(StoredLtrQueryBuilder.NAME, builder.getName());
+        BytesStreamOutput out = new BytesStreamOutput();
+        builder.writeTo(out);
+        out.close();
+
+        BytesRef ref = out.bytes().toBytesRef();
+        StreamInput input = ByteBufferStreamInput.wrap(ref.bytes, ref.offset, ref.length);
+        StoredLtrQueryBuilder builderFromInputStream = StoredLtrQueryBuilder.readWithOptions(
+                LtrTestUtils.wrapMemStore(StoredLtrQueryBuilderTests.store), null, input);
+        assertEquals(builder, builderFromInputStream);
+        assertTrue(builderFromInputStream.profileFeatures());
+        assertEquals(0, input.available());
+    }
+
+    public void testSerDeWithEarlyExitOnly() throws IOException {
+        StoredLtrQueryBuilder builder = new StoredLtrQueryBuilder(LtrTestUtils.wrapMemStore(StoredLtrQueryBuilderTests.store));
+        builder.modelName("model1");
+        builder.params(Collections.emptyMap());
+        builder.earlyExitTopK(randomIntBetween(1, 100));
+        assertEquals(StoredLtrQueryBuilder.WITH_OPTIONS_WRITEABLE_NAME, builder.getWriteableName());
+        BytesStreamOutput out = new BytesStreamOutput();
+        builder.writeTo(out);
+        out.close();
+
+        BytesRef ref = out.bytes().toBytesRef();
+        StreamInput input = ByteBufferStreamInput.wrap(ref.bytes, ref.offset, ref.length);
+        StoredLtrQueryBuilder builderFromInputStream = StoredLtrQueryBuilder.readWithOptions(
+                LtrTestUtils.wrapMemStore(StoredLtrQueryBuilderTests.store), null, input);
+        assertEquals(builder.earlyExitTopK(), builderFromInputStream.earlyExitTopK());
+        assertFalse(builderFromInputStream.profileFeatures());
+        assertEquals(0, input.available());
+    }
+
+    public void testAsyncRewriteLoadsModel() throws IOException {
+        StoredLtrQueryBuilder builder = new StoredLtrQueryBuilder((storeName, client) -> nonBlockingStore(new AtomicInteger()));
+        if (random().nextBoolean()) {
+            builder.modelName("model1");
+        } else {
+            builder.featureSetName("set1");
+        }
+        Map<String, Object> params = new HashMap<>();
+        params.put("query_string", "a wonderful query");
+        builder.params(params);
+
+        PlainActionFuture<QueryBuilder> future = PlainActionFuture.newFuture();
+        Rewriteable.rewriteAndFetch(builder, createQueryRewriteContext(), future);
+        QueryBuilder rewritten = future.actionGet();
+        assertThat(rewritten, instanceOf(StoredLtrQueryBuilder.class));
+        assertEquals(builder, rewritten);
+        RankerQuery query = ((StoredLtrQueryBuilder) rewritten).doToQuery(createSearchExecutionContext());
+        assertEquals(3, query.stream().count());
+        expectThrows(AssertionError.class, () -> builder.doToQuery(createSearchExecutionContext()));
+    }
+
+    public void testNoLoadOnRewriteOnNodesWithoutData() throws IOException {
+        AtomicInteger asyncLoads = new AtomicInteger();
+        FeatureStoreLoader loader = (storeName, client) -> nonBlockingStore(asyncLoads);
+        StoredLtrQueryBuilder builder = new StoredLtrQueryBuilder(loader).loadOnRewrite(false);
+        builder.modelName("model1");
+        builder.params(Collections.singletonMap("query_string", "a wonderful query"));
+
+        // coordinating only node, the model is not loaded
+        PlainActionFuture<QueryBuilder> future = PlainActionFuture.newFuture();
+        Rewriteable.rewriteAndFetch(builder, createQueryRewriteContext(), future);
+        assertSame(builder, future.actionGet());
+        assertEquals(0, asyncLoads.get());
+
+        // the copy sent to the node holding the shard loads it
+        BytesStreamOutput out = new BytesStreamOutput();
+        builder.writeTo(out);
+        StoredLtrQueryBuilder shardBuilder = new StoredLtrQueryBuilder(loader, out.bytes().streamInput());
+        future = PlainActionFuture.newFuture();
+        Rewriteable.rewriteAndFetch(shardBuilder, createQueryRewriteContext(), future);
+        RankerQuery query = ((StoredLtrQueryBuilder) future.actionGet()).doToQuery(createSearchExecutionContext());
+        assertEquals(3, query.stream().count());
+        assertEquals(1, asyncLoads.get());
+    }
+
+    private static FeatureStore nonBlockingStore(AtomicInteger asyncLoads) {
+        return new FeatureStore() {
+            @Override
+            public String getStoreName() {
+                return store.getStoreName();
+            }
+
+            @Override
+            public Feature load(String name) {
+                throw new AssertionError("blocking load of feature [" + name + "]");
+            }
+
+            @Override
+            public FeatureSet loadSet(String name) {
+                throw new AssertionError("blocking load of featureset [" + name + "]");
+            }
+
+            @Override
+            public CompiledLtrModel loadModel(String name) {
+                throw new AssertionError("blocking load of model [" + name + "]");
+            }
+
+            @Override
+            public void loadSet(String name, ActionListener<FeatureSet> listener) {
+                asyncLoads.incrementAndGet();
+                ActionListener.completeWith(listener, () -> store.loadSet(name));
+            }
+
+            @Override
+            public void loadModel(String name, ActionListener<CompiledLtrModel> listener) {
+                asyncLoads.incrementAndGet();
+                ActionListener.completeWith(listener, () -> store.loadModel(name));
+            }
+        };
     }
 
     public void testDoToQueryWhenFeatureEnabled() throws IOException {
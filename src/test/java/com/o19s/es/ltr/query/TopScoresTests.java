@@ -0,0 +1,42 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.query;
+
+import org.apache.lucene.tests.util.LuceneTestCase;
+import org.apache.lucene.tests.util.TestUtil;
+
+import java.util.Arrays;
+
+public class TopScoresTests extends LuceneTestCase {
+    public void testMinCompetitiveScore() {
+        int k = TestUtil.nextInt(random(), 1, 20);
+        TopScores topScores = new TopScores(k);
+        float[] scores = new float[TestUtil.nextInt(random(), 1, 200)];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = random().nextInt(50) / 2F;
+            topScores.add(scores[i]);
+            float[] seen = Arrays.copyOf(scores, i + 1);
+            Arrays.sort(seen);
+            float expected = seen.length < k ? Float.NEGATIVE_INFINITY : seen[seen.length - k];
+            assertEquals(expected, topScores.minCompetitiveScore(), 0F);
+        }
+    }
+
+    public void testInvalidK() {
+        expectThrows(IllegalArgumentException.class, () -> new TopScores(0));
+    }
+}
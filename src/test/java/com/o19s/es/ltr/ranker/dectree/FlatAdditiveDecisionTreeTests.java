@@ -0,0 +1,292 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.ranker.dectree;
+
+import com.o19s.es.ltr.ranker.DenseFeatureVector;
+import com.o19s.es.ltr.ranker.linear.LinearRankerTests;
+import com.o19s.es.ltr.ranker.normalizer.Normalizers;
+import org.apache.lucene.tests.util.LuceneTestCase;
+import org.apache.lucene.tests.util.TestUtil;
+
+public class FlatAdditiveDecisionTreeTests extends LuceneTestCase {
+    public void testName() {
+        FlatAdditiveDecisionTree ranker = new FlatAdditiveDecisionTree.Builder(0,
+                Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME)).build();
+        assertEquals("flat_additive_decision_tree", ranker.name());
+    }
+
+    public void testBuilder() {
+        FlatAdditiveDecisionTree.Builder builder = new FlatAdditiveDecisionTree.Builder(2,
+                Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+        builder.startTree(2F);
+        int split = builder.addSplit(0, 0.5F);
+        builder.addLeaf(1F);
+        builder.setRightChild(split, builder.nextNode());
+        int right = builder.addSplit(1, 0.5F);
+        builder.addLeaf(3F);
+        builder.setRightChild(right, builder.nextNode());
+        builder.addLeaf(4F);
+        builder.startTree(0.5F);
+        builder.addLeaf(10F);
+        FlatAdditiveDecisionTree ranker = builder.build();
+        assertEquals(6, ranker.numNodes());
+
+        DenseFeatureVector vector = ranker.newFeatureVector(null);
+        vector.setFeatureScore(0, 0.1F);
+        assertEquals(2F + 5F, ranker.score(vector), 0F);
+        vector.setFeatureScore(0, 1F);
+        vector.setFeatureScore(1, 0.1F);
+        assertEquals(6F + 5F, ranker.score(vector), 0F);
+        vector.setFeatureScore(1, 1F);
+        assertEquals(8F + 5F, ranker.score(vector), 0F);
+    }
+
+    public void testSameScoresAsNodeTrees() {
+        NaiveAdditiveDecisionTree naive = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(10, 100,
+                10, 100, 2, 20, null);
+        FlatAdditiveDecisionTree flat = FlatAdditiveDecisionTree.fromNodes(naive);
+        assertEquals(naive.size(), flat.size());
+        int nPass = TestUtil.nextInt(random(), 10, 100);
+        DenseFeatureVector vector = naive.newFeatureVector(null);
+        for (int i = 0; i < nPass; i++) {
+            vector = naive.newFeatureVector(vector);
+            LinearRankerTests.fillRandomWeights(vector.scores);
+            assertEquals(naive.score(vector), flat.score(vector), 0F);
+        }
+    }
+
+    public void testEarlyExit() {
+        NaiveAdditiveDecisionTree naive = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(10, 100,
+                20, 200, 2, 10, null);
+        FlatAdditiveDecisionTree noop = FlatAdditiveDecisionTree.fromNodes(naive);
+        FlatAdditiveDecisionTree sigmoid = new FlatAdditiveDecisionTree(noop.roots(), noop.weights(), noop.features(),
+                noop.values(), noop.rightChildren(), noop.size(), Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME));
+        for (FlatAdditiveDecisionTree ranker : new FlatAdditiveDecisionTree[]{noop, sigmoid}) {
+            float maxScore = ranker.maxScore();
+            DenseFeatureVector vector = ranker.newFeatureVector(null);
+            for (int i = 0; i < 100; i++) {
+                vector = ranker.newFeatureVector(vector);
+                LinearRankerTests.fillRandomWeights(vector.scores);
+                float exact = ranker.score(vector);
+                assertTrue(exact <= maxScore);
+                assertEquals(exact, ranker.score(vector, Float.NEGATIVE_INFINITY), 0F);
+                assertEquals(exact, ranker.score(vector, exact), 0F);
+                float minScore = exact + (random().nextFloat() * 2 - 1) * (Math.abs(exact) + 1);
+                float score = ranker.score(vector, minScore);
+                if (exact >= minScore) {
+                    assertEquals(exact, score, 0F);
+                } else {
+                    // an upper bound of the exact score
+                    assertTrue(score < minScore);
+                    assertTrue(score >= exact);
+                }
+            }
+            // the model cannot reach it
+            assertTrue(ranker.score(vector, Math.nextUp(maxScore)) < Math.nextUp(maxScore));
+        }
+    }
+
+    public void testMaxScoreWithFeatureRanges() {
+        NaiveAdditiveDecisionTree naive = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(10, 100,
+                20, 200, 2, 10, null);
+        assertMaxScoreWithFeatureRanges(FlatAdditiveDecisionTree.fromNodes(naive));
+    }
+
+    public void testMaxScoreWithFeatureRangesOfLargeEnsembles() {
+        // enough trees to exceed the nodes visited by the bound
+        NaiveAdditiveDecisionTree naive = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(10, 100,
+                1000, 2000, 4, 10, null);
+        FlatAdditiveDecisionTree ranker = FlatAdditiveDecisionTree.fromNodes(naive);
+        assertTrue(ranker.numNodes() > FlatAdditiveDecisionTree.MAX_SCORE_VISITED_NODES);
+        assertMaxScoreWithFeatureRanges(ranker);
+    }
+
+    private void assertMaxScoreWithFeatureRanges(FlatAdditiveDecisionTree ranker) {
+        int size = ranker.size();
+        float[] mins = new float[size];
+        float[] maxs = new float[size];
+        DenseFeatureVector vector = ranker.newFeatureVector(null);
+        for (int i = 0; i < 10; i++) {
+            for (int f = 0; f < size; f++) {
+                mins[f] = (random().nextFloat() - 0.5F) * 10;
+                maxs[f] = mins[f] + random().nextFloat() * 5;
+            }
+            float bound = ranker.maxScore(mins, maxs);
+            assertTrue(bound <= ranker.maxScore());
+            for (int j = 0; j < 100; j++) {
+                vector = ranker.newFeatureVector(vector);
+                for (int f = 0; f < size; f++) {
+                    vector.scores[f] = random().nextBoolean()
+                            ? (random().nextBoolean() ? mins[f] : maxs[f])
+                            : Math.min(maxs[f], mins[f] + random().nextFloat() * (maxs[f] - mins[f]));
+                }
+                float exact = ranker.score(vector);
+                assertTrue(exact <= bound);
+                // a single document only reaches one leaf per tree
+                float[] point = vector.scores.clone();
+                float pointBound = ranker.maxScore(point, point);
+                assertTrue(exact <= pointBound);
+                assertTrue(pointBound <= bound);
+            }
+        }
+    }
+
+    public void testInvalidRightChild() {
+        expectThrows(IllegalArgumentException.class, () -> new FlatAdditiveDecisionTree(new int[]{0}, new float[]{1F},
+                new int[]{0, FlatAdditiveDecisionTree.LEAF}, new float[]{1F, 1F}, new int[]{0, FlatAdditiveDecisionTree.LEAF},
+                1, Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME)));
+    }
+
+    public void testInvalidFeature() {
+        expectThrows(IllegalArgumentException.class, () -> new FlatAdditiveDecisionTree(new int[]{0}, new float[]{1F},
+                new int[]{3, FlatAdditiveDecisionTree.LEAF, FlatAdditiveDecisionTree.LEAF}, new float[]{1F, 1F, 1F},
+                new int[]{2, FlatAdditiveDecisionTree.LEAF, FlatAdditiveDecisionTree.LEAF},
+                1, Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME)));
+    }
+
+    /**
+     * f0 &lt; 0.5 (NaN goes left) ? 1 : (f1 in {2, 40} ? 2 : 3)
+     * + 2 * (f2 &lt; 1 (zero goes right) ? 10 : 20)
+     */
+    public static FlatAdditiveDecisionTree.Builder typedSplits() {
+        FlatAdditiveDecisionTree.Builder builder = new FlatAdditiveDecisionTree.Builder(3,
+                Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+        builder.startTree(1F);
+        int split = builder.addSplit(0, 0.5F);
+        builder.setSplitType(split, FlatAdditiveDecisionTree.MISSING_NAN | FlatAdditiveDecisionTree.DEFAULT_LEFT);
+        builder.addLeaf(1F);
+        builder.setRightChild(split, builder.nextNode());
+        int categorical = builder.reserveNode();
+        builder.setCategoricalSplit(categorical, 1, new int[]{1 << 2, 1 << 8});
+        builder.addLeaf(2F);
+        builder.setRightChild(categorical, builder.nextNode());
+        builder.addLeaf(3F);
+        builder.startTree(2F);
+        split = builder.addSplit(2, 1F);
+        builder.setSplitType(split, FlatAdditiveDecisionTree.MISSING_ZERO);
+        builder.addLeaf(10F);
+        builder.setRightChild(split, builder.nextNode());
+        builder.addLeaf(20F);
+        return builder;
+    }
+
+    public void testTypedSplits() {
+        FlatAdditiveDecisionTree ranker = typedSplits().build();
+        assertNotNull(ranker.splitTypes());
+        assertArrayEquals(new int[]{0, 2}, ranker.categoryBounds());
+        assertTypedScores(ranker, 0);
+    }
+
+    private static void assertTypedScores(FlatAdditiveDecisionTree ranker, float offset) {
+        DenseFeatureVector vector = ranker.newFeatureVector(null);
+        vector.scores[0] = 0.1F;
+        vector.scores[2] = 0.5F;
+        assertEquals(offset + 1F + 20F, ranker.score(vector), 0F);
+        vector.scores[0] = Float.NaN;
+        assertEquals(offset + 1F + 20F, ranker.score(vector), 0F);
+        vector.scores[0] = 1F;
+        vector.scores[1] = 2F;
+        assertEquals(offset + 2F + 20F, ranker.score(vector), 0F);
+        vector.scores[1] = 40.5F;
+        assertEquals(offset + 2F + 20F, ranker.score(vector), 0F);
+        vector.scores[1] = 3F;
+        assertEquals(offset + 3F + 20F, ranker.score(vector), 0F);
+        vector.scores[1] = 64F;
+        assertEquals(offset + 3F + 20F, ranker.score(vector), 0F);
+        vector.scores[1] = -2F;
+        assertEquals(offset + 3F + 20F, ranker.score(vector), 0F);
+        // zero is missing and goes right, NaN is treated as zero
+        vector.scores[2] = 0F;
+        assertEquals(offset + 3F + 40F, ranker.score(vector), 0F);
+        vector.scores[2] = Float.NaN;
+        assertEquals(offset + 3F + 40F, ranker.score(vector), 0F);
+        vector.scores[2] = -0.5F;
+        assertEquals(offset + 3F + 20F, ranker.score(vector), 0F);
+    }
+
+    public void testMissingFeatures() {
+        FlatAdditiveDecisionTree ranker = typedSplits().build();
+        assertTrue(ranker.tracksMissingFeatures());
+        DenseFeatureVector vector = ranker.newFeatureVector(null);
+        assertNotNull(vector.missing());
+        vector.setFeatureMissing(0);
+        vector.scores[2] = 0.5F;
+        // missing is NaN: default direction for NaN splits, zero otherwise
+        assertEquals(1F + 20F, ranker.score(vector), 0F);
+
+        vector = ranker.newFeatureVector(vector);
+        assertEquals(0, vector.missing().cardinality());
+        vector.setFeatureScore(0, 1F);
+        vector.setFeatureMissing(1);
+        vector.setFeatureMissing(2);
+        assertEquals(3F + 40F, ranker.score(vector), 0F);
+
+        FlatAdditiveDecisionTree untyped = FlatAdditiveDecisionTree.fromNodes(NaiveAdditiveDecisionTreeTests.generateRandomDecTree(
+                10, 10, 2, 5, 2, 5, null));
+        assertFalse(untyped.tracksMissingFeatures());
+        assertNull(untyped.newFeatureVector(null).missing());
+    }
+
+    public void testAppendTypedSplits() {
+        FlatAdditiveDecisionTree.Builder builder = new FlatAdditiveDecisionTree.Builder(3,
+                Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+        builder.startTree(1F);
+        int categorical = builder.reserveNode();
+        builder.setCategoricalSplit(categorical, 1, new int[]{1});
+        builder.addLeaf(1000F);
+        builder.setRightChild(categorical, builder.nextNode());
+        builder.addLeaf(1000F);
+        // the category bitsets of the appended trees are shifted
+        FlatAdditiveDecisionTree ranker = builder.append(typedSplits()).build();
+        assertArrayEquals(new int[]{0, 1, 3}, ranker.categoryBounds());
+        assertTypedScores(ranker, 1000F);
+
+        ranker = new FlatAdditiveDecisionTree.Builder(3, Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME))
+                .append(typedSplits())
+                .build();
+        assertTypedScores(ranker, 0F);
+    }
+
+    public void testNoSplitTypes() {
+        FlatAdditiveDecisionTree.Builder builder = new FlatAdditiveDecisionTree.Builder(1,
+                Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+        builder.startTree(1F);
+        int split = builder.addSplit(0, 0.5F);
+        builder.setSplitType(split, 0);
+        builder.addLeaf(1F);
+        builder.setRightChild(split, builder.nextNode());
+        builder.addLeaf(2F);
+        assertNull(builder.build().splitTypes());
+    }
+
+    public void testRamBytesUsed() {
+        FlatAdditiveDecisionTree plain = FlatAdditiveDecisionTree.fromNodes(
+                NaiveAdditiveDecisionTreeTests.generateRandomDecTree(5, 10, 2, 10, null));
+        assertNull(plain.splitTypes());
+        assertTrue(plain.ramBytesUsed() > 0);
+        FlatAdditiveDecisionTree typed = typedSplits().build();
+        assertTrue(typed.ramBytesUsed() > 0);
+    }
+
+    public void testInvalidCategoryBitset() {
+        expectThrows(IllegalArgumentException.class, () -> new FlatAdditiveDecisionTree(new int[]{0}, new float[]{1F},
+                new int[]{0, FlatAdditiveDecisionTree.LEAF, FlatAdditiveDecisionTree.LEAF}, new float[]{1F, 1F, 1F},
+                new int[]{2, FlatAdditiveDecisionTree.LEAF, FlatAdditiveDecisionTree.LEAF},
+                new byte[]{FlatAdditiveDecisionTree.CATEGORICAL, 0, 0}, new int[]{0, 1}, new int[]{1},
+                1, Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME)));
+    }
+}
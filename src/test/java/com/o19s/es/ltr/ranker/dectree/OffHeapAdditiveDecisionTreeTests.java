@@ -0,0 +1,124 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.ranker.dectree;
+
+import com.o19s.es.ltr.ranker.DenseFeatureVector;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.linear.LinearRankerTests;
+import com.o19s.es.ltr.ranker.normalizer.FeatureNormalizingRanker;
+import com.o19s.es.ltr.ranker.normalizer.MinMaxFeatureNormalizer;
+import com.o19s.es.ltr.ranker.normalizer.Normalizers;
+import org.apache.lucene.tests.util.LuceneTestCase;
+import org.apache.lucene.tests.util.TestUtil;
+
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+
+public class OffHeapAdditiveDecisionTreeTests extends LuceneTestCase {
+    public void testSameScoresAsNodeTrees() {
+        NaiveAdditiveDecisionTree naive = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(10, 100,
+                10, 100, 2, 20, null);
+        OffHeapAdditiveDecisionTree offHeap = (OffHeapAdditiveDecisionTree) OffHeapAdditiveDecisionTree.moveOffHeap(naive);
+        assertEquals(naive.size(), offHeap.size());
+        int nPass = TestUtil.nextInt(random(), 10, 100);
+        DenseFeatureVector vector = naive.newFeatureVector(null);
+        for (int i = 0; i < nPass; i++) {
+            vector = naive.newFeatureVector(vector);
+            LinearRankerTests.fillRandomWeights(vector.scores);
+            assertEquals(naive.score(vector), offHeap.score(vector), 0F);
+        }
+    }
+
+    public void testEarlyExit() {
+        FlatAdditiveDecisionTree flat = FlatAdditiveDecisionTree.fromNodes(NaiveAdditiveDecisionTreeTests.generateRandomDecTree(
+                10, 100, 20, 200, 2, 10, null));
+        OffHeapAdditiveDecisionTree offHeap = OffHeapAdditiveDecisionTree.copyOf(flat);
+        assertEquals(flat.maxScore(), offHeap.maxScore(), 0F);
+        DenseFeatureVector vector = flat.newFeatureVector(null);
+        for (int i = 0; i < 100; i++) {
+            vector = flat.newFeatureVector(vector);
+            LinearRankerTests.fillRandomWeights(vector.scores);
+            float minScore = (random().nextFloat() * 2 - 1) * Math.abs(flat.maxScore());
+            assertEquals(flat.score(vector, minScore), offHeap.score(vector, minScore), 0F);
+        }
+    }
+
+    public void testMemoryAccounting() {
+        NaiveAdditiveDecisionTree naive = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(10, 100,
+                10, 100, 5, 20, null);
+        FlatAdditiveDecisionTree flat = FlatAdditiveDecisionTree.fromNodes(naive);
+        OffHeapAdditiveDecisionTree offHeap = OffHeapAdditiveDecisionTree.copyOf(flat);
+        assertEquals(flat.numNodes(), offHeap.numNodes());
+        assertEquals(flat.numNodes() * 12L, offHeap.offHeapBytesUsed());
+        assertThat(offHeap.ramBytesUsed(), lessThan(flat.ramBytesUsed()));
+        assertEquals(offHeap, OffHeapAdditiveDecisionTree.copyOf(flat));
+    }
+
+    public void testMoveOffHeap() {
+        NaiveAdditiveDecisionTree naive = NaiveAdditiveDecisionTreeTests.generateRandomDecTree(10, 100,
+                10, 100, 2, 20, null);
+        FeatureNormalizingRanker normRanker = new FeatureNormalizingRanker(naive,
+                Collections.singletonMap(0, new MinMaxFeatureNormalizer(0F, 1F)));
+        LtrRanker ranker = OffHeapAdditiveDecisionTree.moveOffHeap(normRanker);
+        assertThat(ranker, instanceOf(FeatureNormalizingRanker.class));
+        assertThat(((FeatureNormalizingRanker) ranker).getWrapped(), instanceOf(OffHeapAdditiveDecisionTree.class));
+        assertTrue(((FeatureNormalizingRanker) ranker).offHeapBytesUsed() > 0);
+        assertEquals(((FeatureNormalizingRanker) ranker).offHeapBytesUsed(), OffHeapAdditiveDecisionTree.offHeapBytesNeeded(normRanker));
+        assertNull(OffHeapAdditiveDecisionTree.moveOffHeap(LinearRankerTests.generateRandomRanker(10)));
+        assertEquals(0, OffHeapAdditiveDecisionTree.offHeapBytesNeeded(LinearRankerTests.generateRandomRanker(10)));
+        // categorical splits are only evaluated on heap
+        assertNull(OffHeapAdditiveDecisionTree.moveOffHeap(FlatAdditiveDecisionTreeTests.typedSplits().build()));
+        assertEquals(0, OffHeapAdditiveDecisionTree.offHeapBytesNeeded(FlatAdditiveDecisionTreeTests.typedSplits().build()));
+    }
+
+    public void testTypedSplits() {
+        FlatAdditiveDecisionTree.Builder builder = new FlatAdditiveDecisionTree.Builder(2,
+                Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME));
+        builder.startTree(1F);
+        int split = builder.addSplit(0, 0.5F);
+        builder.setSplitType(split, FlatAdditiveDecisionTree.MISSING_NAN | FlatAdditiveDecisionTree.DEFAULT_LEFT);
+        builder.addLeaf(1F);
+        builder.setRightChild(split, builder.nextNode());
+        split = builder.addSplit(1, -0.5F);
+        builder.setSplitType(split, FlatAdditiveDecisionTree.MISSING_ZERO | FlatAdditiveDecisionTree.DEFAULT_LEFT);
+        builder.addLeaf(2F);
+        builder.setRightChild(split, builder.nextNode());
+        builder.addLeaf(3F);
+        FlatAdditiveDecisionTree flat = builder.build();
+        OffHeapAdditiveDecisionTree offHeap = OffHeapAdditiveDecisionTree.copyOf(flat);
+        assertEquals(flat.numNodes(), offHeap.numNodes());
+        assertEquals(offHeap.offHeapBytesUsed(), OffHeapAdditiveDecisionTree.offHeapBytesNeeded(flat));
+        assertTrue(offHeap.tracksMissingFeatures());
+
+        float[][] vectors = new float[][]{{0F, 0F}, {1F, 0F}, {1F, 1F}, {1F, -1F}, {Float.NaN, 1F}, {1F, Float.NaN}};
+        for (float[] scores : vectors) {
+            for (boolean missing : new boolean[]{false, true}) {
+                DenseFeatureVector flatVector = flat.newFeatureVector(null);
+                DenseFeatureVector offHeapVector = offHeap.newFeatureVector(null);
+                System.arraycopy(scores, 0, flatVector.scores, 0, scores.length);
+                System.arraycopy(scores, 0, offHeapVector.scores, 0, scores.length);
+                if (missing) {
+                    flatVector.setFeatureMissing(0);
+                    offHeapVector.setFeatureMissing(0);
+                }
+                assertEquals(flat.score(flatVector), offHeap.score(offHeapVector), 0F);
+            }
+        }
+    }
+}
@@ -49,6 +49,45 @@ public class LinearRankerTests extends LuceneTestCase {
         assertEquals(expected, ranker.score(point), Math.ulp(expected));
     }
 
+    public void testMaxScore() {
+        float[] weights = generateRandomWeights(nextInt(random(), 1, 50));
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] *= random().nextBoolean() ? 1F : -1F;
+        }
+        LinearRanker ranker = new LinearRanker(weights, random().nextFloat());
+        float[] mins = new float[weights.length];
+        float[] maxs = new float[weights.length];
+        for (int f = 0; f < weights.length; f++) {
+            mins[f] = random().nextFloat() * 10;
+            maxs[f] = mins[f] + random().nextFloat() * 10;
+        }
+        float bound = ranker.maxScore(mins, maxs);
+        DenseFeatureVector vector = ranker.newFeatureVector(null);
+        for (int i = 0; i < 100; i++) {
+            vector = ranker.newFeatureVector(vector);
+            for (int f = 0; f < weights.length; f++) {
+                vector.scores[f] = random().nextBoolean() ? (weights[f] > 0 ? maxs[f] : mins[f])
+                        : Math.min(maxs[f], mins[f] + random().nextFloat() * (maxs[f] - mins[f]));
+            }
+            float exact = ranker.score(vector);
+            assertTrue(exact <= bound);
+            // a single document is bounded by its own score, padded for the rounding errors
+            float[] point = vector.scores.clone();
+            float pointBound = ranker.maxScore(point, point);
+            double absSum = Math.abs(ranker.intercept());
+            for (int f = 0; f < weights.length; f++) {
+                absSum += Math.abs(weights[f] * point[f]);
+            }
+            assertTrue(exact <= pointBound);
+            assertEquals(exact, pointBound, 1e-4 * Math.max(1D, absSum));
+        }
+        // unbounded features
+        maxs[0] = Float.POSITIVE_INFINITY;
+        mins[0] = Float.NEGATIVE_INFINITY;
+        assertEquals(Float.POSITIVE_INFINITY, ranker.maxScore(mins, maxs), 0F);
+        assertEquals(Float.POSITIVE_INFINITY, ranker.maxScore(), 0F);
+    }
+
     public void testSize() {
         LinearRanker ranker = new LinearRanker(new float[]{1,2,3});
         assertEquals(ranker.size(), 3);
@@ -0,0 +1,181 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.ranker.normalizer;
+
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTreeTests;
+import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTreeTests;
+import com.o19s.es.ltr.ranker.linear.LinearRanker;
+import com.o19s.es.ltr.ranker.linear.LinearRankerTests;
+import org.apache.lucene.tests.util.LuceneTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class FeatureNormalizingRankerTests extends LuceneTestCase {
+
+    public void testScore() {
+        Map<Integer, Normalizer> ftrNorms = new HashMap<>();
+        ftrNorms.put(0, new MinMaxFeatureNormalizer(1F, 3F));
+        ftrNorms.put(2, new StandardFeatureNormalizer(0.5F, 0.25F));
+        ftrNorms.put(3, Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME));
+        LtrRanker ranker = new FeatureNormalizingRanker(new LinearRanker(new float[]{1F, 10F, 100F, 1000F}), ftrNorms);
+
+        for (int i = 0; i < 100; i++) {
+            float[] values = new float[]{random().nextFloat() * 4, random().nextFloat(), random().nextFloat(), random().nextFloat()};
+            LtrRanker.FeatureVector vector = ranker.newFeatureVector(null);
+            for (int f = 0; f < values.length; f++) {
+                vector.setFeatureScore(f, values[f]);
+            }
+            float expected = new MinMaxFeatureNormalizer(1F, 3F).normalize(values[0]) + 10F * values[1]
+                    + 100F * new StandardFeatureNormalizer(0.5F, 0.25F).normalize(values[2])
+                    + 1000F * Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME).normalize(values[3]);
+            assertEquals(expected, ranker.score(vector), 0F);
+        }
+    }
+
+    public void testFuseLinear() {
+        int nbFeatures = 20;
+        LinearRanker linear = new LinearRanker(LinearRankerTests.generateRandomWeights(nbFeatures), random().nextFloat());
+        Map<Integer, Normalizer> ftrNorms = randomNormalizers(nbFeatures);
+        LtrRanker expected = new FeatureNormalizingRanker(linear, ftrNorms);
+        LtrRanker fused = FeatureNormalizingRanker.fuse(linear, ftrNorms);
+        assertEquals(LinearRanker.class, fused.getClass());
+        assertSameScores(expected, fused, nbFeatures, 1e-3F);
+    }
+
+    public void testFuseTrees() {
+        int nbFeatures = 20;
+        FlatAdditiveDecisionTree trees = FlatAdditiveDecisionTree.fromNodes(
+                NaiveAdditiveDecisionTreeTests.generateRandomDecTree(nbFeatures, 50, 1, 6, null));
+        Map<Integer, Normalizer> ftrNorms = randomNormalizers(nbFeatures);
+        LtrRanker expected = new FeatureNormalizingRanker(trees, ftrNorms);
+        LtrRanker fused = FeatureNormalizingRanker.fuse(trees, ftrNorms);
+        assertEquals(FlatAdditiveDecisionTree.class, fused.getClass());
+        // documents follow the same paths
+        assertSameScores(expected, fused, nbFeatures, 0F);
+
+        // values on the boundaries of the splits
+        int[] features = trees.features();
+        float[] values = ((FlatAdditiveDecisionTree) fused).values();
+        for (int i = 0; i < features.length; i++) {
+            if (features[i] == FlatAdditiveDecisionTree.LEAF) {
+                continue;
+            }
+            for (float value : new float[]{Math.nextDown(values[i]), values[i], Math.nextUp(values[i])}) {
+                LtrRanker.FeatureVector expectedVector = expected.newFeatureVector(null);
+                LtrRanker.FeatureVector fusedVector = fused.newFeatureVector(null);
+                expectedVector.setFeatureScore(features[i], value);
+                fusedVector.setFeatureScore(features[i], value);
+                assertEquals(expected.score(expectedVector), fused.score(fusedVector), 0F);
+            }
+        }
+    }
+
+    public void testFuseTypedTrees() {
+        FlatAdditiveDecisionTree trees = FlatAdditiveDecisionTreeTests.typedSplits().build();
+        Map<Integer, Normalizer> ftrNorms = new HashMap<>();
+        ftrNorms.put(0, new MinMaxFeatureNormalizer(1F, 3F));
+        LtrRanker fused = FeatureNormalizingRanker.fuse(trees, ftrNorms);
+        assertEquals(new FeatureNormalizingRanker(trees, ftrNorms), fused);
+    }
+
+    public void testPartialFusion() {
+        LinearRanker linear = new LinearRanker(new float[]{1F, 2F, 3F});
+        Map<Integer, Normalizer> ftrNorms = new HashMap<>();
+        ftrNorms.put(0, new MinMaxFeatureNormalizer(1F, 3F));
+        ftrNorms.put(1, new StandardFeatureNormalizer(0.5F, 0F));
+        ftrNorms.put(2, Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME));
+        LtrRanker fused = FeatureNormalizingRanker.fuse(linear, ftrNorms);
+        assertEquals(FeatureNormalizingRanker.class, fused.getClass());
+        FeatureNormalizingRanker normRanker = (FeatureNormalizingRanker) fused;
+        assertEquals(2, normRanker.getFtrNorms().size());
+        assertFalse(normRanker.getFtrNorms().containsKey(0));
+        assertEquals(new LinearRanker(new float[]{0.5F, 2F, 3F}, -0.5F), normRanker.getWrapped());
+    }
+
+    public void testRawThreshold() {
+        for (int i = 0; i < 10000; i++) {
+            float threshold = (random().nextFloat() - 0.5F) * 100;
+            float offset = (random().nextFloat() - 0.5F) * 100;
+            float scale = random().nextFloat() * 10 + Float.MIN_NORMAL;
+            float raw = FeatureNormalizingRanker.rawThreshold(threshold, offset, scale);
+            assertTrue((raw - offset) / scale >= threshold);
+            assertTrue((Math.nextDown(raw) - offset) / scale < threshold);
+        }
+        assertEquals(Float.POSITIVE_INFINITY, FeatureNormalizingRanker.rawThreshold(Float.MAX_VALUE, 0F, 2F), 0F);
+        assertEquals(Float.NEGATIVE_INFINITY, FeatureNormalizingRanker.rawThreshold(Float.NEGATIVE_INFINITY, 0F, 2F), 0F);
+        assertTrue(Float.isNaN(FeatureNormalizingRanker.rawThreshold(1F, 0F, -2F)));
+        assertTrue(Float.isNaN(FeatureNormalizingRanker.rawThreshold(1F, 0F, 0F)));
+    }
+
+    public void testMaxScore() {
+        int nbFeatures = 20;
+        FlatAdditiveDecisionTree trees = FlatAdditiveDecisionTree.fromNodes(
+                NaiveAdditiveDecisionTreeTests.generateRandomDecTree(nbFeatures, 50, 1, 6, null));
+        Map<Integer, Normalizer> ftrNorms = randomNormalizers(nbFeatures);
+        ftrNorms.put(0, Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME));
+        LtrRanker ranker = new FeatureNormalizingRanker(trees, ftrNorms);
+        float[] mins = new float[nbFeatures];
+        float[] maxs = new float[nbFeatures];
+        for (int f = 0; f < nbFeatures; f++) {
+            maxs[f] = random().nextFloat() * 10;
+        }
+        float bound = ranker.maxScore(mins, maxs);
+        assertTrue(bound <= trees.maxScore());
+        for (int i = 0; i < 1000; i++) {
+            LtrRanker.FeatureVector vector = ranker.newFeatureVector(null);
+            for (int f = 0; f < nbFeatures; f++) {
+                vector.setFeatureScore(f, random().nextBoolean() ? maxs[f] : random().nextFloat() * maxs[f]);
+            }
+            assertTrue(ranker.score(vector) <= bound);
+        }
+    }
+
+    private static Map<Integer, Normalizer> randomNormalizers(int nbFeatures) {
+        Map<Integer, Normalizer> ftrNorms = new HashMap<>();
+        for (int i = 0; i < nbFeatures; i++) {
+            float a = random().nextFloat();
+            switch (random().nextInt(3)) {
+            case 0:
+                ftrNorms.put(i, new MinMaxFeatureNormalizer(a, a + random().nextFloat() * 10 + 0.01F));
+                break;
+            case 1:
+                ftrNorms.put(i, new StandardFeatureNormalizer(a, random().nextFloat() * 2 + 0.01F));
+                break;
+            default:
+                break;
+            }
+        }
+        return ftrNorms;
+    }
+
+    private static void assertSameScores(LtrRanker expected, LtrRanker actual, int nbFeatures, float delta) {
+        for (int i = 0; i < 1000; i++) {
+            LtrRanker.FeatureVector expectedVector = expected.newFeatureVector(null);
+            LtrRanker.FeatureVector actualVector = actual.newFeatureVector(null);
+            for (int f = 0; f < nbFeatures; f++) {
+                float value = random().nextFloat() * 10;
+                expectedVector.setFeatureScore(f, value);
+                actualVector.setFeatureScore(f, value);
+            }
+            float expectedScore = expected.score(expectedVector);
+            assertEquals(expectedScore, actual.score(actualVector), delta * Math.max(1F, Math.abs(expectedScore)));
+        }
+    }
+}
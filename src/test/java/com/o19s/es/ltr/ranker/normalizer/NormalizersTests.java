@@ -19,6 +19,8 @@ public class NormalizersTests extends LuceneTestCase {
         assertTrue(Normalizers.exists(Normalizers.NOOP_NORMALIZER_NAME));
         assertTrue(Normalizers.exists("sigmoid"));
         assertFalse(Normalizers.exists("not_normalizer"));
+        assertTrue(Normalizers.exists("sigmoid:2.0"));
+        assertFalse(Normalizers.exists("sigmoid:two"));
     }
 
     public void testNormalize() {
@@ -27,5 +29,20 @@ public class NormalizersTests extends LuceneTestCase {
 
         assertEquals(Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME).normalize(0.2f), 0.549834f, Math.ulp(0.549834f));
         assertEquals(Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME).normalize(-0.5f), 0.37754068f, Math.ulp(0.37754068f));
+
+        assertEquals(Normalizers.get(Normalizers.EXP_NORMALIZER_NAME).normalize(0f), 1f, 0f);
+        assertEquals(Normalizers.get(Normalizers.EXP_NORMALIZER_NAME).normalize(1f), 2.7182817f, Math.ulp(2.7182817f));
+
+        assertSame(Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME), Normalizers.sigmoid(1f));
+        assertEquals(Normalizers.sigmoid(2f).normalize(0.1f), 0.549834f, Math.ulp(0.549834f));
+        assertEquals(Normalizers.sigmoid(2f), Normalizers.sigmoid(2f));
+    }
+
+    public void testNameOf() {
+        assertEquals(Normalizers.SIGMOID_NORMALIZER_NAME, Normalizers.nameOf(Normalizers.sigmoid(1f)));
+        assertEquals("sigmoid:2.0", Normalizers.nameOf(Normalizers.sigmoid(2f)));
+        float scale = random().nextFloat() * 10;
+        assertEquals(Normalizers.sigmoid(scale), Normalizers.get(Normalizers.nameOf(Normalizers.sigmoid(scale))));
+        assertNull(Normalizers.nameOf(val -> val));
     }
 }
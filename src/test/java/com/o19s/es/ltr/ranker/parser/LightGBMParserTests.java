@@ -0,0 +1,264 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.ranker.parser;
+
+import com.o19s.es.ltr.feature.FeatureSet;
+import com.o19s.es.ltr.feature.store.StoredFeature;
+import com.o19s.es.ltr.feature.store.StoredFeatureSet;
+import com.o19s.es.ltr.ranker.DenseFeatureVector;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.normalizer.Normalizers;
+import org.apache.lucene.tests.util.LuceneTestCase;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.bytes.BytesArray;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.o19s.es.ltr.LtrTestUtils.randomFeature;
+
+public class LightGBMParserTests extends LuceneTestCase {
+    private final LightGBMParser parser = new LightGBMParser();
+
+    // tree 0: f0 <= 0.5 ? (f2 in {1, 3} ? 0.2 : 0.3) : 0.1
+    // tree 1: f1 <= 1.5 ? 1.0 : 2.0, NaN goes left
+    // tree 2: 0.5
+    private static final String TEXT_MODEL = "tree\n" +
+            "version=v3\n" +
+            "num_class=1\n" +
+            "num_tree_per_iteration=1\n" +
+            "label_index=0\n" +
+            "max_feature_idx=2\n" +
+            "objective=regression\n" +
+            "feature_names=f0 f1 f2\n" +
+            "feature_infos=[0:1] [0:2] 1:2:3\n" +
+            "tree_sizes=400 300 100\n" +
+            "\n" +
+            "Tree=0\n" +
+            "num_leaves=3\n" +
+            "num_cat=1\n" +
+            "split_feature=0 2\n" +
+            "split_gain=1 1\n" +
+            "threshold=0.5 0\n" +
+            "decision_type=2 1\n" +
+            "left_child=1 -2\n" +
+            "right_child=-1 -3\n" +
+            "leaf_value=0.1 0.2 0.3\n" +
+            "leaf_weight=1 1 1\n" +
+            "leaf_count=1 1 1\n" +
+            "internal_value=0 0\n" +
+            "internal_weight=0 0\n" +
+            "internal_count=2 1\n" +
+            "cat_boundaries=0 1\n" +
+            "cat_threshold=10\n" +
+            "is_linear=0\n" +
+            "shrinkage=1\n" +
+            "\n" +
+            "\n" +
+            "Tree=1\n" +
+            "num_leaves=2\n" +
+            "num_cat=0\n" +
+            "split_feature=1\n" +
+            "threshold=1.5\n" +
+            "decision_type=10\n" +
+            "left_child=-1\n" +
+            "right_child=-2\n" +
+            "leaf_value=1 2\n" +
+            "is_linear=0\n" +
+            "shrinkage=0.1\n" +
+            "\n" +
+            "\n" +
+            "Tree=2\n" +
+            "num_leaves=1\n" +
+            "num_cat=0\n" +
+            "split_feature=\n" +
+            "threshold=\n" +
+            "decision_type=\n" +
+            "left_child=\n" +
+            "right_child=\n" +
+            "leaf_value=0.5\n" +
+            "is_linear=0\n" +
+            "shrinkage=1\n" +
+            "\n" +
+            "\n" +
+            "end of trees\n" +
+            "\n" +
+            "feature_importances:\n" +
+            "f0=1\n" +
+            "\n" +
+            "parameters:\n" +
+            "[boosting: gbdt]\n" +
+            "end of parameters\n" +
+            "\n" +
+            "pandas_categorical:null\n";
+
+    private static final String JSON_MODEL = "{\"name\":\"tree\",\"version\":\"v3\",\"num_class\":1," +
+            "\"num_tree_per_iteration\":1,\"label_index\":0,\"max_feature_idx\":2,\"objective\":\"regression\"," +
+            "\"average_output\":false,\"feature_names\":[\"f0\",\"f1\",\"f2\"],\"monotone_constraints\":[]," +
+            "\"feature_infos\":{\"f0\":{\"min_value\":0,\"max_value\":1,\"values\":[]}}," +
+            "\"tree_info\":[" +
+            "{\"tree_index\":0,\"num_leaves\":3,\"num_cat\":1,\"shrinkage\":1,\"tree_structure\":" +
+            "  {\"split_index\":0,\"split_feature\":0,\"split_gain\":1,\"threshold\":0.5,\"decision_type\":\"<=\"," +
+            "   \"default_left\":true,\"missing_type\":\"None\",\"internal_value\":0,\"internal_count\":2," +
+            "   \"left_child\":" +
+            "     {\"split_index\":1,\"split_feature\":2,\"split_gain\":1,\"threshold\":\"1||3\",\"decision_type\":\"==\"," +
+            "      \"default_left\":false,\"missing_type\":\"None\",\"internal_value\":0,\"internal_count\":1," +
+            "      \"left_child\":{\"leaf_index\":1,\"leaf_value\":0.2,\"leaf_count\":1}," +
+            "      \"right_child\":{\"leaf_index\":2,\"leaf_value\":0.3,\"leaf_count\":1}}," +
+            "   \"right_child\":{\"leaf_index\":0,\"leaf_value\":0.1,\"leaf_count\":1}}}," +
+            "{\"tree_index\":1,\"num_leaves\":2,\"num_cat\":0,\"shrinkage\":0.1,\"tree_structure\":" +
+            "  {\"split_index\":0,\"split_feature\":1,\"split_gain\":1,\"threshold\":1.5,\"decision_type\":\"<=\"," +
+            "   \"default_left\":true,\"missing_type\":\"NaN\"," +
+            "   \"left_child\":{\"leaf_index\":0,\"leaf_value\":1}," +
+            "   \"right_child\":{\"leaf_index\":1,\"leaf_value\":2}}}," +
+            "{\"tree_index\":2,\"num_leaves\":1,\"num_cat\":0,\"shrinkage\":1,\"tree_structure\":{\"leaf_value\":0.5}}]," +
+            "\"feature_importances\":{\"f0\":1},\"pandas_categorical\":null}";
+
+    public void testTextModel() throws IOException {
+        FeatureSet set = featureSet("f0", "f1", "f2");
+        assertScores(parser.parse(set, TEXT_MODEL));
+    }
+
+    public void testJsonModel() throws IOException {
+        FeatureSet set = featureSet("f0", "f1", "f2");
+        assertScores(parser.parse(set, JSON_MODEL));
+    }
+
+    public void testTextAndJsonAreEqual() throws IOException {
+        FeatureSet set = featureSet("f0", "f1", "f2");
+        assertEquals(parser.parse(set, TEXT_MODEL), parser.parse(set, JSON_MODEL));
+    }
+
+    public void testParseBytes() throws IOException {
+        FeatureSet set = featureSet("f0", "f1", "f2");
+        assertEquals(parser.parse(set, TEXT_MODEL), parser.parse(set, new BytesArray(TEXT_MODEL)));
+        assertEquals(parser.parse(set, JSON_MODEL), parser.parse(set, new BytesArray("\n " + JSON_MODEL)));
+        expectThrows(IllegalArgumentException.class, () -> parser.parse(set, new BytesArray(" \n")));
+    }
+
+    private static FeatureSet featureSet(String... names) throws IOException {
+        List<StoredFeature> features = new ArrayList<>(names.length);
+        for (String name : names) {
+            features.add(randomFeature(name));
+        }
+        return new StoredFeatureSet("set", features);
+    }
+
+    private void assertScores(FlatAdditiveDecisionTree tree) {
+        assertEquals(9, tree.numNodes());
+        assertNotNull(tree.splitTypes());
+        assertScore(tree, 0.2F + 1F + 0.5F, 0.2F, 1F, 3F);
+        // thresholds are inclusive
+        assertScore(tree, 0.3F + 1F + 0.5F, 0.5F, 1.5F, 2F);
+        assertScore(tree, 0.1F + 2F + 0.5F, 0.7F, 2F, 1F);
+        // missing values follow the default direction
+        assertScore(tree, 0.2F + 1F + 0.5F, 0.2F, Float.NaN, 1F);
+        // negative, unknown and NaN categories go right
+        assertScore(tree, 0.3F + 1F + 0.5F, 0.2F, 1F, -1F);
+        assertScore(tree, 0.3F + 1F + 0.5F, 0.2F, 1F, 35F);
+        assertScore(tree, 0.3F + 1F + 0.5F, 0.2F, 1F, Float.NaN);
+        // categories are truncated like LightGBM does
+        assertScore(tree, 0.2F + 1F + 0.5F, 0.2F, 1F, 3.7F);
+    }
+
+    private static void assertScore(FlatAdditiveDecisionTree tree, float expected, float... scores) {
+        DenseFeatureVector vector = tree.newFeatureVector(null);
+        System.arraycopy(scores, 0, vector.scores, 0, scores.length);
+        assertEquals(expected, tree.score(vector), Math.ulp(expected));
+    }
+
+    public void testThreshold() {
+        // LightGBM compares doubles: 0.1f is greater than 0.1
+        float threshold = LightGBMParser.threshold(0.1D);
+        assertFalse(threshold > 0.1F);
+        assertTrue(threshold > Math.nextDown(0.1F));
+        assertTrue(LightGBMParser.threshold(0.5D) > 0.5F);
+        assertFalse(LightGBMParser.threshold(0.5D) > Math.nextUp(0.5F));
+        assertTrue(LightGBMParser.threshold(1e300D) > Float.MAX_VALUE);
+    }
+
+    public void testObjectives() {
+        assertSame(Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME), LightGBMParser.normalizer("lambdarank"));
+        assertSame(Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME), LightGBMParser.normalizer("regression"));
+        assertSame(Normalizers.get(Normalizers.NOOP_NORMALIZER_NAME), LightGBMParser.normalizer("rank_xendcg"));
+        assertSame(Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME), LightGBMParser.normalizer("binary sigmoid:1"));
+        assertSame(Normalizers.get(Normalizers.SIGMOID_NORMALIZER_NAME), LightGBMParser.normalizer("cross_entropy"));
+        assertEquals(Normalizers.sigmoid(2F), LightGBMParser.normalizer("binary sigmoid:2"));
+        assertSame(Normalizers.get(Normalizers.EXP_NORMALIZER_NAME), LightGBMParser.normalizer("poisson"));
+        assertSame(Normalizers.get(Normalizers.EXP_NORMALIZER_NAME), LightGBMParser.normalizer("tweedie"));
+        expectThrows(IllegalArgumentException.class, () -> LightGBMParser.normalizer("multiclass num_class:3"));
+        expectThrows(IllegalArgumentException.class, () -> LightGBMParser.normalizer("regression sqrt"));
+    }
+
+    public void testBinaryObjective() throws IOException {
+        FeatureSet set = featureSet("f0", "f1", "f2");
+        FlatAdditiveDecisionTree tree = parser.parse(set, TEXT_MODEL.replace("objective=regression", "objective=binary sigmoid:1"));
+        assertScore(tree, (float) (1 / (1 + Math.exp(-1.7))), 0.2F, 1F, 3F);
+        tree = parser.parse(set, JSON_MODEL.replace("\"regression\"", "\"binary sigmoid:1\""));
+        assertScore(tree, (float) (1 / (1 + Math.exp(-1.7))), 0.2F, 1F, 3F);
+    }
+
+    public void testAverageOutput() throws IOException {
+        FeatureSet set = featureSet("f0", "f1", "f2");
+        FlatAdditiveDecisionTree tree = parser.parse(set, TEXT_MODEL.replace("tree_sizes", "average_output\ntree_sizes"));
+        assertScore(tree, (0.2F + 1F + 0.5F) / 3, 0.2F, 1F, 3F);
+        tree = parser.parse(set, JSON_MODEL.replace("\"average_output\":false", "\"average_output\":true"));
+        assertScore(tree, (0.2F + 1F + 0.5F) / 3, 0.2F, 1F, 3F);
+    }
+
+    public void testMulticlass() throws IOException {
+        FeatureSet set = featureSet("f0", "f1", "f2");
+        expectThrows(IllegalArgumentException.class, () -> parser.parse(set,
+                TEXT_MODEL.replace("num_tree_per_iteration=1", "num_tree_per_iteration=3")));
+        expectThrows(ParsingException.class, () -> parser.parse(set, JSON_MODEL.replace("\"num_class\":1", "\"num_class\":3")));
+    }
+
+    public void testUnknownFeature() throws IOException {
+        FeatureSet set = featureSet("f0", "f1");
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class, () -> parser.parse(set, TEXT_MODEL));
+        assertEquals("Unknown feature [f2]", e.getMessage());
+        expectThrows(ParsingException.class, () -> parser.parse(set, JSON_MODEL));
+    }
+
+    public void testInvalidTextModels() throws IOException {
+        FeatureSet set = featureSet("f0", "f1", "f2");
+        expectThrows(IllegalArgumentException.class, () -> parser.parse(set, "  "));
+        expectThrows(IllegalArgumentException.class, () -> parser.parse(set, TEXT_MODEL.substring(0, TEXT_MODEL.indexOf("Tree=0"))));
+        expectThrows(IllegalArgumentException.class, () -> parser.parse(set, TEXT_MODEL.replace("leaf_value=0.1 0.2 0.3", "leaf_value=0.1 0.2")));
+        expectThrows(IllegalArgumentException.class, () -> parser.parse(set, TEXT_MODEL.replace("left_child=1 -2", "left_child=0 -2")));
+        expectThrows(IllegalArgumentException.class, () -> parser.parse(set, TEXT_MODEL.replace("right_child=-1 -3", "right_child=-1 -4")));
+        expectThrows(IllegalArgumentException.class, () -> parser.parse(set, TEXT_MODEL.replace("threshold=0.5 0", "threshold=0.5 1")));
+        expectThrows(IllegalArgumentException.class, () -> parser.parse(set, TEXT_MODEL.replace("feature_names=f0 f1 f2\n", "")));
+        expectThrows(IllegalArgumentException.class, () -> parser.parse(set, TEXT_MODEL.replaceFirst("is_linear=0", "is_linear=1")));
+    }
+
+    public void testInvalidJsonModels() throws IOException {
+        FeatureSet set = featureSet("f0", "f1", "f2");
+        expectThrows(ParsingException.class, () -> parser.parse(set, "{\"feature_names\":[\"f0\"],\"tree_info\":[]}"));
+        expectThrows(ParsingException.class, () -> parser.parse(set, "{\"tree_info\":[{\"tree_structure\":{\"leaf_value\":1}}]}"));
+        expectThrows(ParsingException.class, () -> parser.parse(set, "{\"feature_names\":[\"f0\"],\"tree_info\":[" +
+                "{\"tree_structure\":{\"split_feature\":0,\"threshold\":1,\"decision_type\":\"<=\"," +
+                "\"right_child\":{\"leaf_value\":1},\"left_child\":{\"leaf_value\":2}}}]}"));
+        expectThrows(ParsingException.class, () -> parser.parse(set, "{\"feature_names\":[\"f0\"],\"tree_info\":[" +
+                "{\"tree_structure\":{\"split_feature\":0,\"decision_type\":\"<=\"," +
+                "\"left_child\":{\"leaf_value\":1},\"right_child\":{\"leaf_value\":2}}}]}"));
+        expectThrows(ParsingException.class, () -> parser.parse(set, "{\"feature_names\":[\"f0\"],\"tree_info\":[" +
+                "{\"tree_structure\":{\"split_feature\":0,\"threshold\":1,\"decision_type\":\"<=\",\"missing_type\":\"Other\"," +
+                "\"left_child\":{\"leaf_value\":1},\"right_child\":{\"leaf_value\":2}}}]}"));
+    }
+}
@@ -22,10 +22,11 @@ import com.o19s.es.ltr.feature.store.StoredFeature;
 import com.o19s.es.ltr.feature.store.StoredFeatureSet;
 import com.o19s.es.ltr.ranker.DenseFeatureVector;
 import com.o19s.es.ltr.ranker.LtrRanker.FeatureVector;
-import com.o19s.es.ltr.ranker.dectree.NaiveAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
 import com.o19s.es.ltr.ranker.linear.LinearRankerTests;
 import org.apache.lucene.tests.util.LuceneTestCase;
 import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.io.Streams;
 import org.hamcrest.CoreMatchers;
 
@@ -46,7 +47,14 @@ public class XGBoostJsonParserTests extends LuceneTestCase {
     public void testReadLeaf() throws IOException {
         String model = "[ {\"nodeid\": 0, \"leaf\": 0.234}]";
         FeatureSet set = randomFeatureSet();
-        NaiveAdditiveDecisionTree tree = parser.parse(set, model);
+        FlatAdditiveDecisionTree tree = parser.parse(set, model);
+        assertEquals(0.234F, tree.score(tree.newFeatureVector(null)), Math.ulp(0.234F));
+    }
+
+    public void testReadBytes() throws IOException {
+        String model = "[ {\"nodeid\": 0, \"leaf\": 0.234}]";
+        FeatureSet set = randomFeatureSet();
+        FlatAdditiveDecisionTree tree = parser.parse(set, new BytesArray(model));
         assertEquals(0.234F, tree.score(tree.newFeatureVector(null)), Math.ulp(0.234F));
     }
 
@@ -65,7 +73,7 @@ public class XGBoostJsonParserTests extends LuceneTestCase {
                 "]}]";
 
         FeatureSet set = new StoredFeatureSet("set", singletonList(randomFeature("feat1")));
-        NaiveAdditiveDecisionTree tree = parser.parse(set, model);
+        FlatAdditiveDecisionTree tree = parser.parse(set, model);
         FeatureVector v = tree.newFeatureVector(null);
         v.setFeatureScore(0, 0.124F);
         assertEquals(0.2F, tree.score(v), Math.ulp(0.2F));
@@ -75,6 +83,74 @@ public class XGBoostJsonParserTests extends LuceneTestCase {
         assertEquals(0.2F, tree.score(v), Math.ulp(0.2F));
     }
 
+    public void testMissingBranch() throws IOException {
+        String model = "[{" +
+                "\"nodeid\": 0," +
+                "\"split\":\"feat1\"," +
+                "\"depth\":0," +
+                "\"split_condition\":0.123," +
+                "\"yes\":1," +
+                "\"no\": 2," +
+                "\"missing\":MISSING," +
+                "\"children\": [" +
+                "   {\"nodeid\": 1, \"depth\": 1, \"leaf\": 0.5}," +
+                "   {\"nodeid\": 2, \"depth\": 1, \"leaf\": 0.2}" +
+                "]}]";
+        FeatureSet set = new StoredFeatureSet("set", singletonList(randomFeature("feat1")));
+
+        // 0 goes to the missing branch, nothing to track
+        FlatAdditiveDecisionTree tree = parser.parse(set, model.replace("MISSING", "1"));
+        assertNull(tree.splitTypes());
+        assertFalse(tree.tracksMissingFeatures());
+
+        tree = parser.parse(set, model.replace("MISSING", "2"));
+        assertTrue(tree.tracksMissingFeatures());
+        DenseFeatureVector v = tree.newFeatureVector(null);
+        assertEquals(0.5F, tree.score(v), Math.ulp(0.5F));
+        v.setFeatureMissing(0);
+        assertEquals(0.2F, tree.score(v), Math.ulp(0.2F));
+        v = tree.newFeatureVector(v);
+        v.setFeatureScore(0, 0.122F);
+        assertEquals(0.5F, tree.score(v), Math.ulp(0.5F));
+        v.setFeatureScore(0, 0.123F);
+        assertEquals(0.2F, tree.score(v), Math.ulp(0.2F));
+
+        assertThat(expectThrows(ParsingException.class, () -> parser.parse(set, model.replace("MISSING", "3"))).getMessage(),
+                CoreMatchers.containsString("Split structure is invalid"));
+    }
+
+    public void testReadChildrenBeforeSplitFields() throws IOException {
+        String model = "[{" +
+                "\"children\": [" +
+                "   {\"nodeid\": 1, \"depth\": 1, \"split\":\"feat2\", \"split_condition\":0.5, \"yes\":3, \"no\":4," +
+                "    \"children\": [" +
+                "       {\"leaf\": 0.1, \"nodeid\": 3}," +
+                "       {\"leaf\": 0.3, \"nodeid\": 4}" +
+                "   ]}," +
+                "   {\"nodeid\": 2, \"depth\": 1, \"leaf\": 0.2}" +
+                "]," +
+                "\"nodeid\": 0," +
+                "\"split\":\"feat1\"," +
+                "\"depth\":0," +
+                "\"split_condition\":0.123," +
+                "\"yes\":1," +
+                "\"no\": 2," +
+                "\"missing\":2" +
+                "}]";
+
+        FeatureSet set = new StoredFeatureSet("set", Arrays.asList(randomFeature("feat1"), randomFeature("feat2")));
+        FlatAdditiveDecisionTree tree = parser.parse(set, model);
+        assertEquals(5, tree.numNodes());
+        FeatureVector v = tree.newFeatureVector(null);
+        v.setFeatureScore(0, 0.124F);
+        assertEquals(0.2F, tree.score(v), Math.ulp(0.2F));
+        v.setFeatureScore(0, 0.122F);
+        v.setFeatureScore(1, 0.4F);
+        assertEquals(0.1F, tree.score(v), Math.ulp(0.1F));
+        v.setFeatureScore(1, 0.6F);
+        assertEquals(0.3F, tree.score(v), Math.ulp(0.3F));
+    }
+
     public void testReadSimpleSplitInObject() throws IOException {
         String model = "{" +
                 "\"splits\": [{" +
@@ -91,7 +167,7 @@ public class XGBoostJsonParserTests extends LuceneTestCase {
                 "]}]}";
 
         FeatureSet set = new StoredFeatureSet("set", singletonList(randomFeature("feat1")));
-        NaiveAdditiveDecisionTree tree = parser.parse(set, model);
+        FlatAdditiveDecisionTree tree = parser.parse(set, model);
         FeatureVector v = tree.newFeatureVector(null);
         v.setFeatureScore(0, 0.124F);
         assertEquals(0.2F, tree.score(v), Math.ulp(0.2F));
@@ -118,7 +194,7 @@ public class XGBoostJsonParserTests extends LuceneTestCase {
                 "]}]}";
 
         FeatureSet set = new StoredFeatureSet("set", singletonList(randomFeature("feat1")));
-        NaiveAdditiveDecisionTree tree = parser.parse(set, model);
+        FlatAdditiveDecisionTree tree = parser.parse(set, model);
         FeatureVector v = tree.newFeatureVector(null);
         v.setFeatureScore(0, 0.124F);
         assertEquals(0.2F, tree.score(v), Math.ulp(0.2F));
@@ -187,7 +263,7 @@ public class XGBoostJsonParserTests extends LuceneTestCase {
                 "]}]}";
 
         FeatureSet set = new StoredFeatureSet("set", singletonList(randomFeature("feat1")));
-        NaiveAdditiveDecisionTree tree = parser.parse(set, model);
+        FlatAdditiveDecisionTree tree = parser.parse(set, model);
         FeatureVector v = tree.newFeatureVector(null);
         v.setFeatureScore(0, 0.124F);
         assertEquals(0.45016602F, tree.score(v), Math.ulp(0.45016602F));
@@ -197,6 +273,29 @@ public class XGBoostJsonParserTests extends LuceneTestCase {
         assertEquals(0.45016602F, tree.score(v), Math.ulp(0.45016602F));
     }
 
+    public void testObjectiveAfterSplits() throws IOException {
+        String model = "{" +
+                "\"splits\": [{\"nodeid\": 0, \"leaf\": -0.2}]," +
+                "\"objective\": \"reg:logistic\"" +
+                "}";
+
+        FlatAdditiveDecisionTree tree = parser.parse(randomFeatureSet(), model);
+        assertEquals(0.45016602F, tree.score(tree.newFeatureVector(null)), Math.ulp(0.45016602F));
+    }
+
+    public void testLeafWithChildren() throws IOException {
+        String model = "[{" +
+                "\"nodeid\": 0," +
+                "\"leaf\": 0.3," +
+                "\"children\": [" +
+                "   {\"nodeid\": 1, \"depth\": 1, \"leaf\": 0.5}," +
+                "   {\"nodeid\": 2, \"depth\": 1, \"leaf\": 0.2}" +
+                "]}]";
+        FeatureSet set = new StoredFeatureSet("set", singletonList(randomFeature("feat1")));
+        assertThat(expectThrows(ParsingException.class, () -> parser.parse(set, model)).getMessage(),
+                CoreMatchers.containsString("A leaf cannot have children"));
+    }
+
     public void testMissingField() throws IOException {
         String model = "[{" +
                 "\"nodeid\": 0," +
@@ -265,7 +364,7 @@ public class XGBoostJsonParserTests extends LuceneTestCase {
         }
 
         StoredFeatureSet set = new StoredFeatureSet("set", features);
-        NaiveAdditiveDecisionTree tree = parser.parse(set, model);
+        FlatAdditiveDecisionTree tree = parser.parse(set, model);
         DenseFeatureVector v = tree.newFeatureVector(null);
         assertEquals(v.scores.length, features.size());
 
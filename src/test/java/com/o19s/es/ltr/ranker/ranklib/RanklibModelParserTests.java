@@ -0,0 +1,217 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.ranker.ranklib;
+
+import ciir.umass.edu.learning.RankerFactory;
+import com.o19s.es.ltr.feature.FeatureSet;
+import com.o19s.es.ltr.feature.store.StoredFeature;
+import com.o19s.es.ltr.feature.store.StoredFeatureSet;
+import com.o19s.es.ltr.ranker.LtrRanker;
+import com.o19s.es.ltr.ranker.dectree.FlatAdditiveDecisionTree;
+import com.o19s.es.ltr.ranker.linear.LinearRanker;
+import org.apache.lucene.tests.util.LuceneTestCase;
+import org.apache.lucene.tests.util.TestUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.o19s.es.ltr.LtrTestUtils.randomFeature;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+
+public class RanklibModelParserTests extends LuceneTestCase {
+    private final RanklibModelParser parser = new RanklibModelParser(new RankerFactory());
+
+    public void testParseLambdaMART() throws IOException {
+        String model = "## LambdaMART\n" +
+                "## No. of trees = 2\n" +
+                "<ensemble>\n" +
+                " <tree id=\"1\" weight=\"0.1\">\n" +
+                "  <split>\n" +
+                "   <feature> 2 </feature>\n" +
+                "   <threshold> 0.5 </threshold>\n" +
+                "   <split pos=\"left\">\n" +
+                "    <output> 1.0 </output>\n" +
+                "   </split>\n" +
+                "   <split pos=\"right\">\n" +
+                "    <output> 2.0 </output>\n" +
+                "   </split>\n" +
+                "  </split>\n" +
+                " </tree>\n" +
+                " <tree id=\"2\" weight=\"0.5\">\n" +
+                "  <split>\n" +
+                "   <output> 4.0 </output>\n" +
+                "  </split>\n" +
+                " </tree>\n" +
+                "</ensemble>\n";
+        LtrRanker ranker = parser.parse(randomSet(2), model);
+        assertThat(ranker, instanceOf(FlatAdditiveDecisionTree.class));
+        LtrRanker.FeatureVector v = ranker.newFeatureVector(null);
+        v.setFeatureScore(1, 0.4F);
+        assertEquals(0.1F + 2F, ranker.score(v), Math.ulp(2.1F));
+        // ranklib goes left when the value is equal to the threshold
+        v.setFeatureScore(1, 0.5F);
+        assertEquals(0.1F + 2F, ranker.score(v), Math.ulp(2.1F));
+        v.setFeatureScore(1, 0.6F);
+        assertEquals(0.2F + 2F, ranker.score(v), Math.ulp(2.2F));
+    }
+
+    public void testSameScoresAsRanklib() throws IOException {
+        int nbFeatures = TestUtil.nextInt(random(), 1, 10);
+        List<Float> thresholds = new ArrayList<>();
+        String model = randomEnsembles(random().nextBoolean() ? "LambdaMART" : "MART", 1,
+                TestUtil.nextInt(random(), 1, 3 * RanklibTreeParser.TREES_PER_CHUNK), nbFeatures, thresholds);
+        FeatureSet set = randomSet(nbFeatures);
+        assertSameScores(set, model, thresholds);
+    }
+
+    public void testSameScoresAsRanklibRandomForests() throws IOException {
+        int nbFeatures = TestUtil.nextInt(random(), 1, 10);
+        List<Float> thresholds = new ArrayList<>();
+        String model = randomEnsembles("Random Forests", TestUtil.nextInt(random(), 1, 10),
+                TestUtil.nextInt(random(), 1, 50), nbFeatures, thresholds);
+        FeatureSet set = randomSet(nbFeatures);
+        assertSameScores(set, model, thresholds);
+    }
+
+    public void testChunksParsedByHelpers() throws Exception {
+        int nbFeatures = TestUtil.nextInt(random(), 1, 10);
+        List<Float> thresholds = new ArrayList<>();
+        String model = randomEnsembles("LambdaMART", 1,
+                TestUtil.nextInt(random(), 2 * RanklibTreeParser.TREES_PER_CHUNK + 1, 10 * RanklibTreeParser.TREES_PER_CHUNK),
+                nbFeatures, thresholds);
+        FeatureSet set = randomSet(nbFeatures);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            RanklibModelParser parallelParser = new RanklibModelParser(new RankerFactory(), () -> executor);
+            assertEquals(parser.parse(set, model), parallelParser.parse(set, model));
+            assertSameScores(set, model, thresholds);
+
+            // a failure in any chunk fails the parsing
+            String invalid = model.substring(0, model.lastIndexOf("<threshold>")) + "</split></tree></ensemble>";
+            assertThat(expectThrows(IllegalArgumentException.class, () -> parallelParser.parse(set, invalid)).getMessage(),
+                    containsString("Expected [threshold]"));
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    public void testUnknownFeature() throws IOException {
+        String model = "## LambdaMART\n<ensemble><tree id=\"1\" weight=\"1\"><split><feature> 4 </feature>" +
+                "<threshold> 0.5 </threshold><split pos=\"left\"><output> 1 </output></split>" +
+                "<split pos=\"right\"><output> 2 </output></split></split></tree></ensemble>";
+        assertThat(expectThrows(IllegalArgumentException.class, () -> parser.parse(randomSet(3), model)).getMessage(),
+                containsString("Ranklib model uses feature [4]"));
+    }
+
+    public void testInvalidStructure() throws IOException {
+        String model = "## LambdaMART\n<ensemble><tree id=\"1\" weight=\"1\"><split><feature> 1 </feature></split></tree></ensemble>";
+        assertThat(expectThrows(IllegalArgumentException.class, () -> parser.parse(randomSet(3), model)).getMessage(),
+                containsString("Expected [threshold]"));
+    }
+
+    public void testLinearRegression() throws IOException {
+        String model = "## Linear Regression\n" +
+                "## Lambda = 1.0E-10\n" +
+                "0:0.30545402144173783 1:0.30545402144173783 2:0.13565247758049973\n";
+        LtrRanker ranker = parser.parse(randomSet(2), model);
+        assertThat(ranker, instanceOf(LinearRanker.class));
+        assertEquals(0.30545402144173783F, ((LinearRanker) ranker).intercept(), 0F);
+        assertSameScores(randomSet(2), model, new ArrayList<>(), LinearRanker.class);
+    }
+
+    public void testCoordinateAscent() throws IOException {
+        String model = "## Coordinate Ascent\n" +
+                "## Restart = 5\n" +
+                "## MaxIteration = 25\n" +
+                "1:0.5 3:0.25";
+        LtrRanker ranker = parser.parse(randomSet(3), model);
+        assertThat(ranker, instanceOf(LinearRanker.class));
+        assertArrayEquals(new float[]{0.5F, 0F, 0.25F}, ((LinearRanker) ranker).weights(), 0F);
+        assertSameScores(randomSet(3), model, new ArrayList<>(), LinearRanker.class);
+        assertThat(expectThrows(IllegalArgumentException.class, () -> parser.parse(randomSet(2), model)).getMessage(),
+                containsString("Ranklib model uses feature [3]"));
+    }
+
+    private void assertSameScores(FeatureSet set, String model, List<Float> thresholds) {
+        assertSameScores(set, model, thresholds, FlatAdditiveDecisionTree.class);
+    }
+
+    private void assertSameScores(FeatureSet set, String model, List<Float> thresholds, Class<? extends LtrRanker> rankerClass) {
+        LtrRanker ranker = parser.parse(set, model);
+        assertThat(ranker, instanceOf(rankerClass));
+        RanklibRanker expected = new RanklibRanker(new RankerFactory().loadRankerFromString(model), set.size());
+        int nPass = TestUtil.nextInt(random(), 10, 100);
+        for (int i = 0; i < nPass; i++) {
+            LtrRanker.FeatureVector actualVector = ranker.newFeatureVector(null);
+            LtrRanker.FeatureVector expectedVector = expected.newFeatureVector(null);
+            for (int f = 0; f < set.size(); f++) {
+                // use thresholds as feature values to check ties
+                float value = !thresholds.isEmpty() && random().nextBoolean()
+                        ? thresholds.get(random().nextInt(thresholds.size()))
+                        : random().nextFloat();
+                actualVector.setFeatureScore(f, value);
+                expectedVector.setFeatureScore(f, value);
+            }
+            float expectedScore = expected.score(expectedVector);
+            assertEquals(expectedScore, ranker.score(actualVector), Math.max(1E-4F, Math.abs(expectedScore) * 1E-5F));
+        }
+    }
+
+    private String randomEnsembles(String type, int nbEnsembles, int nbTrees, int nbFeatures, List<Float> thresholds) {
+        StringBuilder sb = new StringBuilder("## ").append(type).append('\n');
+        sb.append("## No. of trees = ").append(nbTrees).append("\n\n");
+        for (int e = 0; e < nbEnsembles; e++) {
+            sb.append("<ensemble>\n");
+            for (int t = 0; t < nbTrees; t++) {
+                sb.append("\t<tree id=\"").append(t + 1).append("\" weight=\"").append(random().nextFloat()).append("\">\n");
+                randomSplit(sb, "", TestUtil.nextInt(random(), 1, 6), nbFeatures, thresholds);
+                sb.append("\t</tree>\n");
+            }
+            sb.append("</ensemble>\n");
+        }
+        return sb.toString();
+    }
+
+    private void randomSplit(StringBuilder sb, String pos, int depth, int nbFeatures, List<Float> thresholds) {
+        sb.append("<split").append(pos).append(">\n");
+        if (depth == 0 || random().nextInt(4) == 0) {
+            sb.append("<output> ").append(random().nextFloat() * 4 - 2).append(" </output>\n");
+        } else {
+            float threshold = random().nextFloat();
+            thresholds.add(threshold);
+            sb.append("<feature> ").append(TestUtil.nextInt(random(), 1, nbFeatures)).append(" </feature>\n");
+            sb.append("<threshold> ").append(threshold).append(" </threshold>\n");
+            randomSplit(sb, " pos=\"left\"", depth - 1, nbFeatures, thresholds);
+            randomSplit(sb, " pos=\"right\"", depth - 1, nbFeatures, thresholds);
+        }
+        sb.append("</split>\n");
+    }
+
+    private FeatureSet randomSet(int nbFeatures) throws IOException {
+        List<StoredFeature> features = new ArrayList<>();
+        for (int i = 0; i < nbFeatures; i++) {
+            features.add(randomFeature("feature" + i));
+        }
+        return new StoredFeatureSet("set", features);
+    }
+}
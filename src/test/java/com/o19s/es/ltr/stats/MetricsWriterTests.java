@@ -0,0 +1,71 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.stats;
+
+import com.o19s.es.ltr.stats.suppliers.ModelStatsOnNodeSupplier;
+import org.elasticsearch.test.ESTestCase;
+
+public class MetricsWriterTests extends ESTestCase {
+
+    public void testSamples() {
+        MetricsWriter writer = new MetricsWriter();
+        writer.family("cache_hits_total", "counter", "Lookups served by the cache");
+        writer.sample("cache_hits_total", 3, "cache", "model");
+        writer.sample("cache_hit_ratio", 0.5D, "store", "a\"b\\c\nd");
+        writer.sample("unlabeled", Double.POSITIVE_INFINITY);
+        assertEquals("# HELP ltr_cache_hits_total Lookups served by the cache\n" +
+                "# TYPE ltr_cache_hits_total counter\n" +
+                "ltr_cache_hits_total{cache=\"model\"} 3\n" +
+                "ltr_cache_hit_ratio{store=\"a\\\"b\\\\c\\nd\"} 0.5\n" +
+                "ltr_unlabeled +Inf\n", writer.toString());
+    }
+
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        histogram.record(10);
+        histogram.record(1500);
+        histogram.record(Long.MAX_VALUE / 2);
+        MetricsWriter writer = new MetricsWriter();
+        writer.histogram("score_seconds", histogram, "model", "m");
+        String[] lines = writer.toString().split("\n");
+        // 27 buckets from 2^10 to 2^36 nanos, +Inf, sum and count
+        assertEquals(30, lines.length);
+        // 10 nanos is counted in the first exposed bucket
+        assertEquals("ltr_score_seconds_bucket{model=\"m\",le=\"" + (1024 / 1e9) + "\"} 1", lines[0]);
+        assertEquals("ltr_score_seconds_bucket{model=\"m\",le=\"" + (2048 / 1e9) + "\"} 2", lines[1]);
+        assertEquals("ltr_score_seconds_bucket{model=\"m\",le=\"" + ((1L << 36) / 1e9) + "\"} 2", lines[26]);
+        assertEquals("ltr_score_seconds_bucket{model=\"m\",le=\"+Inf\"} 3", lines[27]);
+        assertTrue(lines[28].startsWith("ltr_score_seconds_sum{model=\"m\"} "));
+        assertEquals("ltr_score_seconds_count{model=\"m\"} 3", lines[29]);
+    }
+
+    public void testExportModelStats() {
+        ModelStats modelStats = new ModelStats();
+        modelStats.get(".ltrstore", "model").onScore(100);
+        modelStats.get(".ltrstore", "model").onCompile(2000);
+        modelStats.onLogging(4);
+        modelStats.onLogging(2);
+        MetricsWriter writer = new MetricsWriter();
+        new ModelStatsOnNodeSupplier(modelStats).exportMetrics(writer);
+        String metrics = writer.toString();
+        assertTrue(metrics.contains("ltr_model_docs_scored_total{store=\".ltrstore\",model=\"model\"} 1\n"));
+        assertTrue(metrics.contains("ltr_model_compile_seconds_count{store=\".ltrstore\",model=\"model\"} 1\n"));
+        assertTrue(metrics.contains("ltr_model_rewrite_seconds_count{store=\".ltrstore\",model=\"model\"} 0\n"));
+        assertTrue(metrics.contains("ltr_logging_docs_total 2\n"));
+        assertTrue(metrics.contains("ltr_logging_features_total 6\n"));
+    }
+}
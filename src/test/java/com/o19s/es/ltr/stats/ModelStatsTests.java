@@ -0,0 +1,116 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.stats;
+
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static com.o19s.es.ltr.stats.ModelStats.Stat;
+
+public class ModelStatsTests extends ESTestCase {
+
+    public void testBuckets() {
+        assertEquals(0, Histogram.bucket(0));
+        assertEquals(1, Histogram.bucket(1));
+        assertEquals(2, Histogram.bucket(2));
+        assertEquals(2, Histogram.bucket(3));
+        assertEquals(11, Histogram.bucket(1024));
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testRecordAndReport() {
+        ModelStats modelStats = new ModelStats();
+        ModelStats.PerModelStats stats = modelStats.get(".ltrstore", "model");
+        assertSame(stats, modelStats.get(".ltrstore", "model"));
+        stats.onScore(100);
+        stats.onScore(1500);
+        stats.onScore(1600);
+        stats.onQueryBuild(10);
+        stats.onWeightCreation(20);
+        stats.onWeightCreation(30);
+
+        Map<String, Object> values = (Map<String, Object>) modelStats.toMap().get(".ltrstore").get("model");
+        assertEquals(3L, values.get(Stat.DOCS_SCORED.getName()));
+        assertEquals(3200L, values.get(Stat.SCORE_TIME_IN_NANOS.getName()));
+        assertEquals(1L, values.get(Stat.QUERY_BUILD_COUNT.getName()));
+        assertEquals(10L, values.get(Stat.QUERY_BUILD_TIME_IN_NANOS.getName()));
+        assertEquals(2L, values.get(Stat.WEIGHT_CREATION_COUNT.getName()));
+        assertEquals(50L, values.get(Stat.WEIGHT_CREATION_TIME_IN_NANOS.getName()));
+        Map<String, Object> histogram = (Map<String, Object>) values.get(Stat.SCORE_LATENCY_HISTOGRAM.getName());
+        assertEquals(2, histogram.size());
+        assertEquals(1L, histogram.get("lt_128"));
+        assertEquals(2L, histogram.get("lt_2048"));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testFeatureStats() {
+        ModelStats modelStats = new ModelStats();
+        ModelStats.PerModelStats stats = modelStats.get(".ltrstore", "model");
+        Map<String, Object> values = (Map<String, Object>) modelStats.toMap().get(".ltrstore").get("model");
+        assertNull(values.get(Stat.FEATURES.getName()));
+
+        ModelStats.FeatureStats[] features = stats.featureStats(Arrays.asList("f1", "f2"));
+        assertSame(features[1], stats.featureStats(Collections.singletonList("f2"))[0]);
+        features[0].onAdvance(10);
+        features[0].onAdvance(20);
+        features[0].onScore(5);
+        values = (Map<String, Object>) modelStats.toMap().get(".ltrstore").get("model");
+        Map<String, Object> f1 = (Map<String, Object>) ((Map<String, Object>) values.get(Stat.FEATURES.getName())).get("f1");
+        assertEquals(2L, f1.get(Stat.FEATURE_ADVANCE_COUNT.getName()));
+        assertEquals(30L, f1.get(Stat.FEATURE_ADVANCE_TIME_IN_NANOS.getName()));
+        assertEquals(1L, f1.get(Stat.FEATURE_MATCH_COUNT.getName()));
+        assertEquals(5L, f1.get(Stat.FEATURE_SCORE_TIME_IN_NANOS.getName()));
+    }
+
+    public void testEvict() {
+        ModelStats modelStats = new ModelStats();
+        modelStats.get(".ltrstore", "model").onScore(1);
+        modelStats.get(".ltrstore_other", "model").onScore(1);
+        modelStats.evict(".ltrstore");
+        assertNull(modelStats.toMap().get(".ltrstore"));
+        assertNotNull(modelStats.toMap().get(".ltrstore_other"));
+    }
+
+    public void testConcurrentUpdates() throws InterruptedException {
+        ModelStats modelStats = new ModelStats();
+        int nbThreads = randomIntBetween(2, 8);
+        int perThread = randomIntBetween(100, 1000);
+        Thread[] threads = new Thread[nbThreads];
+        for (int i = 0; i < nbThreads; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    modelStats.get(".ltrstore", "model").onScore(j);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        ModelStats.PerModelStats stats = modelStats.get(".ltrstore", "model");
+        assertEquals((long) nbThreads * perThread, stats.docsScored());
+        long total = 0;
+        for (long count : stats.scoreHistogram().counts()) {
+            total += count;
+        }
+        assertEquals(stats.docsScored(), total);
+    }
+}
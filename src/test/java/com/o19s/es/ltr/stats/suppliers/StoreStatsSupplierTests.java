@@ -0,0 +1,90 @@
+/*
+ * Copyright [2017] Wikimedia Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.o19s.es.ltr.stats.suppliers;
+
+import com.o19s.es.ltr.feature.store.StoredFeature;
+import com.o19s.es.ltr.feature.store.StoredFeatureSet;
+import com.o19s.es.ltr.feature.store.StoredLtrModel;
+import com.o19s.es.ltr.feature.store.index.IndexFeatureStore;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.indices.EmptySystemIndices;
+import org.elasticsearch.test.ESIntegTestCase;
+
+import java.util.Map;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+
+public class StoreStatsSupplierTests extends ESIntegTestCase {
+    private static final String STORE_NAME = IndexFeatureStore.storeName(IndexFeatureStore.DEFAULT_STORE);
+
+    private StoreStatsSupplier newSupplier(TimeValue refreshInterval) {
+        return new StoreStatsSupplier(client(), clusterService(),
+                new IndexNameExpressionResolver(new ThreadContext(Settings.EMPTY), EmptySystemIndices.INSTANCE), refreshInterval);
+    }
+
+    public void testCountsAreCachedAndIncremented() {
+        createStore();
+        addElement("feature-1", StoredFeature.TYPE);
+        addElement("feature-2", StoredFeature.TYPE);
+        addElement("model-1", StoredLtrModel.TYPE);
+
+        StoreStatsSupplier supplier = newSupplier(TimeValue.timeValueHours(1));
+        assertCount(supplier, StoreStatsSupplier.Stat.STORE_FEATURE_COUNT, 2L);
+        assertCount(supplier, StoreStatsSupplier.Stat.STORE_MODEL_COUNT, 1L);
+
+        // not counted by the supplier, only seen by the next refresh
+        addElement("feature-3", StoredFeature.TYPE);
+        assertCount(supplier, StoreStatsSupplier.Stat.STORE_FEATURE_COUNT, 2L);
+
+        supplier.onCreated(IndexFeatureStore.DEFAULT_STORE, StoredFeatureSet.TYPE);
+        assertCount(supplier, StoreStatsSupplier.Stat.STORE_FEATURE_SET_COUNT, 1L);
+    }
+
+    public void testCountsAreRefreshed() throws Exception {
+        createStore();
+        addElement("feature-1", StoredFeature.TYPE);
+
+        StoreStatsSupplier supplier = newSupplier(TimeValue.ZERO);
+        assertCount(supplier, StoreStatsSupplier.Stat.STORE_FEATURE_COUNT, 1L);
+
+        addElement("feature-2", StoredFeature.TYPE);
+        assertBusy(() -> assertCount(supplier, StoreStatsSupplier.Stat.STORE_FEATURE_COUNT, 2L));
+    }
+
+    private void createStore() {
+        assertAcked(prepareCreate(IndexFeatureStore.DEFAULT_STORE).setMapping("type", "type=keyword"));
+        ensureGreen(IndexFeatureStore.DEFAULT_STORE);
+    }
+
+    private void addElement(String id, String type) {
+        client().prepareIndex(IndexFeatureStore.DEFAULT_STORE)
+                .setId(id)
+                .setSource("type", type)
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .get();
+    }
+
+    private void assertCount(StoreStatsSupplier supplier, StoreStatsSupplier.Stat stat, long expected) {
+        Map<String, Object> storeStats = supplier.get().get(STORE_NAME);
+        assertNotNull(storeStats);
+        assertEquals(expected, storeStats.get(stat.getName()));
+    }
+}